@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -20,11 +22,35 @@ import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class Parser {
     static boolean explain = false;
 
+    // Zql doesn't parse LIMIT, so a LIMIT clause is cut off the end of a
+    // query before it's parsed, and added to the logical plan of the
+    // top-level SELECT afterwards. It can be LIMIT count, LIMIT count OFFSET
+    // skip, or LIMIT skip, count.
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)(?:\\s*,\\s*(\\d+)|\\s+OFFSET\\s+(\\d+))?\\s*(;?)\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * A statement with its LIMIT clause cut off, and the limit of the clause,
+     * or -1 if there is none, and its offset
+     */
+    private static class Stripped {
+        final String sql;
+        final long limit, offset;
+
+        Stripped(String sql, long limit, long offset) {
+            this.sql = sql;
+            this.limit = limit;
+            this.offset = offset;
+        }
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -258,32 +284,76 @@ public class Parser {
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
     }
 
+    /**
+     * Cuts a LIMIT clause off the end of a statement
+     *
+     * @return the statement without the clause, and the clause's limit and
+     *         offset
+     */
+    private static Stripped stripLimit(String s) throws simpledb.ParsingException {
+        long limit, offset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return new Stripped(s, -1, 0);
+        try {
+            if (m.group(2) != null) {
+                offset = Long.parseLong(m.group(1));
+                limit = Long.parseLong(m.group(2));
+            } else {
+                limit = Long.parseLong(m.group(1));
+                if (m.group(3) != null)
+                    offset = Long.parseLong(m.group(3));
+            }
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT is too large: " + m.group().trim());
+        }
+        return new Stripped(s.substring(0, m.start()) + m.group(4), limit, offset);
+    }
+
+    /**
+     * Only the results of a SELECT can be limited; a LIMIT on an INSERT or
+     * DELETE would be dropped, changing every row instead
+     */
+    private static void checkLimit(Stripped stripped, ZStatement s) throws simpledb.ParsingException {
+        if (stripped.limit >= 0 && !(s instanceof ZQuery))
+            throw new simpledb.ParsingException("LIMIT is only supported on SELECT statements");
+    }
+
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, -1, 0);
+    }
+
+    /**
+     * @param limit the most results of the query to return, or -1 for all
+     * @param offset the number of results to skip first
+     */
+    private Query handleQueryStatement(ZQuery s, TransactionId tId, long limit, long offset)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.addLimit(limit, offset);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -431,11 +501,16 @@ public class Parser {
                 if (curtrans == null)
                     throw new ParsingException(
                             "No transaction is currently running");
-                curtrans.commit();
+                try {
+                    curtrans.commit();
+                    System.out.println("Transaction " + curtrans.getId().getId()
+                            + " committed.");
+                } catch (TransactionAbortedException e) {
+                    System.out.println("Transaction " + curtrans.getId().getId()
+                            + " aborted: it conflicted with a concurrent transaction");
+                }
                 curtrans = null;
                 inUserTrans = false;
-                System.out.println("Transaction " + curtrans.getId().getId()
-                        + " committed.");
                 break;
             case "ROLLBACK":
                 if (curtrans == null)
@@ -465,12 +540,16 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        Stripped stripped = stripLimit(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripped.sql.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (stripped.limit >= 0)
+                    lp.addLimit(stripped.limit, stripped.offset);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -495,15 +574,20 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            String stmt = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            Stripped stripped = stripLimit(stmt);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    stripped.sql.getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
+            checkLimit(stripped, s);
 
             Query query = null;
             if (s instanceof ZTransactStmt)
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
+                    // a query on its own reads from a snapshot
+                    curtrans = new Transaction(s instanceof ZQuery);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -517,7 +601,7 @@ public class Parser {
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), stripped.limit, stripped.offset);
                     else {
                         System.out
                                 .println("Can't parse "
@@ -567,7 +651,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit", "offset" };
 
     public static void main(String[] argv) throws IOException {
 
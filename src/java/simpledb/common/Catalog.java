@@ -1,6 +1,7 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -32,6 +33,7 @@ public class Catalog {
     }
     private HashMap<Integer,Table> tables = new HashMap<>();
     private HashMap<String,Integer> nameToTable = new HashMap<>();
+    private HashMap<Integer,List<SecondaryIndex>> indexes = new HashMap<>();
     public static class Table {
 
         private TupleDesc tupleDesc;
@@ -127,10 +129,29 @@ public class Catalog {
         return tables.get(id).name;
     }
 
+    /**
+     * Add a secondary index of a table to the catalog. Its B+ tree must have
+     * been added as a table of its own.
+     * @param index the index to add
+     */
+    public void addIndex(SecondaryIndex index) {
+        indexes.computeIfAbsent(index.getTableId(), k -> new ArrayList<>()).add(index);
+    }
+
+    /**
+     * Returns the secondary indexes of the specified table, none if it has none
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        return indexes.getOrDefault(tableid, Collections.emptyList());
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
         tables.clear();
+        indexes.clear();
     }
 
     /**
@@ -3,7 +3,9 @@ package simpledb.common;
 import simpledb.storage.Page;
 import simpledb.storage.PageId;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class LRU {
@@ -64,8 +66,38 @@ public class LRU {
         return tail.prev;
     }
 
+    /**
+     * @return the least recently used page that is not dirty, or null if
+     *         every page is dirty
+     */
+    public Page leastRecentClean(){
+        for(DLinkedNode node = tail.prev; node != head; node = node.prev){
+            if(node.value.isDirty()==null) return node.value;
+        }
+        return null;
+    }
+
+    /**
+     * @return the least recently used page, or null if the cache is empty
+     */
+    public Page leastRecent(){
+        return tail.prev == head ? null : tail.prev.value;
+    }
+
+    /**
+     * @return all cached pages, most recently used first
+     */
+    public List<Page> pages(){
+        List<Page> res = new ArrayList<>(cache.size());
+        for(DLinkedNode node = head.next; node != tail; node = node.next){
+            res.add(node.value);
+        }
+        return res;
+    }
+
     public void remove(PageId pageId){
         DLinkedNode dLinkedNode = cache.get(pageId);
+        if(dLinkedNode==null) return;
         removeNode(dLinkedNode);
         cache.remove(pageId);
 
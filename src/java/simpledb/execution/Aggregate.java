@@ -6,6 +6,7 @@ import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.io.UncheckedIOException;
 import java.util.NoSuchElementException;
 
 import static simpledb.common.Type.INT_TYPE;
@@ -17,15 +18,20 @@ import static simpledb.execution.Aggregator.NO_GROUPING;
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
+ * <p>
+ * The groups are hashed in memory, up to {@link #setMaxGroups} of them; the
+ * tuples of the other groups are spilled to disk by the aggregator. For a
+ * child whose groups come in order, {@link SortAggregate} needs no memory.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements Aggregation {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private int afield;
     private int gfield;
     private Aggregator.Op aop;
-    private Aggregator aggregator;
+    private final TupleDesc td;
+    private int maxGroups = Aggregator.DEFAULT_MAX_GROUPS;
     private OpIterator resIterator;
 
     /**
@@ -47,29 +53,35 @@ public class Aggregate extends Operator {
         this.afield = afield;
         this.gfield = gfield;
         this.aop = aop;
-        Type gbType = gfield==Aggregator.NO_GROUPING?null:child.getTupleDesc().getFieldType(gfield);
-        switch (child.getTupleDesc().getFieldType(afield)){
+        this.td = resultDesc(child.getTupleDesc(), afield, gfield);
+    }
+
+    /**
+     * @return the TupleDesc of the results of aggregating afield of tuples
+     *         of childTd, grouped by gfield
+     */
+    static TupleDesc resultDesc(TupleDesc childTd, int afield, int gfield) {
+        switch (childTd.getFieldType(afield)){
             case INT_TYPE:
-                aggregator = new IntegerAggregator(gfield,gbType,afield,aop);
-                break;
             case STRING_TYPE:
-                aggregator = new StringAggregator(gfield,gbType,afield,aop);
                 break;
             default:
                 throw new IllegalArgumentException("Unknown type.");
         }
-        try {
-            child.open();
-            while (child.hasNext()){
-                aggregator.mergeTupleIntoGroup(child.next());
-            }
-            resIterator = aggregator.iterator();
-            child.close();
-        } catch (DbException e) {
-            e.printStackTrace();
-        } catch (TransactionAbortedException e) {
-            e.printStackTrace();
-        }
+        if (gfield == Aggregator.NO_GROUPING)
+            return new TupleDesc(new Type[]{INT_TYPE}, new String[]{"aggregateVal"});
+        return new TupleDesc(new Type[]{childTd.getFieldType(gfield), INT_TYPE},
+                new String[]{"groupVal", "aggregateVal"});
+    }
+
+    /**
+     * Set the number of groups to hold in memory; the tuples of the other
+     * groups are spilled to disk, and aggregated a partition at a time
+     */
+    public void setMaxGroups(int maxGroups) {
+        if (maxGroups < 1)
+            throw new IllegalArgumentException("the aggregate needs room for at least one group");
+        this.maxGroups = maxGroups;
     }
 
     /**
@@ -120,6 +132,22 @@ public class Aggregate extends Operator {
         return aop;
     }
 
+    /**
+     * @return an aggregator of values of type aType, that holds maxGroups
+     *         groups in memory
+     */
+    static Aggregator newAggregator(Type aType, int gfield, Type gbType, int afield,
+                                    Aggregator.Op aop, int maxGroups) {
+        if (aType == INT_TYPE) {
+            IntegerAggregator a = new IntegerAggregator(gfield, gbType, afield, aop);
+            a.setMaxGroups(maxGroups);
+            return a;
+        }
+        StringAggregator a = new StringAggregator(gfield, gbType, afield, aop);
+        a.setMaxGroups(maxGroups);
+        return a;
+    }
+
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
         return aop.toString();
     }
@@ -127,7 +155,20 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         // some code goes here
-
+        Type gbType = gfield==Aggregator.NO_GROUPING?null:child.getTupleDesc().getFieldType(gfield);
+        Aggregator aggregator = newAggregator(child.getTupleDesc().getFieldType(afield),
+                gfield, gbType, afield, aop, maxGroups);
+        try {
+            child.open();
+            while (child.hasNext()){
+                aggregator.mergeTupleIntoGroup(child.next());
+            }
+        } catch (UncheckedIOException e) {
+            throw new DbException("can't spill the aggregate: " + e.getMessage());
+        } finally {
+            child.close();
+        }
+        resIterator = aggregator.iterator();
         resIterator.open();
         super.open();
     }
@@ -168,12 +209,13 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return resIterator.getTupleDesc();
+        return td;
     }
 
     public void close() {
         super.close();
-//        this.child.close();
+        if (resIterator != null)
+            resIterator.close();
         resIterator = null;
     }
 
@@ -0,0 +1,37 @@
+package simpledb.execution;
+
+/**
+ * Aggregation is the interface of the operators that compute an aggregate
+ * over a single column, grouped by at most a single column:
+ * {@link Aggregate}, {@link SortAggregate} and {@link ParallelAggregate}.
+ * They differ only in how they group the tuples.
+ */
+public interface Aggregation extends OpIterator {
+
+    /**
+     * @return the group by field index in the <b>INPUT</b> tuples, or
+     *         {@link Aggregator#NO_GROUPING}
+     */
+    int groupField();
+
+    /**
+     * @return the name of the group by field in the <b>OUTPUT</b> tuples, or
+     *         null if there is no grouping
+     */
+    String groupFieldName();
+
+    /**
+     * @return the aggregate field index in the <b>INPUT</b> tuples
+     */
+    int aggregateField();
+
+    /**
+     * @return the name of the aggregate field in the <b>OUTPUT</b> tuples
+     */
+    String aggregateFieldName();
+
+    /**
+     * @return the aggregate operator
+     */
+    Aggregator.Op aggregateOp();
+}
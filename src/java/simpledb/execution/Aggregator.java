@@ -11,6 +11,8 @@ import java.io.Serializable;
  */
 public interface Aggregator extends Serializable {
     int NO_GROUPING = -1;
+    /** The default number of groups an aggregator holds in memory */
+    int DEFAULT_MAX_GROUPS = 20000;
 
     /**
      * SUM_COUNT and SC_AVG will
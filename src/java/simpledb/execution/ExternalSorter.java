@@ -0,0 +1,174 @@
+package simpledb.execution;
+
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * ExternalSorter sorts more tuples than fit in memory. Tuples are collected in
+ * memory until there are maxTuples of them; then they are sorted and written
+ * to a {@link SpillFile} as a run. Reading the tuples back merges the runs,
+ * and the tuples still in memory, with a {@link LoserTree}.
+ * <p>
+ * If the order is a {@link TupleComparator}, like that of an {@link OrderBy},
+ * the tuples in memory are sorted by a {@link ParallelSorter}, on several
+ * threads; otherwise with {@link List#sort}.
+ * <p>
+ * The tuples can be read back more than once; each read is a new merge of the
+ * runs, so no merged copy of them is ever written. If there are more than
+ * {@link #MERGE_FANIN} runs, to bound the number of files read at once, they
+ * are merged a level at a time before the first read: each group of
+ * MERGE_FANIN runs into one run of the next level, so that each tuple is
+ * rewritten once per level. Tuples that compare equal come out in the order
+ * they were added.
+ */
+public class ExternalSorter implements Closeable {
+
+    /** The default number of tuples sorted in memory */
+    public static final int DEFAULT_MAX_TUPLES = 20000;
+    /** The most runs merged at once */
+    public static final int MERGE_FANIN = 64;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int maxTuples;
+    private final List<Tuple> buffer = new ArrayList<>();
+    private final List<SpillFile> runs = new ArrayList<>();
+    private boolean sorted = false;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private ParallelSorter sorter = null;
+
+    /**
+     * @param td the TupleDesc of the tuples to sort
+     * @param comparator the order to sort the tuples in
+     * @param maxTuples the number of tuples to hold in memory
+     */
+    public ExternalSorter(TupleDesc td, Comparator<Tuple> comparator, int maxTuples) {
+        if (maxTuples < 1)
+            throw new IllegalArgumentException("the sort needs room for at least one tuple");
+        this.td = td;
+        this.comparator = comparator;
+        this.maxTuples = maxTuples;
+    }
+
+    /**
+     * Set the number of threads to sort the tuples in memory with; the
+     * default is the number of processors
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("the sort needs at least one thread");
+        this.parallelism = parallelism;
+        sorter = null;
+    }
+
+    /**
+     * Add a tuple to sort
+     */
+    public void add(Tuple t) throws IOException {
+        if (buffer.size() == maxTuples)
+            spill();
+        buffer.add(t);
+        sorted = false;
+    }
+
+    private void spill() throws IOException {
+        sortBuffer();
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : buffer)
+            run.add(t);
+        runs.add(run);
+        buffer.clear();
+    }
+
+    private void sortBuffer() {
+        if (!sorted) {
+            // both sorts are stable, so equal tuples keep the order they were added in
+            if (comparator instanceof TupleComparator) {
+                if (sorter == null)
+                    sorter = new ParallelSorter(parallelism);
+                sorter.sort(buffer, (TupleComparator) comparator);
+            } else {
+                buffer.sort(comparator);
+            }
+            sorted = true;
+        }
+    }
+
+    /**
+     * @return true if the tuples didn't fit in memory
+     */
+    public boolean spilled() {
+        return !runs.isEmpty();
+    }
+
+    /**
+     * @return the tuples added, in sorted order. If the tuples spilled, the
+     *         iterator is {@link Closeable}, to stop reading before the end.
+     */
+    public Iterator<Tuple> iterator() throws IOException {
+        sortBuffer();
+        if (runs.isEmpty())
+            return buffer.iterator();
+        // leave room in the last merge for the tuples in memory
+        while (runs.size() >= MERGE_FANIN)
+            mergeLevel();
+        return merge(runs, true);
+    }
+
+    /**
+     * Merge each group of MERGE_FANIN consecutive runs into one, keeping the
+     * runs in the order their tuples were added
+     */
+    private void mergeLevel() throws IOException {
+        List<SpillFile> next = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i += MERGE_FANIN) {
+            List<SpillFile> group = runs.subList(i, Math.min(i + MERGE_FANIN, runs.size()));
+            if (group.size() == 1) {
+                next.add(group.get(0));
+                continue;
+            }
+            SpillFile merged = new SpillFile(td);
+            try (LoserTree<Tuple> it = merge(group, false)) {
+                while (it.hasNext())
+                    merged.add(it.next());
+            } catch (IOException | RuntimeException e) {
+                merged.close();
+                for (SpillFile run : next)
+                    run.close();
+                throw e;
+            }
+            for (SpillFile run : group)
+                run.close();
+            next.add(merged);
+        }
+        runs.clear();
+        runs.addAll(next);
+    }
+
+    /**
+     * @return the tuples of the runs, and of the buffer if withBuffer, merged
+     */
+    private LoserTree<Tuple> merge(List<SpillFile> toMerge, boolean withBuffer) throws IOException {
+        List<Iterator<Tuple>> sources = new ArrayList<>();
+        for (SpillFile run : toMerge)
+            sources.add(run.iterator());
+        if (withBuffer && !buffer.isEmpty())
+            sources.add(buffer.iterator());
+        return new LoserTree<>(sources, comparator);
+    }
+
+    /**
+     * Remove the tuples and their runs on disk
+     */
+    public void close() {
+        sorter = null;
+        buffer.clear();
+        for (SpillFile run : runs)
+            run.close();
+        runs.clear();
+    }
+}
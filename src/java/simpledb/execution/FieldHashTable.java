@@ -0,0 +1,157 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * FieldHashTable numbers the distinct fields added to it 0, 1, 2, ..., in the
+ * order they are first added, so that operators can keep what they know about
+ * each key in arrays indexed by that number instead of in a map of objects.
+ * <p>
+ * The table uses open addressing with linear probing over an array of key
+ * numbers; the keys themselves, and their hashes, are kept in arrays indexed
+ * by key number. Int keys are kept as ints and compared without calling
+ * equals, so looking one up reads the slot array and the array of int keys.
+ */
+public class FieldHashTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int EMPTY = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final boolean intKeys;
+    // the number of the key in each slot, or EMPTY
+    private int[] slots;
+    private int mask;
+    // indexed by key number
+    private int[] ints;
+    private Field[] fields;
+    private int[] hashes;
+    private int size = 0;
+
+    /**
+     * @param keyType the type of the keys
+     */
+    public FieldHashTable(Type keyType) {
+        this.intKeys = keyType == Type.INT_TYPE;
+        slots = new int[INITIAL_CAPACITY * 2];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+        if (intKeys)
+            ints = new int[INITIAL_CAPACITY];
+        fields = new Field[INITIAL_CAPACITY];
+        hashes = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Spreads the bits of a hash code, so that consecutive keys don't fill
+     * consecutive slots
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    private boolean sameKey(int id, int hash, Field key) {
+        if (intKeys)
+            return ints[id] == ((IntField) key).getValue();
+        return hashes[id] == hash && fields[id].equals(key);
+    }
+
+    /**
+     * @return the number of the key, or -1 if it isn't in the table
+     */
+    public int find(Field key) {
+        if (intKeys && !(key instanceof IntField))
+            return -1;
+        int hash = mix(key.hashCode());
+        for (int s = hash & mask; ; s = (s + 1) & mask) {
+            int id = slots[s];
+            if (id == EMPTY)
+                return -1;
+            if (sameKey(id, hash, key))
+                return id;
+        }
+    }
+
+    /**
+     * Adds key to the table if it isn't already there
+     *
+     * @return the number of the key
+     */
+    public int add(Field key) {
+        int hash = mix(key.hashCode());
+        int s = hash & mask;
+        for (; ; s = (s + 1) & mask) {
+            int id = slots[s];
+            if (id == EMPTY)
+                break;
+            if (sameKey(id, hash, key))
+                return id;
+        }
+        if (size == fields.length) {
+            grow();
+            s = hash & mask;
+            while (slots[s] != EMPTY)
+                s = (s + 1) & mask;
+        }
+        int id = size++;
+        slots[s] = id;
+        if (intKeys)
+            ints[id] = ((IntField) key).getValue();
+        fields[id] = key;
+        hashes[id] = hash;
+        return id;
+    }
+
+    /**
+     * Doubles the room for keys, keeping the slot array at most half full
+     */
+    private void grow() {
+        int capacity = fields.length * 2;
+        if (intKeys)
+            ints = Arrays.copyOf(ints, capacity);
+        fields = Arrays.copyOf(fields, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        slots = new int[capacity * 2];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int s = hashes[id] & mask;
+            while (slots[s] != EMPTY)
+                s = (s + 1) & mask;
+            slots[s] = id;
+        }
+    }
+
+    /**
+     * @return the key numbered id
+     */
+    public Field key(int id) {
+        return fields[id];
+    }
+
+    /**
+     * @return the number of distinct keys in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the keys, keeping the room allocated for them
+     */
+    public void clear() {
+        Arrays.fill(slots, EMPTY);
+        Arrays.fill(fields, 0, size, null);
+        size = 0;
+    }
+}
@@ -2,13 +2,25 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements the relational join operation for
+ * equality predicates, as a hybrid hash join.
+ * <p>
+ * The tuples of child1 (the build side) are hashed into a table that child2
+ * (the probe side) is looked up in. When child1 has more tuples than fit in
+ * memory, its tuples are split into partitions by hash, and the largest
+ * partitions are written to temporary files until the rest fit. Tuples of
+ * child2 whose partition was written out are written to a file of their own,
+ * and once child2 is done the partitions on disk are joined one at a time. So
+ * each child is read once, and the tuples that don't fit in memory are written
+ * and read once more.
  */
 public class HashEquiJoin extends Operator {
 
@@ -16,13 +28,19 @@ public class HashEquiJoin extends Operator {
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
-    transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
+    /** The default number of build tuples kept in memory */
+    public final static int MAP_SIZE = 20000;
+    /** The number of partitions the build side is split into when it spills */
+    public final static int NUM_PARTITIONS = 16;
+
+    private int maxTuples = MAP_SIZE;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -44,7 +62,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -54,29 +72,160 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
+    /**
+     * Set the number of tuples of child1 to keep in memory; beyond that, the
+     * join spills partitions to disk. Takes effect when the join is next
+     * opened or rewound.
+     */
+    public void setMaxTuples(int maxTuples) {
+        if (maxTuples < 1)
+            throw new IllegalArgumentException("the join needs room for at least one tuple");
+        this.maxTuples = maxTuples;
+    }
+
+    // the build tuples in memory
+    transient private TupleHashTable table = null;
+
+    // the build and probe tuples of the partitions written to disk; null for
+    // the partitions in memory
+    transient private SpillFile[] buildFiles = null;
+    transient private SpillFile[] probeFiles = null;
+    transient private int[] partitionSizes = null;
+    transient private int inMemory = 0;
+
+    // the partition on disk being joined, or -1 while child2 is read
+    transient private int part = -1;
+    transient private Iterator<Tuple> buildIt = null;
+    transient private Iterator<Tuple> probeIt = null;
+
+    private static int partition(Field key) {
+        // mix the hash, so that partitions don't split keys the way the
+        // buckets of the table do
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h >>> 16) % NUM_PARTITIONS;
+    }
+
+    /**
+     * Reads child1 into the table, writing out partitions that don't fit
+     */
+    private void build() throws DbException, TransactionAbortedException, IOException {
+        buildFiles = new SpillFile[NUM_PARTITIONS];
+        probeFiles = new SpillFile[NUM_PARTITIONS];
+        partitionSizes = new int[NUM_PARTITIONS];
+        inMemory = 0;
+        part = -1;
+        matchPos = matchEnd = 0;
+        table = new TupleHashTable(child1.getTupleDesc().getFieldType(pred.getField1()), pred.getField1());
         while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            Tuple t1 = child1.next();
+            Field key = t1.getField(pred.getField1());
+            int p = partition(key);
+            if (buildFiles[p] != null) {
+                buildFiles[p].add(t1);
+                continue;
+            }
+            table.add(t1);
+            partitionSizes[p]++;
+            if (++inMemory > maxTuples)
+                spillLargestPartition();
+        }
+    }
+
+    private void spillLargestPartition() throws IOException {
+        int largest = -1;
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            if (buildFiles[p] == null && (largest < 0 || partitionSizes[p] > partitionSizes[largest]))
+                largest = p;
+        }
+        SpillFile f = new SpillFile(child1.getTupleDesc());
+        List<Tuple> kept = new ArrayList<>(table.size());
+        for (int i = 0; i < table.size(); i++) {
+            Tuple t = table.get(i);
+            if (partition(t.getField(pred.getField1())) == largest)
+                f.add(t);
+            else
+                kept.add(t);
         }
-        return cnt > 0;
+        table.clear();
+        for (Tuple t : kept)
+            table.add(t);
+        buildFiles[largest] = f;
+        inMemory -= partitionSizes[largest];
+    }
 
+    /**
+     * Loads the next chunk of the build tuples of the current partition on
+     * disk into the table, usually all of them
+     *
+     * @return false if the partition has no more build tuples to join
+     */
+    private boolean loadChunk() throws IOException {
+        if (buildFiles[part] == null || probeFiles[part] == null)
+            return false;
+        if (buildIt == null)
+            buildIt = buildFiles[part].iterator();
+        if (!buildIt.hasNext())
+            return false;
+        table.clear();
+        for (int n = 0; n < maxTuples && buildIt.hasNext(); n++)
+            table.add(buildIt.next());
+        probeIt = probeFiles[part].iterator();
+        return true;
+    }
+
+    /**
+     * Returns the next tuple of child2 whose partition is in the table, writing
+     * out those of the partitions on disk; then the tuples of the partitions on
+     * disk, once their build tuples are in the table
+     */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException, IOException {
+        if (part < 0) {
+            while (child2.hasNext()) {
+                Tuple t = child2.next();
+                int p = partition(t.getField(pred.getField2()));
+                if (buildFiles[p] == null)
+                    return t;
+                if (probeFiles[p] == null)
+                    probeFiles[p] = new SpillFile(child2.getTupleDesc());
+                probeFiles[p].add(t);
+            }
+            part = 0;
+        }
+        while (part < NUM_PARTITIONS) {
+            if (probeIt != null && probeIt.hasNext())
+                return probeIt.next();
+            probeIt = null;
+            if (!loadChunk()) {
+                part++;
+                buildIt = null;
+            }
+        }
+        return null;
+    }
+
+    private void closeFiles() {
+        if (buildFiles == null)
+            return;
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            if (buildFiles[p] != null)
+                buildFiles[p].close();
+            if (probeFiles[p] != null)
+                probeFiles[p].close();
+        }
+        buildFiles = probeFiles = null;
+        buildIt = probeIt = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        try {
+            build();
+        } catch (IOException e) {
+            throw new DbException("can't spill join partitions: " + e.getMessage());
+        }
         super.open();
     }
 
@@ -84,18 +233,28 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
+        closeFiles();
         this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        this.table=null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        closeFiles();
+        t2 = null;
+        matchPos = matchEnd = 0;
         child1.rewind();
         child2.rewind();
+        try {
+            build();
+        } catch (IOException e) {
+            throw new DbException("can't spill join partitions: " + e.getMessage());
+        }
     }
 
-    transient Iterator<Tuple> listIt = null;
+    // the build tuples joining t2 are table.get(matchPos) to
+    // table.get(matchEnd - 1)
+    transient private int matchPos = 0;
+    transient private int matchEnd = 0;
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -111,52 +270,33 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     private Tuple processList() {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
+        return Tuple.merge(comboTD, table.get(matchPos++), t2);
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
+        if (matchPos < matchEnd) {
             return processList();
-
         }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+        try {
+            // probe the table with tuples of child2, and then of the partitions
+            // on disk
+            while ((t2 = nextProbe()) != null) {
+                int id = table.find(t2.getField(pred.getField2()));
+                if (id < 0)
+                    continue;
+                matchPos = table.start(id);
+                matchEnd = table.end(id);
+                return processList();
+            }
+        } catch (IOException e) {
+            throw new DbException("can't spill join partitions: " + e.getMessage());
         }
-
         return null;
     }
 
@@ -170,5 +310,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
@@ -0,0 +1,200 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins the tuples of an outer relation with
+ * those of an inner relation that has an index on its join field, by probing
+ * the index with the join field of each outer tuple instead of scanning the
+ * inner relation.
+ * <p>
+ * The outer tuples are read in batches of {@link #BATCH_SIZE}, which are
+ * sorted on the join field, so that consecutive probes read neighbouring
+ * pages of the index, and outer tuples with the same join field share a
+ * probe.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of outer tuples sorted and probed at a time */
+    public static final int BATCH_SIZE = 1000;
+
+    private final JoinPredicate pred;
+    private final Predicate.Op probeOp;
+    private OpIterator child1;
+    private IndexOpIterator child2;
+    private final TupleDesc comboTD;
+
+    transient private List<Tuple> batch = null;
+    // the outer tuples of the batch in [groupStart, groupEnd) have the join
+    // field the index was last probed with
+    transient private int groupStart = 0;
+    transient private int groupEnd = 0;
+    transient private int groupPos = 0;
+    transient private Tuple t2 = null;
+    transient private boolean probing = false;
+
+    /**
+     * Constructor. Accepts the children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator can be
+     *            any comparison but LIKE and NOT_EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Index scan of the right(inner) relation to join, whose index
+     *            is on the second field of the predicate
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, IndexOpIterator child2) {
+        this.pred = p;
+        this.probeOp = probeOp(p.getOperator());
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * Returns the operator to probe the index of the inner relation with, so
+     * that (index field op outer field) holds when (outer field p inner field)
+     * does.
+     */
+    private static Predicate.Op probeOp(Predicate.Op p) {
+        switch (p) {
+        case EQUALS:
+            return Predicate.Op.EQUALS;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            throw new IllegalArgumentException("can't probe an index with " + p);
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        batch = new ArrayList<>();
+        groupStart = groupEnd = groupPos = 0;
+        t2 = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (probing)
+            child2.close();
+        probing = false;
+        child1.close();
+        batch = null;
+        t2 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        batch.clear();
+        groupStart = groupEnd = groupPos = 0;
+        t2 = null;
+    }
+
+    /**
+     * Reads the next batch of outer tuples and sorts it on the join field
+     *
+     * @return false if there are no more outer tuples
+     */
+    private boolean loadBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        while (batch.size() < BATCH_SIZE && child1.hasNext())
+            batch.add(child1.next());
+        batch.sort(new TupleComparator(pred.getField1(), true));
+        groupStart = groupEnd = groupPos = 0;
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Probes the index with the join field of the next group of outer tuples
+     */
+    private void probeNextGroup() throws DbException, TransactionAbortedException {
+        groupStart = groupEnd;
+        Field key = batch.get(groupStart).getField(pred.getField1());
+        groupEnd = groupStart + 1;
+        while (groupEnd < batch.size()
+                && batch.get(groupEnd).getField(pred.getField1()).compare(Predicate.Op.EQUALS, key))
+            groupEnd++;
+
+        IndexPredicate ipred = new IndexPredicate(probeOp, key);
+        if (probing) {
+            child2.rewind(ipred);
+        } else {
+            child2.open(ipred);
+            probing = true;
+        }
+        t2 = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are the concatenation of joining tuples from the
+     * outer and inner relation, like those of {@link Join}, though not in the
+     * same order.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            // join the current inner tuple with each outer tuple of the group
+            if (t2 != null && groupPos < groupEnd)
+                return Tuple.merge(comboTD, batch.get(groupPos++), t2);
+
+            if (probing && groupEnd > 0 && child2.hasNext()) {
+                t2 = child2.next();
+                groupPos = groupStart;
+            } else if (groupEnd < batch.size()) {
+                probeNextGroup();
+            } else if (!loadBatch()) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = (IndexOpIterator) children[1];
+    }
+
+}
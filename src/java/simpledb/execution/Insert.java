@@ -52,18 +52,19 @@ public class Insert extends Operator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        child.open();
         super.open();
     }
 
     public void close() {
         // some code goes here
         super.close();
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        super.close();
-        super.open();
+        child.rewind();
     }
 
     /**
@@ -4,11 +4,8 @@ import simpledb.common.Type;
 import simpledb.storage.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-
-import static simpledb.execution.Aggregator.Op.MIN;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
@@ -16,12 +13,23 @@ import static simpledb.execution.Aggregator.Op.MIN;
 public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
-    private static final String NO_GROUPING_KEY = "NO_GROUPING_KEY";
     private final int gbfield;
     private final Type gbfieldtype;
     private final int afield;
     private final Op what;
-    private GBHandler gbHandler;
+    // numbers the groups; null without grouping, where the only group is 0
+    private final FieldHashTable groups;
+    private int numGroups = 0;
+    private int maxGroups = DEFAULT_MAX_GROUPS;
+    // the number of times the input has been spilled before
+    private final int level;
+    // the tuples of the groups that didn't fit, or null
+    transient private SpilledGroups spilled = null;
+    // the min, max or sum of each group, and the number of tuples in it
+    private int[] values = new int[16];
+    private long[] sums = new long[16];
+    private int[] counts = new int[16];
+
     /**
      * Aggregate constructor
      *
@@ -32,36 +40,47 @@ public class IntegerAggregator implements Aggregator {
      *            the type of the group by field (e.g., Type.INT_TYPE), or null
      *            if there is no grouping
      * @param afield
-     *            the 0-based index of the aggregate field in the tuple
+     *            the 0-based index of the aggregate field in the tuple; for
+     *            SC_AVG, the high word of the sum of a SUM_COUNT result,
+     *            followed by its low word and its count
      * @param what
      *            the aggregation operator
      */
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
+        this(gbfield, gbfieldtype, afield, what, 0);
+    }
+
+    private IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what, int level) {
+        this.level = level;
         this.gbfield = gbfield;
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.what = what;
-        switch (what){
+        switch (what) {
             case MIN:
-                gbHandler = new MinHandler();
-                break;
+            case MAX:
             case SUM:
-                gbHandler = new SumHandler();
-                break;
-            case COUNT:
-                gbHandler = new CountHandler();
-                break;
             case AVG:
-                gbHandler = new AvgHandler();
-                break;
-            case MAX:
-                gbHandler = new MaxHandler();
+            case COUNT:
+            case SUM_COUNT:
+            case SC_AVG:
                 break;
-
+            default:
+                throw new UnsupportedOperationException("unsupported aggregate " + what);
         }
+        this.groups = gbfield == NO_GROUPING ? null : new FieldHashTable(gbfieldtype);
+    }
 
+    /**
+     * Set the number of groups to hold in memory; the tuples of other groups
+     * are written to disk, and aggregated by {@link #iterator}
+     */
+    public void setMaxGroups(int maxGroups) {
+        if (maxGroups < 1)
+            throw new IllegalArgumentException("the aggregate needs room for at least one group");
+        this.maxGroups = maxGroups;
     }
 
     /**
@@ -73,133 +92,112 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        String key = gbfield == NO_GROUPING ? NO_GROUPING_KEY : String.valueOf(tup.getField(gbfield));
-        gbHandler.handle(key,tup.getField(afield));
+        int g = 0;
+        if (groups != null) {
+            Field key = tup.getField(gbfield);
+            g = numGroups < maxGroups ? groups.add(key) : groups.find(key);
+            if (g < 0) {
+                if (spilled == null)
+                    spilled = new SpilledGroups(level);
+                spilled.add(tup, key);
+                return;
+            }
+        }
+        if (g == numGroups) {
+            if (g == counts.length) {
+                values = Arrays.copyOf(values, g * 2);
+                sums = Arrays.copyOf(sums, g * 2);
+                counts = Arrays.copyOf(counts, g * 2);
+            }
+            numGroups++;
+        }
+        int v = ((IntField) tup.getField(afield)).getValue();
+        switch (what) {
+            case MIN:
+                values[g] = counts[g] == 0 ? v : Math.min(values[g], v);
+                break;
+            case MAX:
+                values[g] = counts[g] == 0 ? v : Math.max(values[g], v);
+                break;
+            case SUM:
+                values[g] += v;
+                break;
+            case AVG:
+            case SUM_COUNT:
+                sums[g] += v;
+                break;
+            case SC_AVG:
+                // a sum can outgrow an int, so SUM_COUNT splits it in two
+                sums[g] += ((long) v << 32) | (((IntField) tup.getField(afield + 1)).getValue() & 0xFFFFFFFFL);
+                counts[g] += ((IntField) tup.getField(afield + 2)).getValue();
+                return;
+        }
+        counts[g]++;
+    }
 
+    private int result(int g) {
+        switch (what) {
+            case COUNT:
+                return counts[g];
+            case AVG:
+            case SC_AVG:
+                return (int) (sums[g] / counts[g]);
+            default:
+                return values[g];
+        }
     }
 
     /**
-     * Create a OpIterator over group aggregate results.
+     * Create a OpIterator over group aggregate results. If some groups didn't
+     * fit in memory, their results are computed as the iterator reaches them,
+     * and closing it deletes their tuples from disk.
      *
      * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
      *         aggregateVal is determined by the type of aggregate specified in
-     *         the constructor.
+     *         the constructor; for SUM_COUNT, it is the triple (sumHigh,
+     *         sumLow, countVal), the high and low words of the sum, which
+     *         can outgrow an int, and the count.
      */
     public OpIterator iterator() {
         // some code goes here
-        HashMap<String, Integer> gbResults = gbHandler.getGbResults();
         List<Tuple> tuples = new ArrayList<>();
-        TupleDesc tupleDesc;
-        Type[] types;
-        String[] names;
-        if(gbfield==NO_GROUPING){
-            types = new Type[] {Type.INT_TYPE};
-            names = new String[]{"aggregateVal"};
-            tupleDesc = new TupleDesc(types,names);
-            for(Integer value:gbResults.values()){
-                Tuple tuple = new Tuple(tupleDesc);
-                tuple.setField(0,new IntField(value));
-                tuples.add(tuple);
-            }
-
-        }else{
-            types = new Type[] {gbfieldtype,Type.INT_TYPE};
-            names = new String[]{"groupVal","aggregateVal"};
-            tupleDesc = new TupleDesc(types,names);
-            for(Map.Entry<String,Integer> entry:gbResults.entrySet()){
-                Tuple tuple = new Tuple(tupleDesc);
-                if(gbfieldtype==Type.INT_TYPE){
-                    tuple.setField(0,new IntField(Integer.parseInt(entry.getKey())));
-                }else{
-                    tuple.setField(0,new StringField(entry.getKey(),entry.getKey().length()));
-                }
-                tuple.setField(1,new IntField(entry.getValue()));
-                tuples.add(tuple);
-            }
-
-        }
-        return new TupleIterator(tupleDesc,tuples);
-    }
-
-    private abstract class GBHandler{
-        public abstract void handle(String key, Field field);
-        protected HashMap<String,Integer> gbResults;
-        private GBHandler(){
-            gbResults = new HashMap<>();
+        List<Type> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        if (groups != null) {
+            types.add(gbfieldtype);
+            names.add("groupVal");
         }
-        public HashMap<String,Integer> getGbResults(){
-            return gbResults;
+        if (what == Op.SUM_COUNT) {
+            types.addAll(Arrays.asList(Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE));
+            names.addAll(Arrays.asList("sumHigh", "sumLow", "countVal"));
+        } else {
+            types.add(Type.INT_TYPE);
+            names.add("aggregateVal");
         }
-    }
-
-    private class CountHandler extends GBHandler{
-
-        @Override
-        public void handle(String key, Field field) {
-            if(gbResults.containsKey(key)){
-                gbResults.put(key,gbResults.get(key)+1);
-            }else{
-                gbResults.put(key,1);
+        TupleDesc tupleDesc = new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
+        for(int g=0;g<numGroups;g++){
+            Tuple tuple = new Tuple(tupleDesc);
+            int i = 0;
+            if (groups != null)
+                tuple.setField(i++, groups.key(g));
+            if (what == Op.SUM_COUNT) {
+                tuple.setField(i++, new IntField((int) (sums[g] >> 32)));
+                tuple.setField(i++, new IntField((int) sums[g]));
+                tuple.setField(i, new IntField(counts[g]));
+            } else {
+                tuple.setField(i, new IntField(result(g)));
             }
+            tuples.add(tuple);
         }
-    }
-
-    private class SumHandler extends GBHandler{
-
-        @Override
-        public void handle(String key, Field field) {
-            if(gbResults.containsKey(key)){
-                gbResults.put(key,gbResults.get(key)+Integer.parseInt(field.toString()));
-            }else{
-                gbResults.put(key,Integer.parseInt(field.toString()));
-            }
-        }
-    }
-    private class MaxHandler extends GBHandler{
-
-        @Override
-        public void handle(String key, Field field) {
-            int now = Integer.parseInt(field.toString());
-            if(gbResults.containsKey(key)){
-                gbResults.put(key,Math.max(now,gbResults.get(key)));
-            }else{
-                gbResults.put(key,now);
-            }
-        }
-    }
-    private class AvgHandler extends GBHandler{
-        HashMap<String,Integer> sum;
-        HashMap<String,Integer> count;
-        private AvgHandler(){
-            sum = new HashMap<>();
-            count = new HashMap<>();
-        }
-
-        @Override
-        public void handle(String key, Field field) {
-            int now = Integer.parseInt(field.toString());
-            if(gbResults.containsKey(key)){
-                count.put(key,count.get(key)+1);
-                sum.put(key,sum.get(key)+now);
-            }else{
-                count.put(key,1);
-                sum.put(key,now);
-            }
-            gbResults.put(key,sum.get(key)/count.get(key));
-        }
-    }
-    private class MinHandler extends GBHandler{
-
-        @Override
-        public void handle(String key, Field field) {
-            int now = Integer.parseInt(field.toString());
-            if(gbResults.containsKey(key)){
-                gbResults.put(key,Math.min(now,gbResults.get(key)));
-            }else{
-                gbResults.put(key,now);
-            }
+        if (spilled != null) {
+            return spilled.iterator(tupleDesc, tuples, () -> {
+                IntegerAggregator a = new IntegerAggregator(gbfield, gbfieldtype, afield, what, level + 1);
+                a.setMaxGroups(maxGroups);
+                return a;
+            });
         }
+        return new TupleIterator(tupleDesc,tuples);
     }
 
 }
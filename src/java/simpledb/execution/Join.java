@@ -1,6 +1,5 @@
 package simpledb.execution;
 
-import simpledb.common.Database;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
@@ -9,15 +8,36 @@ import simpledb.storage.TupleDesc;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation, as a block
+ * nested loops join: it reads child1 a block of tuples at a time,
+ * {@link #BLOCK_SIZE} by default, and scans child2 once per block rather than
+ * once for every tuple of child1. If child2 has
+ * no more than {@link #CACHE_SIZE} tuples, they are kept in memory after the
+ * first scan, and child2 isn't scanned again.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The default number of tuples of child1 joined per scan of child2 */
+    public static final int BLOCK_SIZE = 20000;
+    /** The most tuples of child2 kept in memory instead of scanning it again */
+    public static final int CACHE_SIZE = 20000;
+
     private final JoinPredicate p;
     private OpIterator child1;
     private OpIterator child2;
-    private Tuple t;
+    private int blockSize = BLOCK_SIZE;
+
+    transient private TupleDesc td = null;
+    transient private List<Tuple> block = null;
+    transient private int blockPos = 0;
+    transient private Tuple t2 = null;
+    // the tuples of child2 read in the first scan, or null if it has too many
+    transient private List<Tuple> cache = null;
+    transient private boolean cached = false;
+    transient private Iterator<Tuple> cacheIt = null;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
@@ -36,6 +56,16 @@ public class Join extends Operator {
         this.child2 = child2;
     }
 
+    /**
+     * Set the number of tuples of child1 to join per scan of child2. Takes
+     * effect when the join is next opened or rewound.
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("a block needs at least one tuple");
+        this.blockSize = blockSize;
+    }
+
     public JoinPredicate getJoinPredicate() {
         // some code goes here
         return p;
@@ -70,21 +100,82 @@ public class Join extends Operator {
         return TupleDesc.merge(child1.getTupleDesc(),child2.getTupleDesc());
     }
 
+    private void reset() {
+        td = getTupleDesc();
+        block = new ArrayList<>();
+        blockPos = 0;
+        t2 = null;
+        cache = new ArrayList<>();
+        cached = false;
+        cacheIt = null;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         super.open();
         // some code goes here
+        child1.open();
+        child2.open();
+        reset();
     }
 
     public void close() {
         super.close();
         // some code goes here
+        child1.close();
+        child2.close();
+        block = null;
+        cache = null;
+        cacheIt = null;
+        t2 = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child1.rewind();
         child2.rewind();
+        reset();
+    }
+
+    /**
+     * Reads the next block of child1, and starts the next scan of child2
+     *
+     * @return false if child1 is done
+     */
+    private boolean nextBlock() throws DbException, TransactionAbortedException {
+        boolean first = block.isEmpty();
+        block.clear();
+        while (block.size() < blockSize && child1.hasNext())
+            block.add(child1.next());
+        if (block.isEmpty())
+            return false;
+        if (cached)
+            cacheIt = cache.iterator();
+        else if (!first)
+            child2.rewind();
+        return true;
+    }
+
+    /**
+     * @return the next tuple of the current scan of child2, or null at its end
+     */
+    private Tuple nextInner() throws DbException, TransactionAbortedException {
+        if (cached)
+            return cacheIt.hasNext() ? cacheIt.next() : null;
+        if (!child2.hasNext()) {
+            // child2 was read from the start, and fits in memory
+            if (cache != null)
+                cached = true;
+            return null;
+        }
+        Tuple t = child2.next();
+        if (cache != null) {
+            if (cache.size() < CACHE_SIZE)
+                cache.add(t);
+            else
+                cache = null;
+        }
+        return t;
     }
 
     /**
@@ -106,33 +197,20 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // Not Sure
-        while(child1.hasNext() || t != null){
-            if(child1.hasNext() && t == null){
-                t = child1.next();
+        while (true) {
+            // join the current tuple of child2 with the rest of the block
+            while (t2 != null && blockPos < block.size()) {
+                Tuple t1 = block.get(blockPos++);
+                if (p.filter(t1, t2))
+                    return Tuple.merge(td, t1, t2);
             }
-            while(child2.hasNext()){
-                Tuple t2 = child2.next();
-                if(p.filter(t,t2)){
-                    TupleDesc td1 = t.getTupleDesc();
-                    TupleDesc td2 = t2.getTupleDesc();
-                    TupleDesc newTd = TupleDesc.merge(td1,td2);
-                    Tuple newTuple = new Tuple(newTd);
-                    int i=0;
-                    for(;i<td1.numFields();++i)
-                        newTuple.setField(i,t.getField(i));
-                    for(int j=0;j<td2.numFields();++j)
-                        newTuple.setField(i+j,t2.getField(j));
-
-                    return newTuple;
-                }
+            if (!block.isEmpty() && (t2 = nextInner()) != null) {
+                blockPos = 0;
+                continue;
             }
-            child2.rewind();
-            t = null;
+            if (!nextBlock())
+                return null;
         }
-        return null;
-
-
     }
 
     @Override
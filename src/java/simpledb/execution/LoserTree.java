@@ -0,0 +1,101 @@
+package simpledb.execution;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * LoserTree merges sorted streams with a tournament tree of losers. Each inner
+ * node holds the stream that lost the match played there, and the root the
+ * overall winner, so replacing the winner's head replays just the matches on
+ * the path from its leaf to the root: log k comparisons per item for k
+ * streams, against the previous losers, with no rebalancing.
+ * <p>
+ * Items that compare equal come out in the order of their streams.
+ */
+class LoserTree<T> implements Iterator<T>, Closeable {
+    private final List<? extends Iterator<T>> sources;
+    private final Comparator<? super T> comparator;
+    private final int k;
+    // the head of each stream, or null once the stream is done
+    private final Object[] heads;
+    // tree[0] is the winner, and tree[1..k-1] the loser at each inner node;
+    // the leaf of stream i is node k + i
+    private final int[] tree;
+
+    LoserTree(List<? extends Iterator<T>> sources, Comparator<? super T> comparator) {
+        this.sources = sources;
+        this.comparator = comparator;
+        this.k = sources.size();
+        this.heads = new Object[k];
+        this.tree = new int[Math.max(k, 1)];
+        for (int i = 0; i < k; i++)
+            heads[i] = sources.get(i).hasNext() ? sources.get(i).next() : null;
+        tree[0] = k == 0 ? -1 : play(1);
+    }
+
+    /**
+     * Plays the matches of the subtree rooted at node
+     *
+     * @return the stream that won the subtree
+     */
+    private int play(int node) {
+        if (node >= k)
+            return node - k;
+        int a = play(2 * node);
+        int b = play(2 * node + 1);
+        if (beats(a, b)) {
+            tree[node] = b;
+            return a;
+        }
+        tree[node] = a;
+        return b;
+    }
+
+    /**
+     * @return true if the head of stream a comes before the head of b
+     */
+    @SuppressWarnings("unchecked")
+    private boolean beats(int a, int b) {
+        if (heads[a] == null)
+            return false;
+        if (heads[b] == null)
+            return true;
+        int c = comparator.compare((T) heads[a], (T) heads[b]);
+        return c < 0 || (c == 0 && a < b);
+    }
+
+    public boolean hasNext() {
+        return k > 0 && heads[tree[0]] != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        int winner = tree[0];
+        T t = (T) heads[winner];
+        Iterator<T> source = sources.get(winner);
+        heads[winner] = source.hasNext() ? source.next() : null;
+        for (int node = (winner + k) / 2; node > 0; node /= 2) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+        return t;
+    }
+
+    /**
+     * Closes the streams that are {@link Closeable}
+     */
+    public void close() throws IOException {
+        for (Iterator<T> source : sources) {
+            if (source instanceof Closeable)
+                ((Closeable) source).close();
+        }
+        Arrays.fill(heads, null);
+    }
+}
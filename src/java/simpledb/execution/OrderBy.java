@@ -2,25 +2,31 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY, on one or more
+ * fields. The tuples are sorted with an {@link ExternalSorter}, so at most
+ * {@link #setMaxTuples maxTuples} of them are held in memory, and the rest are
+ * written to disk in sorted runs that are merged as the tuples are returned.
+ * The tuples in memory are sorted on {@link #setParallelism several threads}.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
-    private final String orderByFieldName;
-    private Iterator<Tuple> it;
-    private final boolean asc;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private int maxTuples = ExternalSorter.DEFAULT_MAX_TUPLES;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    transient private ExternalSorter sorter;
+    transient private Iterator<Tuple> it;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -33,26 +39,85 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator, sorted on
+     * several fields: by the first, then by the second among tuples with the
+     * same first field, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need a sort order for each of at least one field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
     }
-    
+
+    /**
+     * Set the number of tuples to sort in memory. Takes effect when the
+     * operator is next opened.
+     */
+    public void setMaxTuples(int maxTuples) {
+        if (maxTuples < 1)
+            throw new IllegalArgumentException("the sort needs room for at least one tuple");
+        this.maxTuples = maxTuples;
+    }
+
+    /**
+     * Set the number of threads to sort the tuples in memory with; the
+     * default is the number of processors. Takes effect when the operator is
+     * next opened.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("the sort needs at least one thread");
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return true if the sort order of the first field is ascending
+     */
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
     
+    /**
+     * @return the first field the tuples are sorted on
+     */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(orderByFields[0]);
+    }
+
+    /**
+     * @return the fields the tuples are sorted on, most significant first
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each of {@link #getOrderByFields}, true if its sort order is
+     *         ascending
+     */
+    public boolean[] getAscendingOrders() {
+        return ascs.clone();
     }
     
     public TupleDesc getTupleDesc() {
@@ -62,21 +127,45 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        sorter = new ExternalSorter(td, new TupleComparator(orderByFields, ascs), maxTuples);
+        sorter.setParallelism(parallelism);
+        try {
+            while (child.hasNext())
+                sorter.add(child.next());
+            it = sorter.iterator();
+        } catch (IOException e) {
+            throw new DbException("can't sort: " + e.getMessage());
+        }
         super.open();
     }
 
+    private void closeIterator() {
+        if (it instanceof Closeable) {
+            try {
+                ((Closeable) it).close();
+            } catch (IOException e) {
+                // the sorter deletes its runs anyway
+            }
+        }
+        it = null;
+    }
+
     public void close() {
         super.close();
-        it = null;
+        closeIterator();
+        if (sorter != null)
+            sorter.close();
+        sorter = null;
+        child.close();
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        closeIterator();
+        try {
+            it = sorter.iterator();
+        } catch (IOException e) {
+            throw new DbException("can't read sorted tuples: " + e.getMessage());
+        }
     }
 
     /**
@@ -104,25 +193,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -0,0 +1,306 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ParallelAggregate computes the same aggregate as {@link Aggregate} in two
+ * phases, over a {@link SeqScan}, or filters of one.
+ * <p>
+ * The scan is split into disjoint ranges of pages, one per thread, and the
+ * tuples of each range are aggregated by a task of the shared worker pool,
+ * into partial results: the SUM, COUNT, MIN or MAX of each group, or for AVG
+ * its SUM_COUNT. Then the partial results are merged into the final ones on
+ * the calling thread: the SUM of the partial sums or counts, the MIN of the
+ * minimums, the MAX of the maximums, or the SC_AVG of the sums and counts.
+ * <p>
+ * Only a read-only transaction, which scans a snapshot without locks, is read
+ * on several threads: the lock manager's deadlock detection tracks one
+ * waiting thread per transaction. Other scans are aggregated in one range, on
+ * the calling thread.
+ * <p>
+ * Both phases are aggregators, so each spills to disk past
+ * {@link #setMaxGroups} groups, like an Aggregate. If a range fails, the
+ * others are stopped, and {@link #open} waits for them before it throws, so
+ * no range reads pages after the transaction ends.
+ */
+public class ParallelAggregate extends Operator implements Aggregation {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int afield;
+    private final int gfield;
+    private final Aggregator.Op aop;
+    private final TupleDesc td;
+    private int maxGroups = Aggregator.DEFAULT_MAX_GROUPS;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private OpIterator resIterator;
+
+    /**
+     * @param child  The scan that is feeding us tuples, which
+     *               {@link #canSplit} must accept
+     * @param afield The column over which we are computing an aggregate.
+     * @param gfield The column over which we are grouping the result, or -1 if
+     *               there is no grouping
+     * @param aop    The aggregation operator to use: SUM, COUNT, MIN, MAX or
+     *               AVG
+     */
+    public ParallelAggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        if (!canSplit(child))
+            throw new IllegalArgumentException("only a scan of pages can be aggregated in parallel");
+        switch (aop) {
+            case SUM:
+            case COUNT:
+            case MIN:
+            case MAX:
+            case AVG:
+                break;
+            default:
+                throw new IllegalArgumentException("can't aggregate " + aop + " in parallel");
+        }
+        this.child = child;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.aop = aop;
+        this.td = Aggregate.resultDesc(child.getTupleDesc(), afield, gfield);
+    }
+
+    /**
+     * @return true if child is a SeqScan, or a Filter of one that can be
+     *         split
+     */
+    public static boolean canSplit(OpIterator child) {
+        if (child instanceof Filter)
+            return canSplit(((Filter) child).getChildren()[0]);
+        return child instanceof SeqScan;
+    }
+
+    /**
+     * @return true if the scan under child reads a snapshot
+     */
+    static boolean readsSnapshot(OpIterator child) {
+        if (child instanceof Filter)
+            return readsSnapshot(((Filter) child).getChildren()[0]);
+        return Database.getBufferPool().hasSnapshot(((SeqScan) child).getTransactionId());
+    }
+
+    /**
+     * @return child split into at most parts iterators over disjoint ranges of
+     *         its scan
+     */
+    private static OpIterator[] split(OpIterator child, int parts) {
+        if (child instanceof Filter) {
+            Filter f = (Filter) child;
+            OpIterator[] scans = split(f.getChildren()[0], parts);
+            OpIterator[] split = new OpIterator[scans.length];
+            for (int i = 0; i < split.length; i++)
+                split[i] = new Filter(f.getPredicate(), scans[i]);
+            return split;
+        }
+        return ((SeqScan) child).split(parts);
+    }
+
+    /**
+     * Set the number of groups each phase holds in memory
+     */
+    public void setMaxGroups(int maxGroups) {
+        if (maxGroups < 1)
+            throw new IllegalArgumentException("the aggregate needs room for at least one group");
+        this.maxGroups = maxGroups;
+    }
+
+    /**
+     * Set the number of ranges to split the scan into; the default is the
+     * number of processors. At most one range per processor is aggregated
+     * at once.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("the aggregate needs at least one thread");
+        this.parallelism = parallelism;
+    }
+
+    public int groupField() {
+        return gfield;
+    }
+
+    public String groupFieldName() {
+        if (gfield != Aggregator.NO_GROUPING)
+            return child.getTupleDesc().getFieldName(gfield);
+        return null;
+    }
+
+    public int aggregateField() {
+        return afield;
+    }
+
+    public String aggregateFieldName() {
+        return child.getTupleDesc().getFieldName(afield);
+    }
+
+    public Aggregator.Op aggregateOp() {
+        return aop;
+    }
+
+    /**
+     * @return the partial results of the tuples of part, or none once
+     *         cancelled is set
+     */
+    private List<Tuple> partial(OpIterator part, AtomicBoolean cancelled)
+            throws DbException, TransactionAbortedException {
+        TupleDesc childTd = part.getTupleDesc();
+        Type gbType = gfield == Aggregator.NO_GROUPING ? null : childTd.getFieldType(gfield);
+        Aggregator a = Aggregate.newAggregator(childTd.getFieldType(afield), gfield, gbType, afield,
+                aop == Aggregator.Op.AVG ? Aggregator.Op.SUM_COUNT : aop, maxGroups);
+        if (cancelled.get())
+            return Collections.emptyList();
+        part.open();
+        try {
+            while (!cancelled.get() && part.hasNext())
+                a.mergeTupleIntoGroup(part.next());
+        } finally {
+            part.close();
+        }
+        List<Tuple> res = new ArrayList<>();
+        OpIterator it = a.iterator();
+        it.open();
+        try {
+            while (it.hasNext())
+                res.add(it.next());
+        } finally {
+            it.close();
+        }
+        return res;
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        // the lock manager expects one thread per transaction, so only a
+        // snapshot, which takes no locks, is read on several
+        boolean parallel = readsSnapshot(child);
+        OpIterator[] parts = split(child, parallel ? parallelism : 1);
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        List<Future<List<Tuple>>> partials = new ArrayList<>(parts.length);
+        for (OpIterator part : parts) {
+            if (parallel) {
+                partials.add(Workers.pool().submit(() -> partial(part, cancelled)));
+            } else {
+                FutureTask<List<Tuple>> task = new FutureTask<>(() -> partial(part, cancelled));
+                task.run();
+                partials.add(task);
+            }
+        }
+
+        // the partial results have the group in field 0, if any, then the
+        // partial aggregate, or for AVG the two words of the sum and the count
+        int pgfield = gfield == Aggregator.NO_GROUPING ? Aggregator.NO_GROUPING : 0;
+        int pafield = pgfield + 1;
+        Type gbType = gfield == Aggregator.NO_GROUPING ? null : child.getTupleDesc().getFieldType(gfield);
+        Aggregator.Op finalOp;
+        switch (aop) {
+            case MIN:
+            case MAX:
+                finalOp = aop;
+                break;
+            case AVG:
+                finalOp = Aggregator.Op.SC_AVG;
+                break;
+            default:
+                finalOp = Aggregator.Op.SUM;
+        }
+        IntegerAggregator merged = new IntegerAggregator(pgfield, gbType, pafield, finalOp);
+        merged.setMaxGroups(maxGroups);
+        boolean done = false;
+        try {
+            for (Future<List<Tuple>> partial : partials) {
+                for (Tuple t : partial.get())
+                    merged.mergeTupleIntoGroup(t);
+            }
+            done = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while aggregating");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DbException)
+                throw (DbException) cause;
+            if (cause instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) cause;
+            throw new DbException("can't aggregate a range of the scan: " + cause);
+        } catch (UncheckedIOException e) {
+            throw new DbException("can't spill the aggregate: " + e.getMessage());
+        } finally {
+            // the other ranges still read pages under the transaction, so
+            // they must stop before it can end
+            if (!done) {
+                cancelled.set(true);
+                awaitAll(partials);
+            }
+        }
+        resIterator = merged.iterator();
+        resIterator.open();
+        super.open();
+    }
+
+    /**
+     * Waits for all the tasks to finish, however they do
+     */
+    private static void awaitAll(List<Future<List<Tuple>>> partials) {
+        boolean interrupted = false;
+        for (Future<List<Tuple>> partial : partials) {
+            while (true) {
+                try {
+                    partial.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (resIterator != null && resIterator.hasNext())
+            return resIterator.next();
+        return null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (resIterator != null)
+            resIterator.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void close() {
+        super.close();
+        if (resIterator != null)
+            resIterator.close();
+        resIterator = null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
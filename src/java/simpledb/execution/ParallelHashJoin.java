@@ -0,0 +1,404 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The ParallelHashJoin operator joins two relations on an equality predicate,
+ * like {@link HashEquiJoin}, using several threads.
+ * <p>
+ * child1 is read into memory, split into {@link #NUM_PARTITIONS} partitions by
+ * hash, and each partition is hashed into a table of its own, all by tasks of
+ * the shared worker pool; since no two tasks write to the same table, the
+ * tables need no locks. Then each worker repeatedly takes the next
+ * {@link #MORSEL_SIZE} tuples of child2, looks them up in the tables, and puts
+ * the joined tuples on a bounded queue that {@link #fetchNext} takes them
+ * from, so the workers get ahead of the consumer of the join by at most
+ * {@link #QUEUE_SIZE} morsels.
+ * <p>
+ * child2 is one iterator, so the workers take its morsels one at a time:
+ * only the probes and the joined tuples are built in parallel, and reading
+ * child2 bounds how fast the join goes.
+ * <p>
+ * Unlike HashEquiJoin, this join doesn't spill to disk: child1 must fit in
+ * memory, so the planner only picks it for a child1 estimated to be no
+ * bigger than a HashEquiJoin keeps in memory.
+ */
+public class ParallelHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of partitions child1 is split into */
+    public static final int NUM_PARTITIONS = 64;
+    /** The number of tuples of child2 a worker takes at a time */
+    public static final int MORSEL_SIZE = 1024;
+    /** The number of morsels of joined tuples waiting to be returned */
+    public static final int QUEUE_SIZE = 16;
+
+    // marks the end of the joined tuples on the queue
+    private static final List<Tuple> END = Collections.emptyList();
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    transient private TupleHashTable[] tables = null;
+    // taken by the worker reading the next morsel of child2
+    transient private ReentrantLock scan = null;
+    transient private BlockingQueue<List<Tuple>> queue = null;
+    // bounds the morsels of joined tuples on the queue, which END doesn't
+    // count towards
+    transient private Semaphore room = null;
+    transient private List<Future<?>> workers = null;
+    transient private AtomicInteger running = null;
+    transient private volatile boolean cancelled = false;
+    transient private volatile Exception failure = null;
+    transient private Iterator<Tuple> output = null;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join, which is held
+     *            in memory
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public ParallelHashJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a hash join needs an equality predicate, not " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * Set the number of workers to join with; the default is the number of
+     * processors. At most one worker per processor runs at once. Takes effect
+     * when the join is next opened.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("the join needs at least one thread");
+        this.parallelism = parallelism;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    private static int partition(Field key) {
+        return (key.hashCode() * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(NUM_PARTITIONS));
+    }
+
+    /**
+     * Reads child1 and builds the table of each partition
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        List<Tuple> build = new ArrayList<>();
+        while (child1.hasNext())
+            build.add(child1.next());
+        int field = pred.getField1();
+        Type keyType = child1.getTupleDesc().getFieldType(field);
+
+        // count the tuples of each partition in each chunk of child1, so that
+        // the chunks can be scattered into one array, ordered by partition,
+        // without writing to the same place
+        int chunks = Math.max(1, Math.min(parallelism * 4, build.size() / MORSEL_SIZE));
+        int[][] counts = new int[chunks][NUM_PARTITIONS];
+        int[] parts = new int[build.size()];
+        Workers.pool().invoke(forEachChunk(chunks, build.size(), (c, from, to) -> {
+            for (int i = from; i < to; i++) {
+                parts[i] = partition(build.get(i).getField(field));
+                counts[c][parts[i]]++;
+            }
+        }));
+        int[] starts = new int[NUM_PARTITIONS + 1];
+        int[][] offsets = new int[chunks][NUM_PARTITIONS];
+        for (int p = 0, pos = 0; p < NUM_PARTITIONS; p++) {
+            starts[p] = pos;
+            for (int c = 0; c < chunks; c++) {
+                offsets[c][p] = pos;
+                pos += counts[c][p];
+            }
+        }
+        starts[NUM_PARTITIONS] = build.size();
+        Tuple[] scattered = new Tuple[build.size()];
+        Workers.pool().invoke(forEachChunk(chunks, build.size(), (c, from, to) -> {
+            for (int i = from; i < to; i++)
+                scattered[offsets[c][parts[i]]++] = build.get(i);
+        }));
+
+        tables = new TupleHashTable[NUM_PARTITIONS];
+        Workers.pool().invoke(forEachChunk(NUM_PARTITIONS, NUM_PARTITIONS, (c, p, end) -> {
+            TupleHashTable table = new TupleHashTable(keyType, field);
+            for (int i = starts[p]; i < starts[p + 1]; i++)
+                table.add(scattered[i]);
+            table.sortByKey();
+            tables[p] = table;
+        }));
+    }
+
+    private interface ChunkTask {
+        void run(int chunk, int from, int to);
+    }
+
+    /**
+     * @return a task that runs task on each of the chunks of [0, n), in
+     *         parallel
+     */
+    private static ForkJoinTask<?> forEachChunk(int chunks, int n, ChunkTask task) {
+        return new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<>(chunks);
+                for (int c = 0; c < chunks; c++) {
+                    int chunk = c;
+                    tasks.add(new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected void compute() {
+                            task.run(chunk, (int) ((long) n * chunk / chunks),
+                                    (int) ((long) n * (chunk + 1) / chunks));
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        };
+    }
+
+    /**
+     * @return the next morsel of child2, empty once child2 is done
+     */
+    private List<Tuple> nextMorsel() throws DbException, TransactionAbortedException,
+            InterruptedException {
+        List<Tuple> morsel = new ArrayList<>(MORSEL_SIZE);
+        ReentrantLock lock = scan;
+        managedBlock(lock::tryLock, () -> {
+            lock.lockInterruptibly();
+            return true;
+        });
+        try {
+            while (morsel.size() < MORSEL_SIZE && !cancelled && child2.hasNext())
+                morsel.add(child2.next());
+        } finally {
+            lock.unlock();
+        }
+        return morsel;
+    }
+
+    private void put(List<Tuple> joined) throws InterruptedException {
+        managedBlock(() -> cancelled || room.tryAcquire(),
+                () -> cancelled || room.tryAcquire(10, TimeUnit.MILLISECONDS));
+        if (!cancelled)
+            queue.add(joined);
+    }
+
+    private interface Wait {
+        /** @return true once the wait is over */
+        boolean await() throws InterruptedException;
+    }
+
+    /**
+     * Waits, as a managed block of the shared pool, until ready or wait
+     * returns true. A worker waiting on another join, or on the consumer of
+     * this one, lets the pool run other tasks on another thread meanwhile, so
+     * joins that read each other don't take up all its threads.
+     */
+    private static void managedBlock(BooleanSupplier ready, Wait wait) throws InterruptedException {
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean done = false;
+
+            public boolean block() throws InterruptedException {
+                done = done || wait.await();
+                return done;
+            }
+
+            public boolean isReleasable() {
+                done = done || ready.getAsBoolean();
+                return done;
+            }
+        });
+    }
+
+    private void probe() {
+        try {
+            List<Tuple> morsel;
+            while (!cancelled && !(morsel = nextMorsel()).isEmpty()) {
+                List<Tuple> joined = new ArrayList<>();
+                for (Tuple t2 : morsel) {
+                    Field key = t2.getField(pred.getField2());
+                    TupleHashTable table = tables[partition(key)];
+                    int id = table.find(key);
+                    if (id < 0)
+                        continue;
+                    for (int i = table.start(id); i < table.end(id); i++)
+                        joined.add(Tuple.merge(comboTD, table.get(i), t2));
+                }
+                if (!joined.isEmpty())
+                    put(joined);
+            }
+        } catch (Exception e) {
+            failure = e;
+            cancelled = true;
+        } finally {
+            if (running.decrementAndGet() == 0)
+                queue.add(END);
+        }
+    }
+
+    private void startProbing() {
+        cancelled = false;
+        failure = null;
+        output = null;
+        scan = new ReentrantLock();
+        queue = new LinkedBlockingQueue<>();
+        room = new Semaphore(QUEUE_SIZE);
+        running = new AtomicInteger(parallelism);
+        workers = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++)
+            workers.add(Workers.pool().submit(this::probe));
+    }
+
+    /**
+     * Stops the workers and waits for them to finish
+     */
+    private void stopProbing() {
+        if (workers == null)
+            return;
+        cancelled = true;
+        for (Future<?> w : workers) {
+            try {
+                w.get();
+            } catch (InterruptedException | ExecutionException e) {
+                // the worker is done either way
+            }
+        }
+        workers = null;
+        scan = null;
+        queue = null;
+        room = null;
+        output = null;
+    }
+
+    /**
+     * @return the next morsel of joined tuples, once the workers have put one
+     *         on the queue
+     */
+    private List<Tuple> take() throws InterruptedException {
+        BlockingQueue<List<Tuple>> q = queue;
+        AtomicReference<List<Tuple>> taken = new AtomicReference<>();
+        managedBlock(() -> {
+            taken.set(q.poll());
+            return taken.get() != null;
+        }, () -> {
+            taken.set(q.take());
+            return true;
+        });
+        return taken.get();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        build();
+        startProbing();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        stopProbing();
+        tables = null;
+        child2.close();
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the tables of child1 stay as they are
+        stopProbing();
+        child2.rewind();
+        startProbing();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are the concatenation of joining tuples from the
+     * left and right relation, like those of {@link HashEquiJoin}, in no
+     * particular order.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (output == null || !output.hasNext()) {
+            if (queue == null)
+                return null;
+            List<Tuple> joined;
+            try {
+                joined = take();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while joining");
+            }
+            if (joined == END) {
+                Exception e = failure;
+                stopProbing();
+                if (e instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) e;
+                if (e instanceof DbException)
+                    throw (DbException) e;
+                if (e != null)
+                    throw new DbException("join failed: " + e);
+                return null;
+            }
+            room.release();
+            output = joined.iterator();
+        }
+        return output.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
@@ -0,0 +1,143 @@
+package simpledb.execution;
+
+import simpledb.storage.Tuple;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ParallelSorter sorts tuples in memory on several threads, for an
+ * {@link ExternalSorter}.
+ * <p>
+ * Each tuple is turned into the normalized key of its {@link TupleComparator},
+ * so the sort compares byte arrays rather than fields. The keys are sorted by
+ * parallel sorting by regular sampling: they are split into one chunk per
+ * thread, and the chunks are sorted at once by tasks of the shared worker
+ * pool.
+ * Then regular samples of the sorted chunks choose splitters that divide the
+ * keys into one range per thread, of about the same size, and each task
+ * merges the parts of the chunks in its range with a {@link LoserTree}, into
+ * its own place in the output.
+ * <p>
+ * Fewer than {@link #MIN_PARALLEL} tuples are sorted on the calling thread.
+ */
+class ParallelSorter {
+
+    /** The fewest tuples sorted on more than one thread */
+    static final int MIN_PARALLEL = 8192;
+
+    private static final Comparator<byte[]> UNSIGNED = Arrays::compareUnsigned;
+
+    private final int parallelism;
+
+    ParallelSorter(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sorts tuples in place. Tuples that compare equal keep their order.
+     */
+    void sort(List<Tuple> tuples, TupleComparator comparator) {
+        int n = tuples.size();
+        Tuple[] in = tuples.toArray(new Tuple[0]);
+        byte[][] keys = new byte[n][];
+        int chunks = n < MIN_PARALLEL ? 1 : Math.min(parallelism, n / 1024);
+        if (chunks == 1) {
+            for (int i = 0; i < n; i++)
+                keys[i] = comparator.normalizedKey(in[i], i);
+            Arrays.sort(keys, UNSIGNED);
+        } else {
+            keys = sortChunks(in, keys, comparator, chunks);
+        }
+        for (int i = 0; i < n; i++)
+            tuples.set(i, in[TupleComparator.seq(keys[i])]);
+    }
+
+    private static int start(int n, int chunks, int c) {
+        return (int) ((long) n * c / chunks);
+    }
+
+    /**
+     * @return the keys of in, sorted
+     */
+    private byte[][] sortChunks(Tuple[] in, byte[][] keys, TupleComparator comparator, int chunks) {
+        int n = in.length;
+        Workers.pool().invoke(forEach(chunks, c -> {
+            int from = start(n, chunks, c), to = start(n, chunks, c + 1);
+            for (int i = from; i < to; i++)
+                keys[i] = comparator.normalizedKey(in[i], i);
+            Arrays.sort(keys, from, to, UNSIGNED);
+        }));
+
+        // chunks regular samples of each chunk; every chunks-th of them,
+        // sorted, splits the keys into ranges
+        byte[][] samples = new byte[chunks * chunks][];
+        for (int c = 0; c < chunks; c++) {
+            int from = start(n, chunks, c), len = start(n, chunks, c + 1) - from;
+            for (int s = 0; s < chunks; s++)
+                samples[c * chunks + s] = keys[from + (int) ((long) len * s / chunks)];
+        }
+        Arrays.sort(samples, UNSIGNED);
+        // bounds[c][r] is where range r starts in chunk c; since keys are
+        // distinct, a splitter is found exactly or not at all
+        int[][] bounds = new int[chunks][chunks + 1];
+        for (int c = 0; c < chunks; c++) {
+            int from = start(n, chunks, c), to = start(n, chunks, c + 1);
+            bounds[c][0] = from;
+            bounds[c][chunks] = to;
+            for (int r = 1; r < chunks; r++) {
+                int pos = Arrays.binarySearch(keys, from, to, samples[r * chunks], UNSIGNED);
+                bounds[c][r] = pos >= 0 ? pos : -pos - 1;
+            }
+        }
+        int[] offsets = new int[chunks + 1];
+        for (int r = 0; r < chunks; r++) {
+            offsets[r + 1] = offsets[r];
+            for (int c = 0; c < chunks; c++)
+                offsets[r + 1] += bounds[c][r + 1] - bounds[c][r];
+        }
+
+        byte[][] out = new byte[n][];
+        List<byte[]> all = Arrays.asList(keys);
+        Workers.pool().invoke(forEach(chunks, r -> {
+            List<Iterator<byte[]>> parts = new ArrayList<>(chunks);
+            for (int c = 0; c < chunks; c++)
+                parts.add(all.subList(bounds[c][r], bounds[c][r + 1]).iterator());
+            LoserTree<byte[]> merge = new LoserTree<>(parts, UNSIGNED);
+            for (int i = offsets[r]; merge.hasNext(); i++)
+                out[i] = merge.next();
+        }));
+        return out;
+    }
+
+    private interface Task {
+        void run(int i);
+    }
+
+    /**
+     * @return a task that runs task for each of [0, n), in parallel
+     */
+    private static ForkJoinTask<?> forEach(int n, Task task) {
+        return new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    int index = i;
+                    tasks.add(new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected void compute() {
+                            task.run(index);
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        };
+    }
+}
@@ -5,7 +5,9 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -22,6 +24,9 @@ public class SeqScan implements OpIterator {
     private TransactionId tid;
     private int tableid;
     private String tableAlias;
+    // the pages of a heap file to scan, [fromPage, toPage)
+    private int fromPage = 0;
+    private int toPage = Integer.MAX_VALUE;
     private DbFileIterator iterator;
 
     /**
@@ -45,14 +50,6 @@ public class SeqScan implements OpIterator {
         this.tableid = tableid;
         // some code goes here
         this.tableAlias = tableAlias;
-        iterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
-        try {
-            iterator.open();
-        } catch (DbException e) {
-            e.printStackTrace();
-        } catch (TransactionAbortedException e) {
-            e.printStackTrace();
-        }
     }
 
     /**
@@ -61,7 +58,14 @@ public class SeqScan implements OpIterator {
      *       be the actual name of the table in the catalog of the database
      * */
     public String getTableName() {
-        return null;
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
     }
 
     /**
@@ -95,8 +99,49 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Splits this scan into scans of disjoint ranges of pages, which together
+     * return the tuples of this one, and can be read on different threads.
+     * Only a heap file can be split; other files are scanned whole.
+     *
+     * @param parts the most scans to split this one into
+     * @return scans of about the same number of pages, at most parts of them
+     */
+    public SeqScan[] split(int parts) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile) || parts <= 1)
+            return new SeqScan[] { range(fromPage, toPage) };
+        int from = fromPage;
+        int to = Math.min(toPage, ((HeapFile) file).numPages());
+        int n = Math.max(1, Math.min(parts, to - from));
+        SeqScan[] scans = new SeqScan[n];
+        for (int i = 0; i < n; i++) {
+            // the last scan also reads pages added after the split
+            scans[i] = range(from + (int) ((long) (to - from) * i / n),
+                    i == n - 1 ? toPage : from + (int) ((long) (to - from) * (i + 1) / n));
+        }
+        return scans;
+    }
+
+    private SeqScan range(int fromPage, int toPage) {
+        SeqScan scan = new SeqScan(tid, tableid, tableAlias);
+        scan.fromPage = fromPage;
+        scan.toPage = toPage;
+        return scan;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        // pages are only locked once the scan is opened
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file instanceof HeapFile && Database.getBufferPool().hasSnapshot(tid)) {
+            // read-only transaction: only tuples visible to its snapshot
+            iterator = ((HeapFile) file).snapshotIterator(tid, fromPage, toPage);
+        } else if (file instanceof HeapFile) {
+            iterator = ((HeapFile) file).iterator(tid, fromPage, toPage);
+        } else {
+            iterator = file.iterator(tid);
+        }
         iterator.open();
     }
 
@@ -120,23 +165,32 @@ public class SeqScan implements OpIterator {
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
+        if (iterator == null)
+            throw new IllegalStateException("iterator is closed");
         return iterator.hasNext();
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
+        if (iterator == null)
+            throw new IllegalStateException("iterator is closed");
         return iterator.next();
     }
 
     public void close() {
         // some code goes here
-        iterator.close();
+        if (iterator != null) {
+            iterator.close();
+            iterator = null;
+        }
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        if (iterator == null)
+            throw new IllegalStateException("iterator is closed");
         iterator.rewind();
     }
 }
@@ -0,0 +1,136 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * SortAggregate computes the same aggregate as {@link Aggregate}, for a child
+ * whose tuples come grouped, like one sorted on the group by field. Since the
+ * tuples of a group are next to each other, it holds one group at a time:
+ * each group's result is returned as soon as the next group starts, with no
+ * hash table and nothing spilled to disk.
+ */
+public class SortAggregate extends Operator implements Aggregation {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int afield;
+    private final int gfield;
+    private final Aggregator.Op aop;
+    private final TupleDesc td;
+    // the first tuple of the next group, read from child but not aggregated yet
+    private Tuple pending = null;
+
+    /**
+     * @param child  The OpIterator that is feeding us tuples, with the tuples
+     *               of each group next to each other
+     * @param afield The column over which we are computing an aggregate.
+     * @param gfield The column over which we are grouping the result, or -1 if
+     *               there is no grouping
+     * @param aop    The aggregation operator to use
+     */
+    public SortAggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this.child = child;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.aop = aop;
+        this.td = Aggregate.resultDesc(child.getTupleDesc(), afield, gfield);
+    }
+
+    public int groupField() {
+        return gfield;
+    }
+
+    public String groupFieldName() {
+        if (gfield != Aggregator.NO_GROUPING)
+            return child.getTupleDesc().getFieldName(gfield);
+        return null;
+    }
+
+    public int aggregateField() {
+        return afield;
+    }
+
+    public String aggregateFieldName() {
+        return child.getTupleDesc().getFieldName(afield);
+    }
+
+    public Aggregator.Op aggregateOp() {
+        return aop;
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        child.open();
+        pending = null;
+        super.open();
+    }
+
+    /**
+     * Aggregates the tuples of child up to the start of the next group
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        Tuple first = pending;
+        pending = null;
+        if (first == null) {
+            if (!child.hasNext())
+                return null;
+            first = child.next();
+        }
+        // each group is aggregated on its own, so its results need no group
+        Aggregator a = Aggregate.newAggregator(child.getTupleDesc().getFieldType(afield),
+                Aggregator.NO_GROUPING, null, afield, aop, 1);
+        a.mergeTupleIntoGroup(first);
+        Field key = gfield == Aggregator.NO_GROUPING ? null : first.getField(gfield);
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (key != null && !key.equals(t.getField(gfield))) {
+                pending = t;
+                break;
+            }
+            a.mergeTupleIntoGroup(t);
+        }
+        OpIterator it = a.iterator();
+        it.open();
+        Field value = it.next().getField(0);
+        it.close();
+        Tuple res = new Tuple(td);
+        if (key == null) {
+            res.setField(0, value);
+        } else {
+            res.setField(0, key);
+            res.setField(1, value);
+        }
+        return res;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        pending = null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        pending = null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
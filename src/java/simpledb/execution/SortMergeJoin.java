@@ -0,0 +1,384 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two relations by sorting both on their join
+ * fields and merging them. It supports equality and the inequalities <, <=,
+ * > and >=.
+ * <p>
+ * Children the planner knows to be sorted on their join field, like a scan of
+ * a B+ tree keyed on it, aren't sorted again; other children are sorted with
+ * an {@link ExternalSorter}.
+ * <p>
+ * For equality, the sorted children are read once, side by side, holding the
+ * tuples of child2 with the current join field in memory. For an inequality,
+ * the tuples that join a tuple of one child are a prefix of the other child in
+ * sorted order, which grows as that tuple does: for (t1 > t2) the tuples of
+ * child2 less than t1, and for (t1 < t2) the tuples of child1 less than t2. So
+ * one child is read once, and for each of its join fields the other child is
+ * read up to the first tuple that doesn't join.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private int maxTuples = ExternalSorter.DEFAULT_MAX_TUPLES;
+
+    // for inequalities, whether child2 drives the join, and child1 is re-read
+    private final boolean swapped;
+    // whether each child is already in ascending order of its join field
+    private final boolean sorted1, sorted2;
+
+    transient private List<ExternalSorter> sorters = null;
+    // the driving side, and the other side for equality
+    transient private Iterator<Tuple> left = null;
+    transient private Iterator<Tuple> right = null;
+    // for inequalities, the re-read side
+    transient private ExternalSorter prefixSide = null;
+
+    // the tuples of the driving side with the current join field
+    transient private List<Tuple> group = null;
+    transient private int groupPos = 0;
+    transient private Tuple nextLeft = null;
+    transient private Tuple nextRight = null;
+    // for equality, the tuples of child2 with the join field of the group
+    transient private List<Tuple> matches = null;
+    transient private int matchPos = 0;
+    // for inequalities, the tuple of the re-read side joined with the group
+    transient private Iterator<Tuple> prefix = null;
+    transient private Tuple current = null;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator can be
+     *            any comparison but LIKE and NOT_EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, false, false);
+    }
+
+    /**
+     * Constructor for children that may already be sorted on their join
+     * fields, which then aren't sorted again
+     *
+     * @param sorted1
+     *            true if child1 is in ascending order of its join field
+     * @param sorted2
+     *            true if child2 is in ascending order of its join field
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+            boolean sorted1, boolean sorted2) {
+        switch (p.getOperator()) {
+        case EQUALS:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            swapped = false;
+            break;
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            swapped = true;
+            break;
+        default:
+            throw new IllegalArgumentException("can't merge join with " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.sorted1 = sorted1;
+        this.sorted2 = sorted2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * Set the number of tuples of each child to sort in memory. Takes effect
+     * when the join is next opened or rewound.
+     */
+    public void setMaxTuples(int maxTuples) {
+        if (maxTuples < 1)
+            throw new IllegalArgumentException("the join needs room for at least one tuple");
+        this.maxTuples = maxTuples;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    /**
+     * @return the tuples of child, in ascending order of field
+     */
+    private Iterator<Tuple> sorted(OpIterator child, int field, boolean inOrder) throws DbException,
+            TransactionAbortedException, IOException {
+        if (inOrder)
+            return iterator(child);
+        return sorter(child, field).iterator();
+    }
+
+    private ExternalSorter sorter(OpIterator child, int field) throws DbException,
+            TransactionAbortedException, IOException {
+        ExternalSorter sorter = new ExternalSorter(child.getTupleDesc(), new TupleComparator(field, true), maxTuples);
+        sorters.add(sorter);
+        while (child.hasNext())
+            sorter.add(child.next());
+        return sorter;
+    }
+
+    /**
+     * @return the tuples of child, as an Iterator
+     */
+    private static Iterator<Tuple> iterator(OpIterator child) {
+        return new Iterator<Tuple>() {
+            public boolean hasNext() {
+                try {
+                    return child.hasNext();
+                } catch (DbException | TransactionAbortedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            public Tuple next() {
+                try {
+                    return child.next();
+                } catch (DbException | TransactionAbortedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private void prepare() throws DbException, TransactionAbortedException {
+        sorters = new ArrayList<>();
+        group = new ArrayList<>();
+        groupPos = 0;
+        nextLeft = nextRight = current = null;
+        matches = new ArrayList<>();
+        matchPos = 0;
+        prefix = null;
+        try {
+            if (pred.getOperator() == Predicate.Op.EQUALS) {
+                left = sorted(child1, pred.getField1(), sorted1);
+                right = sorted(child2, pred.getField2(), sorted2);
+            } else if (!swapped) {
+                left = sorted(child1, pred.getField1(), sorted1);
+                prefixSide = sorter(child2, pred.getField2());
+            } else {
+                left = sorted(child2, pred.getField2(), sorted2);
+                prefixSide = sorter(child1, pred.getField1());
+            }
+            nextLeft = left.hasNext() ? left.next() : null;
+            if (right != null)
+                nextRight = right.hasNext() ? right.next() : null;
+        } catch (IOException e) {
+            throw new DbException("can't sort join input: " + e.getMessage());
+        } catch (RuntimeException e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Throws the exception of a child wrapped by {@link #iterator}
+     */
+    private static RuntimeException rethrow(RuntimeException e) throws DbException,
+            TransactionAbortedException {
+        if (e.getCause() instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e.getCause();
+        if (e.getCause() instanceof DbException)
+            throw (DbException) e.getCause();
+        throw e;
+    }
+
+    /**
+     * Stops reading the prefix of the re-read side, which can be a file
+     */
+    private void closePrefix() throws IOException {
+        if (prefix instanceof Closeable)
+            ((Closeable) prefix).close();
+        prefix = null;
+    }
+
+    private void closeSorters() {
+        try {
+            closePrefix();
+        } catch (IOException e) {
+            // the sorters delete their files anyway
+        }
+        if (sorters != null) {
+            for (ExternalSorter s : sorters)
+                s.close();
+        }
+        sorters = null;
+        left = right = prefix = null;
+        prefixSide = null;
+        group = matches = null;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        prepare();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeSorters();
+        child2.close();
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeSorters();
+        child1.rewind();
+        child2.rewind();
+        prepare();
+    }
+
+    /**
+     * The index of the join field of the tuples of the driving side
+     */
+    private int leftField() {
+        return swapped ? pred.getField2() : pred.getField1();
+    }
+
+    /**
+     * Reads the next tuples of the driving side with the same join field into
+     * group
+     *
+     * @return false if the driving side is done
+     */
+    private boolean nextGroup() {
+        group.clear();
+        groupPos = 0;
+        if (nextLeft == null)
+            return false;
+        Field key = nextLeft.getField(leftField());
+        while (nextLeft != null && nextLeft.getField(leftField()).compare(Predicate.Op.EQUALS, key)) {
+            group.add(nextLeft);
+            nextLeft = left.hasNext() ? left.next() : null;
+        }
+        return true;
+    }
+
+    private Tuple fetchEquals() {
+        while (true) {
+            if (groupPos < group.size() && matchPos < matches.size())
+                return Tuple.merge(comboTD, group.get(groupPos), matches.get(matchPos++));
+            if (groupPos < group.size() && ++groupPos < group.size()) {
+                matchPos = 0;
+                continue;
+            }
+            if (!nextGroup())
+                return null;
+            // read the tuples of child2 with the join field of the group
+            Field key = group.get(0).getField(pred.getField1());
+            matches.clear();
+            matchPos = 0;
+            while (nextRight != null && compare(nextRight.getField(pred.getField2()), key) < 0)
+                nextRight = right.hasNext() ? right.next() : null;
+            while (nextRight != null && compare(nextRight.getField(pred.getField2()), key) == 0) {
+                matches.add(nextRight);
+                nextRight = right.hasNext() ? right.next() : null;
+            }
+            if (matches.isEmpty())
+                group.clear();
+        }
+    }
+
+    private Tuple fetchInequality() throws IOException {
+        int prefixField = swapped ? pred.getField1() : pred.getField2();
+        // for (t1 > t2), the tuples t2 of child2 less than t1, with
+        // child1 driving; for (t1 < t2), the tuples t1 of child1 less than
+        // t2, with child2 driving
+        boolean orEqual = pred.getOperator() == Predicate.Op.GREATER_THAN_OR_EQ
+                || pred.getOperator() == Predicate.Op.LESS_THAN_OR_EQ;
+        while (true) {
+            if (current != null && groupPos < group.size()) {
+                Tuple d = group.get(groupPos++);
+                return swapped ? Tuple.merge(comboTD, current, d) : Tuple.merge(comboTD, d, current);
+            }
+            if (prefix != null && prefix.hasNext()) {
+                Tuple t = prefix.next();
+                int c = compare(t.getField(prefixField), group.get(0).getField(leftField()));
+                if (c < 0 || (orEqual && c == 0)) {
+                    current = t;
+                    groupPos = 0;
+                    continue;
+                }
+            }
+            current = null;
+            closePrefix();
+            if (!nextGroup())
+                return null;
+            prefix = prefixSide.iterator();
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are the concatenation of joining tuples from the
+     * left and right relation, like those of {@link Join}, though not in the
+     * same order.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        try {
+            if (pred.getOperator() == Predicate.Op.EQUALS)
+                return fetchEquals();
+            return fetchInequality();
+        } catch (IOException e) {
+            throw new DbException("can't read sorted join input: " + e.getMessage());
+        } catch (RuntimeException e) {
+            throw rethrow(e);
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
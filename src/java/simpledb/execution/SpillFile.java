@@ -0,0 +1,150 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SpillFile is a temporary file of tuples, for operators that hold more tuples
+ * than fit in memory. Tuples are appended to the file, and can then be read
+ * back, in the order they were added, as many times as needed.
+ * <p>
+ * Fields are written compactly rather than in their page format: a string
+ * takes two bytes of length and its characters, not {@link Type#STRING_LEN}
+ * bytes of padding.
+ */
+public class SpillFile implements Closeable {
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private final List<DataInputStream> readers = new ArrayList<>();
+    private long size = 0;
+
+    /**
+     * @param td the TupleDesc of the tuples to store
+     */
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".dat");
+        this.file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    /**
+     * Append a tuple to the file
+     */
+    public void add(Tuple t) throws IOException {
+        if (out == null)
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        for (int i = 0; i < td.numFields(); i++)
+            write(t.getField(i));
+        size++;
+    }
+
+    private void write(Field f) throws IOException {
+        if (f.getType() == Type.INT_TYPE) {
+            out.writeInt(((IntField) f).getValue());
+        } else {
+            String s = ((StringField) f).getValue();
+            if (s.length() > Type.STRING_LEN)
+                s = s.substring(0, Type.STRING_LEN);
+            out.writeShort(s.length());
+            out.writeBytes(s);
+        }
+    }
+
+    private static Field read(Type type, DataInputStream in) throws IOException {
+        if (type == Type.INT_TYPE)
+            return new IntField(in.readInt());
+        byte[] bs = new byte[in.readUnsignedShort()];
+        in.readFully(bs);
+        return new StringField(new String(bs), Type.STRING_LEN);
+    }
+
+    /**
+     * @return the number of tuples in the file
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the tuples in the file, in the order they were added. The
+     *         iterator is {@link Closeable}, to stop reading before the end.
+     */
+    public Iterator<Tuple> iterator() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        readers.add(in);
+        return new Reader(in, size);
+    }
+
+    private class Reader implements Iterator<Tuple>, Closeable {
+        private final DataInputStream in;
+        private long remaining;
+
+        Reader(DataInputStream in, long remaining) {
+            this.in = in;
+            this.remaining = remaining;
+            if (remaining == 0)
+                close();
+        }
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        public Tuple next() {
+            if (remaining == 0)
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, read(td.getFieldType(i), in));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (--remaining == 0)
+                close();
+            return t;
+        }
+
+        public void close() {
+            remaining = 0;
+            if (readers.remove(in)) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the file
+     */
+    public void close() {
+        try {
+            if (out != null)
+                out.close();
+            for (DataInputStream in : readers)
+                in.close();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+        out = null;
+        readers.clear();
+        file.delete();
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * SpilledGroups holds the input tuples of the groups of an aggregate that
+ * didn't fit in memory, for {@link IntegerAggregator} and
+ * {@link StringAggregator}.
+ * <p>
+ * Once an aggregator has as many groups as it may hold, the tuples of groups
+ * it doesn't hold yet are written to one of {@link #NUM_PARTITIONS} files by
+ * the hash of their group, while the groups it holds keep taking their
+ * tuples. So every group is either wholly in memory or wholly in one
+ * partition, and each partition can be aggregated on its own, by a new
+ * aggregator that may spill in turn, splitting the partition by another hash.
+ */
+class SpilledGroups {
+
+    /** The number of partitions the spilled tuples are split into */
+    static final int NUM_PARTITIONS = 16;
+
+    private final int level;
+    private final SpillFile[] partitions = new SpillFile[NUM_PARTITIONS];
+
+    /**
+     * @param level the number of times the tuples have been spilled before,
+     *            which picks the hash that splits them
+     */
+    SpilledGroups(int level) {
+        this.level = level;
+    }
+
+    private int partition(Field key) {
+        int h = key.hashCode() + level * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h >>> (32 - Integer.numberOfTrailingZeros(NUM_PARTITIONS));
+    }
+
+    /**
+     * Writes t, with the group key, to its partition
+     */
+    void add(Tuple t, Field key) {
+        int p = partition(key);
+        try {
+            if (partitions[p] == null)
+                partitions[p] = new SpillFile(t.getTupleDesc());
+            partitions[p].add(t);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param td the TupleDesc of the results
+     * @param inMemory the results of the groups held in memory
+     * @param aggregator makes an aggregator for the tuples of a partition
+     * @return the results of the groups in memory, then those of each
+     *         partition, aggregated as the iterator reaches them. Closing the
+     *         iterator deletes the partitions.
+     */
+    OpIterator iterator(TupleDesc td, List<Tuple> inMemory, Supplier<Aggregator> aggregator) {
+        return new OpIterator() {
+            private static final long serialVersionUID = 1L;
+            private OpIterator current = null;
+            private int next = 0;
+
+            public void open() throws DbException, TransactionAbortedException {
+                next = 0;
+                current = new TupleIterator(td, inMemory);
+                current.open();
+            }
+
+            private boolean advance() throws DbException, TransactionAbortedException {
+                while (!current.hasNext()) {
+                    while (next < NUM_PARTITIONS && partitions[next] == null)
+                        next++;
+                    if (next == NUM_PARTITIONS)
+                        return false;
+                    Aggregator a = aggregator.get();
+                    try {
+                        Iterator<Tuple> it = partitions[next++].iterator();
+                        while (it.hasNext())
+                            a.mergeTupleIntoGroup(it.next());
+                    } catch (IOException | UncheckedIOException e) {
+                        throw new DbException("can't read spilled groups: " + e.getMessage());
+                    }
+                    current.close();
+                    current = a.iterator();
+                    current.open();
+                }
+                return true;
+            }
+
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                if (current == null)
+                    throw new IllegalStateException("iterator not open");
+                return advance();
+            }
+
+            public Tuple next() throws DbException, TransactionAbortedException {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                if (current != null)
+                    current.close();
+                open();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            public void close() {
+                if (current != null)
+                    current.close();
+                current = null;
+                SpilledGroups.this.close();
+            }
+        };
+    }
+
+    /**
+     * Deletes the partitions
+     */
+    void close() {
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            if (partitions[p] != null)
+                partitions[p].close();
+            partitions[p] = null;
+        }
+    }
+}
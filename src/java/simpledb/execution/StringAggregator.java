@@ -4,9 +4,8 @@ import simpledb.common.Type;
 import simpledb.storage.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
@@ -14,12 +13,19 @@ import java.util.Map;
 public class StringAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
-    private static final String NO_GROUPING_KEY = "NO_GROUPING_KEY";
     private final int gbfield;
     private final Type gbfieldtype;
     private final int afield;
     private final Op what;
-    private GBHandler gbHandler;
+    // numbers the groups; null without grouping, where the only group is 0
+    private final FieldHashTable groups;
+    private int numGroups = 0;
+    private int maxGroups = DEFAULT_MAX_GROUPS;
+    // the number of times the input has been spilled before
+    private final int level;
+    // the tuples of the groups that didn't fit, or null
+    transient private SpilledGroups spilled = null;
+    private int[] counts = new int[16];
 
     /**
      * Aggregate constructor
@@ -33,11 +39,26 @@ public class StringAggregator implements Aggregator {
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
+        this(gbfield, gbfieldtype, afield, what, 0);
+    }
+
+    private StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what, int level) {
+        this.level = level;
         this.gbfield = gbfield;
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.what = what;
-        gbHandler =new CountHandler();
+        this.groups = gbfield == NO_GROUPING ? null : new FieldHashTable(gbfieldtype);
+    }
+
+    /**
+     * Set the number of groups to hold in memory; the tuples of other groups
+     * are written to disk, and aggregated by {@link #iterator}
+     */
+    public void setMaxGroups(int maxGroups) {
+        if (maxGroups < 1)
+            throw new IllegalArgumentException("the aggregate needs room for at least one group");
+        this.maxGroups = maxGroups;
     }
 
     /**
@@ -47,14 +68,31 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        String key = gbfield == NO_GROUPING ? NO_GROUPING_KEY : tup.getField(gbfield).toString();
-        gbHandler.handle(key,tup.getField(afield));
+        int g = 0;
+        if (groups != null) {
+            Field key = tup.getField(gbfield);
+            g = numGroups < maxGroups ? groups.add(key) : groups.find(key);
+            if (g < 0) {
+                if (spilled == null)
+                    spilled = new SpilledGroups(level);
+                spilled.add(tup, key);
+                return;
+            }
+        }
+        if (g == numGroups) {
+            if (g == counts.length)
+                counts = Arrays.copyOf(counts, g * 2);
+            numGroups++;
+        }
+        counts[g]++;
     }
 
 
 
     /**
-     * Create a OpIterator over group aggregate results.
+     * Create a OpIterator over group aggregate results. If some groups didn't
+     * fit in memory, their results are computed as the iterator reaches them,
+     * and closing it deletes their tuples from disk.
      *
      * @return a OpIterator whose tuples are the pair (groupVal,
      * aggregateVal) if using group, or a single (aggregateVal) if no
@@ -62,58 +100,31 @@ public class StringAggregator implements Aggregator {
      * aggregate specified in the constructor.
      */
     public OpIterator iterator() {
-        HashMap<String, Integer> gbResults = gbHandler.getGbResult();
         List<Tuple> tuples = new ArrayList<>();
         TupleDesc tupleDesc;
-        Type[] types;
-        String[] names;
-        if(gbfield==NO_GROUPING){
-            types = new Type[] {Type.INT_TYPE};
-            names = new String[]{"aggregateVal"};
-            tupleDesc = new TupleDesc(types,names);
-            for(Integer value:gbResults.values()){
-                Tuple tuple = new Tuple(tupleDesc);
-                tuple.setField(0,new IntField(value));
-                tuples.add(tuple);
-            }
-
+        if(groups==null){
+            tupleDesc = new TupleDesc(new Type[] {Type.INT_TYPE},new String[]{"aggregateVal"});
         }else{
-            types = new Type[] {gbfieldtype,Type.INT_TYPE};
-            names = new String[]{"groupVal","aggregateVal"};
-            tupleDesc = new TupleDesc(types,names);
-            for(Map.Entry<String,Integer> entry:gbResults.entrySet()){
-                Tuple tuple = new Tuple(tupleDesc);
-                if(gbfieldtype==Type.INT_TYPE){
-                    tuple.setField(0,new IntField(Integer.parseInt(entry.getKey())));
-                }else{
-                    tuple.setField(0,new StringField(entry.getKey(),entry.getKey().length()));
-                }
-                tuple.setField(1,new IntField(entry.getValue()));
-                tuples.add(tuple);
-            }
-
-        }
-        return new TupleIterator(tupleDesc,tuples);
-    }
-    private abstract class GBHandler{
-        HashMap<String,Integer> gbResult;
-        abstract void handle(String key,Field field);
-        private GBHandler(){
-            gbResult = new HashMap<>();
-        }
-        public HashMap<String,Integer> getGbResult(){
-            return gbResult;
+            tupleDesc = new TupleDesc(new Type[] {gbfieldtype,Type.INT_TYPE},new String[]{"groupVal","aggregateVal"});
         }
-    }
-    private class CountHandler extends GBHandler {
-        @Override
-        public void handle(String key, Field field) {
-            if(gbResult.containsKey(key)){
-                gbResult.put(key,gbResult.get(key)+1);
+        for(int g=0;g<numGroups;g++){
+            Tuple tuple = new Tuple(tupleDesc);
+            if(groups==null){
+                tuple.setField(0,new IntField(counts[g]));
             }else{
-                gbResult.put(key,1);
+                tuple.setField(0,groups.key(g));
+                tuple.setField(1,new IntField(counts[g]));
             }
+            tuples.add(tuple);
         }
+        if (spilled != null) {
+            return spilled.iterator(tupleDesc, tuples, () -> {
+                StringAggregator a = new StringAggregator(gbfield, gbfieldtype, afield, what, level + 1);
+                a.setMaxGroups(maxGroups);
+                return a;
+            });
+        }
+        return new TupleIterator(tupleDesc,tuples);
     }
 
 }
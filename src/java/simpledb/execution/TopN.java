@@ -0,0 +1,146 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY with a LIMIT: it returns the
+ * first n tuples of its child in the order of one or more fields, like an
+ * {@link OrderBy} followed by a {@link Limit}, but holds only n tuples in
+ * memory. It keeps the best n tuples seen so far in a heap with the worst of
+ * them on top, so each tuple of the child is either dropped after one
+ * comparison, or replaces the top of the heap in log n.
+ * <p>
+ * Tuples with equal sort fields are returned in the order the child returned
+ * them, as OrderBy does.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private final int n;
+    transient private List<Tuple> top;
+    transient private Iterator<Tuple> it;
+
+    /**
+     * A tuple of the heap, with its position in the child to break ties
+     */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param n
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int n, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need a sort order for each of at least one field");
+        if (n < 0)
+            throw new IllegalArgumentException("can't return fewer than no tuples");
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.n = n;
+        this.child = child;
+    }
+
+    /**
+     * @return the fields the tuples are sorted on, most significant first
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return for each of {@link #getOrderByFields}, true if its sort order is
+     *         ascending
+     */
+    public boolean[] getAscendingOrders() {
+        return ascs.clone();
+    }
+
+    /**
+     * @return the most tuples returned
+     */
+    public int getLimit() {
+        return n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        Comparator<Tuple> tuples = new TupleComparator(orderByFields, ascs);
+        Comparator<Entry> order = (a, b) -> {
+            int c = tuples.compare(a.t, b.t);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+        // the worst of the best n on top
+        PriorityQueue<Entry> heap = new PriorityQueue<>(Math.max(1, Math.min(n, 1024)), order.reversed());
+        long seq = 0;
+        while (n > 0 && child.hasNext()) {
+            Entry e = new Entry(child.next(), seq++);
+            if (heap.size() < n) {
+                heap.add(e);
+            } else if (order.compare(e, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        Entry[] best = heap.toArray(new Entry[0]);
+        Arrays.sort(best, order);
+        top = new ArrayList<>(best.length);
+        for (Entry e : best)
+            top.add(e.t);
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        top = null;
+        it = null;
+    }
+
+    public void rewind() {
+        it = top.iterator();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
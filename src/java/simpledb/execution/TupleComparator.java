@@ -0,0 +1,105 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Orders tuples by one or more fields, each ascending or descending. It can
+ * also turn a tuple into a normalized key: bytes whose unsigned order is the
+ * order of the tuples, so that a sort can compare the keys without looking at
+ * the fields again.
+ */
+public class TupleComparator implements Comparator<Tuple> {
+    final int[] fields;
+    final boolean[] asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+    }
+
+    private static int compare(Field t1, Field t2) {
+        if (t1 instanceof IntField && t2 instanceof IntField)
+            return Integer.compare(((IntField) t1).getValue(), ((IntField) t2).getValue());
+        if (t1 instanceof StringField && t2 instanceof StringField)
+            return ((StringField) t1).getValue().compareTo(((StringField) t2).getValue());
+        if (t1.compare(Predicate.Op.EQUALS, t2))
+            return 0;
+        return t1.compare(Predicate.Op.GREATER_THAN, t2) ? 1 : -1;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            int c = compare(o1.getField(fields[i]), o2.getField(fields[i]));
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the normalized key of t, followed by seq, so that tuples that
+     *         compare equal get keys in the order of their seqs. Keys compare
+     *         with {@link Arrays#compareUnsigned(byte[], byte[])}.
+     */
+    byte[] normalizedKey(Tuple t, int seq) {
+        int len = 4;
+        for (int f : fields) {
+            Field v = t.getField(f);
+            len += v instanceof IntField ? 4 : 3 * ((StringField) v).getValue().length() + 1;
+        }
+        byte[] key = new byte[len];
+        int pos = 0;
+        for (int i = 0; i < fields.length; i++) {
+            int start = pos;
+            Field v = t.getField(fields[i]);
+            if (v instanceof IntField) {
+                // flipping the sign bit orders ints as unsigned bytes
+                pos = putInt(key, pos, ((IntField) v).getValue() ^ Integer.MIN_VALUE);
+            } else {
+                // each char is marked by a 1, and the end by a 0, so a string
+                // comes before the longer strings it is a prefix of, whatever
+                // follows it in the key
+                String str = ((StringField) v).getValue();
+                for (int j = 0; j < str.length(); j++) {
+                    char c = str.charAt(j);
+                    key[pos++] = 1;
+                    key[pos++] = (byte) (c >>> 8);
+                    key[pos++] = (byte) c;
+                }
+                key[pos++] = 0;
+            }
+            if (!asc[i]) {
+                for (int j = start; j < pos; j++)
+                    key[j] = (byte) ~key[j];
+            }
+        }
+        putInt(key, pos, seq);
+        return key;
+    }
+
+    /**
+     * @return the seq of a key from {@link #normalizedKey}
+     */
+    static int seq(byte[] key) {
+        int n = key.length;
+        return (key[n - 4] & 0xff) << 24 | (key[n - 3] & 0xff) << 16 | (key[n - 2] & 0xff) << 8 | (key[n - 1] & 0xff);
+    }
+
+    private static int putInt(byte[] key, int pos, int v) {
+        key[pos] = (byte) (v >>> 24);
+        key[pos + 1] = (byte) (v >>> 16);
+        key[pos + 2] = (byte) (v >>> 8);
+        key[pos + 3] = (byte) v;
+        return pos + 4;
+    }
+}
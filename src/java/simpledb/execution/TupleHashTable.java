@@ -0,0 +1,121 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+
+import java.util.Arrays;
+
+/**
+ * TupleHashTable holds tuples by the value of one of their fields, for the
+ * build side of a hash join.
+ * <p>
+ * Tuples are appended to an array as they are added. The first lookup after
+ * an add sorts the array by key with a counting sort, so that the tuples with
+ * the same key are next to each other, and the tuples matching a key are the
+ * range [{@link #start}, {@link #end}) of {@link #get}.
+ */
+public class TupleHashTable {
+
+    private final int keyField;
+    private final FieldHashTable keys;
+    private Tuple[] rows = new Tuple[16];
+    // the number of the key of each tuple
+    private int[] rowKeys = new int[16];
+    private int size = 0;
+    // null until the tuples are sorted by key; then the tuples of key number i
+    // are rows[offsets[i]] to rows[offsets[i + 1] - 1]
+    private int[] offsets = null;
+
+    /**
+     * @param keyType the type of the key field
+     * @param keyField the index of the key field in the tuples
+     */
+    public TupleHashTable(Type keyType, int keyField) {
+        this.keyField = keyField;
+        this.keys = new FieldHashTable(keyType);
+    }
+
+    public void add(Tuple t) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+            rowKeys = Arrays.copyOf(rowKeys, size * 2);
+        }
+        rowKeys[size] = keys.add(t.getField(keyField));
+        rows[size++] = t;
+        offsets = null;
+    }
+
+    /**
+     * @return the number of tuples in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the i-th tuple of the table, in the order the tuples were
+     *         added, or in key order once the table has been looked up in
+     */
+    public Tuple get(int i) {
+        return rows[i];
+    }
+
+    /**
+     * Sorts the tuples by key, as the first lookup after an add does. Until the
+     * next add, lookups don't change the table, so several threads can make
+     * them at once.
+     */
+    public void sortByKey() {
+        if (offsets != null)
+            return;
+        int n = keys.size();
+        offsets = new int[n + 1];
+        for (int i = 0; i < size; i++)
+            offsets[rowKeys[i] + 1]++;
+        for (int k = 0; k < n; k++)
+            offsets[k + 1] += offsets[k];
+        int[] next = Arrays.copyOf(offsets, n);
+        Tuple[] sorted = new Tuple[rows.length];
+        int[] sortedKeys = new int[rows.length];
+        for (int i = 0; i < size; i++) {
+            int j = next[rowKeys[i]]++;
+            sorted[j] = rows[i];
+            sortedKeys[j] = rowKeys[i];
+        }
+        rows = sorted;
+        rowKeys = sortedKeys;
+    }
+
+    /**
+     * @return the number of the key, or -1 if no tuple has it
+     */
+    public int find(Field key) {
+        sortByKey();
+        return keys.find(key);
+    }
+
+    /**
+     * @return the index of the first tuple with the key numbered id
+     */
+    public int start(int id) {
+        return offsets[id];
+    }
+
+    /**
+     * @return one past the index of the last tuple with the key numbered id
+     */
+    public int end(int id) {
+        return offsets[id + 1];
+    }
+
+    /**
+     * Removes all the tuples
+     */
+    public void clear() {
+        Arrays.fill(rows, 0, size, null);
+        size = 0;
+        keys.clear();
+        offsets = null;
+    }
+}
@@ -0,0 +1,25 @@
+package simpledb.execution;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Workers holds the pool of worker threads that operators share, so that
+ * queries running at once don't each start a thread per processor. Its
+ * threads are daemons, and idle ones stop after a while.
+ */
+class Workers {
+
+    private static ForkJoinPool pool = null;
+
+    private Workers() {
+    }
+
+    /**
+     * @return the shared pool, with a thread per processor
+     */
+    static synchronized ForkJoinPool pool() {
+        if (pool == null)
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return pool;
+    }
+}
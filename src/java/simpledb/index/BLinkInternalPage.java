@@ -0,0 +1,200 @@
+package simpledb.index;
+
+import java.io.*;
+
+import simpledb.common.DbException;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+
+/**
+ * BLinkInternalPage is an internal page of a BLinkTreeFile. It is a
+ * BTreeInternalPage with a right-link to the next page on the same level of the
+ * tree, and a high key: an upper bound on the keys in its subtree and a lower
+ * bound on the keys under the page to its right. A search that arrives at the
+ * page looking for a larger key knows that the page was split since it read the
+ * parent, and follows the right-link.
+ *
+ * @see BLinkTreeFile
+ * @see BLinkLeafPage
+ */
+public class BLinkInternalPage extends BTreeInternalPage {
+
+	private byte state;
+	private int rightLink;
+	private Field highKey;
+
+	/**
+	 * Create a BLinkInternalPage from a set of bytes of data read from disk. The
+	 * format is that of a BTreeInternalPage, with room for one entry fewer if need
+	 * be, and at the end of the page one byte telling whether the page has a high
+	 * key, the right-link (0 on the right-most page of a level), and the high key.
+	 *
+	 * @see BTreeInternalPage#BTreeInternalPage
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param key - the field which the index is keyed on
+	 */
+	public BLinkInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
+		super(id, data, key);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data,
+				data.length - getLinkSize(), getLinkSize()));
+		state = dis.readByte();
+		rightLink = dis.readInt();
+		try {
+			Field f = td.getFieldType(keyField).parse(dis);
+			highKey = state == BLinkLeafPage.BOUNDED ? f : null;
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+		}
+		dis.close();
+
+		// the superclass took its before image before the link was read
+		setBeforeImage();
+	}
+
+	/**
+	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 */
+	@Override
+	public int getMaxEntries() {
+		int keySize = td.getFieldType(keyField).getLen();
+		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
+		// extraBits are: one parent pointer, 1 byte for child page category,
+		// one extra child pointer, 1 bit for extra header, the right-link and high key
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1 + getLinkSize() * 8;
+		return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader;
+	}
+
+	private int getLinkSize() {
+		return 1 + INDEX_SIZE + td.getFieldType(keyField).getLen();
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	@Override
+	public BLinkInternalPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new BLinkInternalPage(pid, oldDataRef, keyField);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page, with the
+	 * right-link and high key in what would otherwise be padding at the end of
+	 * the page.
+	 *
+	 * @see #BLinkInternalPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	@Override
+	public byte[] getPageData() {
+		byte[] data = super.getPageData();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(getLinkSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeByte(state);
+			dos.writeInt(rightLink);
+			if(highKey != null) {
+				highKey.serialize(dos);
+			}
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		byte[] tail = baos.toByteArray();
+		System.arraycopy(tail, 0, data, data.length - getLinkSize(), tail.length);
+		return data;
+	}
+
+	/**
+	 * @return the id of the next page on the same level of the tree, or null if
+	 * this is the right-most page of its level
+	 */
+	public BTreePageId getRightLinkId() {
+		if(rightLink == 0) {
+			return null;
+		}
+		return new BTreePageId(pid.getTableId(), rightLink, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Set the right-link of this page
+	 * @param id - the id of the next page on the same level, or null if there is none
+	 * @throws DbException if the id is not valid
+	 */
+	public void setRightLinkId(BTreePageId id) throws DbException {
+		if(id == null) {
+			rightLink = 0;
+		}
+		else {
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setRightLinkId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL) {
+				throw new DbException("right-link must be an internal page");
+			}
+			rightLink = id.getPageNumber();
+		}
+	}
+
+	/**
+	 * @return the high key of this page, or null if the page is the right-most
+	 * page of its level, or has never been initialized
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page, which also initializes a new page
+	 * @param f - the high key, or null if this is the right-most page of its level
+	 */
+	public void setHighKey(Field f) throws DbException {
+		if(f != null && !f.getType().equals(td.getFieldType(keyField))) {
+			throw new DbException("key field type mismatch, in setHighKey");
+		}
+		highKey = f;
+		state = f == null ? BLinkLeafPage.RIGHTMOST : BLinkLeafPage.BOUNDED;
+	}
+
+	/**
+	 * @return false if the page has never been given a high key, which means it
+	 * was abandoned by a split that rolled back, or was never part of the tree
+	 */
+	public boolean isInitialized() {
+		return state != BLinkLeafPage.NEW;
+	}
+
+	/**
+	 * @return true if the entries for key field f belong on this page or on a page
+	 * to its left; if f is null, which stands for the smallest key, always true
+	 */
+	public boolean covers(Field f) {
+		return f == null || highKey == null || f.compare(Op.LESS_THAN_OR_EQ, highKey);
+	}
+
+	/**
+	 * @return true if one of the entries of this page points to the given child
+	 */
+	public boolean hasChild(BTreePageId child) {
+		int slots = getMaxEntries() + 1;
+		for(int i = 0; i < slots; i++) {
+			if(isSlotUsed(i) && child.equals(getChildId(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,154 @@
+package simpledb.index;
+
+import java.io.*;
+
+import simpledb.common.DbException;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+
+/**
+ * BLinkLeafPage is a leaf page of a BLinkTreeFile. It is a BTreeLeafPage that
+ * also stores a high key: an upper bound on the keys of its tuples and a lower
+ * bound on the keys of the page to its right. A search that arrives at the page
+ * looking for a larger key knows that the page was split since it read the
+ * parent, and follows the right sibling pointer.
+ *
+ * @see BLinkTreeFile
+ * @see BLinkInternalPage
+ */
+public class BLinkLeafPage extends BTreeLeafPage {
+
+	// states of the high key; a page fresh from createEmptyPageData() is NEW
+	static final byte NEW = 0;
+	static final byte BOUNDED = 1;
+	static final byte RIGHTMOST = 2;
+
+	private byte state;
+	private Field highKey;
+
+	/**
+	 * Create a BLinkLeafPage from a set of bytes of data read from disk. The
+	 * format is that of a BTreeLeafPage, with room for one tuple fewer if need be,
+	 * and the high key at the end of the page: one byte telling whether the page
+	 * has a high key, followed by the key.
+	 *
+	 * @see BTreeLeafPage#BTreeLeafPage
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param key - the field which the index is keyed on
+	 */
+	public BLinkLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
+		super(id, data, key);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data,
+				data.length - getHighKeySize(), getHighKeySize()));
+		state = dis.readByte();
+		try {
+			Field f = td.getFieldType(keyField).parse(dis);
+			highKey = state == BOUNDED ? f : null;
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+		}
+		dis.close();
+
+		// the superclass took its before image before the high key was read
+		setBeforeImage();
+	}
+
+	/**
+	 * Retrieve the maximum number of tuples this page can hold.
+	 */
+	@Override
+	public int getMaxTuples() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		// extraBits are: left sibling pointer, right sibling pointer, parent pointer, high key
+		int extraBits = 3 * INDEX_SIZE * 8 + getHighKeySize() * 8;
+		return (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader;
+	}
+
+	private int getHighKeySize() {
+		return 1 + td.getFieldType(keyField).getLen();
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	@Override
+	public BLinkLeafPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new BLinkLeafPage(pid, oldDataRef, keyField);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page, with the
+	 * high key in what would otherwise be padding at the end of the page.
+	 *
+	 * @see #BLinkLeafPage
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	@Override
+	public byte[] getPageData() {
+		byte[] data = super.getPageData();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(getHighKeySize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeByte(state);
+			if(highKey != null) {
+				highKey.serialize(dos);
+			}
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		byte[] tail = baos.toByteArray();
+		System.arraycopy(tail, 0, data, data.length - getHighKeySize(), tail.length);
+		return data;
+	}
+
+	/**
+	 * @return the high key of this page, or null if the page is the right-most
+	 * leaf, or has never been initialized
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page, which also initializes a new page
+	 * @param f - the high key, or null if this is the right-most leaf
+	 */
+	public void setHighKey(Field f) throws DbException {
+		if(f != null && !f.getType().equals(td.getFieldType(keyField))) {
+			throw new DbException("key field type mismatch, in setHighKey");
+		}
+		highKey = f;
+		state = f == null ? RIGHTMOST : BOUNDED;
+	}
+
+	/**
+	 * @return false if the page has never been given a high key, which means it
+	 * was abandoned by a split that rolled back, or was never part of the tree
+	 */
+	public boolean isInitialized() {
+		return state != NEW;
+	}
+
+	/**
+	 * @return true if the tuples with key field f belong on this page or on a page
+	 * to its left; if f is null, which stands for the smallest key, always true
+	 */
+	public boolean covers(Field f) {
+		return f == null || highKey == null || f.compare(Op.LESS_THAN_OR_EQ, highKey);
+	}
+}
@@ -0,0 +1,480 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BLinkTreeFile is a variant of BTreeFile after Lehman and Yao's B-link tree.
+ * Every page has a right-link to the next page on its level and a high key that
+ * bounds the keys below it (see BLinkLeafPage and BLinkInternalPage). A split
+ * first moves the upper half of a page to a new page on its right and links it
+ * in, and only then adds an entry for the new page to the level above. In
+ * between, a search that reaches the old page with a key above its high key
+ * simply follows the right-link, so searches need no latches at all: they read
+ * the root pointer and internal pages without locking them, each page atomically
+ * under its monitor, and never hold more than one page at a time. Leaves are
+ * locked as in BTreeFile, for the isolation of the transaction.
+ * <p>
+ * Inserts descend the same way, remembering the page they passed on each level.
+ * If the leaf splits, the entry for the new page goes into the remembered page
+ * of the level above, or whichever page to its right now holds the split page,
+ * and so on up the tree. A writer locks the one page it changes on each level
+ * and lets the right-links take care of concurrent splits, instead of keeping
+ * the pages above locked. Since transaction locks are only released when the
+ * transaction completes, the pages a split changed stay locked until then.
+ * <p>
+ * Deletes only remove the tuple from its leaf: pages are never merged, so the
+ * tree never shrinks, and pages never move to the left. Parent pointers are
+ * not maintained beyond the pages a split creates; the tree never follows them.
+ *
+ * @see BLinkLeafPage#BLinkLeafPage
+ * @see BLinkInternalPage#BLinkInternalPage
+ */
+public class BLinkTreeFile extends BTreeFile {
+
+	// the page createIfEmpty() writes, which becomes the root of an empty tree
+	private static final int FIRST_PAGE = 1;
+
+	/**
+	 * Constructs a B-link tree file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B-link tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BLinkTreeFile(File f, int key, TupleDesc td) {
+		super(f, key, td);
+	}
+
+	@Override
+	protected Page createPage(BTreePageId id, byte[] data) throws IOException {
+		if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BLinkInternalPage(id, data, keyField());
+		} else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BLinkLeafPage(id, data, keyField());
+		}
+		return super.createPage(id, data);
+	}
+
+	/**
+	 * Lock and fetch a page as BTreeFile does. A page fetched for writing is marked
+	 * dirty right away, since searches may read it before the operation returns it,
+	 * and the buffer pool must not drop it as clean in the meantime.
+	 */
+	@Override
+	Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		Page p = super.getPage(tid, dirtypages, pid, perm);
+		if(perm == Permissions.READ_WRITE) {
+			synchronized(p) {
+				p.markDirty(true, tid);
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Read a page without locking it
+	 */
+	private Page peek(TransactionId tid, Map<PageId, Page> dirtypages, PageId pid) throws DbException {
+		Page p = dirtypages.get(pid);
+		return p != null ? p : Database.getBufferPool().getPageUnlocked(tid, pid);
+	}
+
+	private BTreePageId getRootId(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) peek(tid, dirtypages, BTreeRootPtrPage.getId(getId()));
+		synchronized(rootPtr) {
+			return rootPtr.getRootId();
+		}
+	}
+
+	/**
+	 * Walk down from a page to the leaf level, reading every page without locking
+	 * it, and following right-links past pages that were split after the search
+	 * read their parent.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the operation has dirtied
+	 * @param pid - the page to start from
+	 * @param f - the field to search for, or null for the left-most leaf
+	 * @param path - if not null, gets the page passed on each level pushed onto it
+	 * @return the left-most leaf page possibly containing the key field f, or null
+	 * if the search met a page that is not part of the tree any more
+	 */
+	private BTreePageId descend(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Field f,
+								Deque<BTreePageId> path) throws DbException {
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BLinkInternalPage page = (BLinkInternalPage) peek(tid, dirtypages, pid);
+			synchronized(page) {
+				if(!page.isInitialized()) {
+					return null;
+				}
+				if(!page.covers(f)) {
+					pid = page.getRightLinkId();
+					continue;
+				}
+				if(path != null) {
+					path.push(pid);
+				}
+				pid = childFor(page, f);
+			}
+		}
+		return pid;
+	}
+
+	/**
+	 * Lock a leaf page, and the ones to its right until one may contain the key field f
+	 *
+	 * @return the leaf page, or null if the search met a page that is not part of the
+	 * tree any more
+	 */
+	private BLinkLeafPage moveRight(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Field f,
+									Permissions perm) throws DbException, TransactionAbortedException {
+		while(true) {
+			BLinkLeafPage leaf = (BLinkLeafPage) getPage(tid, dirtypages, pid, perm);
+			if(!leaf.isInitialized()) {
+				return null;
+			}
+			if(leaf.covers(f)) {
+				return leaf;
+			}
+			pid = leaf.getRightSiblingId();
+		}
+	}
+
+	/**
+	 * Finds and locks the left-most leaf page possibly containing the key field f,
+	 * without latching or locking any page above it.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the operation has dirtied
+	 * @param f - the field to search for, or null for the left-most leaf
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param path - if not null, gets the page passed on each level pushed onto it
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	private BLinkLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Field f,
+									   Permissions perm, Deque<BTreePageId> path)
+			throws DbException, TransactionAbortedException {
+		while(true) {
+			if(path != null) {
+				path.clear();
+			}
+			BTreePageId rootId = getRootId(tid, dirtypages);
+			if(rootId == null) {
+				if(perm == Permissions.READ_WRITE) {
+					rootId = createRoot(tid, dirtypages);
+				}
+				else {
+					// the tree is empty. Locking the page that will become its root orders
+					// the search with the insert that makes it the root
+					BLinkLeafPage leaf = (BLinkLeafPage) getPage(tid, dirtypages,
+							new BTreePageId(getId(), FIRST_PAGE, BTreePageId.LEAF), perm);
+					if(getRootId(tid, dirtypages) == null) {
+						return leaf;
+					}
+					continue;
+				}
+			}
+			BTreePageId leafId = descend(tid, dirtypages, rootId, f, path);
+			BLinkLeafPage leaf = leafId == null ? null : moveRight(tid, dirtypages, leafId, f, perm);
+			if(leaf != null) {
+				return leaf;
+			}
+		}
+	}
+
+	/**
+	 * Make the first page of the file the root of an empty tree
+	 * @return the id of the root
+	 */
+	private BTreePageId createRoot(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(getId()), Permissions.READ_WRITE);
+		BTreePageId rootId = rootPtr.getRootId();
+		if(rootId == null) {
+			// initialize the page before publishing it, since searches wait for its lock
+			rootId = new BTreePageId(getId(), FIRST_PAGE, BTreePageId.LEAF);
+			BLinkLeafPage root = (BLinkLeafPage) getPage(tid, dirtypages, rootId, Permissions.READ_WRITE);
+			root.setHighKey(null);
+			synchronized(rootPtr) {
+				rootPtr.setRootId(rootId);
+			}
+		}
+		return rootId;
+	}
+
+	@Override
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f) throws DbException, TransactionAbortedException {
+		try {
+			createIfEmpty();
+		} catch (IOException e) {
+			throw new DbException("can't create " + getFile() + ": " + e.getMessage());
+		}
+		return findLeafPage(tid, new HashMap<>(), f, Permissions.READ_ONLY, null);
+	}
+
+	/**
+	 * Insert a tuple into this BLinkTreeFile, keeping the tuples in sorted order.
+	 * If the leaf page is full, it is split, which may split pages further up the
+	 * tree.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	@Override
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		createIfEmpty();
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		Field key = t.getField(keyField());
+		Deque<BTreePageId> path = new ArrayDeque<>();
+
+		BLinkLeafPage leafPage = findLeafPage(tid, dirtypages, key, Permissions.READ_WRITE, path);
+		if(leafPage.getNumEmptySlots() == 0) {
+			BLinkLeafPage newPage = splitLeaf(tid, dirtypages, leafPage);
+			insertEntry(tid, dirtypages, path,
+					new BTreeEntry(leafPage.getHighKey(), leafPage.getId(), newPage.getId()));
+			if(!leafPage.covers(key)) {
+				leafPage = newPage;
+			}
+		}
+		leafPage.insertTuple(t);
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Split a full leaf page, moving the upper half of its tuples to a new page on
+	 * its right. The new page takes over the high key and right sibling of the page,
+	 * and the key of its first tuple becomes the high key of the page. The split
+	 * pages stay locked, so no one sees the split half done.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the operation has dirtied
+	 * @param page - the leaf page to split
+	 * @return the new page
+	 */
+	private BLinkLeafPage splitLeaf(TransactionId tid, Map<PageId, Page> dirtypages, BLinkLeafPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = page.getNumTuples() / 2; i > 0; i--) {
+			moving.add(it.next());
+		}
+		Field highKey = moving.get(moving.size() - 1).getField(keyField());
+
+		// lock everything that changes before changing anything
+		BLinkLeafPage rightSibling = null;
+		if(page.getRightSiblingId() != null) {
+			rightSibling = (BLinkLeafPage) getPage(tid, dirtypages, page.getRightSiblingId(),
+					Permissions.READ_WRITE);
+		}
+		BLinkLeafPage newPage = (BLinkLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+		newPage.setHighKey(page.getHighKey());
+		newPage.setParentId(page.getParentId());
+		newPage.setLeftSiblingId(page.getId());
+		newPage.setRightSiblingId(page.getRightSiblingId());
+		if(rightSibling != null) {
+			rightSibling.setLeftSiblingId(newPage.getId());
+		}
+		page.setRightSiblingId(newPage.getId());
+		page.setHighKey(highKey);
+		return newPage;
+	}
+
+	/**
+	 * Split a full internal page, moving the upper half of its entries to a new page
+	 * on its right, and taking out the entry in the middle to be pushed up. The new
+	 * page is filled in before the page links to it, and the page changes under its
+	 * monitor, so a search sees the split either not at all or complete.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the operation has dirtied
+	 * @param page - the internal page to split
+	 * @return the entry for the level above, with the page and the new page as its children
+	 */
+	private BTreeEntry splitInternal(TransactionId tid, Map<PageId, Page> dirtypages, BLinkInternalPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = page.getNumEntries() / 2; i > 0; i--) {
+			moving.add(it.next());
+		}
+		BTreeEntry up = it.next();
+
+		BLinkInternalPage newPage = (BLinkInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+		for(BTreeEntry e : moving) {
+			newPage.insertEntry(new BTreeEntry(e.getKey(), e.getLeftChild(), e.getRightChild()));
+		}
+		newPage.setHighKey(page.getHighKey());
+		newPage.setRightLinkId(page.getRightLinkId());
+		newPage.setParentId(page.getParentId());
+
+		synchronized(page) {
+			for(BTreeEntry e : moving) {
+				page.deleteKeyAndRightChild(e);
+			}
+			page.deleteKeyAndRightChild(up);
+			page.setHighKey(up.getKey());
+			page.setRightLinkId(newPage.getId());
+		}
+		return new BTreeEntry(up.getKey(), page.getId(), newPage.getId());
+	}
+
+	/**
+	 * Insert the entry for a split page into the level above, splitting pages further
+	 * up the tree as long as they are full. On each level only the page that changes
+	 * is locked.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the operation has dirtied
+	 * @param path - the pages the descent to the split leaf passed, bottom-most first
+	 * @param e - the entry to insert, whose left child is the split page
+	 */
+	private void insertEntry(TransactionId tid, Map<PageId, Page> dirtypages, Deque<BTreePageId> path,
+							 BTreeEntry e) throws DbException, IOException, TransactionAbortedException {
+		for(int level = 1; ; level++) {
+			BLinkInternalPage parent = lockParent(tid, dirtypages, path.poll(), e, level);
+			if(parent == null) {
+				growTree(tid, dirtypages, e);
+				return;
+			}
+			if(parent.getNumEmptySlots() > 0) {
+				synchronized(parent) {
+					parent.insertEntry(e);
+				}
+				return;
+			}
+			BTreeEntry up = splitInternal(tid, dirtypages, parent);
+			BLinkInternalPage target = parent.hasChild(e.getLeftChild()) ? parent
+					: (BLinkInternalPage) dirtypages.get(up.getRightChild());
+			synchronized(target) {
+				target.insertEntry(e);
+			}
+			e = up;
+		}
+	}
+
+	/**
+	 * Find and lock the page on the given level of the tree that holds the left child
+	 * of an entry. The search starts from the page the descent passed on that level,
+	 * and moves right from there; the child may have moved right by a split since.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the operation has dirtied
+	 * @param start - the page to start from, or null to find one from the root
+	 * @param e - the entry whose left child to look for
+	 * @param level - the level of the parent, counting the leaves as level 0
+	 * @return the parent, or null if the child is the root, in which case the root
+	 * pointer is locked
+	 */
+	private BLinkInternalPage lockParent(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId start,
+										 BTreeEntry e, int level) throws DbException, TransactionAbortedException {
+		BTreePageId child = e.getLeftChild();
+		BTreePageId pid = start;
+		while(true) {
+			if(pid == null) {
+				pid = findPageOnLevel(tid, dirtypages, e.getKey(), level);
+			}
+			if(pid == null) {
+				// the tree is not that high, unless another transaction is growing it
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+						BTreeRootPtrPage.getId(getId()), Permissions.READ_WRITE);
+				if(child.equals(rootPtr.getRootId())) {
+					return null;
+				}
+				continue;
+			}
+
+			BLinkInternalPage page = (BLinkInternalPage) peek(tid, dirtypages, pid);
+			boolean found;
+			synchronized(page) {
+				if(!page.isInitialized()) {
+					pid = null;
+					continue;
+				}
+				found = page.hasChild(child);
+				if(!found) {
+					pid = page.getRightLinkId();
+					if(pid == null) {
+						throw new DbException("page " + child + " is missing from level " + level);
+					}
+				}
+			}
+			if(found) {
+				// the page can't change once it is locked, but may have before
+				page = (BLinkInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+				if(page.isInitialized() && page.hasChild(child)) {
+					return page;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the page on the given level of the tree whose subtree may contain the
+	 * key field f, or null if the tree has fewer levels
+	 */
+	private BTreePageId findPageOnLevel(TransactionId tid, Map<PageId, Page> dirtypages, Field f, int level)
+			throws DbException {
+		while(true) {
+			Deque<BTreePageId> path = new ArrayDeque<>();
+			if(descend(tid, dirtypages, getRootId(tid, dirtypages), f, path) != null) {
+				// the path is bottom-most first, and starts on level 1
+				return path.size() < level ? null : new ArrayList<>(path).get(level - 1);
+			}
+		}
+	}
+
+	/**
+	 * Add a level to the tree: a new root with the entry for the split root. The root
+	 * pointer must be locked.
+	 */
+	private void growTree(TransactionId tid, Map<PageId, Page> dirtypages, BTreeEntry e)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(getId()), Permissions.READ_WRITE);
+		BLinkInternalPage root = (BLinkInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+		root.setHighKey(null);
+		root.insertEntry(e);
+		((BTreePage) dirtypages.get(e.getLeftChild())).setParentId(root.getId());
+		((BTreePage) dirtypages.get(e.getRightChild())).setParentId(root.getId());
+		synchronized(rootPtr) {
+			rootPtr.setRootId(root.getId());
+		}
+	}
+
+	/**
+	 * Delete a tuple from this BLinkTreeFile. Pages are never merged or rebalanced,
+	 * so only the leaf page of the tuple changes.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	@Override
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreePageId pageId = new BTreePageId(getId(), t.getRecordId().getPageId().getPageNumber(),
+				BTreePageId.LEAF);
+		BLinkLeafPage page = (BLinkLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		return new ArrayList<>(dirtypages.values());
+	}
+}
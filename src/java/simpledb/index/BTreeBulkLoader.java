@@ -0,0 +1,331 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Function;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.ExternalSorter;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.TupleComparator;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile bottom-up from a stream of tuples sorted
+ * on the key field, without inserting them one by one and without the buffer
+ * pool. Since it is told how many tuples are coming, it plans the number of
+ * pages on every level of the tree up front: the tuples are spread evenly over
+ * the leaves and each level evenly over the level above, so that pages are
+ * filled to about the fill factor and none is below the minimum occupancy that
+ * BTreeFile maintains. The leaves take page numbers 1 to n in key order and the
+ * internal pages follow level by level. Only the page being filled on each level
+ * is kept in memory, and every page is written once, through a single channel.
+ *
+ * @see ExternalSorter
+ * @see BTreeFileEncoder
+ */
+public class BTreeBulkLoader {
+
+	/** By default, pages are filled completely */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+	/** By default, a run of the sort holds as many tuples as fit on this many pages */
+	public static final int DEFAULT_RUN_PAGES = BufferPool.DEFAULT_PAGES;
+
+	private final File f;
+	private final TupleDesc td;
+	private final int keyField;
+	private final Type[] typeAr;
+	private double fillFactor = DEFAULT_FILL_FACTOR;
+
+	// the state of a load
+	private FileChannel channel;
+	private List<Level> levels;
+
+	/**
+	 * One level of the tree being built, and the page of it being filled
+	 */
+	private static class Level {
+		final long items;
+		final int pages;
+		final int firstPage;
+
+		int index = 0;
+		int size = 0;
+		int parent = 0;
+		final List<Tuple> tuples = new ArrayList<>();
+		final List<BTreeEntry> entries = new ArrayList<>();
+		BTreePageId lastChild;
+
+		Level(long items, int pages, int firstPage) {
+			this.items = items;
+			this.pages = pages;
+			this.firstPage = firstPage;
+		}
+
+		int pageNo() {
+			return firstPage + index;
+		}
+
+		/** the number of items the page being filled gets */
+		int quota() {
+			return (int) (items / pages) + (index < items % pages ? 1 : 0);
+		}
+
+		void next() {
+			index++;
+			size = 0;
+			tuples.clear();
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Create a loader that writes a B+ tree to file f, replacing what it contains.
+	 *
+	 * @param f - the file to write the tree to
+	 * @param td - the TupleDesc of the tuples in the tree
+	 * @param keyField - the index of the field the tree is keyed on
+	 */
+	public BTreeBulkLoader(File f, TupleDesc td, int keyField) {
+		this.f = f;
+		this.td = td;
+		this.keyField = keyField;
+		this.typeAr = new Type[td.numFields()];
+		for(int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+	}
+
+	/**
+	 * Set how full to make the pages of the tree. A lower fill factor leaves
+	 * room on every page for inserts that would otherwise split it.
+	 *
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 */
+	public void setFillFactor(double fillFactor) {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		this.fillFactor = fillFactor;
+	}
+
+	/**
+	 * @return the number of tuples a leaf page with the given TupleDesc holds
+	 */
+	public static int getMaxTuples(TupleDesc td) {
+		// extra bits are: left sibling pointer, right sibling pointer, parent pointer
+		int extraBits = 3 * BTreeLeafPage.INDEX_SIZE * 8;
+		return (BufferPool.getPageSize() * 8 - extraBits) / (td.getSize() * 8 + 1);
+	}
+
+	/**
+	 * @return the number of entries an internal page with the given key type holds
+	 */
+	public static int getMaxEntries(Type keyType) {
+		int bitsPerEntryIncludingHeader = (keyType.getLen() + BTreeInternalPage.INDEX_SIZE) * 8 + 1;
+		// extra bits are: one parent pointer, 1 byte for child page category,
+		// one extra child pointer, 1 bit for extra header
+		int extraBits = 2 * BTreeInternalPage.INDEX_SIZE * 8 + 8 + 1;
+		return (BufferPool.getPageSize() * 8 - extraBits) / bitsPerEntryIncludingHeader;
+	}
+
+	/**
+	 * The number of pages to spread items over so that each page holds about
+	 * target of them, and at least min and at most max
+	 */
+	private static int pagesFor(long items, int target, int max, int min) {
+		long pages = (items + target - 1) / target;
+		pages = Math.min(pages, Math.max(1, items / min));
+		pages = Math.max(pages, (items + max - 1) / max);
+		return (int) pages;
+	}
+
+	/**
+	 * Write the tree. With no tuples, the file is left empty, which BTreeFile
+	 * reads as an empty tree.
+	 *
+	 * @param tuples - the tuples of the tree, sorted on the key field
+	 * @param count - the number of tuples
+	 * @throws DbException if there are not count tuples, or they are not sorted
+	 */
+	public void load(Iterator<Tuple> tuples, long count) throws IOException, DbException {
+		int maxTuples = getMaxTuples(td);
+		int maxEntries = getMaxEntries(td.getFieldType(keyField));
+
+		levels = new ArrayList<>();
+		int leaves = pagesFor(count, Math.max(1, (int) (fillFactor * maxTuples)),
+				maxTuples, Math.max(1, maxTuples / 2));
+		levels.add(new Level(count, leaves, 1));
+		while(levels.get(levels.size() - 1).pages > 1) {
+			Level below = levels.get(levels.size() - 1);
+			// an internal page with m entries has m + 1 children
+			int pages = pagesFor(below.pages, (int) (fillFactor * maxEntries) + 1,
+					maxEntries + 1, maxEntries / 2 + 1);
+			levels.add(new Level(below.pages, pages, below.firstPage + below.pages));
+		}
+
+		channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			if(count == 0) {
+				return;
+			}
+			Level root = levels.get(levels.size() - 1);
+			int rootCategory = levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			write(0, BTreeFileEncoder.convertToRootPtrPage(root.firstPage, rootCategory, 0));
+
+			Field prev = null;
+			for(long n = 0; n < count; n++) {
+				if(!tuples.hasNext()) {
+					throw new DbException("expected " + count + " tuples, got " + n);
+				}
+				Tuple t = tuples.next();
+				Field key = t.getField(keyField);
+				if(prev != null && key.compare(Op.LESS_THAN, prev)) {
+					throw new DbException("tuples are not sorted on the key field");
+				}
+				prev = key;
+				addTuple(t);
+			}
+			if(tuples.hasNext()) {
+				throw new DbException("more than " + count + " tuples");
+			}
+		} finally {
+			channel.close();
+			channel = null;
+			levels = null;
+		}
+	}
+
+	private void addTuple(Tuple t) throws IOException {
+		Level leaves = levels.get(0);
+		if(leaves.size == 0) {
+			leaves.parent = levels.size() > 1 ? addChild(1, t.getField(keyField), leaves.pageNo()) : 0;
+		}
+		leaves.tuples.add(t);
+		leaves.size++;
+		if(leaves.size == leaves.quota()) {
+			byte[] data = BTreeFileEncoder.convertToLeafPage(leaves.tuples, BufferPool.getPageSize(),
+					typeAr.length, typeAr, keyField);
+			int pageNo = leaves.pageNo();
+			ByteBuffer.wrap(data)
+					.putInt(0, leaves.parent)
+					.putInt(BTreeLeafPage.INDEX_SIZE, leaves.index > 0 ? pageNo - 1 : 0)
+					.putInt(2 * BTreeLeafPage.INDEX_SIZE, leaves.index < leaves.pages - 1 ? pageNo + 1 : 0);
+			write(pageNo, data);
+			leaves.next();
+		}
+	}
+
+	/**
+	 * Add a child, whose smallest key is key, to the page being filled on the
+	 * given level, starting a new page first if need be.
+	 *
+	 * @return the page number of the child's parent
+	 */
+	private int addChild(int level, Field key, int childNo) throws IOException {
+		Level l = levels.get(level);
+		int pageNo = l.pageNo();
+		BTreePageId child = new BTreePageId(0, childNo, level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+		if(l.size == 0) {
+			l.parent = level + 1 < levels.size() ? addChild(level + 1, key, pageNo) : 0;
+		}
+		else {
+			l.entries.add(new BTreeEntry(key, l.lastChild, child));
+		}
+		l.lastChild = child;
+		l.size++;
+		if(l.size == l.quota()) {
+			byte[] data = BTreeFileEncoder.convertToInternalPage(l.entries, BufferPool.getPageSize(),
+					td.getFieldType(keyField), child.pgcateg());
+			ByteBuffer.wrap(data).putInt(0, l.parent);
+			write(pageNo, data);
+			l.next();
+		}
+		return pageNo;
+	}
+
+	private void write(int pageNo, byte[] data) throws IOException {
+		long offset = pageNo == 0 ? 0 :
+				BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while(buf.hasRemaining()) {
+			offset += channel.write(buf, offset);
+		}
+	}
+
+	/**
+	 * Build a B+ tree over the tuples of a heap file with the default fill factor
+	 * and memory budget.
+	 *
+	 * @see #createIndex(HeapFile, int, File, double, int)
+	 */
+	public static BTreeFile createIndex(HeapFile hf, int keyField, File f)
+			throws IOException, DbException, TransactionAbortedException {
+		return createIndex(hf, keyField, f, DEFAULT_FILL_FACTOR, DEFAULT_RUN_PAGES);
+	}
+
+	/**
+	 * Build a B+ tree over the tuples of a heap file. The heap file is scanned
+	 * once, in its own transaction, and sorted on the key field with runs of
+	 * runPages pages' worth of tuples, which are then merged into the loader.
+	 * The new BTreeFile is not added to the catalog.
+	 *
+	 * @param hf - the heap file to index
+	 * @param keyField - the index of the field to key the tree on
+	 * @param f - the file to write the tree to; what it contains is replaced
+	 * @param fillFactor - the fraction of each page to fill
+	 * @param runPages - the number of pages of tuples to sort in memory at once
+	 * @return the BTreeFile
+	 */
+	public static BTreeFile createIndex(HeapFile hf, int keyField, File f, double fillFactor, int runPages)
+			throws IOException, DbException, TransactionAbortedException {
+		TupleDesc td = hf.getTupleDesc();
+		load(hf, Function.identity(), td, keyField, f, fillFactor, runPages);
+		return new BTreeFile(f, keyField, td);
+	}
+
+	/**
+	 * Write a B+ tree of the tuples entry makes of the tuples of a heap file, as
+	 * createIndex does for the tuples themselves.
+	 *
+	 * @param hf - the heap file to index
+	 * @param entry - makes the tuple to store in the tree of a tuple of hf
+	 * @param td - the tuple descriptor of the tuples entry makes
+	 * @param keyField - the index of the field to key the tree on, in td
+	 * @param f - the file to write the tree to; what it contains is replaced
+	 * @param fillFactor - the fraction of each page to fill
+	 * @param runPages - the number of pages of tuples to sort in memory at once
+	 */
+	static void load(HeapFile hf, Function<Tuple, Tuple> entry, TupleDesc td, int keyField, File f,
+			double fillFactor, int runPages) throws IOException, DbException, TransactionAbortedException {
+		int runTuples = Math.max(1, runPages * (BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1)));
+		try(ExternalSorter sorter = new ExternalSorter(td, new TupleComparator(keyField, true), runTuples)) {
+			long count = 0;
+			TransactionId tid = new TransactionId();
+			try {
+				DbFileIterator it = hf.iterator(tid);
+				it.open();
+				while(it.hasNext()) {
+					sorter.add(entry.apply(it.next()));
+					count++;
+				}
+				it.close();
+			} finally {
+				Database.getBufferPool().transactionComplete(tid);
+			}
+
+			BTreeBulkLoader loader = new BTreeBulkLoader(f, td, keyField);
+			loader.setFillFactor(fillFactor);
+			loader.load(sorter.iterator(), count);
+		}
+	}
+}
@@ -19,6 +19,17 @@ import simpledb.transaction.TransactionId;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Concurrent operations on the tree use latch coupling ("crabbing") on top of the
+ * transaction locks. Internal pages and the root pointer are read under short-term
+ * latches instead of locks, so readers and writers only lock the leaves they use and
+ * the pages they change. A search holds the latch of a page until it has latched
+ * the child, and then lets go of the parent. An insert or delete first descends
+ * optimistically, with shared latches, expecting to change only its leaf; if the
+ * leaf has to split or merge, it descends again with exclusive latches, keeping
+ * them on every page from the last one that is safe from the change down. No
+ * operation waits for a lock while it holds latches: it gives them up, waits,
+ * and starts over.
  * 
  * @see BTreeLeafPage#BTreeLeafPage
  * @see BTreeInternalPage#BTreeInternalPage
@@ -32,6 +43,42 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final int[] keyFields;
+	private final PageLatches latches = new PageLatches();
+
+	/**
+	 * The pages an operation has dirtied, plus the latches it holds, from the root
+	 * down, and whether each is exclusive.
+	 */
+	private static class LatchedPages extends HashMap<PageId, Page> {
+		private static final long serialVersionUID = 1L;
+
+		final LinkedHashMap<PageId, Boolean> held = new LinkedHashMap<>();
+		// the page a delete is rebalancing, to go back to after a retry
+		BTreePage pending;
+	}
+
+	/**
+	 * Thrown to abandon an attempt that would have to wait for a lock while
+	 * holding latches. The operation releases its latches, waits for the lock and
+	 * tries again.
+	 */
+	private static class RetryAfterLock extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		final BTreePageId pid;
+		final Permissions perm;
+
+		RetryAfterLock(BTreePageId pid, Permissions perm) {
+			super(null, null, false, false);
+			this.pid = pid;
+			this.perm = perm;
+		}
+
+		void await(TransactionId tid) throws DbException, TransactionAbortedException {
+			Database.getBufferPool().getPage(tid, pid, perm);
+		}
+	}
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -42,9 +89,29 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] { key }, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on one or more fields, backed by the
+	 * specified file. With more than one, keys are CompositeFields of the fields
+	 * in the given order, and compare lexicographically; an IndexPredicate on a
+	 * CompositeField of the first few of them matches a range of keys.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, in order
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @see CompositeField
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		if(keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = td;
 	}
 
@@ -116,13 +183,7 @@ public class BTreeFile implements DbFile {
                             + BufferPool.getPageSize() + " bytes from BTreeFile");
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
+                return createPage(id, pageBuf);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -131,6 +192,36 @@ public class BTreeFile implements DbFile {
         // Ignore failures closing the file
     }
 
+	/**
+	 * Construct a leaf, internal or header page of this file from its bytes on disk
+	 * 
+	 * @param id - the id of the page
+	 * @param data - the raw data of the page
+	 */
+	protected Page createPage(BTreePageId id, byte[] data) throws IOException {
+		if (id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, data, keyFields);
+		} else if (id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, data, keyFields);
+		} else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, data);
+		}
+	}
+
+	/**
+	 * Construct a copy of a page of this file from its data, which may hold
+	 * changes that aren't on disk yet
+	 * 
+	 * @param page - the page to copy
+	 */
+	public Page copyPage(Page page) throws IOException {
+		BTreePageId id = (BTreePageId) page.getId();
+		if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return new BTreeRootPtrPage(id, page.getPageData());
+		}
+		return createPage(id, page.getPageData());
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -162,50 +253,127 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, the first
+	 * of them for a composite key
 	 */
 	public int keyField() {
 		return keyField;
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Returns the indexes of the fields that this B+ tree is keyed on, in order
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of the given tuple in this B+ tree: its key field, or a
+	 * CompositeField of its key fields
+	 */
+	public Field getKey(Tuple t) {
+		return BTreePage.getKey(t, keyFields);
+	}
+
+	/**
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, coupling latches on the way down from the
+	 * root pointer. Internal pages are read under latches without locking them, and
+	 * the leaf is locked with permission perm while its parent is still latched.
+	 * 
+	 * With shared latches, every latch is released by the time the leaf is returned.
+	 * With exclusive latches the descent is preparing to split the leaf, so it keeps
+	 * the latches from the last page with an empty slot down; if the leaf has an
+	 * empty slot itself, all latches are released.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
-	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param exclusive - whether to take exclusive latches
+	 * @return the left-most leaf page possibly containing the key field f, or null if
+	 * the tree has no root yet and the latches are shared
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                       Field f)
+	private BTreeLeafPage findLeafPage(TransactionId tid, LatchedPages dirtypages, Field f, Permissions perm,
+									   boolean exclusive)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		latch(dirtypages, rootPtrId, exclusive);
+		BTreePageId pid = ((BTreeRootPtrPage) peek(tid, dirtypages, rootPtrId)).getRootId();
+		if(pid == null) { // the root has just been created, so set the root pointer to point to it
+			if(!exclusive) {
+				return null;
+			}
+			pid = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			rootPtr.setRootId(pid);
+		}
+
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			latch(dirtypages, pid, exclusive);
+			BTreeInternalPage page = (BTreeInternalPage) peek(tid, dirtypages, pid);
+			if(!exclusive || page.getNumEmptySlots() > 0) {
+				unlatchAllBut(dirtypages, pid);
+			}
+			pid = childFor(page, f);
+		}
+
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		if(!exclusive || leaf.getNumEmptySlots() > 0) {
+			unlatchAll(dirtypages);
+		}
+		return leaf;
+	}
+
+	/**
+	 * Returns the child of an internal page whose subtree holds the left-most
+	 * entries with key field f, or the left-most child if f is null.
+	 */
+	static BTreePageId childFor(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || e.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+				return e.getLeftChild();
+			}
+		}
+		if(e == null) {
+			throw new IllegalStateException("internal page " + page.getId() + " has no entries");
+		}
+		return e.getRightChild();
 	}
 	
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * Convenience method to find and read-lock a leaf page when there is no
+	 * dirtypages HashMap. Used by the BTreeFile iterators.
+	 * @see #findLeafPage(TransactionId, LatchedPages, Field, Permissions, boolean)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		LatchedPages dirtypages = new LatchedPages();
+		try {
+			while(true) {
+				try {
+					return findLeafPage(tid, dirtypages, f, Permissions.READ_ONLY, false);
+				}
+				catch(RetryAfterLock r) {
+					unlatchAll(dirtypages);
+					r.await(tid);
+				}
+			}
+		}
+		finally {
+			unlatchAll(dirtypages);
+		}
 	}
 
 	/**
@@ -231,18 +399,55 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		// the upper half of the tuples moves to a new page on the right, and the
+		// first key on that page is copied up
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = page.getNumTuples() / 2; i > 0; i--) {
+			moving.add(it.next());
+		}
+		Field upKey = separator(getKey(it.next()), getKey(moving.get(moving.size() - 1)));
+
+		// make room in the parent (splitting it first may give the page a new
+		// parent) and lock everything that changes before changing anything
+		getParentWithEmptySlots(tid, dirtypages, page.getParentId(), upKey);
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(),
+				Permissions.READ_WRITE);
+		BTreeLeafPage rightSibling = null;
+		if(page.getRightSiblingId() != null) {
+			rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, page.getRightSiblingId(),
+					Permissions.READ_WRITE);
+		}
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		newPage.setLeftSiblingId(page.getId());
+		newPage.setRightSiblingId(page.getRightSiblingId());
+		if(rightSibling != null) {
+			rightSibling.setLeftSiblingId(newPage.getId());
+		}
+		page.setRightSiblingId(newPage.getId());
+
+		parent.insertEntry(new BTreeEntry(upKey, page.getId(), newPage.getId()));
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.LESS_THAN, upKey) ? page : newPage;
 	}
 	
+	/**
+	 * Returns the key of the entry that separates two leaves after a split, given
+	 * the largest key left on the left page and the smallest key moved to the right
+	 * one. Any key k with left &lt; k &lt;= right will do, unless the two are equal;
+	 * BTreeFile copies up right.
+	 */
+	protected Field separator(Field left, Field right) {
+		return right;
+	}
+
 	/**
 	 * Split an internal page to make room for new entries and recursively split its parent page
 	 * as needed to accommodate a new entry. The new entry for the parent should have a key matching 
@@ -268,16 +473,37 @@ public class BTreeFile implements DbFile {
 	public BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		// the upper half of the entries moves to a new page on the right, and the
+		// entry just below them is pushed up
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = page.getNumEntries() / 2; i > 0; i--) {
+			moving.add(it.next());
+		}
+		BTreeEntry up = it.next();
+
+		getParentWithEmptySlots(tid, dirtypages, page.getParentId(), up.getKey());
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(),
+				Permissions.READ_WRITE);
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+		// lock the children that get a new parent
+		getPage(tid, dirtypages, up.getRightChild(), Permissions.READ_WRITE);
+		for(BTreeEntry e : moving) {
+			getPage(tid, dirtypages, e.getRightChild(), Permissions.READ_WRITE);
+		}
+
+		for(BTreeEntry e : moving) {
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(up);
+		up.setLeftChild(page.getId());
+		up.setRightChild(newPage.getId());
+		parent.insertEntry(up);
+		newPage.setParentId(parent.getId());
+		updateParentPointers(tid, dirtypages, newPage);
+
+		return field.compare(Op.LESS_THAN, up.getKey()) ? page : newPage;
 	}
 	
 	/**
@@ -290,7 +516,7 @@ public class BTreeFile implements DbFile {
 	 * @param parentId - the id of the parent. May be an internal page or the RootPtr page
 	 * @param field - the key of the entry which will be inserted. Needed in case the parent must be split
 	 * to accommodate the new entry
-	 * @return the parent page, guaranteed to have at least one empty slot
+	 * @return the parent page, guaranteed to have room for an entry with key field field
 	 * @see #splitInternalPage(TransactionId, Map, BTreeInternalPage, Field)
 	 * 
 	 * @throws DbException
@@ -324,7 +550,7 @@ public class BTreeFile implements DbFile {
 		}
 
 		// split the parent if needed
-		if(parent.getNumEmptySlots() == 0) {
+		while(!parent.hasRoomFor(field)) {
 			parent = splitInternalPage(tid, dirtypages, parent, field);
 		}
 
@@ -345,7 +571,10 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child)
 			throws DbException, TransactionAbortedException {
 
-		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+		// a page's parent pointer only changes while its parent is latched, as pid is
+		// if the operation holds latches
+		BTreePage p = dirtypages instanceof LatchedPages ? (BTreePage) peek(tid, dirtypages, child)
+				: (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
 
 		if(!p.getParentId().equals(pid)) {
 			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
@@ -401,6 +630,9 @@ public class BTreeFile implements DbFile {
 	 */
 	Page getPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
 			throws DbException, TransactionAbortedException {
+		if(dirtypages instanceof LatchedPages && !((LatchedPages) dirtypages).held.isEmpty()) {
+			return getLatchedPage(tid, (LatchedPages) dirtypages, pid, perm);
+		}
 		if(dirtypages.containsKey(pid)) {
 			return dirtypages.get(pid);
 		}
@@ -413,6 +645,77 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * getPage() for an operation that holds latches, and so must not wait for a lock.
+	 * Internal pages are read under latches alone, and are written under an exclusive
+	 * latch as well as a lock. A lock that can't be granted right away ends the attempt.
+	 * 
+	 * @throws RetryAfterLock if the page is locked by another transaction
+	 */
+	private Page getLatchedPage(TransactionId tid, LatchedPages dirtypages, BTreePageId pid, Permissions perm)
+			throws DbException {
+		if(pid.pgcateg() == BTreePageId.INTERNAL) {
+			if(perm == Permissions.READ_ONLY) {
+				return peek(tid, dirtypages, pid);
+			}
+			latch(dirtypages, pid, true);
+		}
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().tryGetPage(tid, pid, perm);
+		if(p == null) {
+			throw new RetryAfterLock(pid, perm);
+		}
+		if(perm == Permissions.READ_WRITE) {
+			// other threads may read the page before the operation returns it as
+			// dirty, so the buffer pool must not drop it as clean in the meantime
+			synchronized(p) {
+				p.markDirty(true, tid);
+			}
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Read a page without locking it, for an operation that holds the latch of the
+	 * page or of its parent
+	 */
+	private Page peek(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid) throws DbException {
+		Page p = dirtypages.get(pid);
+		return p != null ? p : Database.getBufferPool().getPageUnlocked(tid, pid);
+	}
+
+	private void latch(LatchedPages dirtypages, PageId pid, boolean exclusive) {
+		if(!dirtypages.held.containsKey(pid)) {
+			latches.latch(pid, exclusive);
+			dirtypages.held.put(pid, exclusive);
+		}
+	}
+
+	/**
+	 * Release the latches taken before the given one
+	 */
+	private void unlatchAllBut(LatchedPages dirtypages, PageId pid) {
+		Iterator<Map.Entry<PageId, Boolean>> it = dirtypages.held.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<PageId, Boolean> e = it.next();
+			if(e.getKey().equals(pid)) {
+				break;
+			}
+			latches.unlatch(e.getKey(), e.getValue());
+			it.remove();
+		}
+	}
+
+	private void unlatchAll(LatchedPages dirtypages) {
+		for(Map.Entry<PageId, Boolean> e : dirtypages.held.entrySet()) {
+			latches.unlatch(e.getKey(), e.getValue());
+		}
+		dirtypages.held.clear();
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -425,29 +728,41 @@ public class BTreeFile implements DbFile {
 	 */
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		Map<PageId, Page> dirtypages = new HashMap<>();
-
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		createIfEmpty();
+		LatchedPages dirtypages = new LatchedPages();
+		Field key = getKey(t);
+
+		// find and lock the left-most leaf page corresponding to the key field. Most
+		// leaves have room, so try with shared latches first, and if the leaf page has
+		// to be split, search again with exclusive ones
+		boolean exclusive = false;
+		try {
+			while(true) {
+				try {
+					BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, key, Permissions.READ_WRITE, exclusive);
+					if(leafPage == null || (leafPage.getNumEmptySlots() == 0 && !exclusive)) {
+						unlatchAll(dirtypages);
+						exclusive = true;
+						continue;
+					}
+					if(leafPage.getNumEmptySlots() == 0) {
+						leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+						unlatchAll(dirtypages);
+					}
+
+					// insert the tuple into the leaf page, which the lock protects
+					leafPage.insertTuple(t);
+					return new ArrayList<>(dirtypages.values());
+				}
+				catch(RetryAfterLock r) {
+					unlatchAll(dirtypages);
+					r.await(tid);
+				}
+			}
 		}
-
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+		finally {
+			unlatchAll(dirtypages);
 		}
-
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
-        return new ArrayList<>(dirtypages.values());
 	}
 	
 	/**
@@ -467,6 +782,9 @@ public class BTreeFile implements DbFile {
 	 */
 	private void handleMinOccupancyPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePage page)
 			throws DbException, IOException, TransactionAbortedException {
+		if(dirtypages instanceof LatchedPages) {
+			((LatchedPages) dirtypages).pending = page;
+		}
 		BTreePageId parentId = page.getParentId();
 		BTreeEntry leftEntry = null;
 		BTreeEntry rightEntry = null;
@@ -564,11 +882,20 @@ public class BTreeFile implements DbFile {
 	 */
 	public void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		int total = page.getNumTuples() + sibling.getNumTuples();
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		for(int i = sibling.getNumTuples() - total / 2; i > 0; i--) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(getKey(right.iterator().next()));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -643,11 +970,28 @@ public class BTreeFile implements DbFile {
 	public void stealFromLeftInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		for(int i = (leftSibling.getNumEntries() - page.getNumEntries()) / 2; i > 0; i--) {
+			moving.add(it.next());
+		}
+
+		// lock the children that get a new parent
+		for(BTreeEntry e : moving) {
+			getPage(tid, dirtypages, e.getRightChild(), Permissions.READ_WRITE);
+		}
+
+		// each key rotates through the parent: the parent's key comes down
+		// to the page and the sibling's last key goes up
+		BTreePageId child = page.iterator().next().getLeftChild();
+		for(BTreeEntry e : moving) {
+			leftSibling.deleteKeyAndRightChild(e);
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), e.getRightChild(), child));
+			child = e.getRightChild();
+			parentEntry.setKey(e.getKey());
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -670,11 +1014,25 @@ public class BTreeFile implements DbFile {
 	public void stealFromRightInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		for(int i = (rightSibling.getNumEntries() - page.getNumEntries()) / 2; i > 0; i--) {
+			moving.add(it.next());
+		}
+
+		for(BTreeEntry e : moving) {
+			getPage(tid, dirtypages, e.getLeftChild(), Permissions.READ_WRITE);
+		}
+
+		BTreePageId child = page.reverseIterator().next().getRightChild();
+		for(BTreeEntry e : moving) {
+			rightSibling.deleteKeyAndLeftChild(e);
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), child, e.getLeftChild()));
+			child = e.getLeftChild();
+			parentEntry.setKey(e.getKey());
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -698,13 +1056,29 @@ public class BTreeFile implements DbFile {
 	public void mergeLeafPages(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
+		lockRootPtrIfEmptied(tid, dirtypages, parent);
+		BTreeLeafPage nextPage = null;
+		if(rightPage.getRightSiblingId() != null) {
+			nextPage = (BTreeLeafPage) getPage(tid, dirtypages, rightPage.getRightSiblingId(),
+					Permissions.READ_WRITE);
+		}
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		leftPage.setRightSiblingId(rightPage.getRightSiblingId());
+		if(nextPage != null) {
+			nextPage.setLeftSiblingId(leftPage.getId());
+		}
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -730,16 +1104,42 @@ public class BTreeFile implements DbFile {
 	public void mergeInternalPages(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
-		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		// lock the children that get a new parent
+		for(BTreeEntry e : moving) {
+			getPage(tid, dirtypages, e.getLeftChild(), Permissions.READ_WRITE);
+		}
+		getPage(tid, dirtypages, moving.get(moving.size() - 1).getRightChild(), Permissions.READ_WRITE);
+		lockRootPtrIfEmptied(tid, dirtypages, parent);
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+
+		// the parent's key comes down between the two halves
+		BTreePageId child = leftPage.reverseIterator().next().getRightChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), child, moving.get(0).getLeftChild()));
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
+	/**
+	 * Lock the root pointer page for writing if merging two children of the parent will
+	 * leave it empty, so that the root can be replaced without waiting halfway through
+	 * the merge.
+	 */
+	private void lockRootPtrIfEmptied(TransactionId tid, Map<PageId, Page> dirtypages, BTreeInternalPage parent)
+			throws DbException, TransactionAbortedException {
+		if(parent.getNumEntries() == 1 && parent.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+			getPage(tid, dirtypages, parent.getParentId(), Permissions.READ_WRITE);
+		}
+	}
+
 	/**
 	 * Method to encapsulate the process of deleting an entry (specifically the key and right child) 
 	 * from a parent node.  If the parent becomes empty (no keys remaining), that indicates that it 
@@ -800,23 +1200,100 @@ public class BTreeFile implements DbFile {
 	 */
 	public List<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		Map<PageId, Page> dirtypages = new HashMap<>();
+		LatchedPages dirtypages = new LatchedPages();
 
+		// the lock on the leaf protects it, and keeps its parent from changing
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
+		// or merge with one of the siblings, under exclusive latches on the path to it
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			dirtypages.pending = page;
+			try {
+				while(dirtypages.pending != null) {
+					try {
+						// after a retry, go on from the page that was being rebalanced
+						BTreePage pending = dirtypages.pending;
+						latchPath(tid, dirtypages, pending);
+						if(pending.getNumEmptySlots() > minOccupancyEmptySlots(pending)) {
+							handleMinOccupancyPage(tid, dirtypages, pending);
+						}
+						dirtypages.pending = null;
+					}
+					catch(RetryAfterLock r) {
+						unlatchAll(dirtypages);
+						r.await(tid);
+					}
+				}
+			}
+			finally {
+				unlatchAll(dirtypages);
+			}
 		}
 
         return new ArrayList<>(dirtypages.values());
 	}
 
+	/**
+	 * Returns the most empty slots a non-root page can have before it is below
+	 * minimum occupancy
+	 */
+	private static int minOccupancyEmptySlots(BTreePage page) {
+		int max = page instanceof BTreeLeafPage ? ((BTreeLeafPage) page).getMaxTuples()
+				: ((BTreeInternalPage) page).getMaxEntries();
+		return max - max/2; // ceiling
+	}
+
+	/**
+	 * Exclusively latch the pages on the path from the root pointer down to the parent
+	 * of a page that is about to be rebalanced, keeping only those from the last page
+	 * that can lose an entry without going below minimum occupancy. The page must be
+	 * locked by tid, so that its parent can't change.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the page to be rebalanced
+	 */
+	private void latchPath(TransactionId tid, LatchedPages dirtypages, BTreePage page) throws DbException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		while(true) {
+			// find the path bottom-up without latches, then latch it top-down and check
+			// that every page is still the parent of the next one
+			LinkedList<BTreePageId> path = new LinkedList<>();
+			for(BTreePageId pid = page.getParentId(); pid.pgcateg() != BTreePageId.ROOT_PTR;
+					pid = ((BTreePage) peek(tid, dirtypages, pid)).getParentId()) {
+				path.addFirst(pid);
+			}
+
+			latch(dirtypages, rootPtrId, true);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) peek(tid, dirtypages, rootPtrId);
+			boolean valid = path.isEmpty() || path.getFirst().equals(rootPtr.getRootId());
+			BTreePageId parentId = rootPtrId;
+			for(BTreePageId pid : path) {
+				if(!valid) {
+					break;
+				}
+				latch(dirtypages, pid, true);
+				BTreeInternalPage p = (BTreeInternalPage) peek(tid, dirtypages, pid);
+				valid = p.getParentId().equals(parentId);
+				boolean safe = parentId.equals(rootPtrId) ? p.getNumEntries() > 1
+						: p.getNumEmptySlots() < minOccupancyEmptySlots(p);
+				if(valid && safe) {
+					unlatchAllBut(dirtypages, pid);
+				}
+				parentId = pid;
+			}
+			if(valid && page.getParentId().equals(parentId)) {
+				return;
+			}
+			unlatchAll(dirtypages);
+		}
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -829,6 +1306,16 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		createIfEmpty();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and root page if the file is empty
+	 */
+	void createIfEmpty() throws IOException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
@@ -841,9 +1328,6 @@ public class BTreeFile implements DbFile {
 				bw.close();
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
@@ -922,7 +1406,7 @@ public class BTreeFile implements DbFile {
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
-	private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgcateg)
+	Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgcateg)
 			throws DbException, IOException, TransactionAbortedException {
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
@@ -1080,11 +1564,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		// a tree with no root yet has no leaf pages, and so no tuples
+		curp = f.findLeafPage(tid, null);
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -1165,17 +1647,14 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			curp = f.findLeafPage(tid, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curp = f.findLeafPage(tid, null);
 		}
-		it = curp.iterator();
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -1191,7 +1670,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				if (f.getKey(t).compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1200,7 +1679,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						f.getKey(t).compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
@@ -1,11 +1,17 @@
 package simpledb.index;
 
+import java.io.DataInputStream;
+import java.text.ParseException;
+
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.CompositeField;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
@@ -26,10 +32,11 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
-	protected final Byte oldDataLock= (byte) 0;
+	protected final Object oldDataLock = new Object();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -55,11 +62,66 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) {
+		this(id, new int[] { key });
+	}
+
+	/**
+	 * Create a page of a B+ tree keyed on one or more fields. With more than one,
+	 * keys are CompositeFields of those fields, in order.
+	 *
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on
+	 */
+	public BTreePage(BTreePageId id, int[] keys) {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * Returns the key of a tuple for an index on the given fields: the field
+	 * itself for one, a CompositeField of them for more.
+	 */
+	static Field getKey(Tuple t, int[] keyFields) {
+		if(keyFields.length == 1) {
+			return t.getField(keyFields[0]);
+		}
+		return new CompositeField(t, keyFields);
+	}
+
+	/**
+	 * Returns the key of the given tuple in this index.
+	 */
+	public Field getKey(Tuple t) {
+		return getKey(t, keyFields);
+	}
+
+	/**
+	 * Returns the number of bytes a key takes on disk.
+	 */
+	protected int getKeySize() {
+		int size = 0;
+		for(int k : keyFields) {
+			size += td.getFieldType(k).getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * Reads a key, as Field.serialize() writes it.
+	 */
+	protected Field parseKey(DataInputStream dis) throws ParseException {
+		if(keyFields.length == 1) {
+			return td.getFieldType(keyField).parse(dis);
+		}
+		Field[] fields = new Field[keyFields.length];
+		for(int i = 0; i < fields.length; i++) {
+			fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+		}
+		return new CompositeField(fields);
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
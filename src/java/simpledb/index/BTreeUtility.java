@@ -475,6 +475,25 @@ public class BTreeUtility {
         return openBTreeFile(cols, f, keyField);
 	}
 
+	/**
+	 * A utility method to create a new BLinkTreeFile with no data, assuming the
+	 * path does not already exist. If the path exists, the file will be overwritten.
+	 * The new table will be added to the Catalog with the specified number of
+	 * columns as IntFields indexed on the keyField.
+	 */
+	public static BLinkTreeFile createEmptyBLinkTreeFile(String path, int cols, int keyField)
+			throws IOException {
+		File f = new File(path);
+		// touch the file
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(new byte[0]);
+		fos.close();
+
+		BLinkTreeFile bf = new BLinkTreeFile(f, keyField, Utility.getTupleDesc(cols));
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
 	/**
 	 * Helper class that attempts to insert a tuple in a new thread
 	 *
@@ -483,10 +502,10 @@ public class BTreeUtility {
 	 */
 	public static class BTreeWriter extends Thread {
 
-		final TransactionId tid;
-		final BTreeFile bf;
-		final int item;
-		final int count;
+		protected final TransactionId tid;
+		protected final BTreeFile bf;
+		protected final int item;
+		protected final int count;
 		boolean success;
 		Exception error;
 		final Object slock;
@@ -565,12 +584,12 @@ public class BTreeUtility {
 	 * @return a handle to the Thread that will attempt to search for tuple(s) after it
 	 *   has been started
 	 */
-	static class BTreeReader extends Thread {
+	public static class BTreeReader extends Thread {
 
-		final TransactionId tid;
-		final BTreeFile bf;
-		final Field f;
-		final int count;
+		protected final TransactionId tid;
+		protected final BTreeFile bf;
+		protected final Field f;
+		protected final int count;
 		boolean found;
 		Exception error;
 		final Object slock;
@@ -0,0 +1,90 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * CompressedBTreeFile is a variant of BTreeFile with compressed keys in its
+ * internal pages, for a higher fanout and a lower tree. When a leaf splits, the
+ * entry copied up to the parent gets the shortest key that separates the two
+ * leaves (suffix truncation): for string keys, the shortest prefix of the first
+ * key on the right leaf that is greater than the last key on the left one. The
+ * internal pages (see CompressedInternalPage) store those keys with variable
+ * length, and the prefix that all the keys on a page share only once.
+ * <p>
+ * An internal page splits when the key of a new entry doesn't fit, rather than
+ * when it has a fixed number of entries. Replacing a key on a full page might
+ * not fit either, so deletes don't rebalance the tree, as in BLinkTreeFile:
+ * they only remove the tuple from its leaf, and pages never merge.
+ *
+ * @see CompressedInternalPage#CompressedInternalPage
+ */
+public class CompressedBTreeFile extends BTreeFile {
+
+	/**
+	 * Constructs a B+ tree file with compressed internal pages, backed by the
+	 * specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public CompressedBTreeFile(File f, int key, TupleDesc td) {
+		super(f, key, td);
+	}
+
+	@Override
+	protected Page createPage(BTreePageId id, byte[] data) throws IOException {
+		if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new CompressedInternalPage(id, data, keyField());
+		}
+		return super.createPage(id, data);
+	}
+
+	/**
+	 * Returns the shortest prefix of right that is greater than left, for string
+	 * keys, and right otherwise.
+	 */
+	@Override
+	protected Field separator(Field left, Field right) {
+		if(right.getType() != Type.STRING_TYPE || left.equals(right)) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int i = 0;
+		while(i < l.length() && i < r.length() && l.charAt(i) == r.charAt(i)) {
+			i++;
+		}
+		if(i == r.length()) {
+			return right;
+		}
+		return new StringField(r.substring(0, i + 1), Type.STRING_LEN);
+	}
+
+	/**
+	 * Delete a tuple from its leaf page, without rebalancing the tree.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return the leaf page the tuple was deleted from
+	 */
+	@Override
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreePageId pageId = new BTreePageId(getId(), t.getRecordId().getPageId().getPageNumber(),
+				BTreePageId.LEAF);
+		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		return new ArrayList<>(dirtypages.values());
+	}
+}
@@ -0,0 +1,325 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
+
+/**
+ * CompressedInternalPage is an internal page of a CompressedBTreeFile. It holds
+ * the same entries as a BTreeInternalPage, but stores its keys with variable
+ * length and prefix compression: the bytes that all the keys on the page start
+ * with are stored once, and each key only with the rest of its bytes. Together
+ * with the short separators CompressedBTreeFile makes for leaf splits, this fits
+ * many more entries on a page than fixed-width slots, especially for strings,
+ * which otherwise take Type.STRING_LEN bytes each however short they are.
+ * <p>
+ * Since the number of entries that fit depends on the keys, the page counts its
+ * capacity in entries of the largest possible size: getMaxEntries() is the
+ * number of those that fit on an empty page, and getNumEmptySlots() the number
+ * that still fit, whatever their keys. A page can hold many more entries than
+ * that; hasRoomFor() tells whether one more with a given key fits.
+ *
+ * @see CompressedBTreeFile
+ */
+public class CompressedInternalPage extends BTreeInternalPage {
+
+	// parent pointer, child category, number of entries, prefix length, first child pointer
+	private static final int HEADER_SIZE = 2 * INDEX_SIZE + 1 + 2 + 2;
+	// the length of the rest of a key
+	private static final int LENGTH_SIZE = 2;
+
+	// the total length of the keys, the smallest and largest key, and the prefix
+	// they share, kept up to date as entries come and go so that sizing the page
+	// doesn't encode every key
+	private int keyBytes = 0;
+	private Field first = null;
+	private Field last = null;
+	private int prefix = 0;
+
+	/**
+	 * Create a CompressedInternalPage from a set of bytes of data read from disk.
+	 * The format is the parent pointer, the child page category, the number of
+	 * entries, the length of the common prefix of the keys followed by the prefix,
+	 * and the first child pointer; then for each entry, the length of the rest of
+	 * its key, the rest of the key, and its right child pointer. The remainder of
+	 * the page is padded with zeroes, so an empty page is all zeroes.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param key - the field which the index is keyed on
+	 */
+	public CompressedInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
+		super(id, key, (BufferPool.getPageSize() - HEADER_SIZE) / (LENGTH_SIZE + INDEX_SIZE) + 1);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		parent = dis.readInt();
+		childCategory = dis.readByte();
+		int numEntries = dis.readUnsignedShort();
+		byte[] prefix = new byte[dis.readUnsignedShort()];
+		dis.readFully(prefix);
+		if(numEntries > 0) {
+			setEntry(0, null, dis.readInt());
+			for(int i = 1; i <= numEntries; i++) {
+				byte[] k = Arrays.copyOf(prefix, prefix.length + dis.readUnsignedShort());
+				dis.readFully(k, prefix.length, k.length - prefix.length);
+				setEntry(i, toField(k), dis.readInt());
+			}
+		}
+		dis.close();
+
+		for(int i = 1; i <= numEntries; i++) {
+			keyBytes += keyLength(getKey(i));
+		}
+		updateEnds();
+		setBeforeImage();
+	}
+
+	/**
+	 * Retrieve the number of entries with the longest possible keys that fit on
+	 * an empty page.
+	 */
+	@Override
+	public int getMaxEntries() {
+		return (BufferPool.getPageSize() - HEADER_SIZE) / getMaxEntrySize();
+	}
+
+	private int getMaxEntrySize() {
+		return LENGTH_SIZE + getMaxKeySize() + INDEX_SIZE;
+	}
+
+	private int getMaxKeySize() {
+		return td.getFieldType(keyField) == Type.STRING_TYPE ? Type.STRING_LEN : Type.INT_TYPE.getLen();
+	}
+
+	/**
+	 * Returns the number of entries that still fit on this page, whatever their keys.
+	 */
+	@Override
+	public int getNumEmptySlots() {
+		// adding a key may shorten the common prefix, so count the keys in full
+		int numEntries = getNumEntries();
+		int used = HEADER_SIZE + numEntries * (LENGTH_SIZE + INDEX_SIZE) + keyBytes;
+		int free = (BufferPool.getPageSize() - used) / getMaxEntrySize();
+		return Math.max(0, Math.min(free, numSlots - 1 - numEntries));
+	}
+
+	/**
+	 * Returns true if an entry with the given key fits on this page.
+	 */
+	@Override
+	public boolean hasRoomFor(Field key) {
+		int numEntries = getNumEntries();
+		if(numEntries >= numSlots - 1) {
+			return false;
+		}
+		int p = numEntries == 0 ? keyLength(key) : Math.min(prefix, commonPrefix(first, key));
+		return getDataSize(numEntries + 1, keyBytes + keyLength(key), p) <= BufferPool.getPageSize();
+	}
+
+	/**
+	 * Returns the number of bytes getPageData() needs for the given number of
+	 * entries, whose keys have the given total length and common prefix.
+	 */
+	private static int getDataSize(int numEntries, int keyBytes, int prefix) {
+		if(numEntries == 0) {
+			return HEADER_SIZE;
+		}
+		return HEADER_SIZE + prefix + numEntries * (LENGTH_SIZE - prefix + INDEX_SIZE) + keyBytes;
+	}
+
+	/**
+	 * Finds the smallest and largest keys again, and the prefix they share. The
+	 * keys are sorted, so all the keys between them share it too.
+	 */
+	private void updateEnds() {
+		first = null;
+		last = null;
+		for(int i = 1; i < numSlots; i++) {
+			if(isSlotUsed(i)) {
+				if(first == null) {
+					first = getKey(i);
+				}
+				last = getKey(i);
+			}
+		}
+		prefix = first == null ? 0 : commonPrefix(first, last);
+	}
+
+	/**
+	 * The length of the bytes both keys start with. Strings are compared by their
+	 * characters, which toBytes() encodes one byte each, so that keys which only
+	 * encode alike don't lengthen the prefix of the keys between them.
+	 */
+	private static int commonPrefix(Field a, Field b) {
+		if(a instanceof StringField) {
+			String x = ((StringField) a).getValue();
+			String y = ((StringField) b).getValue();
+			int i = 0;
+			while(i < x.length() && i < y.length() && x.charAt(i) == y.charAt(i)) {
+				i++;
+			}
+			return i;
+		}
+		byte[] x = toBytes(a);
+		byte[] y = toBytes(b);
+		int i = 0;
+		while(i < x.length && y[i] == x[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * The length of toBytes(f)
+	 */
+	private static int keyLength(Field f) {
+		if(f instanceof StringField) {
+			return ((StringField) f).getValue().length();
+		}
+		return Type.INT_TYPE.getLen();
+	}
+
+	/**
+	 * The key an entry of this page holds in its slot, or null if it has none
+	 */
+	private Field storedKey(BTreeEntry e) {
+		RecordId rid = e.getRecordId();
+		if(rid == null || rid.getTupleNumber() <= 0 || rid.getTupleNumber() >= numSlots) {
+			return null;
+		}
+		return getKey(rid.getTupleNumber());
+	}
+
+	/**
+	 * The bytes of a key, as StringField.serialize() writes the characters of a string
+	 */
+	private static byte[] toBytes(Field f) {
+		if(f instanceof StringField) {
+			return ((StringField) f).getValue().getBytes(StandardCharsets.ISO_8859_1);
+		}
+		return ByteBuffer.allocate(Type.INT_TYPE.getLen()).putInt(((IntField) f).getValue()).array();
+	}
+
+	private Field toField(byte[] k) {
+		if(td.getFieldType(keyField) == Type.STRING_TYPE) {
+			return new StringField(new String(k, StandardCharsets.ISO_8859_1), Type.STRING_LEN);
+		}
+		return new IntField(ByteBuffer.wrap(k).getInt());
+	}
+
+	/**
+	 * Adds the specified entry to the page, as BTreeInternalPage does.
+	 * @throws DbException if the entry doesn't fit, or BTreeInternalPage rejects it
+	 */
+	@Override
+	public void insertEntry(BTreeEntry e) throws DbException {
+		if(!hasRoomFor(e.getKey())) {
+			throw new DbException("called insertEntry on page with no room for key " + e.getKey());
+		}
+		super.insertEntry(e);
+		keyBytes += keyLength(e.getKey());
+		if(first == null || e.getKey().compare(Op.LESS_THAN, first)
+				|| e.getKey().compare(Op.GREATER_THAN, last)) {
+			updateEnds();
+		}
+	}
+
+	@Override
+	public void deleteKeyAndRightChild(BTreeEntry e) throws DbException {
+		Field key = storedKey(e);
+		super.deleteKeyAndRightChild(e);
+		removed(key);
+	}
+
+	@Override
+	public void deleteKeyAndLeftChild(BTreeEntry e) throws DbException {
+		Field key = storedKey(e);
+		super.deleteKeyAndLeftChild(e);
+		removed(key);
+	}
+
+	private void removed(Field key) {
+		keyBytes -= keyLength(key);
+		if(key.equals(first) || key.equals(last)) {
+			updateEnds();
+		}
+	}
+
+	@Override
+	public void updateEntry(BTreeEntry e) throws DbException {
+		Field key = storedKey(e);
+		super.updateEntry(e);
+		keyBytes += keyLength(e.getKey()) - keyLength(key);
+		updateEnds();
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	@Override
+	public CompressedInternalPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new CompressedInternalPage(pid, oldDataRef, keyField);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 *
+	 * @see #CompressedInternalPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	@Override
+	public byte[] getPageData() {
+		List<BTreeEntry> entries = new ArrayList<>();
+		Iterator<BTreeEntry> it = iterator();
+		while(it.hasNext()) {
+			entries.add(it.next());
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(parent);
+			dos.writeByte((byte) childCategory);
+			dos.writeShort(entries.size());
+			dos.writeShort(prefix);
+			if(!entries.isEmpty()) {
+				dos.write(toBytes(first), 0, prefix);
+				dos.writeInt(entries.get(0).getLeftChild().getPageNumber());
+			}
+			for(int i = 0; i < entries.size(); i++) {
+				byte[] k = toBytes(entries.get(i).getKey());
+				dos.writeShort(k.length - prefix);
+				dos.write(k, prefix, k.length - prefix);
+				dos.writeInt(entries.get(i).getRightChild().getPageNumber());
+			}
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		byte[] data = baos.toByteArray();
+		if(data.length > BufferPool.getPageSize()) {
+			throw new IllegalStateException("internal page " + pid + " overflowed");
+		}
+		return Arrays.copyOf(data, BufferPool.getPageSize());
+	}
+}
@@ -0,0 +1,134 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan is an operator which reads the key and included fields of the
+ * tuples of a table from a secondary index, in key order, without reading the
+ * table itself.
+ */
+public class IndexOnlyScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private final String alias;
+	private final TupleDesc myTd;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates an index-only scan of a table as a part of the specified
+	 * transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the secondary index to scan.
+	 * @param tableAlias
+	 *            the alias of the table; the returned tupleDesc has fields
+	 *            named tableAlias.fieldName, for the key field and then the
+	 *            included fields of the index
+	 * @param ipred
+	 *            The index predicate to match, on the key field. If null, the
+	 *            scan will return all tuples in key order
+	 */
+	public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		int[] fields = index.getFields();
+		Type[] types = new Type[fields.length];
+		String[] names = new String[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			types[i] = td.getFieldType(fields[i]);
+			names[i] = tableAlias + "." + td.getFieldName(fields[i]);
+		}
+		myTd = new TupleDesc(types, names);
+	}
+
+	/**
+	 * @return the actual name of the table the operator scans in the catalog
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return Return the alias of the table this operator scans.
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	/**
+	 * @return the index this operator scans
+	 */
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		BTreeFile f = index.getFile();
+		it = ipred == null ? f.iterator(tid) : f.indexIterator(tid, ipred);
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the key and included fields, with names prefixed
+	 * with the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		// leave out the RecordId of the entry
+		Tuple entry = it.next();
+		Tuple t = new Tuple(myTd);
+		for (int i = 0; i < myTd.numFields(); i++) {
+			t.setField(i, entry.getField(i));
+		}
+		return t;
+	}
+
+	public void close() {
+		if (it != null)
+			it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+		close();
+		open();
+	}
+}
@@ -0,0 +1,67 @@
+package simpledb.index;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import simpledb.storage.PageId;
+
+/**
+ * PageLatches holds a short-term read/write latch for every page of a B+ tree.
+ * A latch keeps a page physically consistent while one thread changes it and
+ * others read it. Unlike a transaction lock it is held only for the duration
+ * of a single operation on the tree, and never while waiting for a lock.
+ * <p>
+ * Latches are always taken from the root pointer down, so two threads can
+ * only wait for each other's latches if one of them holds the latch of a
+ * common ancestor; that one never waits for the other.
+ * <p>
+ * A page has a latch only while some thread holds or waits for it, so the
+ * latches don't grow with the pages the tree ever touched.
+ */
+class PageLatches {
+
+	/**
+	 * A latch, and the number of threads that hold or wait for it
+	 */
+	private static class Latch extends ReentrantReadWriteLock {
+		private static final long serialVersionUID = 1L;
+		int users = 0;
+	}
+
+	private final Map<PageId, Latch> latches = new ConcurrentHashMap<>();
+
+	/**
+	 * Latch the page, blocking until the latch is free
+	 * @param exclusive - true to latch the page for writing, false for reading
+	 */
+	void latch(PageId pid, boolean exclusive) {
+		Latch l = latches.compute(pid, (k, v) -> {
+			Latch res = v == null ? new Latch() : v;
+			res.users++;
+			return res;
+		});
+		if(exclusive) {
+			l.writeLock().lock();
+		}
+		else {
+			l.readLock().lock();
+		}
+	}
+
+	/**
+	 * Release a latch the calling thread took with {@link #latch}
+	 */
+	void unlatch(PageId pid, boolean exclusive) {
+		Latch l = latches.get(pid);
+		if(exclusive) {
+			l.writeLock().unlock();
+		}
+		else {
+			l.readLock().unlock();
+		}
+		// the last user drops the latch; a thread that latches the page
+		// after that gets a new one
+		latches.computeIfPresent(pid, (k, v) -> --v.users == 0 ? null : v);
+	}
+}
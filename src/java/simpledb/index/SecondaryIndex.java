@@ -0,0 +1,209 @@
+package simpledb.index;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * SecondaryIndex is a B+ tree index over a table stored in a HeapFile. Its
+ * leaves hold an entry for every tuple of the table: the key field, the
+ * included fields, and the page and tuple number of the tuple's RecordId.
+ * Queries that only need the key and included fields can be answered from the
+ * index alone (see IndexOnlyScan); others can find the tuples through their
+ * RecordIds.
+ * <p>
+ * The tree is a BTreeFile of its own, added to the catalog as a table, and the
+ * index is added to the catalog as an index of the heap file. BufferPool
+ * updates it as tuples are inserted into and deleted from the table.
+ *
+ * @see simpledb.common.Catalog#addIndex
+ */
+public class SecondaryIndex {
+
+	private final String name;
+	private final int tableid;
+	private final int keyField;
+	private final int[] includedFields;
+	private final BTreeFile file;
+
+	/**
+	 * Constructs a secondary index stored in the given B+ tree, which must hold
+	 * entries as getEntry() makes them and be keyed on its first field.
+	 *
+	 * @param name - the name of the index
+	 * @param tableid - the id of the table the index is on
+	 * @param keyField - the field of the table the index is keyed on
+	 * @param includedFields - the other fields of the table the index holds
+	 * @param file - the B+ tree that stores the entries
+	 */
+	public SecondaryIndex(String name, int tableid, int keyField, int[] includedFields, BTreeFile file) {
+		this.name = name;
+		this.tableid = tableid;
+		this.keyField = keyField;
+		this.includedFields = includedFields.clone();
+		this.file = file;
+	}
+
+	/**
+	 * Builds a secondary index over a heap file and adds it to the catalog. The
+	 * B+ tree is bulk loaded from a scan of the heap file.
+	 *
+	 * @param name - the name of the index, and of its B+ tree in the catalog
+	 * @param hf - the heap file to index
+	 * @param keyField - the field to key the index on
+	 * @param includedFields - the other fields the index should hold
+	 * @param f - the file to write the B+ tree to; what it contains is replaced
+	 * @return the index
+	 */
+	public static SecondaryIndex create(String name, HeapFile hf, int keyField, int[] includedFields, File f)
+			throws IOException, DbException, TransactionAbortedException {
+		BTreeFile bf = new BTreeFile(f, 0, getEntryTupleDesc(hf.getTupleDesc(), keyField, includedFields));
+		SecondaryIndex index = new SecondaryIndex(name, hf.getId(), keyField, includedFields, bf);
+		BTreeBulkLoader.load(hf, index::getEntry, bf.getTupleDesc(), 0, f, BTreeBulkLoader.DEFAULT_FILL_FACTOR,
+				BTreeBulkLoader.DEFAULT_RUN_PAGES);
+		// an empty table leaves the file empty, so give the tree its root pointer page
+		bf.createIfEmpty();
+		Database.getCatalog().addTable(bf, name);
+		Database.getCatalog().addIndex(index);
+		return index;
+	}
+
+	/**
+	 * Returns the tuple descriptor of the entries of an index: the key field,
+	 * the included fields, and the page and tuple number of the RecordId.
+	 */
+	public static TupleDesc getEntryTupleDesc(TupleDesc td, int keyField, int[] includedFields) {
+		int n = includedFields.length + 1;
+		Type[] types = new Type[n + 2];
+		String[] names = new String[n + 2];
+		for(int i = 0; i < n; i++) {
+			int field = i == 0 ? keyField : includedFields[i - 1];
+			types[i] = td.getFieldType(field);
+			names[i] = td.getFieldName(field);
+		}
+		types[n] = Type.INT_TYPE;
+		names[n] = "pageno";
+		types[n + 1] = Type.INT_TYPE;
+		names[n + 1] = "tupleno";
+		return new TupleDesc(types, names);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the id of the table the index is on
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	public int getKeyField() {
+		return keyField;
+	}
+
+	public int[] getIncludedFields() {
+		return includedFields.clone();
+	}
+
+	/**
+	 * Returns the fields of the table the index holds, the key field first and
+	 * then the included fields, in the order of the fields of its entries
+	 */
+	public int[] getFields() {
+		int[] fields = new int[includedFields.length + 1];
+		fields[0] = keyField;
+		System.arraycopy(includedFields, 0, fields, 1, includedFields.length);
+		return fields;
+	}
+
+	/**
+	 * Returns true if the index holds all of the given fields of the table, so
+	 * that a query that only needs them doesn't have to read the table
+	 */
+	public boolean covers(Collection<Integer> fields) {
+		for(int field : fields) {
+			if(field != keyField && Arrays.stream(includedFields).noneMatch(f -> f == field)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the B+ tree that stores the entries of the index
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * Makes the index entry of a tuple of the table, which must have a RecordId
+	 */
+	public Tuple getEntry(Tuple t) {
+		int[] fields = getFields();
+		Tuple entry = new Tuple(file.getTupleDesc());
+		for(int i = 0; i < fields.length; i++) {
+			entry.setField(i, t.getField(fields[i]));
+		}
+		RecordId rid = t.getRecordId();
+		entry.setField(fields.length, new IntField(rid.getPageId().getPageNumber()));
+		entry.setField(fields.length + 1, new IntField(rid.getTupleNumber()));
+		return entry;
+	}
+
+	/**
+	 * Returns the RecordId of the tuple of the table an index entry is for
+	 */
+	public RecordId getRecordId(Tuple entry) {
+		int n = includedFields.length + 1;
+		return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(n)).getValue()),
+				((IntField) entry.getField(n + 1)).getValue());
+	}
+
+	/**
+	 * Adds the entry of a tuple that was inserted into the table.
+	 *
+	 * @param tid - the transaction inserting the tuple
+	 * @param t - the tuple, with its RecordId
+	 */
+	public void insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().insertTuple(tid, file.getId(), getEntry(t));
+	}
+
+	/**
+	 * Removes the entry of a tuple that is deleted from the table.
+	 *
+	 * @param tid - the transaction deleting the tuple
+	 * @param t - the tuple, with its RecordId
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public void deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Tuple entry = null;
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, t.getField(keyField)));
+		it.open();
+		while(it.hasNext()) {
+			Tuple e = it.next();
+			if(getRecordId(e).equals(t.getRecordId())) {
+				entry = e;
+				break;
+			}
+		}
+		it.close();
+		if(entry == null) {
+			throw new DbException("index " + name + " has no entry for tuple " + t.getRecordId());
+		}
+		Database.getBufferPool().deleteTuple(tid, entry);
+	}
+}
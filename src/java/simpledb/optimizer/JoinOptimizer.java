@@ -3,7 +3,12 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.IndexOnlyScan;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionId;
 
 import java.util.*;
 
@@ -16,6 +21,15 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /** The number of children of a B+ tree internal page, for costing index probes */
+    static final int INDEX_FANOUT = 200;
+    /**
+     * The most tuples of plan1 a {@link ParallelHashJoin}, which holds them all
+     * in memory, is planned for; as many as a {@link HashEquiJoin} keeps in
+     * memory before it spills
+     */
+    static final int PARALLEL_BUILD_TUPLES = HashEquiJoin.MAP_SIZE;
+
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
 
@@ -50,8 +64,142 @@ public class JoinOptimizer {
     public static OpIterator instantiateJoin(LogicalJoinNode lj,
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
 
-        int t1id = 0, t2id = 0;
         OpIterator j;
+        JoinPredicate p = joinPredicate(lj, plan1, plan2);
+
+        if (lj.p == Predicate.Op.EQUALS) {
+
+            try {
+                // dynamically load HashEquiJoin -- if it doesn't exist, just
+                // fall back on regular join
+                Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
+                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
+                j = (OpIterator) ct
+                        .newInstance(new Object[] { p, plan1, plan2 });
+            } catch (Exception e) {
+                j = new Join(p, plan1, plan2);
+            }
+        } else if (mergeable(lj.p)) {
+            j = new SortMergeJoin(p, plan1, plan2, sortedOn(plan1, p.getField1()),
+                    sortedOn(plan2, p.getField2()));
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
+
+        return j;
+
+    }
+
+    /**
+     * Return the best iterator for computing a given logical join, like
+     * {@link #instantiateJoin(LogicalJoinNode, OpIterator, OpIterator)}, but
+     * choosing by estimated cost between that join, a {@link SortMergeJoin},
+     * which doesn't sort a child already in order of its join field, and an
+     * {@link IndexNestedLoopJoin} when plan2 is a full scan of a B+ tree keyed
+     * on the join field. A full scan of a B+ tree keyed on the join field is
+     * replaced by a scan in key order for the merge join. An equality join
+     * whose plan1 is estimated to fit in memory is hashed by a
+     * {@link ParallelHashJoin} when more than one thread may run it, for a
+     * read-only transaction only: its workers read plan2, and the lock
+     * manager expects one thread per transaction.
+     *
+     * @param t
+     *            The transaction the join runs as a part of
+     * @param card1
+     *            Estimated cardinality of plan1
+     * @param card2
+     *            Estimated cardinality of plan2
+     * @param cost1
+     *            Estimated cost of one full scan of plan1
+     * @param cost2
+     *            Estimated cost of one full scan of plan2
+     * @param parallelism
+     *            The number of threads the join may use
+     */
+    public static OpIterator instantiateJoin(TransactionId t, LogicalJoinNode lj,
+                                             OpIterator plan1, OpIterator plan2, int card1, int card2,
+                                             double cost1, double cost2, int parallelism) throws ParsingException {
+        JoinPredicate p = joinPredicate(lj, plan1, plan2);
+        // the other joins are chosen only if they are strictly cheaper
+        OpIterator best;
+        if (lj.p != Predicate.Op.EQUALS) {
+            best = new Join(p, plan1, plan2);
+        } else if (parallelism > 1 && card1 > 0 && card1 <= PARALLEL_BUILD_TUPLES
+                && Database.getBufferPool().hasSnapshot(t)) {
+            // without statistics, card1 is 0, and plan1 may not fit
+            ParallelHashJoin pj = new ParallelHashJoin(p, plan1, plan2);
+            pj.setParallelism(parallelism);
+            best = pj;
+        } else {
+            best = instantiateJoin(lj, plan1, plan2);
+        }
+        double bestCost = estimateScanJoinCost(lj.p, card1, card2, cost1, cost2);
+
+        BTreeScan index = indexScan(t, lj, plan2, p);
+        double cost;
+        if (index != null && (cost = estimateIndexJoinCost(lj.p, card1, card2, cost1, cost2)) < bestCost) {
+            best = new IndexNestedLoopJoin(p, plan1, index);
+            bestCost = cost;
+        }
+        if (mergeable(lj.p) && !(lj instanceof LogicalSubplanJoinNode)) {
+            OpIterator sorted1 = keyOrderScan(t, plan1, p.getField1());
+            OpIterator sorted2 = keyOrderScan(t, plan2, p.getField2());
+            boolean inOrder1 = sortedOn(sorted1, p.getField1());
+            boolean inOrder2 = sortedOn(sorted2, p.getField2());
+            cost = estimateSortMergeJoinCost(lj.p, card1, card2, cost1, cost2, inOrder1, inOrder2);
+            if (cost < bestCost)
+                best = new SortMergeJoin(p, sorted1, sorted2, inOrder1, inOrder2);
+        }
+        return best;
+    }
+
+    /**
+     * @return true if the tuples of it are in ascending order of the field,
+     *         like those of an ascending {@link OrderBy} on it, or of a scan
+     *         of a B+ tree keyed on it, so that a {@link SortMergeJoin} or
+     *         {@link SortAggregate} needn't sort them
+     */
+    public static boolean sortedOn(OpIterator it, int field) {
+        if (it instanceof BTreeScan) {
+            int tableid = Database.getCatalog().getTableId(((BTreeScan) it).getTableName());
+            DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+        }
+        if (it instanceof IndexOnlyScan)
+            return field == 0;
+        if (it instanceof OrderBy)
+            return ((OrderBy) it).isASC() && ((OrderBy) it).getOrderByField() == field;
+        // a filter keeps the order of the tuples it passes
+        if (it instanceof Filter)
+            return sortedOn(((Filter) it).getChildren()[0], field);
+        return false;
+    }
+
+    /**
+     * @return true if a {@link SortMergeJoin} can join with op
+     */
+    private static boolean mergeable(Predicate.Op op) {
+        return op != Predicate.Op.LIKE && op != Predicate.Op.NOT_EQUALS;
+    }
+
+    /**
+     * Returns a scan of the B+ tree plan scans in order of its key, if plan is
+     * a full scan of a B+ tree keyed on field, or else plan itself.
+     */
+    private static OpIterator keyOrderScan(TransactionId t, OpIterator plan, int field) {
+        if (!(plan instanceof SeqScan))
+            return plan;
+        SeqScan scan = (SeqScan) plan;
+        int tableid = Database.getCatalog().getTableId(scan.getTableName());
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof BTreeFile) || ((BTreeFile) file).keyFields()[0] != field)
+            return plan;
+        return new BTreeScan(t, tableid, scan.getAlias(), null);
+    }
+
+    private static JoinPredicate joinPredicate(LogicalJoinNode lj,
+                                               OpIterator plan1, OpIterator plan2) throws ParsingException {
+        int t1id = 0, t2id = 0;
 
         try {
             t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
@@ -71,26 +219,99 @@ public class JoinOptimizer {
             }
         }
 
-        JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
+        return new JoinPredicate(t1id, lj.p, t2id);
+    }
 
-        if (lj.p == Predicate.Op.EQUALS) {
+    /**
+     * Returns a scan of the B+ tree plan2 scans that can be probed for the
+     * tuples matching p, or null if plan2 isn't a full scan of a B+ tree keyed
+     * on the join field or p can't be looked up in an index.
+     */
+    private static BTreeScan indexScan(TransactionId t, LogicalJoinNode lj, OpIterator plan2, JoinPredicate p) {
+        if (lj instanceof LogicalSubplanJoinNode || !mergeable(lj.p))
+            return null;
+        OpIterator scan = keyOrderScan(t, plan2, p.getField2());
+        return scan == plan2 ? null : (BTreeScan) scan;
+    }
 
-            try {
-                // dynamically load HashEquiJoin -- if it doesn't exist, just
-                // fall back on regular join
-                Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
-                j = (OpIterator) ct
-                        .newInstance(new Object[] { p, plan1, plan2 });
-            } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
-            }
-        } else {
-            j = new Join(p, plan1, plan2);
+    /**
+     * Estimate the cost of an {@link IndexNestedLoopJoin}, which probes the B+
+     * tree of the inner relation once for every tuple of the outer one. Each
+     * probe reads the tree from the root to a leaf; the sorted batches of
+     * probes mostly find the internal pages in the buffer pool, but a leaf is
+     * read for almost every probe. For an inequality, each probe also reads
+     * the entries it matches, which are taken to be half of the inner
+     * relation, like for a {@link SortMergeJoin}.
+     *
+     * @param card1
+     *            Estimated cardinality of the outer relation
+     * @param card2
+     *            Estimated cardinality of the inner relation
+     * @param cost1
+     *            Estimated cost of one full scan of the outer relation
+     * @param cost2
+     *            Estimated cost of one full scan of the inner relation
+     * @return An estimate of the cost of the join
+     */
+    public static double estimateIndexJoinCost(Predicate.Op op, int card1, int card2,
+            double cost1, double cost2) {
+        double pages2 = Math.max(1.0, cost2 / TableStats.IOCOSTPERPAGE);
+        int height = 1 + (int) Math.ceil(Math.log(pages2) / Math.log(INDEX_FANOUT));
+        double pagesPerProbe = 1 + (height - 1) / (double) INDEX_FANOUT;
+        double cost = cost1 + card1 * (pagesPerProbe * TableStats.IOCOSTPERPAGE + 1);
+        if (op != Predicate.Op.EQUALS)
+            cost += (double) card1 * card2 / 2;
+        return cost;
+    }
+
+    /**
+     * Estimate the cost of joining two relations by scanning both: a hash join
+     * for equality predicates, which reads each once, plus once more for the
+     * part of each that spills when the outer relation doesn't fit in memory,
+     * or a block nested loops join, which scans the inner relation for every
+     * block of tuples of the outer one, and compares every pair of tuples.
+     */
+    public static double estimateScanJoinCost(Predicate.Op op, int card1, int card2,
+            double cost1, double cost2) {
+        if (op == Predicate.Op.EQUALS) {
+            double spilled = card1 > HashEquiJoin.MAP_SIZE ? 1 - HashEquiJoin.MAP_SIZE / (double) card1 : 0;
+            return cost1 + cost2 + card1 + card2 + 2 * spilled * (cost1 + cost2);
         }
+        // an inner relation small enough to cache is scanned once
+        double scans = card2 <= Join.CACHE_SIZE ? 1 : Math.max(1, Math.ceil(card1 / (double) Join.BLOCK_SIZE));
+        return cost1 + scans * cost2 + (double) card1 * card2;
+    }
 
-        return j;
+    /**
+     * Estimate the cost of sorting a relation, unless it is already sorted:
+     * comparisons, plus writing and reading sorted runs when the relation
+     * doesn't fit in memory.
+     */
+    private static double estimateSortCost(int card, double cost, boolean sorted) {
+        if (sorted || card < 2)
+            return 0;
+        double compares = card * (Math.log(card) / Math.log(2));
+        return compares + (card > ExternalSorter.DEFAULT_MAX_TUPLES ? 2 * cost : 0);
+    }
 
+    /**
+     * Estimate the cost of a {@link SortMergeJoin}: sorting each relation that
+     * isn't already in order of its join field, and reading both once. For an
+     * inequality, the tuples of one relation are read again for each tuple of
+     * the other they join, which is taken to be half of them.
+     *
+     * @param sorted1
+     *            Whether the left-hand relation is in order of its join field
+     * @param sorted2
+     *            Whether the right-hand relation is in order of its join field
+     */
+    public static double estimateSortMergeJoinCost(Predicate.Op op, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2) {
+        double cost = cost1 + cost2 + estimateSortCost(card1, cost1, sorted1)
+                + estimateSortCost(card2, cost2, sorted2) + card1 + card2;
+        if (op != Predicate.Op.EQUALS)
+            cost += (double) card1 * card2 / 2;
+        return cost;
     }
 
     /**
@@ -126,11 +347,12 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            // the cheapest of the joins that scan both sides; whether either
+            // is in order of its join field isn't known here
+            double cost = estimateScanJoinCost(j.p, card1, card2, cost1, cost2);
+            if (mergeable(j.p))
+                cost = Math.min(cost, estimateSortMergeJoinCost(j.p, card1, card2, cost1, cost2, false, false));
+            return cost;
         }
     }
 
@@ -4,6 +4,10 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -36,8 +40,11 @@ public class LogicalPlan {
     private boolean hasAgg = false;
     private String aggOp;
     private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private boolean hasOrderBy = false;
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAscs = new ArrayList<>();
+    private long limit = -1, offset = 0;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
     private String query;
 //    private Query owner;
 
@@ -53,6 +60,16 @@ public class LogicalPlan {
         this.query = "";
     }
 
+    /**
+     * Set the number of threads the plan's operators may use; the default is
+     * the number of processors
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("a plan needs at least one thread");
+        this.parallelism = parallelism;
+    }
+
     /** Set the text of the query representing this logical plan.  Does NOT parse the
         specified query -- this method is just used so that the object can print the
         SQL it represents.
@@ -206,19 +223,32 @@ public class LogicalPlan {
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  If called more than once,
+        the tuples are ordered by the first field, then by the second, and so on.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT, and an OFFSET, to the query: skip the first offset result tuples,
+        and return at most limit of the rest.
+        @param limit the most tuples to return
+        @param offset the number of tuples to skip, or 0
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void addLimit(long limit, long offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET can't be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -274,6 +304,155 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * Returns the scan of a table in this plan, choosing the cheapest way to
+     * read the tuples its filters match:
+     * <ul>
+     * <li>a {@link SeqScan} of the whole table,</li>
+     * <li>for a table stored in a B+ tree, a {@link BTreeScan} of the keys a
+     * filter on the key field matches, or that equality filters on the first
+     * few key fields of a composite key match,</li>
+     * <li>for a table with a {@link SecondaryIndex} holding every field the
+     * plan reads from it, an {@link IndexOnlyScan} of the index, of the keys a
+     * filter on its key field matches or of all of them. The index is read
+     * under locks, so a transaction that reads a snapshot doesn't use it.</li>
+     * </ul>
+     * An index scan is costed as the pages of its file the selectivity of its
+     * filters (from stats) says it reads, against all pages of the table for
+     * the sequential scan. The filters still apply on top.
+     *
+     * @param stats the statistics of the table, or null to assume filters
+     *     match every tuple
+     */
+    private OpIterator scan(TransactionId t, LogicalScanNode table, TableStats stats) {
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        TupleDesc td = file.getTupleDesc();
+
+        // the filters on the table that an index can look up
+        List<Predicate> lookups = new ArrayList<>();
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias) || lf.p == Predicate.Op.LIKE || lf.p == Predicate.Op.NOT_EQUALS)
+                continue;
+            try {
+                int i = td.fieldNameToIndex(lf.fieldPureName);
+                Field f;
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    f = new IntField(Integer.parseInt(lf.c));
+                else
+                    f = new StringField(lf.c, Type.STRING_LEN);
+                lookups.add(new Predicate(i, lf.p, f));
+            } catch (NoSuchElementException | NumberFormatException e) {
+                // reported when the filter is planned
+            }
+        }
+
+        // index scans come first, so that they win ties with the sequential
+        // scan, as their tuples are sorted
+        List<OpIterator> scans = new ArrayList<>();
+        List<Double> costs = new ArrayList<>();
+        double pages;
+        if (file instanceof BTreeFile) {
+            // the scans all read the tree from the root to a leaf first
+            pages = ((BTreeFile) file).numPages();
+            int[] keys = ((BTreeFile) file).keyFields();
+            List<Field> prefix = new ArrayList<>();
+            double prefixSel = 1.0;
+            for (int k : keys) {
+                Predicate eq = null;
+                for (Predicate p : lookups) {
+                    if (p.getField() == k && p.getOp() == Predicate.Op.EQUALS)
+                        eq = p;
+                }
+                if (eq == null)
+                    break;
+                prefix.add(eq.getOperand());
+                prefixSel *= selectivity(stats, eq);
+            }
+            if (prefix.size() > 1) {
+                scans.add(new BTreeScan(t, file.getId(), table.alias,
+                        new IndexPredicate(Predicate.Op.EQUALS, new CompositeField(prefix.toArray(new Field[0])))));
+                costs.add(prefixSel * pages);
+            }
+            for (Predicate p : lookups) {
+                if (p.getField() == keys[0]) {
+                    scans.add(new BTreeScan(t, file.getId(), table.alias, new IndexPredicate(p.getOp(), p.getOperand())));
+                    costs.add(selectivity(stats, p) * pages);
+                }
+            }
+        } else {
+            pages = file instanceof HeapFile ? ((HeapFile) file).numPages() : Double.MAX_VALUE;
+            Set<Integer> used = fieldsUsed(table);
+            // a snapshot reads the table without locks, as of when it began
+            boolean snapshot = Database.getBufferPool().hasSnapshot(t);
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+                if (snapshot || used == null || !index.covers(used))
+                    continue;
+                double indexPages = index.getFile().numPages();
+                for (Predicate p : lookups) {
+                    if (p.getField() == index.getKeyField()) {
+                        scans.add(new IndexOnlyScan(t, index, table.alias, new IndexPredicate(p.getOp(), p.getOperand())));
+                        costs.add(selectivity(stats, p) * indexPages);
+                    }
+                }
+                scans.add(new IndexOnlyScan(t, index, table.alias, null));
+                costs.add(indexPages);
+            }
+        }
+        scans.add(new SeqScan(t, file.getId(), table.alias));
+        costs.add(pages);
+
+        int best = 0;
+        for (int i = 1; i < scans.size(); i++) {
+            if (costs.get(i) < costs.get(best))
+                best = i;
+        }
+        return scans.get(best);
+    }
+
+    private static double selectivity(TableStats stats, Predicate p) {
+        return stats == null ? 1.0 : stats.estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+    }
+
+    /**
+     * Returns the fields of a table that this plan reads, or null if it reads
+     * all of them
+     */
+    private Set<Integer> fieldsUsed(LogicalScanNode table) {
+        List<String> names = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.f2QuantifiedName);
+        }
+        if (hasAgg) {
+            names.add(aggField);
+            if (groupByField != null)
+                names.add(groupByField);
+        }
+        if (hasOrderBy)
+            names.addAll(oByFields);
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        Set<Integer> used = new HashSet<>();
+        for (String name : names) {
+            String[] parts = name.split("[.]");
+            if (parts.length != 2 || parts[1].equals("*"))
+                return null;
+            if (!parts[0].equals(table.alias))
+                continue;
+            try {
+                used.add(td.fieldNameToIndex(parts[1]));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        return used;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -295,15 +474,16 @@ public class LogicalPlan {
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
+            String baseTableName;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 baseTableName = Database.getCatalog().getTableName(table.t);
+                 ss = scan(t, table, baseTableStats.get(baseTableName));
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
             subplanMap.put(table.alias,ss);
-            String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
 
@@ -345,6 +525,13 @@ public class LogicalPlan {
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        // estimated cardinalities of the subplans, to choose how to join them
+        Map<String,Integer> subplanCards = new HashMap<>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            subplanCards.put(table.alias, s == null ? 0 : s.estimateTableCardinality(filterSelectivities.get(table.alias)));
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -381,7 +568,20 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
             OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            int card1 = subplanCards.getOrDefault(t1name, 0);
+            if (isSubqueryJoin) {
+                j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+                subplanCards.put(t1name, jo.estimateJoinCardinality(lj, card1, 0, false, false, statsMap));
+            } else {
+                int card2 = subplanCards.getOrDefault(t2name, 0);
+                TableStats s1 = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lj.t1Alias)));
+                TableStats s2 = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lj.t2Alias)));
+                double cost1 = s1 == null ? 0 : s1.estimateScanCost();
+                double cost2 = s2 == null ? 0 : s2.estimateScanCost();
+                j = JoinOptimizer.instantiateJoin(t, lj, plan1, plan2, card1, card2, cost1, cost2,
+                        parallelism);
+                subplanCards.put(t1name, jo.estimateJoinCardinality(lj, card1, card2, false, false, statsMap));
+            }
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -459,12 +659,23 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            Operator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int afield = td.fieldNameToIndex(aggField);
+                int gfield = groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField);
+                // input that comes in group order is aggregated a group at a
+                // time, without hashing
+                if (gfield != Aggregator.NO_GROUPING && JoinOptimizer.sortedOn(node, gfield))
+                    aggNode = new SortAggregate(node, afield, gfield, getAggOp(aggOp));
+                // a scan of a table, from a snapshot, is split into ranges
+                // aggregated on every processor, then merged
+                else if (parallelism > 1 && ParallelAggregate.canSplit(node)
+                        && Database.getBufferPool().hasSnapshot(t)) {
+                    ParallelAggregate pa = new ParallelAggregate(node, afield, gfield, getAggOp(aggOp));
+                    pa.setParallelism(parallelism);
+                    aggNode = pa;
+                } else
+                    aggNode = new Aggregate(node, afield, gfield, getAggOp(aggOp));
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
@@ -472,9 +683,23 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                ascs[i] = oByAscs.get(i);
+            }
+            // only the first limit + offset tuples are read, so if they fit
+            // in memory, keep just those instead of sorting them all
+            if (limit >= 0 && limit <= ExternalSorter.DEFAULT_MAX_TUPLES - offset)
+                node = new TopN(fields, ascs, (int) (limit + offset), node);
+            else
+                node = new OrderBy(fields, ascs, node);
         }
 
+        if (limit >= 0 && (offset > 0 || !(node instanceof TopN)))
+            node = new Limit(limit, offset, node);
+
         return new Project(outFields, outTypes, node);
     }
 
@@ -1,13 +1,16 @@
 package simpledb.storage;
 
 import simpledb.common.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
+import simpledb.transaction.ConcurrencyControl;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
-import java.util.HashMap;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -17,9 +20,30 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * locks to read/write the page. Heap files lock individual tuples instead
+ * (see {@link #getPageForTuples} and {@link #lockTuple}), so several
+ * transactions may have uncommitted changes on the same page; the buffer pool
+ * keeps the before image of every such tuple in a {@link VersionStore} so
+ * that each transaction can be committed or rolled back on its own.
+ * <p>
+ * Read-only transactions read heap files from a snapshot instead (see
+ * {@link #beginSnapshot}), without taking any locks.
+ * <p>
+ * Locking is the default {@link ConcurrencyControl} scheme; another one can
+ * be plugged in with {@link #setConcurrencyControl}. Under a scheme that
+ * defers writes (optimistic concurrency control), a transaction writes
+ * private copies of pages that are only installed, after validation, by
+ * {@link #commitTransaction}.
+ * <p>
+ * Pages are written following the write-ahead log protocol (see
+ * {@link LogFile}): heap files log every tuple change as they make it,
+ * other pages are logged as a whole when they are written or committed,
+ * and a page is only written once the log is on disk up to its last
+ * change. So any page may be evicted, even one with uncommitted changes
+ * (STEAL), and a commit only forces the log, leaving its pages to be
+ * written later (NO FORCE).
  *
- * @Threadsafe, all fields are final
+ * @Threadsafe
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -36,7 +60,20 @@ public class BufferPool {
 
     private LRU lru;
 
-    private HashMap<PageId,Page> pages = new HashMap<>();
+    private volatile ConcurrencyControl concurrencyControl = new LockManager();
+
+    // pages written under deferred writes, per transaction
+    private final Map<TransactionId, Map<PageId, Page>> privatePages = new ConcurrentHashMap<>();
+
+    private final VersionStore versions = new VersionStore();
+
+    // marks dirty pages whose changes are all committed (or rolled back)
+    private static final TransactionId NO_WRITER = new TransactionId();
+
+    // LSN of the last log record that changed each cached page. The page
+    // formats have no room for it, so it is only kept here
+    private final Map<PageId, Long> pageLsns = new ConcurrentHashMap<>();
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -62,6 +99,14 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * Set the concurrency control scheme.
+     * THIS SHOULD ONLY BE CALLED WHILE NO TRANSACTIONS ARE RUNNING.
+     */
+    public void setConcurrencyControl(ConcurrencyControl cc) {
+        concurrencyControl = cc;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -80,6 +125,84 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        // never wait for a lock while holding the buffer pool monitor
+        ConcurrencyControl cc = concurrencyControl;
+        cc.acquire(tid, pid, perm);
+        return cc.defersWrites() ? privatePage(tid, pid, perm) : fetchPage(pid);
+    }
+
+    /**
+     * Like {@link #getPage}, but returns null instead of waiting if the
+     * lock can't be granted right away.
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        ConcurrencyControl cc = concurrencyControl;
+        if (!cc.tryAcquire(tid, pid, perm))
+            return null;
+        return cc.defersWrites() ? privatePage(tid, pid, perm) : fetchPage(pid);
+    }
+
+    /**
+     * Retrieve the specified page without locking it, for a caller that
+     * keeps the page consistent some other way (B+ tree files latch their
+     * internal pages). The page is tid's private copy if it has one.
+     */
+    public Page getPageUnlocked(TransactionId tid, PageId pid) throws DbException {
+        Map<PageId, Page> mine = privatePages.get(tid);
+        Page page = mine == null ? null : mine.get(pid);
+        return page != null ? page : fetchPage(pid);
+    }
+
+    /**
+     * Retrieve the specified page holding only an intention lock on it (IS
+     * for READ_ONLY, IX for READ_WRITE), for a caller that locks the tuples
+     * it reads or writes with {@link #lockTuple}. Other transactions may be
+     * working on other tuples of the page at the same time, so the page must
+     * only be read or modified while holding its monitor.
+     */
+    public Page getPageForTuples(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        ConcurrencyControl cc = concurrencyControl;
+        cc.acquireIntention(tid, pid, perm);
+        return cc.defersWrites() ? privatePage(tid, pid, perm) : fetchPage(pid);
+    }
+
+    /**
+     * The page as tid sees it when writes are deferred: its private copy if
+     * it has one, else the shared page, which only holds committed data.
+     * A copy is made the first time tid is going to write the page.
+     */
+    private Page privatePage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        Map<PageId, Page> mine = privatePages.computeIfAbsent(tid, k -> new ConcurrentHashMap<>());
+        Page page = mine.get(pid);
+        if (page != null) return page;
+        Page shared = fetchPage(pid);
+        if (perm == Permissions.READ_ONLY) return shared;
+        // copy the cached page, which may hold commits that aren't on disk
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        try {
+            synchronized (shared) {
+                if (shared instanceof HeapPage) {
+                    page = new HeapPage((HeapPageId) pid, shared.getPageData());
+                } else if (file instanceof BTreeFile) {
+                    page = ((BTreeFile) file).copyPage(shared);
+                } else {
+                    throw new DbException("can't copy page " + pid + " of " + file);
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("can't copy page " + pid + ": " + e.getMessage());
+        }
+        mine.put(pid, page);
+        return page;
+    }
+
+    private boolean isPrivate(TransactionId tid, Page page) {
+        Map<PageId, Page> mine = privatePages.get(tid);
+        return mine != null && mine.get(page.getId()) == page;
+    }
+
+    private synchronized Page fetchPage(PageId pid) throws DbException {
         if(lru.containsKey(pid)) return lru.get(pid);
         Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
         while(lru.getSize()>=pageNumber){
@@ -89,6 +212,102 @@ public class BufferPool {
         return page;
     }
 
+    /**
+     * Lock a single tuple for reading (READ_ONLY) or writing (READ_WRITE).
+     * May block, and may escalate to a lock on the whole page or table.
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        concurrencyControl.acquireTuple(tid, rid, perm);
+    }
+
+    /**
+     * Lock a single tuple if that can be done without waiting.
+     * @return true if the lock was granted
+     */
+    public boolean tryLockTuple(TransactionId tid, RecordId rid, Permissions perm) {
+        return concurrencyControl.tryAcquireTuple(tid, rid, perm);
+    }
+
+    /** Return true if some transaction holds a lock on the specified tuple */
+    public boolean isTupleLocked(RecordId rid) {
+        return concurrencyControl.isLocked(rid);
+    }
+
+    /**
+     * Remember the previous contents of a tuple slot changed by tid, so that
+     * the change can be undone without touching other transactions' changes
+     * to the same page, and log the change. Must be called while holding the
+     * page's monitor. Private copies of pages need no undo information.
+     *
+     * @param before the tuple that was in the slot, or null if it was empty
+     */
+    void recordTupleChange(TransactionId tid, HeapPage page, int slot, Tuple before) throws DbException {
+        if (isPrivate(tid, page)) return;
+        versions.record(tid, page, slot, before);
+        try {
+            logTupleChange(tid, page, slot, before, page.getTuple(slot));
+        } catch (IOException e) {
+            throw new DbException("can't log change to page " + page.getId() + ": " + e.getMessage());
+        }
+        // dirty right away, so the page isn't evicted or checkpointed
+        // without being written
+        page.markDirty(true, tid);
+    }
+
+    private void logTupleChange(TransactionId tid, HeapPage page, int slot, Tuple before, Tuple after)
+            throws IOException {
+        long lsn = Database.getLogFile().logTupleWrite(tid, page.getId(), slot, before, after);
+        pageLsns.merge(page.getId(), lsn, Math::max);
+    }
+
+    /** Log the changes made to a whole page since its before image was set */
+    private void logPageImage(TransactionId tid, Page page) throws IOException {
+        long lsn = Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+        pageLsns.merge(page.getId(), lsn, Math::max);
+    }
+
+    /**
+     * @return true if the changes the dirtier made to the page are logged
+     *   by page images when it is written, rather than tuple by tuple
+     */
+    private boolean loggedByImage(Page page, TransactionId dirtier) {
+        return dirtier != NO_WRITER
+                && !(page instanceof HeapPage && versions.hasChanges(dirtier, page.getId()));
+    }
+
+    /**
+     * Take a snapshot for a read-only transaction: from now on, its scans of
+     * heap files see the database as of this moment, without locking.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.beginSnapshot(tid);
+    }
+
+    /** Return true if the specified transaction reads from a snapshot */
+    public boolean hasSnapshot(TransactionId tid) {
+        return versions.hasSnapshot(tid);
+    }
+
+    /**
+     * Return the tuples of a heap page that are visible to the snapshot of
+     * the specified transaction. Takes no locks.
+     */
+    public List<Tuple> getSnapshotTuples(TransactionId tid, HeapPageId pid) throws DbException {
+        return versions.visibleTuples(tid, (HeapPage) fetchPage(pid));
+    }
+
+    /** Reclaim the versions no snapshot can see any more. This normally
+        happens in the background. */
+    public void vacuum() {
+        versions.vacuum();
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public int numVersions() {
+        return versions.size();
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -101,6 +320,14 @@ public class BufferPool {
     public  void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        Map<PageId, Page> mine = privatePages.get(tid);
+        if (mine != null) {
+            Page page = mine.get(pid);
+            // a written private copy has to be installed at commit
+            if (page != null && page.isDirty() != null) return;
+            mine.remove(pid);
+        }
+        concurrencyControl.release(tid, pid);
     }
 
     /**
@@ -111,25 +338,288 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return concurrencyControl.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction. A commit that fails is aborted instead, and reported
+     * with an unchecked exception; use {@link #commitTransaction} to handle
+     * the failure.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @throws RuntimeException caused by a TransactionAbortedException if
+     *   the transaction was to commit but has been aborted instead
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        if (commit) {
+            try {
+                commitTransaction(tid);
+            } catch (TransactionAbortedException e) {
+                // already rolled back, but the caller must not take it for
+                // a commit
+                throw new RuntimeException("transaction " + tid.getId() + " was aborted", e);
+            }
+        } else {
+            abortTransaction(tid);
+        }
+    }
+
+    /**
+     * Abort a given transaction, rolling back its changes, and release all
+     * its locks.
+     */
+    public void abortTransaction(TransactionId tid) {
+        ConcurrencyControl cc = concurrencyControl;
+        if (cc.defersWrites()) {
+            privatePages.remove(tid);
+        }
+        try {
+            LogFile log = Database.getLogFile();
+            if (log.isActive(tid)) {
+                log.logAbort(tid); // does rollback too
+            } else {
+                rollback(tid);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        versions.abort(tid);
+        versions.endSnapshot(tid);
+        cc.transactionComplete(tid, false);
+    }
+
+    /**
+     * Commit a given transaction and release all its locks, if the
+     * concurrency control scheme validates it; otherwise abort it. Only
+     * the log is forced; the transaction's pages are written later.
+     *
+     * @throws TransactionAbortedException if the transaction failed
+     *   validation, or its commit record couldn't be forced, and has been
+     *   aborted
+     */
+    public void commitTransaction(TransactionId tid) throws TransactionAbortedException {
+        ConcurrencyControl cc = concurrencyControl;
+        try {
+            if (cc.defersWrites()) {
+                // validate and install atomically with respect to other commits
+                synchronized (this) {
+                    cc.validate(tid);
+                    installPages(tid);
+                    // commit in the order of installation: later
+                    // transactions may have read what tid installed
+                    logCommit(tid);
+                    versions.commit(tid);
+                    cc.transactionComplete(tid, true);
+                }
+            } else {
+                commitPages(tid);
+                // the commit is durable before any lock is released
+                logCommit(tid);
+                versions.commit(tid);
+                cc.transactionComplete(tid, true);
+            }
+        } catch (TransactionAbortedException e) {
+            abortTransaction(tid);
+            throw e;
+        } catch (IOException | DbException e) {
+            // without a durable commit record the transaction didn't commit
+            e.printStackTrace();
+            abortTransaction(tid);
+            TransactionAbortedException aborted = new TransactionAbortedException();
+            aborted.initCause(e);
+            throw aborted;
+        }
+        versions.endSnapshot(tid);
+    }
+
+    private void logCommit(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        if (log.isActive(tid)) {
+            log.logCommit(tid);
+        }
+    }
+
+    /**
+     * Log the whole-page changes of a committing transaction and hand its
+     * dirty pages over to whoever else still has uncommitted changes on
+     * them, or mark them as only holding committed changes.
+     */
+    private synchronized void commitPages(TransactionId tid) throws IOException {
+        Set<PageId> pids = new HashSet<>(concurrencyControl.getLockedPages(tid));
+        for (PageId pid : versions.pages()) {
+            if (versions.hasChanges(tid, pid)) pids.add(pid);
+        }
+        for (PageId pid : pids) {
+            Page page = lru.get(pid);
+            if (page == null) continue;
+            synchronized (page) {
+                TransactionId dirtier = page.isDirty();
+                if (tid.equals(dirtier) && loggedByImage(page, tid)) {
+                    logPageImage(tid, page);
+                }
+                TransactionId other = page instanceof HeapPage ? versions.uncommittedWriter(pid, tid) : null;
+                if (other != null) {
+                    page.markDirty(true, other);
+                } else {
+                    if (dirtier != null) {
+                        page.markDirty(true, NO_WRITER);
+                    }
+                    // the committed contents are the before image of the next writer
+                    page.setBeforeImage();
+                }
+            }
+        }
+    }
+
+    /**
+     * Install the private pages a validated transaction wrote, and log
+     * them. Heap pages are updated in place tuple by tuple, keeping the old
+     * versions for snapshot readers; other pages simply replace the cached
+     * ones.
+     */
+    private synchronized void installPages(TransactionId tid) throws IOException, DbException {
+        Map<PageId, Page> mine = privatePages.remove(tid);
+        if (mine == null) return;
+        for (Page copy : mine.values()) {
+            if (copy.isDirty() == null) continue;
+            PageId pid = copy.getId();
+            Page shared = fetchPage(pid);
+            if (copy instanceof HeapPage) {
+                synchronized (shared) {
+                    installTuples(tid, (HeapPage) copy, (HeapPage) shared);
+                    shared.markDirty(true, NO_WRITER);
+                    shared.setBeforeImage();
+                }
+            } else {
+                long lsn = Database.getLogFile().logWrite(tid, shared, copy);
+                copy.markDirty(true, NO_WRITER);
+                copy.setBeforeImage();
+                cachePage(copy);
+                pageLsns.merge(pid, lsn, Math::max);
+            }
+        }
+    }
+
+    private void installTuples(TransactionId tid, HeapPage copy, HeapPage shared) throws IOException {
+        for (int slot = 0; slot < shared.getNumSlots(); slot++) {
+            Tuple before = shared.getTuple(slot);
+            Tuple after = copy.getTuple(slot);
+            if (!sameTuple(before, after)) {
+                versions.record(tid, shared, slot, before);
+                shared.restoreSlot(slot, after);
+                logTupleChange(tid, shared, slot, before, after);
+            }
+        }
+    }
+
+    private static boolean sameTuple(Tuple a, Tuple b) {
+        if (a == null || b == null) return a == b;
+        for (int i = 0; i < a.getTupleDesc().numFields(); i++) {
+            if (!a.getField(i).equals(b.getField(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Undo the changes of an aborting transaction, logging what is undone.
+     * Tuple-level changes are undone in place, since the page may hold other
+     * transactions' changes and other readers may be looking at it; a page
+     * that was stolen is read back first. Pages changed as a whole are
+     * replaced by their before images: from the log if the page was written
+     * since (see {@link LogFile#beforeImages}), else from the cached page.
+     */
+    synchronized void rollback(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        Set<PageId> undone = new HashSet<>();
+        for (PageId pid : new ArrayList<>(versions.pages())) {
+            if (!versions.hasChanges(tid, pid)) continue;
+            HeapPage page;
+            try {
+                page = (HeapPage) fetchPage(pid);
+            } catch (DbException e) {
+                throw new IOException("can't read page " + pid + ": " + e.getMessage());
+            }
+            synchronized (page) {
+                versions.rollback(tid, page, (slot, current, restored) ->
+                        logTupleChange(tid, page, slot, current, restored));
+                TransactionId other = versions.uncommittedWriter(pid, tid);
+                page.markDirty(true, other != null ? other : NO_WRITER);
+            }
+            undone.add(pid);
+        }
+
+        Map<PageId, Page> images = new HashMap<>();
+        for (Page page : lru.pages()) {
+            if (tid.equals(page.isDirty()) && !undone.contains(page.getId())) {
+                images.put(page.getId(), page.getBeforeImage());
+            }
+        }
+        Map<PageId, Page> logged = log.isActive(tid) ? log.beforeImages(tid) : Collections.emptyMap();
+        images.putAll(logged);
+        for (Page before : images.values()) {
+            PageId pid = before.getId();
+            if (undone.contains(pid)) continue;
+            if (logged.containsKey(pid)) {
+                // compensate for the logged changes
+                Page current = lru.containsKey(pid) ? lru.get(pid)
+                        : Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                long lsn = log.logWrite(tid, current, before);
+                pageLsns.merge(pid, lsn, Math::max);
+            }
+            // the before image may be committed but not written yet
+            before.markDirty(true, NO_WRITER);
+            try {
+                cachePage(before);
+            } catch (DbException e) {
+                throw new IOException("can't restore page " + pid + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Put a page into the cache, replacing the cached version if any.
+     */
+    private synchronized void cachePage(Page page) throws DbException {
+        if (!lru.containsKey(page.getId())) {
+            while (lru.getSize() >= pageNumber) {
+                evictPage();
+            }
+        }
+        lru.put(page.getId(), page);
+    }
+
+    /**
+     * Set a slot of a heap page, for redoing or undoing a logged tuple
+     * change during recovery.
+     */
+    synchronized void recoverTuple(HeapPageId pid, int slot, Tuple t) throws DbException {
+        HeapPage page = (HeapPage) fetchPage(pid);
+        synchronized (page) {
+            page.restoreSlot(slot, t);
+            page.markDirty(true, NO_WRITER);
+            page.setBeforeImage();
+        }
+    }
+
+    /**
+     * Replace a page with a logged image, for redoing or undoing a logged
+     * page change during recovery.
+     */
+    synchronized void recoverPage(Page image) throws DbException {
+        image.markDirty(true, NO_WRITER);
+        image.setBeforeImage();
+        cachePage(image);
     }
 
     /**
@@ -141,7 +631,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. Adds the tuple's entry to
+     * each secondary index of the table.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -151,8 +642,13 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if (hasSnapshot(tid))
+            throw new DbException("transaction is read-only");
         List<Page> dirtyPages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
         updatePages(tid,dirtyPages);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.insertTuple(tid, t);
+        }
     }
 
     /**
@@ -163,7 +659,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. Removes the tuple's entry
+     * from each secondary index of the table.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -172,26 +669,37 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        List<Page> dirtyPages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
+        if (hasSnapshot(tid))
+            throw new DbException("transaction is read-only");
+        int tableId = t.getRecordId().getPageId().getTableId();
+        List<Page> dirtyPages = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
         updatePages(tid,dirtyPages);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.deleteTuple(tid, t);
+        }
     }
 
-    private void updatePages(TransactionId tid, List<Page> ps){
+    private synchronized void updatePages(TransactionId tid, List<Page> ps){
         for(Page p:ps){
-            p.markDirty(true,tid);
-            lru.put(p.getId(),p);
+            synchronized (p) {
+                p.markDirty(true,tid);
+            }
+            // private copies stay private until commit
+            if (!isPrivate(tid, p)) {
+                lru.put(p.getId(),p);
+            }
         }
     }
 
     /**
-     * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * Flush all dirty pages to disk, committed or not.
      */
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-
+        for (Page page : lru.pages()) {
+            flushPage(page.getId());
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -206,22 +714,32 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         lru.remove(pid);
+        pageLsns.remove(pid);
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk, once the log is on disk up to the
+     * last record that changed it.
      * @param pid an ID indicating the page to flush
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
         Page page = lru.get(pid);
-        if(page.isDirty()!=null){
+        if (page == null) return;
+        synchronized (page) {
+            TransactionId dirtier = page.isDirty();
+            if (dirtier == null) return;
+            if (loggedByImage(page, dirtier)) {
+                logPageImage(dirtier, page);
+            }
+            Long lsn = pageLsns.remove(pid);
+            if (lsn != null) {
+                Database.getLogFile().force(lsn);
+            }
             Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
-            page.markDirty(false,null);
+            page.markDirty(false, null);
         }
-
-
     }
 
     /** Write all pages of the specified transaction to disk.
@@ -229,25 +747,49 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        Set<PageId> pids = new HashSet<>(concurrencyControl.getLockedPages(tid));
+        pids.addAll(versions.pages());
+        for (PageId pid : pids) {
+            Page page = lru.get(pid);
+            if (page != null && tid.equals(page.isDirty())) {
+                flushPage(pid);
+            }
+        }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Write every page whose changes are all committed, e.g. before shutting
+     * the buffer pool down.
+     */
+    public synchronized void flushCommittedPages() throws IOException {
+        for (Page page : lru.pages()) {
+            if (page.isDirty() == NO_WRITER) {
+                flushPage(page.getId());
+            }
+        }
+    }
+
+    /**
+     * Discards a page from the buffer pool, writing it first if it is
+     * dirty. Clean pages are evicted first; if there are none, a dirty page
+     * is stolen, whether or not its changes are committed.
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        LRU.DLinkedNode dLinkedNode = lru.evictNode();
-        PageId id = dLinkedNode.getPageVal().getId();
+        Page victim = lru.leastRecentClean();
+        if (victim == null) {
+            victim = lru.leastRecent();
+        }
+        if (victim == null) {
+            throw new DbException("the buffer pool has no pages");
+        }
         try {
-            flushPage(id);
+            flushPage(victim.getId());
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new DbException("can't write page " + victim.getId() + ": " + e.getMessage());
         }
-        discardPage(id);
-
-
+        discardPage(victim.getId());
     }
 
 }
@@ -0,0 +1,134 @@
+package simpledb.storage;
+
+import simpledb.execution.Predicate;
+import simpledb.common.Type;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the values of several fields, the key of an
+ * index on more than one column. Composite fields compare lexicographically,
+ * and only on the fields both have: a composite field with fewer fields is a
+ * prefix, which equals every key that starts with it. An index predicate on a
+ * prefix of the key columns thus matches a range of keys.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The values of this field, in key column order.
+     */
+    public CompositeField(Field... fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one field");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param t The tuple to take the values from.
+     * @param indexes The indexes of the fields of t to take, in key column order.
+     */
+    public CompositeField(Tuple t, int[] indexes) {
+        fields = new Field[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            fields[i] = t.getField(indexes[i]);
+        }
+    }
+
+    /**
+     * @return the number of fields in this composite field
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the i-th field of this composite field
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        if (!(field instanceof CompositeField)) return false;
+        return Arrays.equals(((CompositeField) field).fields, fields);
+    }
+
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields) {
+            f.serialize(dos);
+        }
+    }
+
+    /**
+     * Compares the fields of this composite field to those of val, in order, up
+     * to the end of the shorter one. A field other than a CompositeField compares
+     * as a prefix of one field.
+     * Return semantics are as specified by Field.compare
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        int c = compareTo(val);
+
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return c == 0;
+            case NOT_EQUALS:
+                return c != 0;
+            case GREATER_THAN:
+                return c > 0;
+            case GREATER_THAN_OR_EQ:
+                return c >= 0;
+            case LESS_THAN:
+                return c < 0;
+            case LESS_THAN_OR_EQ:
+                return c <= 0;
+        }
+
+        return false;
+    }
+
+    private int compareTo(Field val) {
+        Field[] other = val instanceof CompositeField ? ((CompositeField) val).fields : new Field[]{val};
+        for (int i = 0; i < fields.length && i < other.length; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, other[i]))
+                return -1;
+            if (fields[i].compare(Predicate.Op.GREATER_THAN, other[i]))
+                return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Return the Type of this field, the type of its first field.
+     *
+     * @return the Type of the first field
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
@@ -0,0 +1,47 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * DirectoryLogArchiver moves obsolete log segments into a local archive
+ * directory, keeping their file names. Segment names sort in LSN order, so
+ * the archive together with the live segments is a complete history of the
+ * log that can be replayed for point-in-time restore.
+ */
+public class DirectoryLogArchiver implements LogArchiver {
+
+    private final File dir;
+
+    /**
+     * @param dir the archive directory; it is created if it does not exist
+     */
+    public DirectoryLogArchiver(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("could not create archive directory " + dir);
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public void archive(File segment, long startLsn, long endLsn) throws IOException {
+        Files.move(segment.toPath(), new File(dir, segment.getName()).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** @return the archived segment files, oldest first */
+    public List<File> getSegments() {
+        File[] files = dir.listFiles(File::isFile);
+        if (files == null)
+            return new ArrayList<>();
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+}
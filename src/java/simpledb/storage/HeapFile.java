@@ -121,61 +121,140 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         List<Page> res = new ArrayList<>();
-        int i =0;
-        for (; i < numPages(); i++) {
+        BufferPool bufferPool = Database.getBufferPool();
+        for (int i = 0; i < numPages(); i++) {
             PageId pageId = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-            if (page.getNumEmptySlots() > 0) {
-                page.insertTuple(t);
-                res.add(page);
-
-                break;
+            boolean alreadyLocked = bufferPool.holdsLock(tid, pageId);
+            HeapPage page = (HeapPage) bufferPool.getPageForTuples(tid, pageId, Permissions.READ_ONLY);
+            boolean full;
+            synchronized (page) {
+                full = page.getNumEmptySlots() == 0;
+            }
+            if (!full) {
+                page = (HeapPage) bufferPool.getPageForTuples(tid, pageId, Permissions.READ_WRITE);
+                if (insertIntoPage(tid, page, t)) {
+                    res.add(page);
+                    return res;
+                }
+            }
+            // we only looked at this page; don't keep other writers out of it
+            if (!alreadyLocked) {
+                bufferPool.unsafeReleasePage(tid, pageId);
             }
-        }
-        if (i==numPages()) {
-            HeapPage page = new HeapPage(new HeapPageId(getId(), i), HeapPage.createEmptyPageData());
-            page.insertTuple(t);
-            res.add(page);
-            writePage(page);
         }
 
-        return res;
+        // no free slot anywhere: append an empty page and insert through
+        // the buffer pool so that it is locked like any other page. Other
+        // inserters may fill it up before we get to it.
+        while (true) {
+            HeapPageId pageId;
+            synchronized (this) {
+                pageId = new HeapPageId(getId(), numPages());
+                writePage(new HeapPage(pageId, HeapPage.createEmptyPageData()));
+            }
+            HeapPage page = (HeapPage) bufferPool.getPageForTuples(tid, pageId, Permissions.READ_WRITE);
+            if (insertIntoPage(tid, page, t)) {
+                res.add(page);
+                return res;
+            }
+        }
         // not necessary for lab1
     }
 
+    /**
+     * Put t into a free slot of the page that we can lock exclusively. A slot
+     * freed by another transaction's uncommitted delete is still locked by
+     * it and must stay free in case that transaction aborts.
+     *
+     * @return true if the tuple was inserted
+     */
+    private boolean insertIntoPage(TransactionId tid, HeapPage page, Tuple t) throws DbException {
+        BufferPool bufferPool = Database.getBufferPool();
+        synchronized (page) {
+            for (int slot = 0; slot < page.getNumSlots(); slot++) {
+                if (page.isSlotUsed(slot))
+                    continue;
+                if (!bufferPool.tryLockTuple(tid, new RecordId(page.getId(), slot), Permissions.READ_WRITE))
+                    continue;
+                page.insertTuple(t, slot);
+                bufferPool.recordTupleChange(tid, page, slot, null);
+                return true;
+            }
+        }
+        return false;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()) {
+            throw new DbException("tuple is not a member of this file");
+        }
         ArrayList<Page> res = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
-            PageId pageId = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-            if (page.findTupleNumber(t) != -1) {
-                page.deleteTuple(t);
-                res.add(page);
-                break;
-            }
-
+        BufferPool bufferPool = Database.getBufferPool();
+        HeapPage page = (HeapPage) bufferPool.getPageForTuples(tid, rid.getPageId(), Permissions.READ_WRITE);
+        bufferPool.lockTuple(tid, rid, Permissions.READ_WRITE);
+        synchronized (page) {
+            Tuple before = page.getTuple(rid.getTupleNumber());
+            page.deleteTuple(t);
+            bufferPool.recordTupleChange(tid, page, rid.getTupleNumber(), before);
         }
+        res.add(page);
         return res;
         // not necessary for lab1
     }
 
+    /**
+     * Read the tuple in a slot of the page, locked for reading. The caller
+     * must hold an intention lock on the page.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    private Tuple readSlot(TransactionId tid, HeapPage page, int slot) throws TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        RecordId rid = new RecordId(page.getId(), slot);
+        boolean used;
+        synchronized (page) {
+            used = page.isSlotUsed(slot);
+        }
+        // an empty slot that is locked may hold a tuple whose delete hasn't
+        // committed yet; wait for it like for an uncommitted insert
+        if (!used && !bufferPool.isTupleLocked(rid))
+            return null;
+        bufferPool.lockTuple(tid, rid, Permissions.READ_ONLY);
+        synchronized (page) {
+            return page.getTuple(slot);
+        }
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
+        return iterator(tid, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns an iterator over the tuples of pages [fromPage, toPage) of this
+     * file, so that disjoint ranges of pages can be scanned at once.
+     */
+    public DbFileIterator iterator(TransactionId tid, int fromPage, int toPage) {
         return new DbFileIterator() {
 
-            private Iterator<Tuple> iterator;
+            private HeapPage page;
             private int currPage;
+            private int slot;
+            private Tuple next;
 
+            private int endPage() {
+                return Math.min(toPage, numPages());
+            }
 
-            private Iterator<Tuple> getIterator(int pageNumber) throws TransactionAbortedException, DbException {
-                if (pageNumber >= 0 && pageNumber < numPages()) {
+            private HeapPage getPage(int pageNumber) throws TransactionAbortedException, DbException {
+                if (pageNumber >= 0 && pageNumber < endPage()) {
                     HeapPageId pageId = new HeapPageId(getId(), pageNumber);
-                    HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-                    return page.iterator();
+                    return (HeapPage) Database.getBufferPool().getPageForTuples(tid, pageId, Permissions.READ_ONLY);
                 } else {
                     throw new DbException(String.format("problems opening/accessing the database pageNo %d ", pageNumber));
                 }
@@ -183,34 +262,40 @@ public class HeapFile implements DbFile {
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
-                currPage = 0;
-                iterator = getIterator(currPage);
+                currPage = fromPage;
+                slot = 0;
+                next = null;
+                page = currPage < endPage() ? getPage(currPage) : null;
             }
 
             @Override
             public boolean hasNext() throws DbException, TransactionAbortedException {
-                if (iterator == null) {
+                if (page == null) {
                     return false;
-                } else if (iterator.hasNext()) {
-                    return true;
-                } else {
-                    // get next iterator
-                    currPage++;
-                    if (currPage >= numPages()) {
-                        return false;
-                    } else {
-                        iterator = getIterator(currPage);
-                        return hasNext();
+                }
+                while (next == null) {
+                    if (slot >= page.getNumSlots()) {
+                        // get next page
+                        if (currPage + 1 >= endPage()) {
+                            return false;
+                        }
+                        page = getPage(++currPage);
+                        slot = 0;
+                        continue;
                     }
+                    next = readSlot(tid, page, slot++);
                 }
+                return true;
             }
 
             @Override
             public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-                if (iterator == null || !iterator.hasNext()) {
+                if (!hasNext()) {
                     throw new NoSuchElementException();
                 }
-                return iterator.next();
+                Tuple t = next;
+                next = null;
+                return t;
             }
 
             @Override
@@ -221,6 +306,69 @@ public class HeapFile implements DbFile {
 
             @Override
             public void close() {
+                page = null;
+                next = null;
+            }
+        };
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that are visible to
+     * the snapshot of the specified read-only transaction. It takes no locks,
+     * so it never blocks writers and is never blocked by them.
+     *
+     * @see BufferPool#beginSnapshot
+     */
+    public DbFileIterator snapshotIterator(TransactionId tid) {
+        return snapshotIterator(tid, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns an iterator over the tuples of pages [fromPage, toPage) of this
+     * file that are visible to the snapshot of the specified read-only
+     * transaction.
+     *
+     * @see #snapshotIterator(TransactionId)
+     */
+    public DbFileIterator snapshotIterator(TransactionId tid, int fromPage, int toPage) {
+        return new AbstractDbFileIterator() {
+
+            private Iterator<Tuple> iterator;
+            private int currPage;
+
+            @Override
+            public void open() {
+                currPage = fromPage - 1;
+                iterator = Collections.emptyIterator();
+            }
+
+            @Override
+            protected Tuple readNext() throws DbException {
+                if (iterator == null) {
+                    return null;
+                }
+                while (!iterator.hasNext()) {
+                    // pages added after the snapshot was taken hold nothing
+                    // visible to it, but are cheap to look at
+                    if (currPage + 1 >= Math.min(toPage, numPages())) {
+                        return null;
+                    }
+                    currPage++;
+                    HeapPageId pageId = new HeapPageId(getId(), currPage);
+                    iterator = Database.getBufferPool().getSnapshotTuples(tid, pageId).iterator();
+                }
+                return iterator.next();
+            }
+
+            @Override
+            public void rewind() {
+                close();
+                open();
+            }
+
+            @Override
+            public void close() {
+                super.close();
                 iterator = null;
             }
         };
@@ -28,7 +28,7 @@ public class HeapPage implements Page {
 
 
     byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    private final Object oldDataLock = new Object();
 
 
     /**
@@ -261,8 +261,12 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        int slotNum = findTupleNumber(t);
-        if (slotNum == -1 || !isSlotUsed(slotNum)) throw new DbException("page should be empty; expected DbException");
+        // go by the record id rather than the contents: with tuple-level
+        // locking, an equal tuple in another slot may belong to someone else
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) throw new DbException("tuple is not on this page");
+        int slotNum = rid.getTupleNumber();
+        if (slotNum < 0 || slotNum >= numSlots || !isSlotUsed(slotNum)) throw new DbException("page should be empty; expected DbException");
         markSlotUsed(slotNum, false);
     }
 
@@ -287,9 +291,40 @@ public class HeapPage implements Page {
         // not necessary for lab1
         int freeSlot = findFreeSlot();
         if (freeSlot == -1) throw new DbException("page should be full; expected DbException");
-        tuples[freeSlot] = t;
-        markSlotUsed(freeSlot, true);
-        t.setRecordId(new RecordId(getId(), freeSlot));
+        insertTuple(t, freeSlot);
+    }
+
+    /**
+     * Adds the specified tuple to the page in the specified slot, which must be empty.
+     */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if (isSlotUsed(slot)) throw new DbException("slot " + slot + " is not empty");
+        tuples[slot] = t;
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(getId(), slot));
+    }
+
+    /**
+     * Put the specified tuple back into its slot, or empty the slot if t is
+     * null. Used to undo a transaction's tuple-level changes.
+     */
+    void restoreSlot(int slot, Tuple t) {
+        tuples[slot] = t;
+        markSlotUsed(slot, t != null);
+    }
+
+    /**
+     * @return the tuple in the specified slot, or null if the slot is empty
+     */
+    Tuple getTuple(int slot) {
+        return isSlotUsed(slot) ? tuples[slot] : null;
+    }
+
+    /**
+     * @return the number of tuple slots on this page
+     */
+    int getNumSlots() {
+        return numSlots;
     }
 
     public int findFreeSlot() {
@@ -0,0 +1,35 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * LogArchiver is the hook {@link LogFile} calls when a log segment is no
+ * longer needed for crash recovery, i.e. every record in it precedes both the
+ * last checkpoint and the first record of every transaction that was live at
+ * that checkpoint.
+ * <p>
+ * An archiver takes ownership of the segment file: it may move it somewhere
+ * durable (to support point-in-time restore) or simply delete it. The segment
+ * is closed before the archiver is called; if the file still exists when the
+ * archiver returns, the log deletes it.
+ *
+ * @see DirectoryLogArchiver
+ */
+public interface LogArchiver {
+
+    /** Archiver that throws obsolete segments away. */
+    LogArchiver DELETE = (segment, startLsn, endLsn) -> {
+        if (segment.exists() && !segment.delete())
+            throw new IOException("could not delete log segment " + segment);
+    };
+
+    /**
+     * Archive an obsolete log segment.
+     *
+     * @param segment the closed segment file
+     * @param startLsn the LSN of the first record in the segment
+     * @param endLsn the LSN just past the last record in the segment
+     */
+    void archive(File segment, long startLsn, long endLsn) throws IOException;
+}
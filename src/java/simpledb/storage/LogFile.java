@@ -1,11 +1,14 @@
-
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.BTreeFile;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.text.ParseException;
 import java.util.*;
 import java.lang.reflect.*;
 
@@ -36,27 +39,40 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p> Heap files log tuple changes while holding the monitor of the page
+they change, so the log's monitor must never be held while taking the
+monitor of a page either: rollbacks and checkpoints only take it for
+the log accesses themselves.
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is split into segment files named after the log file with
+a hexadecimal segment number appended (log.0000000000000000,
+log.0000000000000001, ...).  A new segment is started once the current
+one would grow past the segment size.  See {@link LogSegment} for the
+segment header and the framing (length + CRC32) of each record.
+
+<li> Records are addressed by LSN, a logical byte offset that is
+contiguous across segments and never changes, so truncating the log
+never has to rewrite it.  Everything called an "offset" below is an LSN.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> A small control file (the log file name with ".ctl" appended)
+holds a single long integer: the LSN of the last written checkpoint,
+or -1 if there are no checkpoints
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing the
+position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and TUPLE_UPDATE
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -65,18 +81,48 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>TUPLE_UPDATE records log a change to a single slot of a heap page,
+which other transactions may be changing at the same time.  They
+consist of the page id (see writePageId), the slot number, and the
+tuple in the slot before and after the change, each a boolean (false
+if the slot is empty) followed by the serialized fields.
+
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction, followed by the redo LSN: every change
+logged before it was on disk when the checkpoint was written.
 
 </ul>
+
+<p> The buffer pool follows the write-ahead rule: a page is only
+written once the log is forced up to the last record that changed it,
+so it may write (steal) pages with uncommitted changes.  A commit only
+forces the log.  {@link #recover} therefore repeats history from the
+last checkpoint's redo LSN, then undoes the transactions that never
+finished.  Rollbacks log what they undo (as ordinary UPDATE and
+TUPLE_UPDATE records, written by the aborting transaction) so that
+repeating history also repeats them.
+
+<p> Truncating the log hands every segment that lies entirely before the
+last checkpoint (and before the first record of every transaction live
+at that checkpoint) to a {@link LogArchiver}, which deletes it by
+default or can keep it around for point-in-time restore.
 */
 public class LogFile {
 
+    /** Default size at which the log rolls over to a new segment. */
+    public static final long DEFAULT_SEGMENT_SIZE = 4L * 1024 * 1024;
+
     final File logFile;
-    private RandomAccessFile raf;
+    private final File controlFile;
+    private RandomAccessFile control;
+    private final long segmentSize;
+    private LogArchiver archiver;
+    // retained segments, keyed by the LSN of their first record; the last
+    // one is the segment being appended to
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>();
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,31 +130,50 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int TUPLE_UPDATE_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    private long flushedLsn = -1; // the log is on disk up to here; protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
     /** Constructor.
-        Initialize and back the log file with the specified file.
+        Initialize and back the log with segment files named after the
+        specified file.
         We're not sure yet whether the caller is creating a brand new DB,
-        in which case we should ignore the log file, or whether the caller
+        in which case we should ignore the existing log, or whether the caller
         will eventually want to recover (after populating the Catalog).
         So we make this decision lazily: if someone calls recover(), then
         do it, while if someone starts adding log file entries, then first
-        throw out the initial log file contents.
+        throw out the initial log contents.
 
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE, LogArchiver.DELETE);
+    }
+
+    /** Constructor.
+
+        @param f The log file's name; segments and the control file are
+          created next to it
+        @param segmentSize The size in bytes at which the log rolls over to
+          a new segment
+        @param archiver Called with each segment that truncation makes obsolete
+    */
+    public LogFile(File f, long segmentSize, LogArchiver archiver) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        this.controlFile = new File(f.getPath() + ".ctl");
+        this.segmentSize = segmentSize;
+        this.archiver = archiver;
+        control = new RandomAccessFile(controlFile, "rw");
+        openSegments();
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -122,6 +187,35 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
+    /** Set the archiver that truncation hands obsolete segments to */
+    public synchronized void setArchiver(LogArchiver archiver) {
+        this.archiver = archiver;
+    }
+
+    File segmentFile(long segmentNo) {
+        return new File(logFile.getPath() + String.format(".%016x", segmentNo));
+    }
+
+    // open the segments left behind by a previous run, so that recover()
+    // can read them; a torn record at the very end of the log is cut off
+    private void openSegments() throws IOException {
+        File dir = logFile.getAbsoluteFile().getParentFile();
+        String prefix = logFile.getName() + ".";
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix)
+                && name.substring(prefix.length()).matches("[0-9a-f]{16}"));
+        if (files != null) {
+            for (File file : files) {
+                LogSegment seg = LogSegment.open(file);
+                segments.put(seg.startLsn, seg);
+            }
+        }
+        if (!segments.isEmpty()) {
+            LogSegment tail = segments.lastEntry().getValue();
+            tail.truncateTornTail();
+            currentOffset = tail.endLsn();
+        }
+    }
+
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
@@ -129,18 +223,80 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            long nextSegmentNo = segments.isEmpty() ? 0 : segments.lastEntry().getValue().segmentNo + 1;
+            long startLsn = Math.max(currentOffset, 0);
+            for (LogSegment seg : segments.values()) {
+                seg.close();
+                seg.file.delete();
+            }
+            segments.clear();
+            writeCheckpointLsn(NO_CHECKPOINT_ID);
+            startSegment(nextSegmentNo, startLsn);
+        } else if (segments.isEmpty()) {
+            startSegment(0, 0);
+        }
+    }
+
+    private void startSegment(long segmentNo, long startLsn) throws IOException {
+        LogSegment seg = LogSegment.create(segmentFile(segmentNo), segmentNo, startLsn);
+        segments.put(startLsn, seg);
+        currentOffset = startLsn;
+    }
+
+    /** Append a record to the log, rolling over to a new segment if the
+        current one is full.  Every record ends with its own LSN, which is
+        written here.
+
+        @return the LSN of the record
+    */
+    private long appendRecord(Record rec) throws IOException {
+        rec.writeLong(currentOffset);
+        byte[] payload = rec.toByteArray();
+        LogSegment tail = segments.lastEntry().getValue();
+        if (!tail.isEmpty() && tail.length() + LogSegment.FRAME_SIZE + payload.length > segmentSize) {
+            tail.force();
+            startSegment(tail.segmentNo + 1, tail.endLsn());
+            tail = segments.lastEntry().getValue();
         }
+        long lsn = tail.append(payload);
+        currentOffset = tail.endLsn();
+        return lsn;
+    }
+
+    /** Read the body of the record at the specified LSN.
+
+        @return the record body, starting with its type, or null if lsn is
+          the end of the log (or the record there is torn)
+    */
+    byte[] readRecord(long lsn) throws IOException {
+        Map.Entry<Long, LogSegment> e = segments.floorEntry(lsn);
+        if (e == null)
+            throw new IOException("LSN " + lsn + " precedes the oldest retained log segment");
+        return e.getValue().read(lsn);
+    }
+
+    /** @return the LSN of the record following the record at lsn whose body is payload */
+    static long nextLsn(long lsn, byte[] payload) {
+        return lsn + LogSegment.FRAME_SIZE + payload.length;
+    }
+
+    private long readCheckpointLsn() throws IOException {
+        if (control.length() < LONG_SIZE)
+            return NO_CHECKPOINT_ID;
+        control.seek(0);
+        return control.readLong();
+    }
+
+    private void writeCheckpointLsn(long lsn) throws IOException {
+        control.seek(0);
+        control.writeLong(lsn);
+        control.getChannel().force(true);
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -151,19 +307,16 @@ public class LogFile {
 
         synchronized (Database.getBufferPool()) {
 
+            // must do this first, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
             synchronized(this) {
                 preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendRecord(new Record(ABORT_RECORD, tid.getId()));
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -180,10 +333,7 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        appendRecord(new Record(COMMIT_RECORD, tid.getId()));
         force();
         tidToFirstLogRecord.remove(tid.getId());
     }
@@ -194,12 +344,13 @@ public class LogFile {
         @param before The before image of the page
         @param after The after image of the page
 
+        @return the LSN of the record
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -209,78 +360,161 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        Record rec = new Record(UPDATE_RECORD, tid.getId());
+        writePageData(rec,before);
+        writePageData(rec,after);
+        long lsn = appendRecord(rec);
+        tidToFirstLogRecord.putIfAbsent(tid.getId(), lsn);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
+    /** Write a TUPLE_UPDATE record for a change tid made to a single slot
+        of a heap page.
+        @param tid The transaction performing the write
+        @param pid The page
+        @param slot The slot that changed
+        @param before The tuple in the slot before the change, or null if it was empty
+        @param after The tuple in the slot after the change, or null if it is empty
+        @return the LSN of the record
+    */
+    public synchronized long logTupleWrite(TransactionId tid, HeapPageId pid, int slot,
+                                           Tuple before, Tuple after)
+        throws IOException {
+        preAppend();
+        Record rec = new Record(TUPLE_UPDATE_RECORD, tid.getId());
+        writePageId(rec, pid);
+        rec.writeInt(slot);
+        writeTuple(rec, before);
+        writeTuple(rec, after);
+        long lsn = appendRecord(rec);
+        tidToFirstLogRecord.putIfAbsent(tid.getId(), lsn);
+        return lsn;
+    }
+
+    private static void writeTuple(DataOutputStream out, Tuple t) throws IOException {
+        out.writeBoolean(t != null);
+        if (t == null)
+            return;
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            t.getField(i).serialize(out);
+        }
+    }
+
+    /** Read a tuple written by writeTuple, which was in the specified slot
+        @throws NoSuchElementException if the table is not in the catalog
+    */
+    private static Tuple readTuple(DataInputStream in, PageId pid, int slot) throws IOException {
+        if (!in.readBoolean())
+            return null;
+        TupleDesc td = Database.getCatalog().getTupleDesc(pid.getTableId());
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                Type type = td.getFieldType(i);
+                t.setField(i, type.parse(in));
+            }
+        } catch (ParseException e) {
+            throw new IOException("corrupt tuple in log record: " + e.getMessage());
+        }
+        t.setRecordId(new RecordId(pid, slot));
+        return t;
+    }
+
+    void writePageId(DataOutput out, PageId pid) throws IOException {
+        // id class name, number of ints, ints
+        out.writeUTF(pid.getClass().getName());
         int[] pageInfo = pid.serialize();
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
+
+    PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            int numIdArgs = in.readInt();
+            Object[] idArgs = new Object[numIdArgs];
+            for (int i = 0; i<numIdArgs;i++) {
+                idArgs[i] = in.readInt();
+            }
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
+
+    void writePageData(DataOutput out, Page p) throws IOException{
+        PageId pid = p.getId();
 
         //page data is:
         // page class name
-        // id class name
-        // id class bytes
-        // id class data
+        // page id (see writePageId)
         // page class bytes
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
+        out.writeUTF(pageClassName);
+        writePageId(out, pid);
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput in) throws IOException {
         PageId pid;
         Page newPage = null;
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        String pageClassName = in.readUTF();
+        pid = readPageId(in);
 
         try {
-            Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+            int pageSize = in.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+            in.readFully(pageData); //read before image
+
+            // pages are built from their id and data; B+ tree leaf and internal
+            // pages also need the key fields of their file
+            Object[] pageArgs = null;
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length < 2 || params[1] != byte[].class)
+                    continue;
+                if (params.length == 2 && pageConst == null) {
+                    pageArgs = new Object[]{pid, pageData};
+                } else if (params.length == 3 && params[2] == int.class && (pageConst == null || pageArgs.length == 2)) {
+                    pageArgs = new Object[]{pid, pageData, ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField()};
+                } else if (params.length == 3 && params[2] == int[].class) {
+                    pageArgs = new Object[]{pid, pageData, ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyFields()};
+                } else {
+                    continue;
+                }
+                pageConst = c;
+            }
+            if (pageConst == null)
+                throw new IOException("no constructor to read a " + pageClassName + " from the log");
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
+        } catch (InvocationTargetException e) {
+            // pages look up their table in the catalog
+            if (e.getCause() instanceof NoSuchElementException)
+                throw (NoSuchElementException) e.getCause();
+            e.printStackTrace();
+            throw new IOException();
+        } catch (ClassNotFoundException | IllegalAccessException | InstantiationException e){
             e.printStackTrace();
             throw new IOException();
         }
@@ -300,11 +534,8 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = appendRecord(new Record(BEGIN_RECORD, tid.getId()));
+        tidToFirstLogRecord.put(tid.getId(), lsn);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
@@ -313,36 +544,39 @@ public class LogFile {
     public void logCheckpoint() throws IOException {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
+            long redoLsn;
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
+                redoLsn = currentOffset;
+            }
+            // every change logged before redoLsn is in a cached page or
+            // already on disk. Flushing takes page monitors, so not while
+            // holding ours
+            Database.getBufferPool().flushAllPages();
+            synchronized (this) {
+                //Debug.log("CHECKPOINT, offset = " + currentOffset);
+                preAppend();
+                long startCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                Record rec = new Record(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                rec.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    rec.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    rec.writeLong(tidToFirstLogRecord.get(key));
                 }
+                rec.writeLong(redoLsn);
+                startCpOffset = appendRecord(rec);
+                force();
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                //once the CP is durable, make sure the control file
+                // points at it
+                writeCheckpointLsn(startCpOffset);
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -351,99 +585,50 @@ public class LogFile {
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Whole segments that are no longer needed are passed
+        to the archiver; nothing is copied. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = readCheckpointLsn();
 
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+        if (cpLoc != NO_CHECKPOINT_ID) {
+            DataInputStream cp = new DataInputStream(new ByteArrayInputStream(readRecord(cpLoc)));
+            int cpType = cp.readInt();
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            long cpTid = cp.readLong();
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
+            int numOutstanding = cp.readInt();
 
             for (int i = 0; i < numOutstanding; i++) {
                 @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+                long tid = cp.readLong();
+                long firstLogRecord = cp.readLong();
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
+            minLogRecord = Math.min(minLogRecord, cp.readLong());
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
+        // we can drop every segment that ends at or before minLogRecord;
+        // the segment being appended to is always kept
+        while (segments.size() > 1) {
+            LogSegment oldest = segments.firstEntry().getValue();
+            if (oldest.endLsn() > minLogRecord)
                 break;
-            }
+            segments.remove(oldest.startLsn);
+            oldest.close();
+            Debug.log("ARCHIVING LOG SEGMENT " + oldest.file + " [" + oldest.startLsn + ", " + oldest.endLsn() + ")");
+            archiver.archive(oldest.file, oldest.startLsn, oldest.endLsn());
+            if (oldest.file.exists() && !oldest.file.delete())
+                throw new IOException("could not remove archived log segment " + oldest.file);
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -457,11 +642,41 @@ public class LogFile {
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+            // some code goes here
+            // the buffer pool knows the before images of tuple changes,
+            // and of page changes that haven't been written yet; the rest
+            // comes from beforeImages()
+            Database.getBufferPool().rollback(tid);
+        }
+    }
+
+    /** @return true if tid has logged records and not finished yet */
+    synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /** Read the before images of the pages tid has logged UPDATE records
+        for: the earliest one for every page, which is its state before tid
+        changed it.
+    */
+    synchronized Map<PageId, Page> beforeImages(TransactionId tid) throws IOException {
+        Map<PageId, Page> images = new HashMap<>();
+        Long first = tidToFirstLogRecord.get(tid.getId());
+        if (first == null)
+            return images;
+        long lsn = first;
+        byte[] payload;
+        while ((payload = readRecord(lsn)) != null) {
+            DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload));
+            int type = rec.readInt();
+            long recTid = rec.readLong();
+            if (type == UPDATE_RECORD && recTid == tid.getId()) {
+                Page before = readPageData(rec);
+                images.putIfAbsent(before.getId(), before);
             }
+            lsn = nextLsn(lsn, payload);
         }
+        return images;
     }
 
     /** Shutdown the logging system, writing out whatever state
@@ -471,7 +686,10 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            for (LogSegment seg : segments.values()) {
+                seg.close();
+            }
+            control.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -483,92 +701,214 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
+        boolean undone;
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (segments.isEmpty())
+                    return;
+                long redoLsn = segments.firstKey();
+                long start = redoLsn;
+                long cpLoc = readCheckpointLsn();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    DataInputStream cp = new DataInputStream(new ByteArrayInputStream(readRecord(cpLoc)));
+                    cp.readInt();
+                    cp.readLong();
+                    int numOutstanding = cp.readInt();
+                    long minFirst = Long.MAX_VALUE;
+                    for (int i = 0; i < numOutstanding; i++) {
+                        cp.readLong();
+                        minFirst = Math.min(minFirst, cp.readLong());
+                    }
+                    redoLsn = cp.readLong();
+                    start = Math.max(segments.firstKey(), Math.min(redoLsn, minFirst));
+                }
+
+                // redo: repeat history from redoLsn, and find the
+                // transactions that never finished
+                Map<Long, List<Long>> changes = new HashMap<>();
+                Set<Long> finished = new HashSet<>();
+                long lsn = start;
+                byte[] payload;
+                while ((payload = readRecord(lsn)) != null) {
+                    DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload));
+                    int type = rec.readInt();
+                    long tid = rec.readLong();
+                    if (type == UPDATE_RECORD || type == TUPLE_UPDATE_RECORD) {
+                        changes.computeIfAbsent(tid, k -> new ArrayList<>()).add(lsn);
+                        if (lsn >= redoLsn)
+                            apply(rec, type, false);
+                    } else if (type == COMMIT_RECORD || type == ABORT_RECORD) {
+                        finished.add(tid);
+                    }
+                    lsn = nextLsn(lsn, payload);
+                }
+
+                // undo: roll the losers back, newest change first
+                List<Long> losers = new ArrayList<>();
+                List<Long> undo = new ArrayList<>();
+                for (Map.Entry<Long, List<Long>> e : changes.entrySet()) {
+                    if (!finished.contains(e.getKey())) {
+                        losers.add(e.getKey());
+                        undo.addAll(e.getValue());
+                    }
+                }
+                undo.sort(Collections.reverseOrder());
+                for (long undoLsn : undo) {
+                    DataInputStream rec = new DataInputStream(new ByteArrayInputStream(readRecord(undoLsn)));
+                    int type = rec.readInt();
+                    rec.readLong();
+                    apply(rec, type, true);
+                }
+
+                Database.getBufferPool().flushAllPages();
+                for (long tid : losers) {
+                    Debug.log("RECOVERY ABORTED " + tid);
+                    appendRecord(new Record(ABORT_RECORD, tid));
+                }
+                force();
+                tidToFirstLogRecord.clear();
+                undone = !losers.isEmpty();
             }
          }
+        // repeating history again would redo the losers' changes without
+        // undoing them, so the next recovery has to start from here
+        if (undone)
+            logCheckpoint();
     }
 
-    /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
-
-        while (true) {
-            try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
-                case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-
-                case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                    }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+    /** Install the after image (redo) or the before image (undo) of an
+        UPDATE or TUPLE_UPDATE record, read up to the images.  Records of
+        tables that are not in the catalog are skipped.
+    */
+    private void apply(DataInputStream rec, int type, boolean undo) throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        try {
+            if (type == UPDATE_RECORD) {
+                Page before = readPageData(rec);
+                Page after = readPageData(rec);
+                bp.recoverPage(undo ? before : after);
+            } else {
+                HeapPageId pid = (HeapPageId) readPageId(rec);
+                int slot = rec.readInt();
+                Tuple before = readTuple(rec, pid, slot);
+                Tuple after = readTuple(rec, pid, slot);
+                bp.recoverTuple(pid, slot, undo ? before : after);
+            }
+        } catch (NoSuchElementException e) {
+            Debug.log("RECOVERY SKIPPED A RECORD OF AN UNKNOWN TABLE");
+        } catch (DbException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
 
-                    break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
+    /** Print out a human readable represenation of the log */
+    public synchronized void print() throws IOException {
+        System.out.println("control: checkpoint record at offset " + readCheckpointLsn());
+
+        if (segments.isEmpty())
+            return;
+        long lsn = segments.firstKey();
+        byte[] payload;
+        while ((payload = readRecord(lsn)) != null) {
+            DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload));
+            LogSegment seg = segments.floorEntry(lsn).getValue();
+            if (lsn == seg.startLsn)
+                System.out.println("SEGMENT " + seg.segmentNo + " (" + seg.file.getName() + ")");
+
+            int cpType = rec.readInt();
+            long cpTid = rec.readLong();
+
+            System.out.println(lsn + ": RECORD TYPE " + cpType);
+            System.out.println(lsn + ": TID " + cpTid);
+
+            switch (cpType) {
+            case BEGIN_RECORD:
+                System.out.println(" (BEGIN)");
+                break;
+            case ABORT_RECORD:
+                System.out.println(" (ABORT)");
+                break;
+            case COMMIT_RECORD:
+                System.out.println(" (COMMIT)");
+                break;
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+            case CHECKPOINT_RECORD:
+                System.out.println(" (CHECKPOINT)");
+                int numTransactions = rec.readInt();
+                System.out.println(lsn + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+                while (numTransactions-- > 0) {
+                    long tid = rec.readLong();
+                    long firstRecord = rec.readLong();
+                    System.out.println(lsn + ": TID: " + tid);
+                    System.out.println(lsn + ": FIRST LOG RECORD: " + firstRecord);
+                }
+                System.out.println(lsn + ": REDO LSN: " + rec.readLong());
+                break;
+            case UPDATE_RECORD:
+                System.out.println(" (UPDATE)");
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+                Page before = readPageData(rec);
+                Page after = readPageData(rec);
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                System.out.println(lsn + ": before image table id " + before.getId().getTableId());
+                System.out.println(lsn + ": before image page number " + before.getId().getPageNumber());
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                System.out.println(lsn + ": after image table id " + after.getId().getTableId());
+                System.out.println(lsn + ": after image page number " + after.getId().getPageNumber());
 
-                    break;
+                break;
+            case TUPLE_UPDATE_RECORD:
+                System.out.println(" (TUPLE UPDATE)");
+                PageId pid = readPageId(rec);
+                int slot = rec.readInt();
+                System.out.println(lsn + ": table id " + pid.getTableId());
+                System.out.println(lsn + ": page number " + pid.getPageNumber() + ", slot " + slot);
+                try {
+                    System.out.println(lsn + ": before " + readTuple(rec, pid, slot));
+                    System.out.println(lsn + ": after " + readTuple(rec, pid, slot));
+                } catch (NoSuchElementException e) {
+                    System.out.println(lsn + ": (unknown table)");
+                    lsn = nextLsn(lsn, payload);
+                    continue;
                 }
-
-            } catch (EOFException e) {
-                //e.printStackTrace();
                 break;
             }
-        }
+            System.out.println(lsn + ": RECORD START OFFSET: " + rec.readLong());
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
+            lsn = nextLsn(lsn, payload);
+        }
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        if (!segments.isEmpty()) {
+            segments.lastEntry().getValue().force();
+            flushedLsn = currentOffset;
+        }
+    }
+
+    /** Force the log to disk at least up to and including the record at
+        the specified LSN, unless it already is.
+    */
+    public synchronized void force(long lsn) throws IOException {
+        if (lsn >= flushedLsn)
+            force();
+    }
+
+    /** The body of a log record, built in memory and framed by
+        appendRecord(). */
+    private static class Record extends DataOutputStream {
+        Record(int type, long tid) throws IOException {
+            super(new ByteArrayOutputStream());
+            writeInt(type);
+            writeLong(tid);
+        }
+
+        byte[] toByteArray() {
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
     }
 
 }
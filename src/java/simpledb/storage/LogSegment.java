@@ -0,0 +1,164 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * LogSegment is a single file of the segmented write-ahead log managed by
+ * {@link LogFile}.
+ * <p>
+ * A segment starts with a fixed header (magic number, segment number and the
+ * LSN of the first byte of record data in the segment) followed by framed log
+ * records. Each frame is an integer payload length, an integer CRC32 of the
+ * payload, and the payload itself. LSNs are contiguous across segments: the
+ * first LSN of a segment is the end LSN of the segment before it, so a record's
+ * LSN never changes once it is written, no matter which segments are retained.
+ */
+class LogSegment {
+
+    static final int MAGIC = 0x57414c53; // "WALS"
+    static final int HEADER_SIZE = LogFile.INT_SIZE + LogFile.LONG_SIZE + LogFile.LONG_SIZE;
+    static final int FRAME_SIZE = LogFile.INT_SIZE + LogFile.INT_SIZE;
+
+    final File file;
+    final long segmentNo;
+    final long startLsn;
+    private final FileChannel channel;
+    private long size; // bytes in the file, including the header
+
+    private LogSegment(File file, long segmentNo, long startLsn, FileChannel channel, long size) {
+        this.file = file;
+        this.segmentNo = segmentNo;
+        this.startLsn = startLsn;
+        this.channel = channel;
+        this.size = size;
+    }
+
+    /** Create a new, empty segment whose first record will get LSN startLsn */
+    static LogSegment create(File file, long segmentNo, long startLsn) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putLong(segmentNo).putLong(startLsn).flip();
+        writeFully(channel, header, 0);
+        return new LogSegment(file, segmentNo, startLsn, channel, HEADER_SIZE);
+    }
+
+    /** Open an existing segment, validating its header */
+    static LogSegment open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.size() < HEADER_SIZE || !readFully(channel, header, 0) || header.getInt() != MAGIC) {
+            channel.close();
+            throw new IOException("not a log segment: " + file);
+        }
+        long segmentNo = header.getLong();
+        long startLsn = header.getLong();
+        return new LogSegment(file, segmentNo, startLsn, channel, channel.size());
+    }
+
+    /** @return the LSN just past the last record of this segment */
+    long endLsn() {
+        return startLsn + (size - HEADER_SIZE);
+    }
+
+    /** @return the size of this segment in bytes, including its header */
+    long length() {
+        return size;
+    }
+
+    /** @return true if no records have been written to this segment */
+    boolean isEmpty() {
+        return size == HEADER_SIZE;
+    }
+
+    /**
+     * Append a record to the end of this segment.
+     *
+     * @param payload the record body
+     * @return the LSN of the appended record
+     */
+    long append(byte[] payload) throws IOException {
+        long lsn = endLsn();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE + payload.length);
+        frame.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        writeFully(channel, frame, size);
+        size += FRAME_SIZE + payload.length;
+        return lsn;
+    }
+
+    /**
+     * Read the record at the specified LSN.
+     *
+     * @return the payload of the record, or null if lsn is the end of this
+     *   segment or the record there is torn or fails its checksum
+     */
+    byte[] read(long lsn) throws IOException {
+        long pos = HEADER_SIZE + (lsn - startLsn);
+        if (pos < HEADER_SIZE || pos + FRAME_SIZE > size)
+            return null;
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+        if (!readFully(channel, frame, pos))
+            return null;
+        int length = frame.getInt();
+        int checksum = frame.getInt();
+        if (length < 0 || pos + FRAME_SIZE + length > size)
+            return null;
+        byte[] payload = new byte[length];
+        if (!readFully(channel, ByteBuffer.wrap(payload), pos + FRAME_SIZE))
+            return null;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum)
+            return null;
+        return payload;
+    }
+
+    /**
+     * Scan the records of this segment and cut off a torn or corrupt tail
+     * left behind by a crash in the middle of an append.
+     */
+    void truncateTornTail() throws IOException {
+        long lsn = startLsn;
+        byte[] payload;
+        while ((payload = read(lsn)) != null) {
+            lsn += FRAME_SIZE + payload.length;
+        }
+        long validSize = HEADER_SIZE + (lsn - startLsn);
+        if (validSize < size) {
+            channel.truncate(validSize);
+            size = validSize;
+        }
+    }
+
+    void force() throws IOException {
+        channel.force(true);
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    // returns false on a short read; the buffer is flipped for reading otherwise
+    private static boolean readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0)
+                return false;
+            pos += n;
+        }
+        buf.flip();
+        return true;
+    }
+}
@@ -1,7 +1,6 @@
 package simpledb.storage;
 
 import java.io.Serializable;
-import java.util.Objects;
 
 /**
  * A RecordId is a reference to a specific tuple on a specific page of a
@@ -67,7 +66,7 @@ public class RecordId implements Serializable {
     @Override
     public int hashCode() {
         // some code goes here
-        return Objects.hashCode(pageId.getPageNumber() + tupleNumber);
+        return 31 * pageId.hashCode() + tupleNumber;
 
     }
 
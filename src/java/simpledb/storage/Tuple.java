@@ -81,6 +81,28 @@ public class Tuple implements Serializable {
         return fields[i];
     }
 
+    /**
+     * Merge two Tuples into one, with the fields of t1 followed by those of
+     * t2, as a join returns them.
+     *
+     * @param td
+     *            The TupleDesc of the new Tuple, the merge of those of t1 and
+     *            t2
+     * @return the new Tuple
+     * @see TupleDesc#merge(TupleDesc, TupleDesc)
+     */
+    public static Tuple merge(TupleDesc td, Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
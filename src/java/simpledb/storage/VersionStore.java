@@ -0,0 +1,282 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * VersionStore keeps the old versions of heap tuples, for rolling back
+ * tuple-level changes and for multi-version (snapshot) reads.
+ * <p>
+ * Every tuple-level change to a heap page records a version: the previous
+ * contents of the slot, the transaction that replaced it, and when that
+ * transaction committed. While the writer is running the version is its
+ * undo information: an abort puts the old tuple back. When the writer
+ * commits, the version is stamped with the commit timestamp, which ends its
+ * lifetime.
+ * <p>
+ * A read-only transaction takes a snapshot timestamp when it starts and
+ * reads a page by undoing every change that is uncommitted or committed
+ * after its snapshot; it takes no locks at all. Timestamps come from the
+ * TransactionId sequence. A version that ended before the oldest running
+ * snapshot is dead and is reclaimed by a background vacuum task.
+ * <p>
+ * The on-disk heap page format has no room for per-tuple headers, so
+ * versions live in memory only, whether or not their page is cached. After
+ * a crash the write-ahead log undoes uncommitted changes instead, and
+ * snapshots don't survive a restart.
+ * <p>
+ * A page's version list is guarded by its own monitor. Uncommitted versions
+ * are additionally only added or removed while holding the page's monitor
+ * (taken first), so they always match the page contents.
+ *
+ * @Threadsafe
+ */
+class VersionStore {
+
+    /** How long the vacuum thread lingers without work before it exits, in ms */
+    private static final long VACUUM_KEEPALIVE = 1000;
+
+    /** Commit state of a writing transaction, shared by all its versions */
+    private static class Writer {
+        final TransactionId tid;
+        // 0 while the transaction runs
+        volatile long commitTs = 0;
+        // the pages it has versions on
+        final Set<PageId> pages = ConcurrentHashMap.newKeySet();
+
+        Writer(TransactionId tid) {
+            this.tid = tid;
+        }
+    }
+
+    /** The contents of a slot before a transaction changed it */
+    private static class Version {
+        final Writer writer;
+        final int slot;
+        // null if the slot was empty
+        final Tuple before;
+
+        Version(Writer writer, int slot, Tuple before) {
+            this.writer = writer;
+            this.slot = slot;
+            this.before = before;
+        }
+
+        boolean isUncommitted() {
+            return writer.commitTs == 0;
+        }
+    }
+
+    /** Told about every slot a rollback restores, before it does */
+    interface UndoListener {
+        void undo(int slot, Tuple current, Tuple restored) throws IOException;
+    }
+
+    // versions per page, oldest first
+    private final Map<PageId, List<Version>> versions = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Writer> writers = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+
+    private final ExecutorService vacuum = new ThreadPoolExecutor(0, 1, VACUUM_KEEPALIVE,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "vacuum");
+                t.setDaemon(true);
+                return t;
+            });
+    private final AtomicBoolean vacuumPending = new AtomicBoolean(false);
+
+    /**
+     * Record that tid changed a slot of the page. The caller holds the
+     * page's monitor.
+     *
+     * @param before the tuple that was in the slot, or null if it was empty
+     */
+    void record(TransactionId tid, HeapPage page, int slot, Tuple before) {
+        Writer w = writers.computeIfAbsent(tid, Writer::new);
+        w.pages.add(page.getId());
+        Version v = new Version(w, slot, before);
+        versions.compute(page.getId(), (pid, list) -> {
+            if (list == null)
+                list = new ArrayList<>();
+            synchronized (list) {
+                list.add(v);
+            }
+            return list;
+        });
+    }
+
+    /** @return the pages that have versions */
+    Set<PageId> pages() {
+        return versions.keySet();
+    }
+
+    private List<Version> select(PageId pid, Predicate<Version> p) {
+        List<Version> list = versions.get(pid);
+        List<Version> res = new ArrayList<>();
+        if (list != null) {
+            synchronized (list) {
+                for (Version v : list) {
+                    if (p.test(v))
+                        res.add(v);
+                }
+            }
+        }
+        return res;
+    }
+
+    private static void undo(HeapPage page, List<Version> changes, UndoListener listener) throws IOException {
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            Version v = changes.get(i);
+            if (listener != null)
+                listener.undo(v.slot, page.getTuple(v.slot), v.before);
+            page.restoreSlot(v.slot, v.before);
+        }
+    }
+
+    /** @return true if tid has uncommitted changes on the page */
+    boolean hasChanges(TransactionId tid, PageId pid) {
+        return !select(pid, v -> v.isUncommitted() && v.writer.tid.equals(tid)).isEmpty();
+    }
+
+    /**
+     * @return a transaction other than tid with uncommitted changes on
+     *   the page, or null if there is none
+     */
+    TransactionId uncommittedWriter(PageId pid, TransactionId tid) {
+        List<Version> others = select(pid, v -> v.isUncommitted() && !v.writer.tid.equals(tid));
+        return others.isEmpty() ? null : others.get(others.size() - 1).writer.tid;
+    }
+
+    /**
+     * Undo tid's changes to the page, newest first, and forget them. The
+     * caller holds the page's monitor.
+     *
+     * @param listener told about each undone change, to log it; may be null
+     * @return true if tid had changed the page
+     */
+    boolean rollback(TransactionId tid, HeapPage page, UndoListener listener) throws IOException {
+        List<Version> mine = select(page.getId(), v -> v.isUncommitted() && v.writer.tid.equals(tid));
+        if (mine.isEmpty())
+            return false;
+        undo(page, mine, listener);
+        removeIf(page.getId(), mine::contains);
+        return true;
+    }
+
+    /** Forget an aborted transaction, once its changes are rolled back */
+    void abort(TransactionId tid) {
+        writers.remove(tid);
+    }
+
+    /**
+     * Stamp tid's versions with a commit timestamp. Snapshots started
+     * before this don't see its changes; without any, its versions are
+     * reclaimed right away.
+     */
+    void commit(TransactionId tid) {
+        Writer w = writers.remove(tid);
+        if (w == null)
+            return;
+        synchronized (this) {
+            w.commitTs = TransactionId.nextTimestamp();
+        }
+        // only the pages tid changed: the versions of earlier writers are
+        // reclaimed in the background once the snapshots that see them end
+        if (snapshots.isEmpty())
+            vacuum(w.pages);
+    }
+
+    /** Take a snapshot for the read-only transaction tid */
+    synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, TransactionId.nextTimestamp());
+    }
+
+    /** Release the snapshot of tid, if any */
+    void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) != null && vacuumPending.compareAndSet(false, true)) {
+            vacuum.execute(() -> {
+                vacuumPending.set(false);
+                vacuum();
+            });
+        }
+    }
+
+    boolean hasSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * @return the tuples of the page that are visible to tid's snapshot
+     */
+    List<Tuple> visibleTuples(TransactionId tid, HeapPage page) {
+        long ts = snapshots.get(tid);
+        Tuple[] slots = new Tuple[page.getNumSlots()];
+        synchronized (page) {
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = page.getTuple(i);
+            }
+            // undo, newest first, whatever the snapshot shouldn't see
+            List<Version> list = versions.get(page.getId());
+            if (list != null) {
+                synchronized (list) {
+                    for (int i = list.size() - 1; i >= 0; i--) {
+                        Version v = list.get(i);
+                        long commitTs = v.writer.commitTs;
+                        if (commitTs == 0 || commitTs > ts)
+                            slots[v.slot] = v.before;
+                    }
+                }
+            }
+        }
+        List<Tuple> res = new ArrayList<>();
+        for (Tuple t : slots) {
+            if (t != null)
+                res.add(t);
+        }
+        return res;
+    }
+
+    private void removeIf(PageId pid, Predicate<Version> p) {
+        versions.computeIfPresent(pid, (k, list) -> {
+            synchronized (list) {
+                list.removeIf(p);
+                return list.isEmpty() ? null : list;
+            }
+        });
+    }
+
+    /**
+     * Reclaim the versions that ended before the oldest snapshot, which no
+     * one can see any more.
+     */
+    void vacuum() {
+        vacuum(versions.keySet());
+    }
+
+    private void vacuum(Set<PageId> pages) {
+        long horizon = Long.MAX_VALUE;
+        for (long ts : snapshots.values()) {
+            horizon = Math.min(horizon, ts);
+        }
+        final long oldest = horizon;
+        for (PageId pid : pages) {
+            removeIf(pid, v -> !v.isUncommitted() && v.writer.commitTs < oldest);
+        }
+    }
+
+    /** @return the number of versions kept, for testing */
+    int size() {
+        int n = 0;
+        for (List<Version> list : versions.values()) {
+            synchronized (list) {
+                n += list.size();
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb.transaction;
+
+import simpledb.common.Permissions;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+
+import java.util.Set;
+
+/**
+ * ConcurrencyControl is the scheme the BufferPool uses to keep concurrent
+ * transactions serializable. The BufferPool calls into it every time a
+ * transaction accesses a page or a tuple, and when the transaction ends.
+ * <p>
+ * {@link LockManager} implements pessimistic two-phase locking: accesses
+ * block until they are safe, and a transaction that gets to commit always
+ * succeeds. {@link OptimisticConcurrencyControl} lets every access through,
+ * has the BufferPool buffer the transaction's writes privately (see
+ * {@link #defersWrites}), and checks at commit time that nothing it read
+ * has changed.
+ */
+public interface ConcurrencyControl {
+
+    /**
+     * Called before tid reads (READ_ONLY) or writes (READ_WRITE) a page as
+     * a whole. May block.
+     */
+    void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException;
+
+    /**
+     * Like {@link #acquire}, but never blocks.
+     * @return true if tid may go ahead
+     */
+    boolean tryAcquire(TransactionId tid, PageId pid, Permissions perm);
+
+    /**
+     * Called before tid reads or writes individual tuples of a page, each of
+     * which it announces with {@link #acquireTuple}.
+     */
+    void acquireIntention(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException;
+
+    /** Called before tid reads or writes a single tuple. May block. */
+    void acquireTuple(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException;
+
+    /**
+     * Like {@link #acquireTuple}, but never blocks.
+     * @return true if tid may go ahead
+     */
+    boolean tryAcquireTuple(TransactionId tid, RecordId rid, Permissions perm);
+
+    /** @return true if some transaction has claimed the specified tuple */
+    boolean isLocked(RecordId rid);
+
+    /** @return true if tid has accessed the page and not released it */
+    boolean holdsLock(TransactionId tid, PageId pid);
+
+    /** @return the pages tid has accessed and not released */
+    Set<PageId> getLockedPages(TransactionId tid);
+
+    /** Forget that tid accessed a page it turned out not to need */
+    void release(TransactionId tid, PageId pid);
+
+    /**
+     * @return true if a transaction must write private copies of pages,
+     *   which the BufferPool installs only when it commits. If false the
+     *   transaction writes the shared pages in place.
+     */
+    boolean defersWrites();
+
+    /**
+     * Check whether tid may commit. The BufferPool calls this while no other
+     * transaction can commit, and installs tid's writes right after.
+     *
+     * @throws TransactionAbortedException if tid has to abort instead
+     */
+    void validate(TransactionId tid) throws TransactionAbortedException;
+
+    /**
+     * Called when tid has committed (after its writes are installed) or
+     * aborted; ends everything tid holds.
+     */
+    void transactionComplete(TransactionId tid, boolean commit);
+}
@@ -0,0 +1,517 @@
+package simpledb.transaction;
+
+import simpledb.common.DeadlockException;
+import simpledb.common.Permissions;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager implements hierarchical (multi-granularity) two-phase locking
+ * for the BufferPool.
+ * <p>
+ * Locks are taken on three levels: tables, pages and individual tuples
+ * (RecordIds). Before locking a page or a tuple a transaction takes an
+ * intention lock (IS or IX) on every enclosing level, so that a transaction
+ * locking a whole table or page conflicts with everyone working further
+ * down, while transactions that touch different tuples of the same page
+ * only share compatible intention locks.
+ * <p>
+ * The lock table is a hash table from the locked object to its lock state:
+ * the mode each transaction holds it in and a FIFO queue of waiting
+ * requests. The table is split into stripes, each protected by its own
+ * monitor, so that transactions locking different objects rarely contend on
+ * the same latch and an uncontended acquire is a single monitor enter plus a
+ * couple of hash lookups.
+ * <p>
+ * A transaction that already holds a lock can strengthen it; the upgrade
+ * request jumps to the head of the queue and is granted once the new mode is
+ * compatible with everyone else's. A transaction holding many tuple locks on
+ * one page or table has them replaced by a single lock on the page or table
+ * (lock escalation).
+ * <p>
+ * Blocked requests are recorded in a {@link WaitsForGraph}, which detects a
+ * deadlock the moment it forms and aborts one transaction of the cycle,
+ * chosen by the {@link VictimPolicy}. There are no lock timeouts.
+ * <p>
+ * This is the BufferPool's default {@link ConcurrencyControl}.
+ *
+ * @Threadsafe
+ */
+public class LockManager implements ConcurrencyControl {
+
+    /** Number of independently latched partitions of the lock table. Must be a power of two. */
+    private static final int NUM_STRIPES = 64;
+
+    /** A transaction holding more tuple locks than this on one page escalates to a page lock. */
+    private static final int PAGE_ESCALATION_THRESHOLD = 64;
+
+    /** A transaction holding more tuple and escalated page locks than this
+        in one table escalates to a table lock. */
+    private static final int TABLE_ESCALATION_THRESHOLD = 1024;
+
+    /** How the transaction to abort is chosen when a deadlock is found. */
+    public enum VictimPolicy {
+        /** Abort the most recently started transaction of the cycle. */
+        YOUNGEST,
+        /** Abort the transaction holding the fewest locks, i.e. the one
+            that has done the least work; ties go to the youngest. */
+        FEWEST_LOCKS
+    }
+
+    /** The lock modes of multi-granularity locking. */
+    enum LockMode {
+        IS, IX, S, SIX, X;
+
+        private static final boolean[][] COMPATIBLE = {
+                //          IS     IX     S      SIX    X
+                /* IS  */ { true,  true,  true,  true,  false },
+                /* IX  */ { true,  true,  false, false, false },
+                /* S   */ { true,  false, true,  false, false },
+                /* SIX */ { true,  false, false, false, false },
+                /* X   */ { false, false, false, false, false },
+        };
+
+        boolean isCompatibleWith(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return true if holding this mode implies holding other */
+        boolean covers(LockMode other) {
+            switch (this) {
+                case X:
+                    return true;
+                case SIX:
+                    return other != X;
+                case S:
+                    return other == S || other == IS;
+                case IX:
+                    return other == IX || other == IS;
+                default:
+                    return other == IS;
+            }
+        }
+
+        /** @return the weakest mode covering both this and other */
+        LockMode join(LockMode other) {
+            if (covers(other))
+                return this;
+            if (other.covers(this))
+                return other;
+            // only S and IX are incomparable
+            return SIX;
+        }
+
+        static LockMode of(Permissions perm) {
+            return perm == Permissions.READ_WRITE ? X : S;
+        }
+
+        static LockMode intentionOf(Permissions perm) {
+            return perm == Permissions.READ_WRITE ? IX : IS;
+        }
+    }
+
+    /** Lock table key of a whole table */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId;
+        }
+    }
+
+    private static class Request {
+        final TransactionId tid;
+        final LockMode mode;
+
+        Request(TransactionId tid, LockMode mode) {
+            this.tid = tid;
+            this.mode = mode;
+        }
+    }
+
+    private static class LockState {
+        final Map<TransactionId, LockMode> holders = new HashMap<>();
+        final LinkedList<Request> waiters = new LinkedList<>();
+
+        boolean isHeldBy(TransactionId tid, LockMode mode) {
+            LockMode held = holders.get(tid);
+            return held != null && held.covers(mode);
+        }
+
+        // the mode tid ends up holding if mode is granted
+        LockMode target(TransactionId tid, LockMode mode) {
+            LockMode held = holders.get(tid);
+            return held == null ? mode : held.join(mode);
+        }
+
+        boolean isCompatible(TransactionId tid, LockMode mode) {
+            LockMode target = target(tid, mode);
+            for (Map.Entry<TransactionId, LockMode> e : holders.entrySet()) {
+                if (!e.getKey().equals(tid) && !e.getValue().isCompatibleWith(target))
+                    return false;
+            }
+            return true;
+        }
+
+        void grant(TransactionId tid, LockMode mode) {
+            holders.merge(tid, mode, LockMode::join);
+        }
+
+        boolean isFree() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+    }
+
+    private static class Stripe {
+        final Map<Object, LockState> locks = new HashMap<>();
+    }
+
+    // the tuple locks of one transaction, grouped for escalation
+    private static class TupleLocks {
+        final Map<PageId, Set<RecordId>> byPage = new HashMap<>();
+        // tuple locks plus escalated page locks, per table
+        final Map<Integer, Integer> byTable = new HashMap<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+    private final Map<TransactionId, Set<Object>> locksByTid = new ConcurrentHashMap<>();
+    private final Map<TransactionId, TupleLocks> tupleLocksByTid = new ConcurrentHashMap<>();
+    private final WaitsForGraph waitsFor = new WaitsForGraph(VictimPolicy.YOUNGEST, this::lockCount);
+
+    public LockManager() {
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /** Set the policy used to pick the transaction aborted to break a deadlock */
+    public void setVictimPolicy(VictimPolicy policy) {
+        waitsFor.setPolicy(policy);
+    }
+
+    private int lockCount(TransactionId tid) {
+        Set<Object> locks = locksByTid.get(tid);
+        return locks == null ? 0 : locks.size();
+    }
+
+    // the transactions req is waiting for: conflicting holders, and
+    // everyone queued ahead of it
+    private static Set<TransactionId> blockersOf(LockState state, Request req) {
+        Set<TransactionId> blockers = new HashSet<>();
+        LockMode target = state.target(req.tid, req.mode);
+        for (Map.Entry<TransactionId, LockMode> e : state.holders.entrySet()) {
+            if (!e.getValue().isCompatibleWith(target))
+                blockers.add(e.getKey());
+        }
+        for (Request r : state.waiters) {
+            if (r == req)
+                break;
+            blockers.add(r.tid);
+        }
+        blockers.remove(req.tid);
+        return blockers;
+    }
+
+    private Stripe stripeFor(Object key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (NUM_STRIPES - 1)];
+    }
+
+    /**
+     * Acquire a lock on the specified page, blocking until it is granted.
+     * READ_ONLY requests a shared lock and READ_WRITE an exclusive one, plus
+     * the matching intention lock on the table; a transaction that already
+     * holds a strong enough lock returns immediately.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen as
+     *   the victim of a deadlock, or the thread was interrupted
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        lock(tid, new TableKey(pid.getTableId()), LockMode.intentionOf(perm));
+        lock(tid, pid, LockMode.of(perm));
+    }
+
+    /**
+     * Like {@link #acquire}, but never blocks.
+     *
+     * @return true if the lock was granted
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, Permissions perm) {
+        return tryLock(tid, new TableKey(pid.getTableId()), LockMode.intentionOf(perm))
+                && tryLock(tid, pid, LockMode.of(perm));
+    }
+
+    /**
+     * Acquire intention locks (IS for READ_ONLY, IX for READ_WRITE) on the
+     * specified page and its table, in preparation for locking individual
+     * tuples of the page.
+     */
+    public void acquireIntention(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        LockMode intention = LockMode.intentionOf(perm);
+        lock(tid, new TableKey(pid.getTableId()), intention);
+        lock(tid, pid, intention);
+    }
+
+    /**
+     * Acquire a shared (READ_ONLY) or exclusive (READ_WRITE) lock on a single
+     * tuple, along with the intention locks on its page and table. Returns
+     * immediately if the transaction holds a covering lock on the page or
+     * table. May escalate the transaction's tuple locks to a page or table
+     * lock.
+     */
+    public void acquireTuple(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        LockMode mode = LockMode.of(perm);
+        LockMode intention = LockMode.intentionOf(perm);
+        PageId pid = rid.getPageId();
+        TableKey table = new TableKey(pid.getTableId());
+        if (holdsCovering(tid, table, mode))
+            return;
+        lock(tid, table, intention);
+        if (holdsCovering(tid, pid, mode))
+            return;
+        lock(tid, pid, intention);
+        lock(tid, rid, mode);
+        escalateIfNeeded(tid, rid);
+    }
+
+    /**
+     * Like {@link #acquireTuple}, but never blocks and never escalates; the
+     * caller must already hold the intention locks on the tuple's page.
+     *
+     * @return true if the lock was granted
+     */
+    public boolean tryAcquireTuple(TransactionId tid, RecordId rid, Permissions perm) {
+        LockMode mode = LockMode.of(perm);
+        PageId pid = rid.getPageId();
+        if (holdsCovering(tid, new TableKey(pid.getTableId()), mode) || holdsCovering(tid, pid, mode))
+            return true;
+        if (!tryLock(tid, rid, mode))
+            return false;
+        noteTupleLock(tid, rid);
+        return true;
+    }
+
+    /** @return true if any transaction holds a lock on the specified tuple */
+    public boolean isLocked(RecordId rid) {
+        Stripe stripe = stripeFor(rid);
+        synchronized (stripe) {
+            return stripe.locks.containsKey(rid);
+        }
+    }
+
+    private boolean holdsCovering(TransactionId tid, Object key, LockMode mode) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            LockState state = stripe.locks.get(key);
+            return state != null && state.isHeldBy(tid, mode);
+        }
+    }
+
+    private LockMode heldMode(TransactionId tid, Object key) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            LockState state = stripe.locks.get(key);
+            return state == null ? null : state.holders.get(tid);
+        }
+    }
+
+    /** Grant the lock if no one has to wait for that, without queueing */
+    private boolean tryLock(TransactionId tid, Object key, LockMode mode) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            LockState state = stripe.locks.computeIfAbsent(key, k -> new LockState());
+            if (state.isHeldBy(tid, mode))
+                return true;
+            if (!state.waiters.isEmpty() || !state.isCompatible(tid, mode)) {
+                if (state.isFree())
+                    stripe.locks.remove(key);
+                return false;
+            }
+            state.grant(tid, mode);
+        }
+        locksByTid.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(key);
+        return true;
+    }
+
+    private void lock(TransactionId tid, Object key, LockMode mode)
+            throws TransactionAbortedException {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            LockState state = stripe.locks.computeIfAbsent(key, k -> new LockState());
+            if (state.isHeldBy(tid, mode))
+                return;
+            if (state.waiters.isEmpty() && state.isCompatible(tid, mode)) {
+                state.grant(tid, mode);
+                locksByTid.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(key);
+                return;
+            }
+
+            // an upgrade goes ahead of everyone else: no request behind it
+            // can be granted while it holds its current lock anyway
+            Request req = new Request(tid, mode);
+            if (state.holders.containsKey(tid))
+                state.waiters.addFirst(req);
+            else
+                state.waiters.addLast(req);
+
+            try {
+                while (state.waiters.getFirst() != req || !state.isCompatible(tid, mode)) {
+                    // the set of blockers may have changed since we last woke up
+                    waitsFor.waitFor(tid, blockersOf(state, req));
+                    stripe.wait();
+                }
+                state.grant(tid, mode);
+                locksByTid.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(key);
+            } catch (DeadlockException e) {
+                throw new TransactionAbortedException();
+            } catch (InterruptedException e) {
+                // an interrupt is how another transaction tells us we are
+                // a deadlock victim; anything else is passed on
+                if (!waitsFor.isVictim(tid))
+                    Thread.currentThread().interrupt();
+                throw new TransactionAbortedException();
+            } finally {
+                // also runs if the waiting thread is stopped, so an abandoned
+                // request never blocks the queue
+                waitsFor.remove(tid);
+                state.waiters.remove(req);
+                if (state.isFree())
+                    stripe.locks.remove(key);
+                stripe.notifyAll();
+            }
+        }
+    }
+
+    private void unlock(TransactionId tid, Object key) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            LockState state = stripe.locks.get(key);
+            if (state != null && state.holders.remove(tid) != null) {
+                if (state.isFree())
+                    stripe.locks.remove(key);
+                stripe.notifyAll();
+            }
+        }
+        Set<Object> locks = locksByTid.get(tid);
+        if (locks != null)
+            locks.remove(key);
+    }
+
+    private TupleLocks noteTupleLock(TransactionId tid, RecordId rid) {
+        TupleLocks tuples = tupleLocksByTid.computeIfAbsent(tid, k -> new TupleLocks());
+        PageId pid = rid.getPageId();
+        synchronized (tuples) {
+            if (tuples.byPage.computeIfAbsent(pid, k -> new HashSet<>()).add(rid))
+                tuples.byTable.merge(pid.getTableId(), 1, Integer::sum);
+        }
+        return tuples;
+    }
+
+    private void escalateIfNeeded(TransactionId tid, RecordId rid) throws TransactionAbortedException {
+        TupleLocks tuples = noteTupleLock(tid, rid);
+        PageId pid = rid.getPageId();
+        List<RecordId> released = new ArrayList<>();
+        Object key;
+        synchronized (tuples) {
+            if (tuples.byTable.getOrDefault(pid.getTableId(), 0) > TABLE_ESCALATION_THRESHOLD) {
+                key = new TableKey(pid.getTableId());
+                Iterator<Map.Entry<PageId, Set<RecordId>>> it = tuples.byPage.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<PageId, Set<RecordId>> e = it.next();
+                    if (e.getKey().getTableId() == pid.getTableId()) {
+                        released.addAll(e.getValue());
+                        it.remove();
+                    }
+                }
+                tuples.byTable.remove(pid.getTableId());
+            } else if (tuples.byPage.get(pid).size() > PAGE_ESCALATION_THRESHOLD) {
+                key = pid;
+                released.addAll(tuples.byPage.remove(pid));
+                tuples.byTable.merge(pid.getTableId(), 1 - released.size(), Integer::sum);
+            } else {
+                return;
+            }
+        }
+        LockMode mode = LockMode.S;
+        for (RecordId r : released) {
+            if (heldMode(tid, r) == LockMode.X) {
+                mode = LockMode.X;
+                break;
+            }
+        }
+        lock(tid, key, mode);
+        for (RecordId r : released) {
+            unlock(tid, r);
+        }
+    }
+
+    /**
+     * Release the lock the specified transaction holds on a page, if any.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        unlock(tid, pid);
+    }
+
+    /**
+     * Release every lock held by the specified transaction.
+     */
+    public void releaseAll(TransactionId tid) {
+        tupleLocksByTid.remove(tid);
+        Set<Object> locks = locksByTid.remove(tid);
+        if (locks == null)
+            return;
+        for (Object key : locks) {
+            unlock(tid, key);
+        }
+    }
+
+    /** Transactions write shared pages in place, under exclusive locks */
+    public boolean defersWrites() {
+        return false;
+    }
+
+    /** Nothing to check: a transaction holding its locks can always commit */
+    public void validate(TransactionId tid) {
+    }
+
+    /** Release every lock of the transaction (strict 2PL) */
+    public void transactionComplete(TransactionId tid, boolean commit) {
+        releaseAll(tid);
+    }
+
+    /** Return true if the specified transaction has a lock (of any mode) on the specified page */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        return heldMode(tid, pid) != null;
+    }
+
+    /**
+     * @return the pages the specified transaction holds locks (of any mode) on
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<Object> locks = locksByTid.get(tid);
+        Set<PageId> pages = new HashSet<>();
+        if (locks != null) {
+            for (Object key : locks) {
+                if (key instanceof PageId)
+                    pages.add((PageId) key);
+            }
+        }
+        return pages;
+    }
+}
@@ -0,0 +1,121 @@
+package simpledb.transaction;
+
+import simpledb.common.Permissions;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * OptimisticConcurrencyControl implements backward-validating optimistic
+ * concurrency control, for short transactions that rarely conflict.
+ * <p>
+ * Nothing ever blocks. Every page carries a version number, bumped each time
+ * a committing transaction installs a write to it. A transaction records the
+ * version of every page it reads, and writes private copies of pages that
+ * the BufferPool keeps for it (the shared pages only ever hold committed
+ * data). At commit the BufferPool calls {@link #validate} and, if no page
+ * the transaction read has changed since, installs its writes; validation
+ * and installation happen atomically with respect to other commits. If
+ * some page has changed, the transaction is aborted and has to be retried.
+ * <p>
+ * Versions are kept per page, so two transactions that touch different
+ * tuples of a page still conflict.
+ *
+ * @Threadsafe
+ */
+public class OptimisticConcurrencyControl implements ConcurrencyControl {
+
+    private final Map<PageId, Long> pageVersions = new ConcurrentHashMap<>();
+    // page -> version when first read, per transaction
+    private final Map<TransactionId, Map<PageId, Long>> readSets = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Set<PageId>> writeSets = new ConcurrentHashMap<>();
+
+    private long versionOf(PageId pid) {
+        return pageVersions.getOrDefault(pid, 0L);
+    }
+
+    private void access(TransactionId tid, PageId pid, Permissions perm) {
+        readSets.computeIfAbsent(tid, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(pid, this::versionOf);
+        if (perm == Permissions.READ_WRITE) {
+            writeSets.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+        }
+    }
+
+    public void acquire(TransactionId tid, PageId pid, Permissions perm) {
+        access(tid, pid, perm);
+    }
+
+    public boolean tryAcquire(TransactionId tid, PageId pid, Permissions perm) {
+        access(tid, pid, perm);
+        return true;
+    }
+
+    public void acquireIntention(TransactionId tid, PageId pid, Permissions perm) {
+        access(tid, pid, perm);
+    }
+
+    /** Tuples are covered by the version of their page */
+    public void acquireTuple(TransactionId tid, RecordId rid, Permissions perm) {
+        access(tid, rid.getPageId(), perm);
+    }
+
+    public boolean tryAcquireTuple(TransactionId tid, RecordId rid, Permissions perm) {
+        access(tid, rid.getPageId(), perm);
+        return true;
+    }
+
+    public boolean isLocked(RecordId rid) {
+        return false;
+    }
+
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Map<PageId, Long> reads = readSets.get(tid);
+        return reads != null && reads.containsKey(pid);
+    }
+
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Map<PageId, Long> reads = readSets.get(tid);
+        return reads == null ? new HashSet<>() : new HashSet<>(reads.keySet());
+    }
+
+    public void release(TransactionId tid, PageId pid) {
+        Map<PageId, Long> reads = readSets.get(tid);
+        if (reads != null)
+            reads.remove(pid);
+        Set<PageId> writes = writeSets.get(tid);
+        if (writes != null)
+            writes.remove(pid);
+    }
+
+    public boolean defersWrites() {
+        return true;
+    }
+
+    /**
+     * @throws TransactionAbortedException if another transaction has
+     *   committed a write to a page tid read since tid read it
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException {
+        Map<PageId, Long> reads = readSets.get(tid);
+        if (reads == null)
+            return;
+        for (Map.Entry<PageId, Long> e : reads.entrySet()) {
+            if (versionOf(e.getKey()) != e.getValue())
+                throw new TransactionAbortedException();
+        }
+    }
+
+    /** On commit, bump the version of every page tid wrote */
+    public void transactionComplete(TransactionId tid, boolean commit) {
+        readSets.remove(tid);
+        Set<PageId> writes = writeSets.remove(tid);
+        if (commit && writes != null) {
+            for (PageId pid : writes) {
+                pageVersions.merge(pid, 1L, Long::sum);
+            }
+        }
+    }
+}
@@ -11,15 +11,29 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly if true, the transaction can't modify the database
+     *   and reads heap files from a snapshot taken when it starts, without
+     *   locking
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -31,9 +45,26 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
-        transactionComplete(false);
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Finish the transaction
+     *
+     * @throws TransactionAbortedException if the concurrency control scheme
+     *   did not let the transaction commit; it has been aborted instead
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started) {
+            try {
+                // validate, write the commit record and release locks;
+                // a failed validation writes the abort record instead
+                Database.getBufferPool().commitTransaction(tid);
+            } finally {
+                started = false;
+            }
+        }
     }
 
     /** Finish the transaction */
@@ -45,20 +76,10 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            //write abort log record and rollback transaction
-            if (abort) {
-                Database.getLogFile().logAbort(tid); //does rollback too
-            } 
-
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-
-            // write commit log record
-            if (!abort) {
-            	Database.getLogFile().logCommit(tid);
-            }
+            // write the commit or abort log record (an abort rolls the
+            // transaction back too) and release locks
+            Database.getBufferPool().transactionComplete(tid, !abort);
 
-            //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
         }
     }
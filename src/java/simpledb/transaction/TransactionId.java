@@ -21,6 +21,15 @@ public class TransactionId implements Serializable {
         return myid;
     }
 
+    /**
+     * Draw a timestamp from the same monotonic sequence as transaction
+     * ids. Used for the commit and snapshot timestamps of multi-version
+     * reads.
+     */
+    public static long nextTimestamp() {
+        return counter.getAndIncrement();
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
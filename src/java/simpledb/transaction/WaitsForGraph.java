@@ -0,0 +1,132 @@
+package simpledb.transaction;
+
+import simpledb.common.DeadlockException;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * WaitsForGraph tracks which transactions are blocked on which others in the
+ * LockManager and detects deadlocks incrementally: every time a transaction
+ * blocks (or wakes up and has to block again), its outgoing edges are
+ * replaced and the graph is searched for a cycle through it. Since a new
+ * cycle can only be closed by the edges just added, this finds every
+ * deadlock as soon as it forms, without a detector thread or timeouts.
+ * <p>
+ * When a cycle is found one transaction on it is chosen as the victim by the
+ * configured {@link LockManager.VictimPolicy}. If the victim is the
+ * transaction that just blocked, it is told to abort right away; otherwise
+ * the victim is marked and its waiting thread is interrupted.
+ * <p>
+ * The graph has its own monitor, which is always taken after (never before)
+ * a lock-table stripe.
+ */
+class WaitsForGraph {
+
+    private static class Waiter {
+        final Thread thread;
+        Set<TransactionId> blockers = Collections.emptySet();
+        boolean victim = false;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    private final Map<TransactionId, Waiter> waiters = new HashMap<>();
+    private final ToIntFunction<TransactionId> lockCount;
+    private LockManager.VictimPolicy policy;
+
+    /**
+     * @param lockCount the number of locks a transaction holds, used by the
+     *   FEWEST_LOCKS victim policy
+     */
+    WaitsForGraph(LockManager.VictimPolicy policy, ToIntFunction<TransactionId> lockCount) {
+        this.policy = policy;
+        this.lockCount = lockCount;
+    }
+
+    synchronized void setPolicy(LockManager.VictimPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Record that tid (on the calling thread) is blocked by the specified
+     * transactions, and check whether that closes a cycle.
+     *
+     * @throws DeadlockException if tid has been chosen as a deadlock victim,
+     *   now or earlier by another transaction
+     */
+    synchronized void waitFor(TransactionId tid, Set<TransactionId> blockers) throws DeadlockException {
+        Waiter w = waiters.computeIfAbsent(tid, k -> new Waiter(Thread.currentThread()));
+        if (w.victim)
+            throw new DeadlockException();
+        w.blockers = blockers;
+
+        List<TransactionId> cycle = findCycle(tid);
+        if (cycle == null)
+            return;
+        TransactionId victim = chooseVictim(cycle);
+        if (victim.equals(tid)) {
+            w.victim = true;
+            throw new DeadlockException();
+        }
+        Waiter vw = waiters.get(victim);
+        vw.victim = true;
+        vw.thread.interrupt();
+    }
+
+    /**
+     * @return true if tid was chosen as a deadlock victim while it was waiting
+     */
+    synchronized boolean isVictim(TransactionId tid) {
+        Waiter w = waiters.get(tid);
+        return w != null && w.victim;
+    }
+
+    /**
+     * Record that tid is no longer waiting. Must be called on the thread
+     * that waited; clears an interrupt that was only sent to pick it as
+     * a victim.
+     */
+    synchronized void remove(TransactionId tid) {
+        Waiter w = waiters.remove(tid);
+        if (w != null && w.victim)
+            Thread.interrupted();
+    }
+
+    // depth-first search for a path from start back to itself; victims
+    // that are already on their way out don't block anyone for long
+    private List<TransactionId> findCycle(TransactionId start) {
+        Deque<TransactionId> path = new ArrayDeque<>();
+        return findCycle(start, start, path, new HashSet<>()) ? new ArrayList<>(path) : null;
+    }
+
+    private boolean findCycle(TransactionId node, TransactionId start, Deque<TransactionId> path,
+                              Set<TransactionId> visited) {
+        Waiter w = waiters.get(node);
+        if (w == null || w.victim)
+            return false;
+        path.addLast(node);
+        for (TransactionId next : w.blockers) {
+            if (next.equals(start))
+                return true;
+            if (visited.add(next) && findCycle(next, start, path, visited))
+                return true;
+        }
+        path.removeLast();
+        return false;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        Comparator<TransactionId> youngest = Comparator.comparingLong(TransactionId::getId);
+        switch (policy) {
+            case FEWEST_LOCKS:
+                return Collections.min(cycle, Comparator.comparingInt(lockCount)
+                        .thenComparing(youngest.reversed()));
+            case YOUNGEST:
+            default:
+                return Collections.max(cycle, youngest);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+import java.util.function.IntPredicate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class AccessPathTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+    private static final int MAX_VALUE = 1000;
+
+    private BTreeFile bf;
+    private HeapFile hf;
+    private List<List<Integer>> btreeTuples;
+    private List<List<Integer>> heapTuples;
+    private Map<String, TableStats> stats;
+    private TransactionId tid;
+
+    /**
+     * Statistics of a table with values spread evenly over [0, MAX_VALUE)
+     */
+    private static TableStats uniformStats(int tableid, int pages) {
+        return new TableStats(tableid, 1000) {
+            @Override
+            public double estimateScanCost() {
+                return pages * 1000.0;
+            }
+
+            @Override
+            public int estimateTableCardinality(double selectivityFactor) {
+                return (int) (ROWS * selectivityFactor);
+            }
+
+            @Override
+            public double estimateSelectivity(int field, Op op, Field constant) {
+                double v = ((IntField) constant).getValue();
+                switch (op) {
+                case EQUALS:
+                    return 1.0 / MAX_VALUE;
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQ:
+                    return Math.min(1.0, Math.max(0.0, (MAX_VALUE - v) / MAX_VALUE));
+                case LESS_THAN:
+                case LESS_THAN_OR_EQ:
+                    return Math.min(1.0, Math.max(0.0, v / MAX_VALUE));
+                default:
+                    return 1.0;
+                }
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        btreeTuples = new ArrayList<>();
+        BTreeUtility.generateRandomTuples(2, ROWS, MAX_VALUE, null, btreeTuples);
+        File bfile = File.createTempFile("access", ".dat");
+        bfile.deleteOnExit();
+        bf = BTreeUtility.openBTreeFile(2, "c", bfile, 0);
+        TransactionId load = new TransactionId();
+        for (List<Integer> t : btreeTuples) {
+            Database.getBufferPool().insertTuple(load, bf.getId(),
+                    BTreeUtility.getBTreeTuple(t.stream().mapToInt(Integer::intValue).toArray()));
+        }
+        Database.getBufferPool().transactionComplete(load);
+        heapTuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, heapTuples, "h");
+        File f = File.createTempFile("access", ".dat");
+        f.deleteOnExit();
+        SecondaryIndex.create("access_h1", hf, 1, new int[] { 2 }, f);
+
+        stats = new HashMap<>();
+        stats.put(Database.getCatalog().getTableName(bf.getId()), uniformStats(bf.getId(), bf.numPages()));
+        stats.put(Database.getCatalog().getTableName(hf.getId()), uniformStats(hf.getId(), hf.numPages()));
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static OpIterator leaf(OpIterator op) {
+        while (op instanceof Operator)
+            op = ((Operator) op).getChildren()[0];
+        return op;
+    }
+
+    private static int count(OpIterator plan) throws Exception {
+        int n = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            n++;
+        }
+        plan.close();
+        return n;
+    }
+
+    private static int count(List<List<Integer>> tuples, int field, IntPredicate p) {
+        int n = 0;
+        for (List<Integer> t : tuples) {
+            if (p.test(t.get(field)))
+                n++;
+        }
+        return n;
+    }
+
+    private OpIterator plan(int tableid, String field, Op op, int value, String... select) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(tableid, "t");
+        lp.addFilter("t." + field, op, Integer.toString(value));
+        for (String s : select)
+            lp.addProjectField(s, null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    private OpIterator btreePlan(Op op, int value) throws Exception {
+        return plan(bf.getId(), "c0", op, value, "*");
+    }
+
+    @Test
+    public void pointQueryUsesIndex() throws Exception {
+        int value = btreeTuples.get(0).get(0);
+        OpIterator plan = btreePlan(Op.EQUALS, value);
+        OpIterator scan = leaf(plan);
+        assertTrue(scan instanceof BTreeScan);
+        assertEquals(count(btreeTuples, 0, v -> v == value), count(plan));
+    }
+
+    @Test
+    public void rangeQueriesUseIndex() throws Exception {
+        OpIterator plan = btreePlan(Op.GREATER_THAN, 900);
+        assertTrue(leaf(plan) instanceof BTreeScan);
+        assertEquals(count(btreeTuples, 0, v -> v > 900), count(plan));
+
+        plan = btreePlan(Op.LESS_THAN_OR_EQ, 50);
+        assertTrue(leaf(plan) instanceof BTreeScan);
+        assertEquals(count(btreeTuples, 0, v -> v <= 50), count(plan));
+    }
+
+    /**
+     * A covering secondary index answers selective queries, but the table is
+     * cheaper to scan than most of the index
+     */
+    @Test
+    public void indexOnlyScanWhenSelective() throws Exception {
+        OpIterator plan = plan(hf.getId(), "h1", Op.GREATER_THAN, 950, "t.h1", "t.h2");
+        assertTrue(leaf(plan) instanceof IndexOnlyScan);
+        assertEquals(count(heapTuples, 1, v -> v > 950), count(plan));
+
+        plan = plan(hf.getId(), "h1", Op.GREATER_THAN, 10, "t.h1", "t.h2");
+        assertTrue(leaf(plan) instanceof SeqScan);
+        assertEquals(count(heapTuples, 1, v -> v > 10), count(plan));
+    }
+
+    /**
+     * A snapshot reads the table rather than the index, which it would have
+     * to lock
+     */
+    @Test
+    public void snapshotScansTable() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        Database.getBufferPool().beginSnapshot(tid);
+        OpIterator plan = plan(hf.getId(), "h1", Op.GREATER_THAN, 950, "t.h1", "t.h2");
+        assertTrue(leaf(plan) instanceof SeqScan);
+        assertEquals(count(heapTuples, 1, v -> v > 950), count(plan));
+    }
+
+    /**
+     * Without a way to fetch the tuples of index entries, a secondary index
+     * only helps queries it covers
+     */
+    @Test
+    public void uncoveredQueriesScanTable() throws Exception {
+        OpIterator plan = plan(hf.getId(), "h1", Op.EQUALS, 5, "*");
+        assertTrue(leaf(plan) instanceof SeqScan);
+        assertEquals(count(heapTuples, 1, v -> v == 5), count(plan));
+
+        plan = plan(hf.getId(), "h1", Op.EQUALS, 5, "t.h0");
+        assertTrue(leaf(plan) instanceof SeqScan);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AccessPathTest.class);
+    }
+}
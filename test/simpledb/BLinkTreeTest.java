@@ -0,0 +1,268 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.index.BTreeUtility.BTreeWriter;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BLinkTreeTest extends SimpleDbTestBase {
+	private BLinkTreeFile bf;
+	private BufferPool bp;
+	private final List<Integer> keys = new ArrayList<>();
+
+	private static final int PAGE_SIZE = 512;
+	private static final int ROWS = 10000;
+	private static final int ROWS_PER_TRANSACTION = 1000;
+	private static final int POLL_INTERVAL = 100;
+	private static final int TIMEOUT = 30000;
+
+	@Before
+	public void setUp() throws Exception {
+		// small pages, so that the tree has a few levels
+		BufferPool.setPageSize(PAGE_SIZE);
+		Database.reset();
+		bp = Database.resetBufferPool(500);
+		File f = File.createTempFile("blink", "dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.createEmptyBLinkTreeFile(f.getAbsolutePath(), 2, 0);
+
+		Random rand = new Random(0);
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < ROWS; i++) {
+			int key = rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+			keys.add(key);
+			bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+			if((i + 1) % ROWS_PER_TRANSACTION == 0) {
+				bp.transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		bp.transactionComplete(tid);
+	}
+
+	@After
+	public void tearDown() {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private List<Integer> scan(TransactionId tid) throws Exception {
+		List<Integer> res = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			res.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		return res;
+	}
+
+	private int search(TransactionId tid, int key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	private BTreePageId getRootId(TransactionId tid) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		return rootPtr.getRootId();
+	}
+
+	/**
+	 * Check that the high key of every page of a level bounds the keys of the page
+	 * and of its subtree from above, and the keys of the next page from below, and
+	 * that the last page of each level has none.
+	 */
+	private void checkHighKeys() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreePageId pid = getRootId(tid);
+		int levels = 1;
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreePageId first = null;
+			Field lowKey = null;
+			for(BTreePageId p = pid; p != null; ) {
+				BLinkInternalPage page = (BLinkInternalPage) bp.getPage(tid, p, Permissions.READ_ONLY);
+				Iterator<BTreeEntry> it = page.iterator();
+				while(it.hasNext()) {
+					BTreeEntry e = it.next();
+					if(first == null) {
+						first = e.getLeftChild();
+					}
+					assertTrue(lowKey == null || e.getKey().compare(Op.GREATER_THAN_OR_EQ, lowKey));
+					assertTrue(page.covers(e.getKey()));
+				}
+				lowKey = page.getHighKey();
+				p = page.getRightLinkId();
+				assertEquals(p == null, lowKey == null);
+			}
+			pid = first;
+			levels++;
+		}
+		assertTrue(levels >= 3);
+
+		Field lowKey = null;
+		for(BTreePageId p = pid; p != null; ) {
+			BLinkLeafPage page = (BLinkLeafPage) bp.getPage(tid, p, Permissions.READ_ONLY);
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				Field key = it.next().getField(0);
+				assertTrue(lowKey == null || key.compare(Op.GREATER_THAN_OR_EQ, lowKey));
+				assertTrue(page.covers(key));
+			}
+			lowKey = page.getHighKey();
+			p = page.getRightSiblingId();
+			assertEquals(p == null, lowKey == null);
+		}
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * Inserts split pages on every level, linking each page to the next
+	 */
+	@Test
+	public void insertsBuildLinkedLevels() throws Exception {
+		checkHighKeys();
+
+		TransactionId tid = new TransactionId();
+		List<Integer> expected = new ArrayList<>(keys);
+		Collections.sort(expected);
+		assertEquals(expected, scan(tid));
+		for(int i = 0; i < 100; i++) {
+			int key = keys.get(i);
+			assertEquals(Collections.frequency(keys, key), search(tid, key));
+		}
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A search reads the root pointer and internal pages without locking them
+	 */
+	@Test
+	public void searchLocksOnlyLeaves() throws Exception {
+		TransactionId t = new TransactionId();
+		BTreePageId rootId = getRootId(t);
+		bp.transactionComplete(t);
+
+		TransactionId tid = new TransactionId();
+		assertTrue(search(tid, keys.get(0)) > 0);
+		assertFalse(bp.holdsLock(tid, BTreeRootPtrPage.getId(bf.getId())));
+		assertFalse(bp.holdsLock(tid, rootId));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A search doesn't wait for an uncommitted split of a part of the tree it
+	 * doesn't read, even though the split changed the pages above it.
+	 */
+	@Test
+	public void searchDoesNotWaitForSplits() throws Exception {
+		// split leaves at the high end of the tree, and keep them locked
+		TransactionId writerTid = new TransactionId();
+		for(int i = 0; i < 200; i++) {
+			bp.insertTuple(writerTid, bf.getId(),
+					BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE + i, 2));
+		}
+
+		TransactionId tid = new TransactionId();
+		int low = Collections.min(keys);
+		assertEquals(Collections.frequency(keys, low), search(tid, low));
+		bp.transactionComplete(tid);
+		bp.transactionComplete(writerTid);
+
+		tid = new TransactionId();
+		assertEquals(1, search(tid, BTreeUtility.MAX_RAND_VALUE + 199));
+		bp.transactionComplete(tid);
+		checkHighKeys();
+	}
+
+	/**
+	 * Concurrent writers each insert a key many times, splitting leaves and the
+	 * pages above them. The ones that commit all find their tuples afterwards.
+	 */
+	@Test
+	public void concurrentInserts() throws Exception {
+		int writers = 8;
+		int count = 100;
+		List<BTreeWriter> threads = new ArrayList<>();
+		List<TransactionId> tids = new ArrayList<>();
+		List<Integer> items = new ArrayList<>();
+		for(int i = 0; i < writers; i++) {
+			TransactionId tid = new TransactionId();
+			// a key that isn't in the tree yet
+			int item = BTreeUtility.MAX_RAND_VALUE / writers * i;
+			while(keys.contains(item)) {
+				item++;
+			}
+			BTreeWriter w = new BTreeWriter(tid, bf, item, count);
+			tids.add(tid);
+			items.add(item);
+			threads.add(w);
+			w.start();
+		}
+
+		// commit each writer as soon as it is done, since it keeps the pages it
+		// changed locked until then
+		List<Integer> expected = new ArrayList<>(keys);
+		Set<Integer> done = new HashSet<>();
+		for(int waited = 0; done.size() < writers && waited < TIMEOUT; waited += POLL_INTERVAL) {
+			Thread.sleep(POLL_INTERVAL);
+			for(int i = 0; i < writers; i++) {
+				BTreeWriter w = threads.get(i);
+				if(done.contains(i)) {
+					continue;
+				}
+				if(w.succeeded()) {
+					bp.transactionComplete(tids.get(i));
+					expected.addAll(Collections.nCopies(count, items.get(i)));
+					done.add(i);
+				}
+				else if(w.getError() != null) {
+					// deadlocks between the writers abort some of them
+					assertTrue(w.getError() instanceof TransactionAbortedException);
+					done.add(i);
+				}
+			}
+		}
+		assertEquals(writers, done.size());
+
+		Collections.sort(expected);
+		TransactionId tid = new TransactionId();
+		assertEquals(expected, scan(tid));
+		bp.transactionComplete(tid);
+		checkHighKeys();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BLinkTreeTest.class);
+	}
+}
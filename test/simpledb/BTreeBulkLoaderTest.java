@@ -0,0 +1,222 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private static final int PAGE_SIZE = 512;
+	private static final int ROWS = 20000;
+
+	private HeapFile hf;
+	private List<List<Integer>> tuples;
+	private File f;
+
+	@Before
+	public void setUp() throws Exception {
+		// small pages, so that the tree has a few levels
+		BufferPool.setPageSize(PAGE_SIZE);
+		Database.reset();
+		tuples = new ArrayList<>();
+		hf = SystemTestUtil.createRandomHeapFile(2, ROWS, 1000, null, tuples);
+		f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+	}
+
+	@After
+	public void tearDown() {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreeFile createIndex(double fillFactor) throws Exception {
+		// runs of 10 pages of tuples, so that the sort writes many of them
+		BTreeFile bf = BTreeBulkLoader.createIndex(hf, 0, f, fillFactor, 10);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	private List<Integer> sortedKeys() {
+		List<Integer> keys = new ArrayList<>();
+		for(List<Integer> t : tuples) {
+			keys.add(t.get(0));
+		}
+		Collections.sort(keys);
+		return keys;
+	}
+
+	private List<BTreeLeafPage> leaves(BTreeFile bf, TransactionId tid) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreePageId pid = rootPtr.getRootId();
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			pid = page.iterator().next().getLeftChild();
+		}
+		List<BTreeLeafPage> res = new ArrayList<>();
+		while(pid != null) {
+			BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			res.add(page);
+			pid = page.getRightSiblingId();
+		}
+		return res;
+	}
+
+	/**
+	 * The tree holds every tuple of the heap file, and is a valid B+ tree
+	 */
+	@Test
+	public void indexHeapFile() throws Exception {
+		BTreeFile bf = createIndex(BTreeBulkLoader.DEFAULT_FILL_FACTOR);
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		SystemTestUtil.matchTuples(bf, tid, tuples);
+
+		List<Integer> keys = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(sortedKeys(), keys);
+
+		int key = tuples.get(0).get(0);
+		it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+			count++;
+		}
+		it.close();
+		assertEquals(Collections.frequency(sortedKeys(), key), count);
+
+		// the leaves are written in key order, one after another
+		List<BTreeLeafPage> leaves = leaves(bf, tid);
+		for(int i = 0; i < leaves.size(); i++) {
+			assertEquals(i + 1, leaves.get(i).getId().getPageNumber());
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Pages are filled to the fill factor, leaving room for inserts
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		BTreeFile bf = createIndex(0.7);
+		int maxTuples = BTreeBulkLoader.getMaxTuples(bf.getTupleDesc());
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<BTreeLeafPage> leaves = leaves(bf, tid);
+		for(BTreeLeafPage leaf : leaves) {
+			assertTrue(leaf.getNumTuples() <= (int) (0.7 * maxTuples) + 1);
+			assertTrue(leaf.getNumEmptySlots() > 0);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		// an insert on every leaf splits none of them
+		int pages = bf.numPages();
+		tid = new TransactionId();
+		for(BTreeLeafPage leaf : leaves) {
+			Tuple t = leaf.iterator().next();
+			Database.getBufferPool().insertTuple(tid, bf.getId(),
+					BTreeUtility.getBTreeTuple(((IntField) t.getField(0)).getValue(), 2));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(pages, bf.numPages());
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Trees too small for a full page, or a full level, still meet the
+	 * occupancy invariants
+	 */
+	@Test
+	public void smallTrees() throws Exception {
+		int maxTuples = BTreeBulkLoader.getMaxTuples(Utility.getTupleDesc(2));
+		for(int rows : new int[] { 0, 1, maxTuples, maxTuples + 1, 3 * maxTuples - 1 }) {
+			List<Tuple> in = new ArrayList<>();
+			for(int i = 0; i < rows; i++) {
+				in.add(BTreeUtility.getBTreeTuple(i / 3, 2));
+			}
+			BTreeBulkLoader loader = new BTreeBulkLoader(f, Utility.getTupleDesc(2), 0);
+			loader.load(in.iterator(), rows);
+			BTreeFile bf = BTreeUtility.openBTreeFile(2, f, 0);
+
+			TransactionId tid = new TransactionId();
+			BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+			// an empty tree is an empty file, which BTreeFile can't iterate over
+			if(rows > 0) {
+				int count = 0;
+				DbFileIterator it = bf.iterator(tid);
+				it.open();
+				while(it.hasNext()) {
+					assertEquals(count / 3, ((IntField) it.next().getField(0)).getValue());
+					count++;
+				}
+				it.close();
+				assertEquals(rows, count);
+			}
+			Database.getBufferPool().transactionComplete(tid);
+			Database.reset();
+		}
+	}
+
+	@Test(expected = DbException.class)
+	public void unsortedInput() throws Exception {
+		List<Tuple> in = Arrays.asList(BTreeUtility.getBTreeTuple(2, 2), BTreeUtility.getBTreeTuple(1, 2));
+		new BTreeBulkLoader(f, Utility.getTupleDesc(2), 0).load(in.iterator(), in.size());
+	}
+
+	/**
+	 * More runs than the sort merges at once are merged back in order
+	 */
+	@Test
+	public void manyRuns() throws Exception {
+		// a page of tuples per run makes a few hundred of them
+		BTreeFile bf = BTreeBulkLoader.createIndex(hf, 0, f, BTreeBulkLoader.DEFAULT_FILL_FACTOR, 1);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		List<Integer> keys = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(sortedKeys(), keys);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
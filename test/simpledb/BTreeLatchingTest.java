@@ -0,0 +1,101 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.index.BTreeUtility.BTreeWriter;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchingTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BTreeFile bf;
+	private BTreePageId rootPtrId;
+	private BTreePageId rootId;
+
+	private static final int POLL_INTERVAL = 100;
+	private static final int TIMEOUT = 10000;
+
+	@Before
+	public void setUp() throws Exception {
+		// a packed B+ tree with an internal root over about 100 leaf pages
+		bf = BTreeUtility.createRandomBTreeFile(2, 50200, null, null, 0);
+		tid = new TransactionId();
+		rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		TransactionId t = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(t, rootPtrId,
+				Permissions.READ_ONLY);
+		rootId = rootPtr.getRootId();
+		Database.getBufferPool().transactionComplete(t);
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private int search(Op op, int key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(op, new IntField(key)));
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	/**
+	 * A search reads the root pointer and internal pages under latches, and only
+	 * locks the leaves it reads.
+	 */
+	@Test
+	public void searchLocksOnlyLeaves() throws Exception {
+		search(Op.EQUALS, BTreeUtility.MAX_RAND_VALUE / 2);
+		BufferPool bp = Database.getBufferPool();
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+	}
+
+	/**
+	 * A split changes the parent of the leaf, which a concurrent reader of another
+	 * leaf no longer keeps locked until it commits.
+	 */
+	@Test
+	public void splitDoesNotWaitForReaders() throws Exception {
+		assertTrue(search(Op.LESS_THAN_OR_EQ, BTreeUtility.MAX_RAND_VALUE / 100) > 0);
+
+		// the right-most leaf page is full, so this splits it
+		TransactionId writerTid = new TransactionId();
+		BTreeWriter writer = new BTreeWriter(writerTid, bf, BTreeUtility.MAX_RAND_VALUE, 1);
+		writer.start();
+		for(int waited = 0; !writer.succeeded() && writer.getError() == null && waited < TIMEOUT;
+				waited += POLL_INTERVAL) {
+			Thread.sleep(POLL_INTERVAL);
+		}
+		assertNull(writer.getError());
+		assertTrue(writer.succeeded());
+		Database.getBufferPool().transactionComplete(writerTid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchingTest.class);
+	}
+}
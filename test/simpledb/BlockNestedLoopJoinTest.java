@@ -0,0 +1,116 @@
+package simpledb;
+
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static simpledb.systemtest.SystemTestUtil.randomTuples;
+import static simpledb.systemtest.SystemTestUtil.drainSorted;
+import junit.framework.JUnit4TestAdapter;
+
+public class BlockNestedLoopJoinTest extends SimpleDbTestBase {
+
+    /**
+     * A TupleIterator that counts how often it is rewound
+     */
+    private static class CountingIterator extends TupleIterator {
+        private static final long serialVersionUID = 1L;
+        int rewinds = 0;
+
+        CountingIterator(List<Tuple> tuples) {
+            super(Utility.getTupleDesc(2, "b"), tuples);
+        }
+
+        @Override
+        public void rewind() {
+            rewinds++;
+            super.rewind();
+        }
+    }
+
+    private static List<List<Integer>> expected(List<Tuple> outer, List<Tuple> inner, JoinPredicate p) {
+        List<List<Integer>> res = new ArrayList<>();
+        for (Tuple t1 : outer) {
+            for (Tuple t2 : inner) {
+                if (p.filter(t1, t2)) {
+                    List<Integer> l = SystemTestUtil.tupleToList(t1);
+                    l.addAll(SystemTestUtil.tupleToList(t2));
+                    res.add(l);
+                }
+            }
+        }
+        res.sort(Comparator.comparing(Object::toString));
+        return res;
+    }
+
+    /**
+     * child2 is scanned once per block of child1
+     */
+    @Test
+    public void scansInnerOncePerBlock() throws Exception {
+        List<Tuple> outer = randomTuples(1000, 20000, 1);
+        List<Tuple> inner = randomTuples(Join.CACHE_SIZE + 1, 20000, 2);
+        JoinPredicate p = new JoinPredicate(0, Op.EQUALS, 0);
+        CountingIterator child2 = new CountingIterator(inner);
+        Join j = new Join(p, new TupleIterator(Utility.getTupleDesc(2, "a"), outer), child2);
+        j.setBlockSize(300);
+        j.open();
+        List<List<Integer>> actual = drainSorted(j);
+        j.close();
+        // four blocks, and a rewind before each but the first
+        assertEquals(3, child2.rewinds);
+        assertFalse(actual.isEmpty());
+        assertEquals(expected(outer, inner, p), actual);
+    }
+
+    /**
+     * A small child2 is scanned once, and then read from memory
+     */
+    @Test
+    public void cachesSmallInner() throws Exception {
+        List<Tuple> outer = randomTuples(500, 50, 3);
+        List<Tuple> inner = randomTuples(200, 50, 4);
+        JoinPredicate p = new JoinPredicate(0, Op.LESS_THAN_OR_EQ, 0);
+        CountingIterator child2 = new CountingIterator(inner);
+        Join j = new Join(p, new TupleIterator(Utility.getTupleDesc(2, "a"), outer), child2);
+        j.setBlockSize(7);
+        j.open();
+        assertEquals(expected(outer, inner, p), drainSorted(j));
+        assertEquals(0, child2.rewinds);
+
+        j.rewind();
+        assertEquals(expected(outer, inner, p), drainSorted(j));
+        j.close();
+    }
+
+    @Test
+    public void emptyChildren() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Op.EQUALS, 0);
+        Join j = new Join(p, new TupleIterator(Utility.getTupleDesc(2, "a"), randomTuples(0, 10, 5)),
+                new CountingIterator(randomTuples(10, 10, 6)));
+        j.open();
+        assertFalse(j.hasNext());
+        j.close();
+        j = new Join(p, new TupleIterator(Utility.getTupleDesc(2, "a"), randomTuples(10, 10, 5)),
+                new CountingIterator(randomTuples(0, 10, 6)));
+        j.open();
+        assertFalse(j.hasNext());
+        j.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BlockNestedLoopJoinTest.class);
+    }
+}
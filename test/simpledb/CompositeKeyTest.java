@@ -0,0 +1,232 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CompositeKeyTest extends SimpleDbTestBase {
+	private static final int PAGE_SIZE = 512;
+	private static final int ROWS = 5000;
+
+	private BTreeFile bf;
+	private List<int[]> rows;
+
+	private static CompositeField key(int... values) {
+		Field[] fields = new Field[values.length];
+		for(int i = 0; i < values.length; i++) {
+			fields[i] = new IntField(values[i]);
+		}
+		return new CompositeField(fields);
+	}
+
+	// (c0, c1) ascending
+	private static final Comparator<int[]> BY_KEY = Comparator.<int[]>comparingInt(r -> r[0]).thenComparingInt(r -> r[1]);
+
+	@Before
+	public void setUp() throws Exception {
+		// small pages, so that the tree has a few levels
+		BufferPool.setPageSize(PAGE_SIZE);
+		Database.reset();
+		File f = File.createTempFile("composite", ".dat");
+		f.deleteOnExit();
+		bf = new BTreeFile(f, new int[] { 0, 1 }, Utility.getTupleDesc(3, "c"));
+		Database.getCatalog().addTable(bf, "composite");
+
+		// few distinct values in the first key field, so that keys share it
+		Random rand = new Random(0);
+		rows = new ArrayList<>();
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < ROWS; i++) {
+			int[] row = { rand.nextInt(20), rand.nextInt(1000), i };
+			rows.add(row);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(row));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@After
+	public void tearDown() {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private List<int[]> collect(DbFileIterator it) throws Exception {
+		List<int[]> res = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			res.add(new int[] { ((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue(),
+					((IntField) t.getField(2)).getValue() });
+		}
+		it.close();
+		return res;
+	}
+
+	private List<int[]> expected(java.util.function.Predicate<int[]> p) {
+		List<int[]> res = new ArrayList<>();
+		for(int[] r : rows) {
+			if(p.test(r)) {
+				res.add(r);
+			}
+		}
+		res.sort(BY_KEY);
+		return res;
+	}
+
+	private static void assertKeys(List<int[]> expected, List<int[]> actual) {
+		assertEquals(expected.size(), actual.size());
+		for(int i = 0; i < expected.size(); i++) {
+			assertEquals(0, BY_KEY.compare(expected.get(i), actual.get(i)));
+		}
+	}
+
+	@Test
+	public void compositeFieldCompare() {
+		assertTrue(key(1, 2).compare(Op.LESS_THAN, key(1, 3)));
+		assertTrue(key(1, 9).compare(Op.LESS_THAN, key(2, 0)));
+		assertTrue(key(2, 0).compare(Op.GREATER_THAN, key(1, 9)));
+		assertTrue(key(1, 2).compare(Op.EQUALS, key(1, 2)));
+		assertFalse(key(1, 2).compare(Op.NOT_EQUALS, key(1, 2)));
+
+		// a prefix equals every key that starts with it
+		assertTrue(key(1, 2).compare(Op.EQUALS, key(1)));
+		assertTrue(key(1, 2).compare(Op.EQUALS, new IntField(1)));
+		assertTrue(key(1, 2).compare(Op.GREATER_THAN, key(0)));
+		assertTrue(key(1, 2).compare(Op.LESS_THAN_OR_EQ, key(1)));
+
+		assertEquals(key(1, 2), key(1, 2));
+		assertEquals(key(1, 2).hashCode(), key(1, 2).hashCode());
+		assertNotEquals(key(1, 2), key(1));
+	}
+
+	/**
+	 * The tree keeps its tuples in lexicographic order of (c0, c1)
+	 */
+	@Test
+	public void lexicographicOrder() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertKeys(expected(r -> true), collect(bf.iterator(tid)));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Predicates on the full key match single keys, on a prefix ranges of keys
+	 */
+	@Test
+	public void prefixScans() throws Exception {
+		TransactionId tid = new TransactionId();
+		int[] some = rows.get(ROWS / 2);
+		assertKeys(expected(r -> r[0] == some[0] && r[1] == some[1]),
+				collect(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key(some[0], some[1])))));
+		assertKeys(expected(r -> r[0] == 7),
+				collect(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key(7)))));
+		assertKeys(expected(r -> r[0] > 7 || r[0] == 7 && r[1] >= 500),
+				collect(bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, key(7, 500)))));
+		assertKeys(expected(r -> r[0] < 3),
+				collect(bf.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, key(3)))));
+		assertKeys(expected(r -> r[0] > 18),
+				collect(bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN, new IntField(18)))));
+		assertEquals(0, collect(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key(25)))).size());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Deletes rebalance the tree on composite keys, and aborts restore its pages
+	 */
+	@Test
+	public void deletesAndAborts() throws Exception {
+		TransactionId tid = new TransactionId();
+		for(int[] r : rows) {
+			if(r[0] < 15) {
+				// look each tuple up again, since deletes move tuples between pages
+				DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key(r[0], r[1])));
+				it.open();
+				Tuple t = it.next();
+				while(((IntField) t.getField(2)).getValue() != r[2]) {
+					t = it.next();
+				}
+				it.close();
+				Database.getBufferPool().deleteTuple(tid, t);
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		for(int i = 0; i < 1000; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { 16, i, -1 }));
+		}
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertKeys(expected(r -> r[0] >= 15), collect(bf.iterator(tid)));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static OpIterator leaf(OpIterator op) {
+		while(op instanceof Operator) {
+			op = ((Operator) op).getChildren()[0];
+		}
+		return op;
+	}
+
+	/**
+	 * The optimizer scans the index when equality filters fix a prefix of the key
+	 */
+	@Test
+	public void optimizerUsesPrefix() throws Exception {
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("composite", new TableStats(bf.getId(), 1000));
+
+		TransactionId tid = new TransactionId();
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t.c0", Op.EQUALS, "7");
+		lp.addFilter("t.c2", Op.GREATER_THAN, "100");
+		lp.addProjectField("*", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertTrue(leaf(plan) instanceof BTreeScan);
+		plan.open();
+		int count = 0;
+		while(plan.hasNext()) {
+			Tuple t = plan.next();
+			assertEquals(7, ((IntField) t.getField(0)).getValue());
+			count++;
+		}
+		plan.close();
+		assertEquals(expected(r -> r[0] == 7 && r[2] > 100).size(), count);
+
+		// no filter on the first key field, so nothing to look up
+		lp = new LogicalPlan();
+		lp.addScan(bf.getId(), "t");
+		lp.addFilter("t.c1", Op.EQUALS, "7");
+		lp.addProjectField("*", null);
+		assertTrue(leaf(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(CompositeKeyTest.class);
+	}
+}
@@ -0,0 +1,274 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CompressedBTreeTest extends SimpleDbTestBase {
+	private static final int PAGE_SIZE = 1024;
+	private static final int ROWS = 5000;
+	private static final int ROWS_PER_TRANSACTION = 1000;
+
+	private final TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+	private CompressedBTreeFile bf;
+	private BufferPool bp;
+	private final List<String> keys = new ArrayList<>();
+
+	private Tuple tuple(String key, int value) {
+		Tuple t = new Tuple(td);
+		t.setField(0, new StringField(key, Type.STRING_LEN));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		// small pages, so that the tree has a few levels
+		BufferPool.setPageSize(PAGE_SIZE);
+		Database.reset();
+		bp = Database.resetBufferPool(500);
+		File f = File.createTempFile("compressed", ".dat");
+		f.deleteOnExit();
+		bf = new CompressedBTreeFile(f, 0, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+
+		// keys with a long common prefix
+		Random rand = new Random(0);
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < ROWS; i++) {
+			String key = String.format("customer-%08d", rand.nextInt(1000000));
+			keys.add(key);
+			bp.insertTuple(tid, bf.getId(), tuple(key, i));
+			if((i + 1) % ROWS_PER_TRANSACTION == 0) {
+				bp.transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		bp.transactionComplete(tid);
+	}
+
+	@After
+	public void tearDown() {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private List<String> scan(TransactionId tid) throws Exception {
+		List<String> res = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			res.add(((StringField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		return res;
+	}
+
+	private int search(TransactionId tid, String key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid,
+				new IndexPredicate(Op.EQUALS, new StringField(key, Type.STRING_LEN)));
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			assertEquals(key, ((StringField) it.next().getField(0)).getValue());
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	private BTreeInternalPage getRoot(TransactionId tid) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		return (BTreeInternalPage) bp.getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * The tree holds every tuple, in order, and finds each key
+	 */
+	@Test
+	public void insertsAndSearches() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		List<String> expected = new ArrayList<>(keys);
+		Collections.sort(expected);
+		assertEquals(expected, scan(tid));
+		for(int i = 0; i < 200; i++) {
+			String key = keys.get(i);
+			assertEquals(Collections.frequency(keys, key), search(tid, key));
+		}
+		assertEquals(0, search(tid, "customer-"));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * Internal pages hold short separators, many more of them than fixed-width
+	 * slots would
+	 */
+	@Test
+	public void fanout() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeInternalPage root = getRoot(tid);
+		int entries = 0;
+		Iterator<BTreeEntry> it = root.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			// separators are cut short after the first digit that differs
+			assertTrue(((StringField) e.getKey()).getValue().length() < "customer-00000000".length());
+			entries++;
+		}
+		BTreeInternalPage child = (BTreeInternalPage) bp.getPage(tid,
+				root.iterator().next().getLeftChild(), Permissions.READ_ONLY);
+
+		// a page of 132 byte keys holds 7 of them
+		int fixed = (PAGE_SIZE * 8 - 2 * 4 * 8 - 8 - 1) / ((Type.STRING_TYPE.getLen() + 4) * 8 + 1);
+		assertTrue(child.getNumEntries() > 4 * fixed);
+		assertTrue(entries > 1);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * The prefix the keys share is stored once, and the page reads back the same
+	 */
+	@Test
+	public void pageRoundTrip() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeInternalPage root = getRoot(tid);
+		bp.transactionComplete(tid);
+
+		byte[] data = root.getPageData();
+		CompressedInternalPage copy = new CompressedInternalPage(root.getId(), data, 0);
+		Iterator<BTreeEntry> expected = root.iterator();
+		Iterator<BTreeEntry> actual = copy.iterator();
+		while(expected.hasNext()) {
+			BTreeEntry e = expected.next();
+			BTreeEntry a = actual.next();
+			assertEquals(e.getKey(), a.getKey());
+			assertEquals(e.getLeftChild(), a.getLeftChild());
+			assertEquals(e.getRightChild(), a.getRightChild());
+		}
+		assertFalse(actual.hasNext());
+		assertEquals(root.getParentId(), copy.getParentId());
+		assertArrayEquals(data, copy.getPageData());
+
+		// an empty page is all zeroes
+		CompressedInternalPage empty = new CompressedInternalPage(root.getId(),
+				BTreeInternalPage.createEmptyPageData(), 0);
+		assertEquals(0, empty.getNumEntries());
+		assertEquals(empty.getMaxEntries(), empty.getNumEmptySlots());
+		assertTrue(empty.hasRoomFor(new StringField("x", Type.STRING_LEN)));
+	}
+
+	private static StringField key(String s) {
+		return new StringField(s, Type.STRING_LEN);
+	}
+
+	/**
+	 * A page sizes itself as it would after being read back from its data
+	 */
+	private static void assertSizedLikeReread(CompressedInternalPage page) throws Exception {
+		byte[] data = page.getPageData();
+		CompressedInternalPage reread = new CompressedInternalPage(page.getId(), data, 0);
+		assertEquals(reread.getNumEmptySlots(), page.getNumEmptySlots());
+		for(String s : new String[] { "a", "customer-", "customer-00000000", "customer-99999999x" }) {
+			assertEquals(s, reread.hasRoomFor(key(s)), page.hasRoomFor(key(s)));
+		}
+		assertArrayEquals(reread.getPageData(), data);
+	}
+
+	/**
+	 * The page keeps the size of its keys and their prefix as entries are
+	 * inserted, deleted and updated
+	 */
+	@Test
+	public void pageSizesFollowChanges() throws Exception {
+		BTreePageId id = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		CompressedInternalPage page = new CompressedInternalPage(id,
+				BTreeInternalPage.createEmptyPageData(), 0);
+		List<BTreeEntry> entries = new ArrayList<>();
+		for(int i = 0; page.hasRoomFor(key(String.format("customer-%08d", i * 7))); i++) {
+			BTreeEntry e = new BTreeEntry(key(String.format("customer-%08d", i * 7)),
+					new BTreePageId(bf.getId(), i + 2, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), i + 3, BTreePageId.LEAF));
+			page.insertEntry(e);
+			entries.add(e);
+		}
+		assertTrue(entries.size() > 4 * page.getMaxEntries());
+		assertSizedLikeReread(page);
+
+		page.deleteKeyAndLeftChild(entries.remove(0));
+		page.deleteKeyAndRightChild(entries.remove(entries.size() - 1));
+		assertSizedLikeReread(page);
+
+		// a longer key in place of the first one
+		BTreeEntry e = entries.get(0);
+		e.setKey(key(((StringField) e.getKey()).getValue() + "x"));
+		page.updateEntry(e);
+		assertSizedLikeReread(page);
+		assertFalse(page.hasRoomFor(key("a")));
+	}
+
+	/**
+	 * Deletes take tuples out of their leaves, and aborted inserts roll back
+	 */
+	@Test
+	public void deletesAndAborts() throws Exception {
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		List<Tuple> doomed = new ArrayList<>();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(((IntField) t.getField(1)).getValue() % 2 == 0) {
+				doomed.add(t);
+			}
+		}
+		it.close();
+		for(Tuple t : doomed) {
+			bp.deleteTuple(tid, t);
+		}
+		bp.transactionComplete(tid);
+
+		List<String> expected = new ArrayList<>();
+		for(int i = 1; i < ROWS; i += 2) {
+			expected.add(keys.get(i));
+		}
+		Collections.sort(expected);
+
+		// enough inserts to split internal pages, then abort
+		tid = new TransactionId();
+		for(int i = 0; i < 2000; i++) {
+			bp.insertTuple(tid, bf.getId(), tuple(String.format("customer-%08d", 1000000 + i), i));
+		}
+		bp.transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		assertEquals(expected, scan(tid));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(CompressedBTreeTest.class);
+	}
+}
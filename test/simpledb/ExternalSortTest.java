@@ -0,0 +1,142 @@
+package simpledb;
+
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+
+    private static List<Tuple> tuples(int rows, int maxValue, long seed) {
+        Random rand = new Random(seed);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(Utility.getHeapTuple(new int[] { rand.nextInt(maxValue), rand.nextInt(maxValue), i }));
+        return tuples;
+    }
+
+    private static List<List<Integer>> drain(OpIterator it) throws Exception {
+        List<List<Integer>> res = new ArrayList<>();
+        while (it.hasNext())
+            res.add(SystemTestUtil.tupleToList(it.next()));
+        return res;
+    }
+
+    private static List<List<Integer>> expected(List<Tuple> tuples, Comparator<List<Integer>> order) {
+        List<List<Integer>> res = new ArrayList<>();
+        for (Tuple t : tuples)
+            res.add(SystemTestUtil.tupleToList(t));
+        res.sort(order);
+        return res;
+    }
+
+    /**
+     * Sorting on two fields, with runs on disk, gives the same order as
+     * sorting in memory
+     */
+    @Test
+    public void multiColumnSpill() throws Exception {
+        List<Tuple> tuples = tuples(5000, 20, 1);
+        OrderBy o = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+                new TupleIterator(Utility.getTupleDesc(3), tuples));
+        o.setMaxTuples(100);
+        o.open();
+        Comparator<List<Integer>> order = Comparator.<List<Integer>>comparingInt(l -> l.get(0))
+                .thenComparing(Comparator.<List<Integer>>comparingInt(l -> l.get(1)).reversed());
+        List<List<Integer>> res = drain(o);
+        List<List<Integer>> exp = expected(tuples, order);
+        for (int i = 0; i < res.size(); i++) {
+            assertEquals(exp.get(i).get(0), res.get(i).get(0));
+            assertEquals(exp.get(i).get(1), res.get(i).get(1));
+        }
+        assertEquals(exp.size(), res.size());
+        assertEquals(0, o.getOrderByField());
+        assertTrue(o.isASC());
+        o.close();
+    }
+
+    /**
+     * More runs than are merged at once are merged in two passes, and tuples
+     * with the same key come out in the order they went in
+     */
+    @Test
+    public void manyRunsStable() throws Exception {
+        List<Tuple> tuples = tuples(ExternalSorter.MERGE_FANIN * 30 + 7, 50, 2);
+        OrderBy o = new OrderBy(0, true, new TupleIterator(Utility.getTupleDesc(3), tuples));
+        o.setMaxTuples(10);
+        o.open();
+        assertEquals(expected(tuples, Comparator.comparingInt(l -> l.get(0))), drain(o));
+        o.close();
+    }
+
+    /**
+     * Rewinding, even part way through, reads the tuples from the start
+     */
+    @Test
+    public void rewind() throws Exception {
+        List<Tuple> tuples = tuples(1000, 1000, 3);
+        OrderBy o = new OrderBy(1, false, new TupleIterator(Utility.getTupleDesc(3), tuples));
+        o.setMaxTuples(64);
+        o.open();
+        List<List<Integer>> first = drain(o);
+        o.rewind();
+        for (int i = 0; i < 10; i++)
+            o.next();
+        o.rewind();
+        assertEquals(first, drain(o));
+        assertEquals(expected(tuples, Comparator.<List<Integer>>comparingInt(l -> l.get(1)).reversed()), first);
+        o.close();
+    }
+
+    /**
+     * Strings survive the trip through the runs on disk
+     */
+    @Test
+    public void strings() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+        List<Tuple> tuples = new ArrayList<>();
+        List<String> exp = new ArrayList<>();
+        Random rand = new Random(4);
+        for (int i = 0; i < 500; i++) {
+            String s = "s" + rand.nextInt(100000);
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(s, Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+            exp.add(s);
+        }
+        Collections.sort(exp);
+        ExternalSorter sorter = new ExternalSorter(td, (a, b) -> ((StringField) a.getField(0)).getValue()
+                .compareTo(((StringField) b.getField(0)).getValue()), 50);
+        for (Tuple t : tuples)
+            sorter.add(t);
+        assertTrue(sorter.spilled());
+        Iterator<Tuple> it = sorter.iterator();
+        for (String s : exp)
+            assertEquals(s, ((StringField) it.next().getField(0)).getValue());
+        assertFalse(it.hasNext());
+        sorter.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mismatchedOrders() {
+        new OrderBy(new int[] { 0, 1 }, new boolean[] { true },
+                new TupleIterator(Utility.getTupleDesc(3), tuples(1, 1, 5)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExternalSortTest.class);
+    }
+}
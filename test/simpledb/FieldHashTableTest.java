@@ -0,0 +1,111 @@
+package simpledb;
+
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.FieldHashTable;
+import simpledb.execution.TupleHashTable;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FieldHashTableTest extends SimpleDbTestBase {
+
+    private static void assertNumbersKeys(FieldHashTable table, List<Field> keys) {
+        Map<Field, Integer> expected = new HashMap<>();
+        for (Field k : keys) {
+            int id = table.add(k);
+            Integer old = expected.putIfAbsent(k, expected.size());
+            assertEquals(old == null ? expected.size() - 1 : old, id);
+        }
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<Field, Integer> e : expected.entrySet()) {
+            assertEquals((int) e.getValue(), table.find(e.getKey()));
+            assertEquals(e.getKey(), table.key(e.getValue()));
+        }
+    }
+
+    @Test
+    public void intKeys() {
+        Random rand = new Random(0);
+        List<Field> keys = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+            keys.add(new IntField(rand.nextInt(3000) - 1500));
+        FieldHashTable table = new FieldHashTable(Type.INT_TYPE);
+        assertNumbersKeys(table, keys);
+        assertEquals(-1, table.find(new IntField(5000)));
+        assertEquals(-1, table.find(new StringField("5", 10)));
+    }
+
+    @Test
+    public void stringKeys() {
+        Random rand = new Random(1);
+        List<Field> keys = new ArrayList<>();
+        for (int i = 0; i < 5000; i++)
+            keys.add(new StringField("k" + rand.nextInt(1000), Type.STRING_LEN));
+        FieldHashTable table = new FieldHashTable(Type.STRING_TYPE);
+        assertNumbersKeys(table, keys);
+        assertEquals(-1, table.find(new StringField("missing", Type.STRING_LEN)));
+    }
+
+    @Test
+    public void clear() {
+        FieldHashTable table = new FieldHashTable(Type.INT_TYPE);
+        for (int i = 0; i < 100; i++)
+            table.add(new IntField(i));
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(-1, table.find(new IntField(7)));
+        assertEquals(0, table.add(new IntField(7)));
+    }
+
+    /**
+     * The tuples with a key are a contiguous range of the table
+     */
+    @Test
+    public void tuplesByKey() {
+        TupleHashTable table = new TupleHashTable(Type.INT_TYPE, 0);
+        Random rand = new Random(2);
+        Map<Integer, List<Integer>> expected = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            int k = rand.nextInt(200);
+            table.add(Utility.getHeapTuple(new int[] { k, i }));
+            expected.computeIfAbsent(k, x -> new ArrayList<>()).add(i);
+        }
+        assertEquals(3000, table.size());
+        for (int k = -10; k < 210; k++) {
+            int id = table.find(new IntField(k));
+            if (!expected.containsKey(k)) {
+                assertEquals(-1, id);
+                continue;
+            }
+            List<Integer> actual = new ArrayList<>();
+            for (int i = table.start(id); i < table.end(id); i++) {
+                Tuple t = table.get(i);
+                assertEquals(k, ((IntField) t.getField(0)).getValue());
+                actual.add(((IntField) t.getField(1)).getValue());
+            }
+            assertEquals(expected.get(k), actual);
+        }
+
+        // adding after a lookup sorts again on the next one
+        table.add(Utility.getHeapTuple(new int[] { 5000, -1 }));
+        int id = table.find(new IntField(5000));
+        assertEquals(1, table.end(id) - table.start(id));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FieldHashTableTest.class);
+    }
+}
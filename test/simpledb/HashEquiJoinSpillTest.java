@@ -0,0 +1,111 @@
+package simpledb;
+
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static simpledb.systemtest.SystemTestUtil.randomTuples;
+import static simpledb.systemtest.SystemTestUtil.drainSorted;
+import static simpledb.systemtest.SystemTestUtil.collectSorted;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashEquiJoinSpillTest extends SimpleDbTestBase {
+
+    /**
+     * A relation of two int fields, the first of which is drawn from
+     * [0, maxValue), then followed by skewed copies of the value -1
+     */
+    private static OpIterator relation(String prefix, int rows, int maxValue, int skewed, long seed) {
+        List<Tuple> tuples = randomTuples(rows, maxValue, seed);
+        for (int i = 0; i < skewed; i++)
+            tuples.add(Utility.getHeapTuple(new int[] { -1, rows + i }));
+        return new TupleIterator(Utility.getTupleDesc(2, prefix), tuples);
+    }
+
+    private static void assertJoinsLikeNestedLoops(int maxTuples, int rows, int maxValue, int skewed)
+            throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Op.EQUALS, 0);
+        HashEquiJoin j = new HashEquiJoin(p, relation("a", rows, maxValue, skewed, 1),
+                relation("b", rows, maxValue, skewed / 2, 2));
+        j.setMaxTuples(maxTuples);
+        SystemTestUtil.assertJoinsLikeNestedLoops(j, p, relation("a", rows, maxValue, skewed, 1),
+                relation("b", rows, maxValue, skewed / 2, 2));
+    }
+
+    @Test
+    public void fitsInMemory() throws Exception {
+        assertJoinsLikeNestedLoops(HashEquiJoin.MAP_SIZE, 2000, 500, 0);
+    }
+
+    @Test
+    public void spillsPartitions() throws Exception {
+        assertJoinsLikeNestedLoops(300, 2000, 500, 0);
+    }
+
+    @Test
+    public void spillsEverything() throws Exception {
+        assertJoinsLikeNestedLoops(1, 500, 100, 0);
+    }
+
+    /**
+     * A single join field with more tuples than fit in memory is joined in
+     * chunks
+     */
+    @Test
+    public void skewedPartition() throws Exception {
+        assertJoinsLikeNestedLoops(100, 1000, 300, 250);
+    }
+
+    @Test
+    public void rewind() throws Exception {
+        HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Op.EQUALS, 0),
+                relation("a", 1000, 200, 0, 3), relation("b", 1000, 200, 0, 4));
+        j.setMaxTuples(100);
+        List<List<Integer>> first = collectSorted(j);
+        j.open();
+        for (int i = 0; i < first.size() / 2; i++)
+            j.next();
+        j.rewind();
+        assertEquals(first, drainSorted(j));
+        j.close();
+    }
+
+    @Test
+    public void spillFileRoundTrip() throws Exception {
+        OpIterator r = relation("a", 100, 10, 0, 5);
+        try (SpillFile f = new SpillFile(r.getTupleDesc())) {
+            List<List<Integer>> expected = new ArrayList<>();
+            r.open();
+            while (r.hasNext()) {
+                Tuple t = r.next();
+                expected.add(SystemTestUtil.tupleToList(t));
+                f.add(t);
+            }
+            r.close();
+            assertEquals(100, f.size());
+            for (int pass = 0; pass < 2; pass++) {
+                List<List<Integer>> actual = new ArrayList<>();
+                Iterator<Tuple> it = f.iterator();
+                while (it.hasNext())
+                    actual.add(SystemTestUtil.tupleToList(it.next()));
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinSpillTest.class);
+    }
+}
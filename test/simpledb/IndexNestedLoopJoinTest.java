@@ -0,0 +1,185 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static simpledb.systemtest.SystemTestUtil.drainSorted;
+import static simpledb.systemtest.SystemTestUtil.collectSorted;
+import junit.framework.JUnit4TestAdapter;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+    private static final int INNER_ROWS = 2000;
+    private static final int MAX_VALUE = 500;
+
+    private BTreeFile bf;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        File f = File.createTempFile("inlj", ".dat");
+        f.deleteOnExit();
+        bf = BTreeUtility.openBTreeFile(2, "c", f, 0);
+        Random rand = new Random(0);
+        tid = new TransactionId();
+        for (int i = 0; i < INNER_ROWS; i++) {
+            Database.getBufferPool().insertTuple(tid, bf.getId(),
+                    BTreeUtility.getBTreeTuple(new int[] { rand.nextInt(MAX_VALUE), i }));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static OpIterator outer(int rows, long seed) {
+        Random rand = new Random(seed);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            // some values the inner relation doesn't have
+            tuples.add(Utility.getHeapTuple(new int[] { rand.nextInt(MAX_VALUE + 50) - 25, -i }));
+        }
+        return new TupleIterator(Utility.getTupleDesc(2, "o"), tuples);
+    }
+
+    private void assertJoinsLikeNestedLoops(Op op, int outerRows) throws Exception {
+        JoinPredicate p = new JoinPredicate(0, op, 0);
+        SystemTestUtil.assertJoinsLikeNestedLoops(new IndexNestedLoopJoin(p, outer(outerRows, 1),
+                new BTreeScan(tid, bf.getId(), "t", null)), p, outer(outerRows, 1),
+                new SeqScan(tid, bf.getId(), "t"));
+    }
+
+    /**
+     * Several batches of outer tuples, with repeated join fields
+     */
+    @Test
+    public void equiJoin() throws Exception {
+        assertJoinsLikeNestedLoops(Op.EQUALS, IndexNestedLoopJoin.BATCH_SIZE * 2 + 500);
+    }
+
+    @Test
+    public void rangeJoins() throws Exception {
+        assertJoinsLikeNestedLoops(Op.LESS_THAN, 40);
+        assertJoinsLikeNestedLoops(Op.LESS_THAN_OR_EQ, 40);
+        assertJoinsLikeNestedLoops(Op.GREATER_THAN, 40);
+        assertJoinsLikeNestedLoops(Op.GREATER_THAN_OR_EQ, 40);
+    }
+
+    @Test
+    public void rewind() throws Exception {
+        IndexNestedLoopJoin j = new IndexNestedLoopJoin(new JoinPredicate(0, Op.EQUALS, 0),
+                outer(100, 2), new BTreeScan(tid, bf.getId(), "t", null));
+        List<List<Integer>> first = collectSorted(j);
+        j.open();
+        while (j.hasNext())
+            j.next();
+        j.rewind();
+        List<List<Integer>> second = drainSorted(j);
+        j.close();
+        assertEquals(first, second);
+        assertEquals("o0", j.getJoinField1Name());
+        assertEquals("t.c0", j.getJoinField2Name());
+    }
+
+    @Test
+    public void emptyOuter() throws Exception {
+        assertTrue(collectSorted(new IndexNestedLoopJoin(new JoinPredicate(0, Op.EQUALS, 0), outer(0, 3),
+                new BTreeScan(tid, bf.getId(), "t", null))).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notEqualsCantProbe() {
+        new IndexNestedLoopJoin(new JoinPredicate(0, Op.NOT_EQUALS, 0), outer(1, 4),
+                new BTreeScan(tid, bf.getId(), "t", null));
+    }
+
+    /**
+     * Statistics with a fixed number of tuples and pages
+     */
+    private static TableStats stats(int tableid, int card, int pages) {
+        return new TableStats(tableid, 1000) {
+            @Override
+            public double estimateScanCost() {
+                return pages * 1000.0;
+            }
+
+            @Override
+            public int estimateTableCardinality(double selectivityFactor) {
+                return (int) (card * selectivityFactor);
+            }
+        };
+    }
+
+    /**
+     * The optimizer probes the index of the inner relation when the outer one
+     * is small, and hashes otherwise
+     */
+    @Test
+    public void optimizerPicksIndexJoin() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20, MAX_VALUE, null, tuples, "s");
+        String outerName = Database.getCatalog().getTableName(hf.getId());
+        String innerName = Database.getCatalog().getTableName(bf.getId());
+        List<List<Integer>> inner = collectSorted(new SeqScan(tid, bf.getId(), "t"));
+
+        for (int outerCard : new int[] { 20, 100000 }) {
+            Map<String, TableStats> stats = new HashMap<>();
+            stats.put(outerName, stats(hf.getId(), outerCard, Math.max(1, outerCard / 500)));
+            // make the inner relation look big, so that scanning it costs more than a few probes
+            stats.put(innerName, stats(bf.getId(), 200000, 500));
+
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(hf.getId(), "s");
+            lp.addScan(bf.getId(), "t");
+            lp.addJoin("s.s0", "t.c0", Op.EQUALS);
+            lp.addProjectField("*", null);
+            OpIterator plan = lp.physicalPlan(tid, stats, false);
+            OpIterator join = ((Operator) plan).getChildren()[0];
+            if (outerCard == 20) {
+                assertTrue(join instanceof IndexNestedLoopJoin);
+                assertTrue(((Operator) join).getChildren()[1] instanceof BTreeScan);
+            } else {
+                assertTrue(join instanceof HashEquiJoin);
+            }
+
+            int expected = 0;
+            for (List<Integer> t : tuples) {
+                for (List<Integer> u : inner) {
+                    if (t.get(0).equals(u.get(0)))
+                        expected++;
+                }
+            }
+            assertEquals(expected, collectSorted(plan).size());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
@@ -0,0 +1,207 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest {
+
+    private LockManager lm;
+    private PageId p0;
+    private PageId p1;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /** Acquire a lock in a new thread; the returned latch opens once it is granted */
+    private CountDownLatch acquireAsync(TransactionId tid, PageId pid, Permissions perm) {
+        CountDownLatch granted = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquire(tid, pid, perm);
+                granted.countDown();
+            } catch (TransactionAbortedException e) {
+                // leave the latch closed
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return granted;
+    }
+
+    /**
+     * Unit test for LockManager.releaseAll() and holdsLock()
+     */
+    @Test public void releaseAll() throws Exception {
+        TransactionId tid = new TransactionId();
+        lm.acquire(tid, p0, Permissions.READ_ONLY);
+        lm.acquire(tid, p1, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(tid, p0));
+        assertEquals(2, lm.getLockedPages(tid).size());
+
+        lm.releaseAll(tid);
+        assertFalse(lm.holdsLock(tid, p0));
+        assertFalse(lm.holdsLock(tid, p1));
+        assertTrue(lm.getLockedPages(tid).isEmpty());
+    }
+
+    /**
+     * A waiting upgrade is granted as soon as the other sharers are gone.
+     */
+    @Test public void upgradeAfterSharerLeaves() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        lm.acquire(tid1, p0, Permissions.READ_ONLY);
+        lm.acquire(tid2, p0, Permissions.READ_ONLY);
+
+        CountDownLatch upgraded = acquireAsync(tid1, p0, Permissions.READ_WRITE);
+        assertFalse(upgraded.await(50, TimeUnit.MILLISECONDS));
+
+        lm.releaseAll(tid2);
+        assertTrue(upgraded.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Readers that arrive after a waiting writer queue behind it instead
+     * of starving it.
+     */
+    @Test public void writerNotStarvedByReaders() throws Exception {
+        TransactionId reader1 = new TransactionId();
+        TransactionId writer = new TransactionId();
+        TransactionId reader2 = new TransactionId();
+        lm.acquire(reader1, p0, Permissions.READ_ONLY);
+
+        CountDownLatch wrote = acquireAsync(writer, p0, Permissions.READ_WRITE);
+        Thread.sleep(50);
+        CountDownLatch read = acquireAsync(reader2, p0, Permissions.READ_ONLY);
+        assertFalse(read.await(50, TimeUnit.MILLISECONDS));
+
+        lm.releaseAll(reader1);
+        assertTrue(wrote.await(200, TimeUnit.MILLISECONDS));
+        assertFalse(read.await(50, TimeUnit.MILLISECONDS));
+
+        lm.releaseAll(writer);
+        assertTrue(read.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Two sharers that both try to upgrade deadlock; the youngest is
+     * aborted right away and the other one gets its lock.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, Permissions.READ_ONLY);
+        lm.acquire(younger, p0, Permissions.READ_ONLY);
+
+        CountDownLatch olderUpgraded = acquireAsync(older, p0, Permissions.READ_WRITE);
+        Thread.sleep(50);
+        try {
+            lm.acquire(younger, p0, Permissions.READ_WRITE);
+            fail("expected the younger transaction to be aborted");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAll(younger);
+        assertTrue(olderUpgraded.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * With FEWEST_LOCKS the transaction that has done less work is aborted,
+     * even if it is the older one; its blocked thread is woken to abort.
+     */
+    @Test public void deadlockAbortsFewestLocks() throws Exception {
+        lm.setVictimPolicy(LockManager.VictimPolicy.FEWEST_LOCKS);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, Permissions.READ_WRITE);
+        lm.acquire(younger, p1, Permissions.READ_WRITE);
+        lm.acquire(younger, new HeapPageId(1, 2), Permissions.READ_WRITE);
+
+        CountDownLatch olderDone = new CountDownLatch(1);
+        boolean[] olderAborted = new boolean[1];
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquire(older, p1, Permissions.READ_ONLY);
+            } catch (TransactionAbortedException e) {
+                olderAborted[0] = true;
+                lm.releaseAll(older);
+            }
+            olderDone.countDown();
+        });
+        t.setDaemon(true);
+        t.start();
+        Thread.sleep(50);
+
+        lm.acquire(younger, p0, Permissions.READ_ONLY);
+        assertTrue(olderDone.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(olderAborted[0]);
+        assertTrue(lm.holdsLock(younger, p0));
+    }
+
+    /**
+     * Transactions writing different tuples of the same page don't block
+     * each other, but a transaction reading the whole page waits for both.
+     */
+    @Test public void tupleLocksSharePage() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        TransactionId reader = new TransactionId();
+        lm.acquireTuple(tid1, new RecordId(p0, 0), Permissions.READ_WRITE);
+        lm.acquireTuple(tid2, new RecordId(p0, 1), Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(tid1, p0));
+        assertTrue(lm.isLocked(new RecordId(p0, 0)));
+        assertFalse(lm.isLocked(new RecordId(p0, 2)));
+
+        CountDownLatch read = acquireAsync(reader, p0, Permissions.READ_ONLY);
+        assertFalse(read.await(50, TimeUnit.MILLISECONDS));
+        lm.releaseAll(tid1);
+        assertFalse(read.await(50, TimeUnit.MILLISECONDS));
+        lm.releaseAll(tid2);
+        assertTrue(read.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Reading many tuples of a page escalates to a shared page lock, which
+     * keeps writers of other tuples of the page out.
+     */
+    @Test public void tupleLocksEscalate() throws Exception {
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 100; i++) {
+            lm.acquireTuple(reader, new RecordId(p0, i), Permissions.READ_ONLY);
+        }
+        // the tuple locks are gone, replaced by the page lock
+        assertFalse(lm.isLocked(new RecordId(p0, 0)));
+        assertTrue(lm.holdsLock(reader, p0));
+
+        CountDownLatch wrote = acquireAsync(writer, p0, Permissions.READ_WRITE);
+        assertFalse(wrote.await(50, TimeUnit.MILLISECONDS));
+        lm.releaseAll(reader);
+        assertTrue(wrote.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,137 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.storage.DirectoryLogArchiver;
+import simpledb.storage.LogArchiver;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    private File dir;
+    private File base;
+
+    @Before public void createDir() throws IOException {
+        dir = Files.createTempDirectory("logfiletest").toFile();
+        base = new File(dir, "log");
+    }
+
+    @After public void deleteDir() {
+        deleteRecursively(dir);
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children)
+                deleteRecursively(c);
+        }
+        f.delete();
+    }
+
+    private File[] segments(File d) {
+        File[] files = d.listFiles((x, name) -> name.matches("log\\.[0-9a-f]{16}"));
+        assertNotNull(files);
+        Arrays.sort(files);
+        return files;
+    }
+
+    private void runTransactions(LogFile log, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+    }
+
+    /**
+     * The log should roll over to new segment files once a segment is full.
+     */
+    @Test public void rollsSegments() throws IOException {
+        LogFile log = new LogFile(base, 256, LogArchiver.DELETE);
+        runTransactions(log, 20);
+        File[] segs = segments(dir);
+        assertTrue(segs.length > 1);
+        for (File seg : segs)
+            assertTrue(seg.length() <= 256);
+        assertEquals(40, log.getTotalRecords());
+    }
+
+    /**
+     * A checkpoint with no live transactions makes every full segment
+     * obsolete; they should be handed to the archiver, not copied.
+     */
+    @Test public void checkpointArchivesSegments() throws IOException {
+        DirectoryLogArchiver archiver = new DirectoryLogArchiver(new File(dir, "archive"));
+        LogFile log = new LogFile(base, 256, archiver);
+        runTransactions(log, 20);
+        int before = segments(dir).length;
+
+        log.logCheckpoint();
+
+        // only the segment holding the checkpoint record is left
+        assertEquals(1, segments(dir).length);
+        assertTrue(archiver.getSegments().size() >= before - 1);
+    }
+
+    /**
+     * Segments holding records of a transaction that was live at the
+     * checkpoint must be retained.
+     */
+    @Test public void checkpointKeepsLiveTransactions() throws IOException {
+        DirectoryLogArchiver archiver = new DirectoryLogArchiver(new File(dir, "archive"));
+        LogFile log = new LogFile(base, 256, archiver);
+        TransactionId live = new TransactionId();
+        log.logXactionBegin(live);
+        runTransactions(log, 20);
+
+        log.logCheckpoint();
+
+        assertTrue(archiver.getSegments().isEmpty());
+    }
+
+    /**
+     * A torn record at the end of the log is cut off when the log is
+     * reopened, and appending continues from the last good record.
+     */
+    @Test public void tornTailIsTruncated() throws IOException {
+        LogFile log = new LogFile(base, 1 << 20, LogArchiver.DELETE);
+        runTransactions(log, 3);
+        log.force();
+        File seg = segments(dir)[0];
+        long goodLength = seg.length();
+        try (RandomAccessFile raf = new RandomAccessFile(seg, "rw")) {
+            raf.seek(goodLength);
+            raf.writeInt(1000);
+            raf.writeInt(42);
+            raf.write(new byte[10]);
+        }
+
+        LogFile reopened = new LogFile(base, 1 << 20, LogArchiver.DELETE);
+        reopened.recover();
+        assertEquals(goodLength, seg.length());
+        runTransactions(reopened, 1);
+        assertTrue(seg.length() > goodLength);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
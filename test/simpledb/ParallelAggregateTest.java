@@ -0,0 +1,200 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static simpledb.systemtest.SystemTestUtil.collectSorted;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParallelAggregateTest extends SimpleDbTestBase {
+
+    private HeapFile table;
+    private TransactionId tid;
+
+    /**
+     * A table of about 40 pages, of a group in [0, 500) and a value, read by
+     * a read-only transaction
+     */
+    @Before
+    public void setUp() throws Exception {
+        table = SystemTestUtil.createRandomHeapFile(2, 20000, 500, null, new ArrayList<>(), "c");
+        Database.getCatalog().addTable(table, "big");
+        tid = new TransactionId();
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Every aggregate, with and without grouping, on any number of threads,
+     * gives the results of an Aggregate
+     */
+    @Test
+    public void sameAsAggregate() throws Exception {
+        for (Aggregator.Op aop : new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT,
+                Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG }) {
+            for (int gfield : new int[] { 0, Aggregator.NO_GROUPING }) {
+                List<List<Integer>> expected = collectSorted(
+                        new Aggregate(new SeqScan(tid, table.getId()), 1, gfield, aop));
+                for (int threads : new int[] { 1, 3, 8, 100 }) {
+                    ParallelAggregate p = new ParallelAggregate(new SeqScan(tid, table.getId()), 1, gfield, aop);
+                    p.setParallelism(threads);
+                    assertEquals(aop + " on " + threads + " threads", expected, collectSorted(p));
+                }
+            }
+        }
+    }
+
+    /**
+     * The ranges of a split scan hold each tuple once
+     */
+    @Test
+    public void splitScan() throws Exception {
+        List<List<Integer>> all = collectSorted(new SeqScan(tid, table.getId()));
+        List<List<Integer>> split = new ArrayList<>();
+        SeqScan[] scans = new SeqScan(tid, table.getId()).split(7);
+        assertEquals(7, scans.length);
+        for (SeqScan scan : scans)
+            split.addAll(collectSorted(scan));
+        split.sort(Comparator.comparing(Object::toString));
+        assertEquals(all, split);
+        assertEquals(table.numPages(), new SeqScan(tid, table.getId()).split(1000).length);
+    }
+
+    /**
+     * A filtered scan, with both phases spilling
+     */
+    @Test
+    public void filteredAndSpilled() throws Exception {
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(250));
+        List<List<Integer>> expected = collectSorted(new Aggregate(
+                new Filter(p, new SeqScan(tid, table.getId())), 1, 0, Aggregator.Op.AVG));
+        ParallelAggregate a = new ParallelAggregate(new Filter(p, new SeqScan(tid, table.getId())),
+                1, 0, Aggregator.Op.AVG);
+        a.setParallelism(4);
+        a.setMaxGroups(10);
+        assertEquals(expected, collectSorted(a));
+    }
+
+    /**
+     * AVG of sums that outgrow an int, on each range
+     */
+    @Test
+    public void largeSums() throws Exception {
+        HeapFile large = SystemTestUtil.createRandomHeapFile(2, 20000, Integer.MAX_VALUE,
+                null, new ArrayList<>());
+        for (int gfield : new int[] { 0, Aggregator.NO_GROUPING }) {
+            List<List<Integer>> expected = collectSorted(
+                    new Aggregate(new SeqScan(tid, large.getId()), 1, gfield, Aggregator.Op.AVG));
+            ParallelAggregate p = new ParallelAggregate(new SeqScan(tid, large.getId()), 1, gfield,
+                    Aggregator.Op.AVG);
+            p.setParallelism(4);
+            assertEquals(expected, collectSorted(p));
+        }
+    }
+
+    /**
+     * When a range fails, open waits for the other ranges to stop before it
+     * throws, so none reads on under the transaction
+     */
+    @Test
+    public void failureStopsRanges() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        Predicate failing = new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean filter(Tuple t) {
+                if (reads.incrementAndGet() == 5000)
+                    throw new IllegalStateException("can't read the range");
+                return super.filter(t);
+            }
+        };
+        ParallelAggregate a = new ParallelAggregate(new Filter(failing, new SeqScan(tid, table.getId())),
+                1, 0, Aggregator.Op.SUM);
+        a.setParallelism(8);
+        try {
+            a.open();
+            fail("open should fail with its range");
+        } catch (DbException expected) {
+        }
+        int after = reads.get();
+        Thread.sleep(50);
+        assertEquals(after, reads.get());
+    }
+
+    /**
+     * A transaction that takes locks is aggregated on the calling thread
+     */
+    @Test
+    public void lockingScanOnCallingThread() throws Exception {
+        TransactionId locking = new TransactionId();
+        Set<Thread> threads = Collections.synchronizedSet(new HashSet<>());
+        Predicate any = new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean filter(Tuple t) {
+                threads.add(Thread.currentThread());
+                return super.filter(t);
+            }
+        };
+        ParallelAggregate a = new ParallelAggregate(new Filter(any, new SeqScan(locking, table.getId())),
+                1, 0, Aggregator.Op.COUNT);
+        a.setParallelism(4);
+        assertEquals(collectSorted(new Aggregate(new SeqScan(locking, table.getId()), 1, 0, Aggregator.Op.COUNT)),
+                collectSorted(a));
+        assertEquals(Collections.singleton(Thread.currentThread()), threads);
+        Database.getBufferPool().transactionComplete(locking);
+    }
+
+    /**
+     * The planner aggregates a scan in parallel for a read-only transaction
+     * only
+     */
+    @Test
+    public void planned() throws Exception {
+        TableStats.setTableStats("big", new TableStats(table.getId(), 1000));
+        String sql = "SELECT t.c0, SUM(t.c1) FROM big t GROUP BY t.c0;";
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        lp.setParallelism(4);
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof ParallelAggregate);
+        assertEquals(collectSorted(new Aggregate(new SeqScan(tid, table.getId()), 1, 0, Aggregator.Op.SUM)),
+                collectSorted(plan));
+
+        TransactionId locking = new TransactionId();
+        lp = new Parser().generateLogicalPlan(locking, sql);
+        lp.setParallelism(4);
+        plan = lp.physicalPlan(locking, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof Aggregate);
+        Database.getBufferPool().transactionComplete(locking);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelAggregateTest.class);
+    }
+}
@@ -0,0 +1,166 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static simpledb.systemtest.SystemTestUtil.randomRelation;
+import static simpledb.systemtest.SystemTestUtil.drainSorted;
+import static simpledb.systemtest.SystemTestUtil.collectSorted;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParallelHashJoinTest extends SimpleDbTestBase {
+
+    private static final JoinPredicate EQ = new JoinPredicate(0, Op.EQUALS, 0);
+
+    private static ParallelHashJoin join(OpIterator child1, OpIterator child2, int parallelism) {
+        ParallelHashJoin j = new ParallelHashJoin(EQ, child1, child2);
+        j.setParallelism(parallelism);
+        return j;
+    }
+
+    @Test
+    public void joinsLikeHashEquiJoin() throws Exception {
+        List<List<Integer>> expected = collectSorted(new HashEquiJoin(EQ, randomRelation("a", 5000, 2000, 1),
+                randomRelation("b", 20000, 2000, 2)));
+        assertFalse(expected.isEmpty());
+        for (int parallelism : new int[] { 1, 2, 4, 8 }) {
+            assertEquals(expected, collectSorted(join(randomRelation("a", 5000, 2000, 1),
+                    randomRelation("b", 20000, 2000, 2), parallelism)));
+        }
+    }
+
+    @Test
+    public void emptyInputs() throws Exception {
+        assertTrue(collectSorted(join(randomRelation("a", 0, 10, 3), randomRelation("b", 100, 10, 4), 4))
+                .isEmpty());
+        assertTrue(collectSorted(join(randomRelation("a", 100, 10, 3), randomRelation("b", 0, 10, 4), 4))
+                .isEmpty());
+    }
+
+    @Test
+    public void rewind() throws Exception {
+        ParallelHashJoin j = join(randomRelation("a", 3000, 500, 5), randomRelation("b", 3000, 500, 6), 4);
+        j.open();
+        List<List<Integer>> first = drainSorted(j);
+        j.rewind();
+        assertEquals(first, drainSorted(j));
+        // rewind in the middle, while the workers are still probing
+        j.rewind();
+        for (int i = 0; i < 10; i++)
+            j.next();
+        j.rewind();
+        assertEquals(first, drainSorted(j));
+        j.close();
+    }
+
+    /**
+     * Closing the join before reading all of it stops the workers, even
+     * though the queue is full
+     */
+    @Test(timeout = 20000)
+    public void closeEarly() throws Exception {
+        ParallelHashJoin j = join(randomRelation("a", 1000, 10, 7), randomRelation("b", 100000, 10, 8), 4);
+        j.open();
+        j.next();
+        Thread.sleep(100);
+        j.close();
+    }
+
+    /**
+     * A join probing with the output of another runs on the same worker
+     * pool, even with more workers than the pool has threads
+     */
+    @Test(timeout = 60000)
+    public void nested() throws Exception {
+        // the inner join fills its queue before the outer one reads it
+        List<List<Integer>> expected = collectSorted(new HashEquiJoin(EQ, randomRelation("a", 300, 300, 9),
+                new HashEquiJoin(EQ, randomRelation("b", 200, 300, 10),
+                        randomRelation("c", 40000, 300, 11))));
+        assertFalse(expected.isEmpty());
+        int parallelism = 4 * Runtime.getRuntime().availableProcessors();
+        assertEquals(expected, collectSorted(join(randomRelation("a", 300, 300, 9),
+                join(randomRelation("b", 200, 300, 10), randomRelation("c", 40000, 300, 11), parallelism),
+                parallelism)));
+    }
+
+    /**
+     * The workers read the pages of a table scan on behalf of the
+     * transaction
+     */
+    @Test
+    public void scansTables() throws Exception {
+        List<List<Integer>> t1 = new ArrayList<>();
+        List<List<Integer>> t2 = new ArrayList<>();
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 2000, 300, null, t1, "x");
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 8000, 300, null, t2, "y");
+        TransactionId tid = new TransactionId();
+        List<List<Integer>> expected = collectSorted(new HashEquiJoin(EQ, new SeqScan(tid, f1.getId(), "x"),
+                new SeqScan(tid, f2.getId(), "y")));
+        assertEquals(expected, collectSorted(join(new SeqScan(tid, f1.getId(), "x"),
+                new SeqScan(tid, f2.getId(), "y"), 4)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The planner hashes a build side estimated to fit in memory on several
+     * threads, for a read-only transaction only
+     */
+    @Test
+    public void planned() throws Exception {
+        List<List<Integer>> t1 = new ArrayList<>();
+        List<List<Integer>> t2 = new ArrayList<>();
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 2000, 300, null, t1, "x");
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 8000, 300, null, t2, "y");
+        LogicalJoinNode lj = new LogicalJoinNode("x", "y", "x.x0", "y.y0", Op.EQUALS);
+        double cost1 = new TableStats(f1.getId(), 1000).estimateScanCost();
+        double cost2 = new TableStats(f2.getId(), 1000).estimateScanCost();
+
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().beginSnapshot(tid);
+        OpIterator j = JoinOptimizer.instantiateJoin(tid, lj, new SeqScan(tid, f1.getId(), "x"),
+                new SeqScan(tid, f2.getId(), "y"), 2000, 8000, cost1, cost2, 4);
+        assertTrue(j instanceof ParallelHashJoin);
+        assertEquals(collectSorted(new HashEquiJoin(EQ, new SeqScan(tid, f1.getId(), "x"),
+                new SeqScan(tid, f2.getId(), "y"))), collectSorted(j));
+
+        // one thread, a build side too big to hold, or one of unknown size
+        for (int[] args : new int[][] { { 2000, 1 }, { HashEquiJoin.MAP_SIZE + 1, 4 }, { 0, 4 } }) {
+            j = JoinOptimizer.instantiateJoin(tid, lj, new SeqScan(tid, f1.getId(), "x"),
+                    new SeqScan(tid, f2.getId(), "y"), args[0], 8000, cost1, cost2, args[1]);
+            assertTrue(j instanceof HashEquiJoin);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        TransactionId locking = new TransactionId();
+        j = JoinOptimizer.instantiateJoin(locking, lj, new SeqScan(locking, f1.getId(), "x"),
+                new SeqScan(locking, f2.getId(), "y"), 2000, 8000, cost1, cost2, 4);
+        assertTrue(j instanceof HashEquiJoin);
+        Database.getBufferPool().transactionComplete(locking);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsEquality() {
+        new ParallelHashJoin(new JoinPredicate(0, Op.LESS_THAN, 0), randomRelation("a", 1, 1, 0),
+                randomRelation("b", 1, 1, 0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelHashJoinTest.class);
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ParallelSortTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+
+    /**
+     * Tuples of a signed int with few values, a string with many prefixes of
+     * each other, and the position of the tuple
+     */
+    private static List<Tuple> tuples(int rows, long seed) {
+        Random rand = new Random(seed);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(rand.nextInt(200) - 100));
+            StringBuilder s = new StringBuilder();
+            for (int j = rand.nextInt(4); j > 0; j--)
+                s.append((char) ('a' + rand.nextInt(3)));
+            t.setField(1, new StringField(s.toString(), Type.STRING_LEN));
+            t.setField(2, new IntField(i));
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
+    private static List<Integer> sort(List<Tuple> tuples, int[] fields, boolean[] asc, int parallelism)
+            throws Exception {
+        OrderBy o = new OrderBy(fields, asc, new TupleIterator(TD, tuples));
+        o.setMaxTuples(Math.max(1, tuples.size()));
+        o.setParallelism(parallelism);
+        o.open();
+        List<Integer> order = new ArrayList<>();
+        while (o.hasNext())
+            order.add(((IntField) o.next().getField(2)).getValue());
+        o.close();
+        return order;
+    }
+
+    /**
+     * @return the positions of the tuples, in order of the fields, and of
+     *         their positions among equal fields
+     */
+    private static List<Integer> expected(List<Tuple> tuples, Comparator<Tuple> order) {
+        List<Tuple> sorted = new ArrayList<>(tuples);
+        sorted.sort(order);
+        List<Integer> res = new ArrayList<>();
+        for (Tuple t : sorted)
+            res.add(((IntField) t.getField(2)).getValue());
+        return res;
+    }
+
+    private static int intOf(Tuple t) {
+        return ((IntField) t.getField(0)).getValue();
+    }
+
+    private static String stringOf(Tuple t) {
+        return ((StringField) t.getField(1)).getValue();
+    }
+
+    /**
+     * Sorting on any number of threads gives the same, stable, order as a
+     * comparison sort
+     */
+    @Test
+    public void sameOrderOnAnyThreads() throws Exception {
+        List<Tuple> tuples = tuples(40000, 1);
+        int[] fields = { 1, 0 };
+        boolean[] asc = { true, false };
+        List<Integer> exp = expected(tuples, Comparator.comparing(ParallelSortTest::stringOf)
+                .thenComparing(Comparator.comparingInt(ParallelSortTest::intOf).reversed()));
+        for (int threads : new int[] { 1, 2, 3, 8 })
+            assertEquals("on " + threads + " threads", exp, sort(tuples, fields, asc, threads));
+    }
+
+    /**
+     * Negative ints, and strings that are prefixes of each other, sorted
+     * descending
+     */
+    @Test
+    public void descending() throws Exception {
+        List<Tuple> tuples = tuples(20000, 2);
+        assertEquals(expected(tuples, Comparator.comparingInt(ParallelSortTest::intOf).reversed()),
+                sort(tuples, new int[] { 0 }, new boolean[] { false }, 4));
+        assertEquals(expected(tuples, Comparator.comparing(ParallelSortTest::stringOf).reversed()),
+                sort(tuples, new int[] { 1 }, new boolean[] { false }, 4));
+    }
+
+    /**
+     * Fewer tuples than a thread's share, and none at all
+     */
+    @Test
+    public void small() throws Exception {
+        List<Tuple> tuples = tuples(10, 3);
+        assertEquals(expected(tuples, Comparator.comparingInt(ParallelSortTest::intOf)),
+                sort(tuples, new int[] { 0 }, new boolean[] { true }, 8));
+        assertEquals(Collections.emptyList(), sort(new ArrayList<>(), new int[] { 0 }, new boolean[] { true }, 8));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelSortTest.class);
+    }
+}
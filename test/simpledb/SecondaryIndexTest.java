@@ -0,0 +1,213 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+	private static final int ROWS = 3000;
+
+	private HeapFile hf;
+	private List<List<Integer>> tuples;
+	private SecondaryIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		tuples = new ArrayList<>();
+		hf = SystemTestUtil.createRandomHeapFile(3, ROWS, 500, null, tuples, "c");
+		index = createIndex(hf);
+	}
+
+	@After
+	public void tearDown() {
+		Database.reset();
+	}
+
+	private static SecondaryIndex createIndex(HeapFile hf) throws Exception {
+		File f = File.createTempFile("secondary", ".dat");
+		f.deleteOnExit();
+		// keyed on c1, holding c2
+		return SecondaryIndex.create("secondary" + hf.getId(), hf, 1, new int[] { 2 }, f);
+	}
+
+	private static List<List<Integer>> collect(OpIterator it) throws Exception {
+		List<List<Integer>> res = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			res.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return res;
+	}
+
+	/**
+	 * The (c1, c2) pairs of the heap file's tuples that match p
+	 */
+	private List<List<Integer>> expected(java.util.function.IntPredicate p) {
+		List<List<Integer>> res = new ArrayList<>();
+		for(List<Integer> t : tuples) {
+			if(p.test(t.get(1))) {
+				res.add(Arrays.asList(t.get(1), t.get(2)));
+			}
+		}
+		return res;
+	}
+
+	private static void assertSameEntries(List<List<Integer>> expected, List<List<Integer>> actual) {
+		// the index returns its entries in key order
+		for(int i = 1; i < actual.size(); i++) {
+			assertTrue(actual.get(i - 1).get(0) <= actual.get(i).get(0));
+		}
+		List<List<Integer>> e = new ArrayList<>(expected);
+		List<List<Integer>> a = new ArrayList<>(actual);
+		Comparator<List<Integer>> cmp = Comparator.<List<Integer>>comparingInt(l -> l.get(0)).thenComparingInt(l -> l.get(1));
+		e.sort(cmp);
+		a.sort(cmp);
+		assertEquals(e, a);
+	}
+
+	@Test
+	public void createAndCover() throws Exception {
+		assertEquals(Collections.singletonList(index), Database.getCatalog().getIndexes(hf.getId()));
+		assertArrayEquals(new int[] { 1, 2 }, index.getFields());
+		assertTrue(index.covers(Arrays.asList(1, 2)));
+		assertTrue(index.covers(Collections.singletonList(2)));
+		assertFalse(index.covers(Arrays.asList(0, 1)));
+
+		// every entry leads back to its tuple
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = index.getFile().iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			Tuple entry = it.next();
+			RecordId rid = index.getRecordId(entry);
+			HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+			Iterator<Tuple> tups = p.iterator();
+			Tuple t = null;
+			while(tups.hasNext()) {
+				Tuple next = tups.next();
+				if(next.getRecordId().equals(rid)) {
+					t = next;
+				}
+			}
+			assertNotNull(t);
+			assertEquals(t.getField(1), entry.getField(0));
+			assertEquals(t.getField(2), entry.getField(1));
+			count++;
+		}
+		it.close();
+		assertEquals(ROWS, count);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * SELECT c1, c2 WHERE c1 > 250 is answered without reading the heap file
+	 */
+	@Test
+	public void indexOnlyScan() throws Exception {
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		TransactionId tid = new TransactionId();
+		IndexOnlyScan scan = new IndexOnlyScan(tid, index, "t", new IndexPredicate(Op.GREATER_THAN, new IntField(250)));
+		assertEquals("t.c1", scan.getTupleDesc().getFieldName(0));
+		assertEquals(2, scan.getTupleDesc().numFields());
+		assertSameEntries(expected(v -> v > 250), collect(scan));
+		for(int i = 0; i < hf.numPages(); i++) {
+			assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i)));
+		}
+
+		scan = new IndexOnlyScan(tid, index, "t", null);
+		assertSameEntries(expected(v -> true), collect(scan));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Insert and Delete keep the index in sync with the heap file, and aborts
+	 * undo their changes to both
+	 */
+	@Test
+	public void insertsAndDeletes() throws Exception {
+		TransactionId tid = new TransactionId();
+		List<Tuple> inserts = new ArrayList<>();
+		for(int i = 0; i < 200; i++) {
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(i));
+			t.setField(1, new IntField(1000 + i));
+			t.setField(2, new IntField(-i));
+			inserts.add(t);
+			tuples.add(Arrays.asList(i, 1000 + i, -i));
+		}
+		Insert insert = new Insert(tid, new TupleIterator(hf.getTupleDesc(), inserts), hf.getId());
+		insert.open();
+		insert.next();
+		insert.close();
+
+		Delete delete = new Delete(tid, new Filter(new Predicate(1, Op.LESS_THAN, new IntField(100)),
+				new SeqScan(tid, hf.getId(), "t")));
+		delete.open();
+		delete.next();
+		delete.close();
+		tuples.removeIf(t -> t.get(1) < 100);
+		Database.getBufferPool().transactionComplete(tid);
+
+		// an aborted delete and insert change neither
+		tid = new TransactionId();
+		delete = new Delete(tid, new Filter(new Predicate(1, Op.GREATER_THAN, new IntField(400)),
+				new SeqScan(tid, hf.getId(), "t")));
+		delete.open();
+		delete.next();
+		delete.close();
+		Tuple t = new Tuple(hf.getTupleDesc());
+		t.setField(0, new IntField(0));
+		t.setField(1, new IntField(0));
+		t.setField(2, new IntField(0));
+		Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		SystemTestUtil.matchTuples(hf, tid, tuples);
+		assertSameEntries(expected(v -> true), collect(new IndexOnlyScan(tid, index, "t", null)));
+		assertSameEntries(expected(v -> v >= 1000),
+				collect(new IndexOnlyScan(tid, index, "t", new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(1000)))));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test
+	public void emptyTable() throws Exception {
+		HeapFile empty = SystemTestUtil.createRandomHeapFile(3, 0, null, null);
+		SecondaryIndex idx = createIndex(empty);
+		TransactionId tid = new TransactionId();
+		assertTrue(collect(new IndexOnlyScan(tid, idx, "e", null)).isEmpty());
+
+		Tuple t = new Tuple(empty.getTupleDesc());
+		t.setField(0, new IntField(1));
+		t.setField(1, new IntField(2));
+		t.setField(2, new IntField(3));
+		Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+		assertEquals(Collections.singletonList(Arrays.asList(2, 3)), collect(new IndexOnlyScan(tid, idx, "e", null)));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
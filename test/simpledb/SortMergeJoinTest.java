@@ -0,0 +1,190 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static simpledb.systemtest.SystemTestUtil.randomRelation;
+import static simpledb.systemtest.SystemTestUtil.drainSorted;
+import static simpledb.systemtest.SystemTestUtil.collectSorted;
+import junit.framework.JUnit4TestAdapter;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    private static void assertJoinsLikeNestedLoops(Op op, int rows1, int rows2, int maxValue, int maxTuples)
+            throws Exception {
+        JoinPredicate p = new JoinPredicate(0, op, 0);
+        SortMergeJoin j = new SortMergeJoin(p, randomRelation("a", rows1, maxValue, 1),
+                randomRelation("b", rows2, maxValue, 2));
+        j.setMaxTuples(maxTuples);
+        SystemTestUtil.assertJoinsLikeNestedLoops(j, p, randomRelation("a", rows1, maxValue, 1),
+                randomRelation("b", rows2, maxValue, 2));
+    }
+
+    @Test
+    public void equiJoin() throws Exception {
+        assertJoinsLikeNestedLoops(Op.EQUALS, 1000, 1500, 300, ExternalSorter.DEFAULT_MAX_TUPLES);
+        // runs on disk
+        assertJoinsLikeNestedLoops(Op.EQUALS, 1000, 1500, 300, 64);
+    }
+
+    @Test
+    public void rangeJoins() throws Exception {
+        for (Op op : new Op[] { Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ }) {
+            assertJoinsLikeNestedLoops(op, 200, 300, 100, ExternalSorter.DEFAULT_MAX_TUPLES);
+            assertJoinsLikeNestedLoops(op, 200, 300, 100, 32);
+        }
+    }
+
+    @Test
+    public void rewind() throws Exception {
+        for (Op op : new Op[] { Op.EQUALS, Op.GREATER_THAN }) {
+            SortMergeJoin j = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    randomRelation("a", 300, 50, 3), randomRelation("b", 300, 50, 4));
+            j.setMaxTuples(50);
+            j.open();
+            List<List<Integer>> first = drainSorted(j);
+            j.rewind();
+            assertEquals(first, drainSorted(j));
+            j.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notEqualsCantMerge() {
+        new SortMergeJoin(new JoinPredicate(0, Op.NOT_EQUALS, 0), randomRelation("a", 1, 1, 0),
+                randomRelation("b", 1, 1, 0));
+    }
+
+    private static BTreeFile btree(int rows, int maxValue, long seed) throws Exception {
+        File f = File.createTempFile("smj", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeUtility.openBTreeFile(2, "c", f, 0);
+        Random rand = new Random(seed);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            Database.getBufferPool().insertTuple(tid, bf.getId(),
+                    BTreeUtility.getBTreeTuple(new int[] { rand.nextInt(maxValue), i }));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return bf;
+    }
+
+    /**
+     * Scans of a B+ tree in key order are merged without sorting them again
+     */
+    @Test
+    public void sortedChildren() throws Exception {
+        BTreeFile b1 = btree(400, 300, 5);
+        BTreeFile b2 = btree(400, 300, 6);
+        TransactionId tid = new TransactionId();
+        BTreeScan s1 = new BTreeScan(tid, b1.getId(), "x", null);
+        assertTrue(JoinOptimizer.sortedOn(s1, 0));
+        assertFalse(JoinOptimizer.sortedOn(s1, 1));
+        assertFalse(JoinOptimizer.sortedOn(new SeqScan(tid, b1.getId(), "x"), 0));
+
+        for (Op op : new Op[] { Op.EQUALS, Op.LESS_THAN }) {
+            JoinPredicate p = new JoinPredicate(0, op, 0);
+            SortMergeJoin j = new SortMergeJoin(p, new BTreeScan(tid, b1.getId(), "x", null),
+                    new BTreeScan(tid, b2.getId(), "y", null), true, true);
+            // sorted children don't need the room
+            j.setMaxTuples(1);
+            SystemTestUtil.assertJoinsLikeNestedLoops(j, p, new SeqScan(tid, b1.getId(), "x"),
+                    new SeqScan(tid, b2.getId(), "y"));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test
+    public void costs() {
+        // sorting costs nothing when the input is in order
+        assertEquals(JoinOptimizer.estimateScanJoinCost(Op.EQUALS, 1000, 1000, 10, 10),
+                JoinOptimizer.estimateSortMergeJoinCost(Op.EQUALS, 1000, 1000, 10, 10, true, true), 0.0);
+        assertTrue(JoinOptimizer.estimateSortMergeJoinCost(Op.EQUALS, 1000, 1000, 10, 10, false, true)
+                > JoinOptimizer.estimateSortMergeJoinCost(Op.EQUALS, 1000, 1000, 10, 10, true, true));
+        // a range join is cheaper merged than with nested loops
+        assertTrue(JoinOptimizer.estimateSortMergeJoinCost(Op.LESS_THAN, 1000, 1000, 10, 10, false, false)
+                < JoinOptimizer.estimateScanJoinCost(Op.LESS_THAN, 1000, 1000, 10, 10));
+    }
+
+    private static TableStats stats(int tableid, int card, int pages) {
+        return new TableStats(tableid, 1000) {
+            @Override
+            public double estimateScanCost() {
+                return pages * 1000.0;
+            }
+
+            @Override
+            public int estimateTableCardinality(double selectivityFactor) {
+                return (int) (card * selectivityFactor);
+            }
+        };
+    }
+
+    /**
+     * The optimizer merges range joins of big relations, and equality joins of
+     * relations too big to hash in memory that are in order of their join
+     * fields
+     */
+    @Test
+    public void optimizerPicksMergeJoin() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, 50, null, tuples, "s");
+        BTreeFile b1 = btree(300, 50, 7);
+        BTreeFile b2 = btree(300, 50, 8);
+        TransactionId tid = new TransactionId();
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(Database.getCatalog().getTableName(hf.getId()), stats(hf.getId(), 100000, 1000));
+        stats.put(Database.getCatalog().getTableName(b1.getId()), stats(b1.getId(), 100000, 1000));
+        stats.put(Database.getCatalog().getTableName(b2.getId()), stats(b2.getId(), 100000, 1000));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "s");
+        lp.addScan(b1.getId(), "x");
+        lp.addJoin("s.s0", "x.c0", Op.LESS_THAN);
+        lp.addProjectField("*", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof SortMergeJoin);
+        assertEquals(collectSorted(new Join(new JoinPredicate(0, Op.LESS_THAN, 0),
+                new SeqScan(tid, hf.getId(), "s"), new SeqScan(tid, b1.getId(), "x"))).size(),
+                collectSorted(plan).size());
+
+        lp = new LogicalPlan();
+        lp.addScan(b1.getId(), "x");
+        lp.addScan(b2.getId(), "y");
+        lp.addJoin("x.c0", "y.c0", Op.EQUALS);
+        lp.addProjectField("*", null);
+        plan = lp.physicalPlan(tid, stats, false);
+        OpIterator join = ((Operator) plan).getChildren()[0];
+        assertTrue(join instanceof SortMergeJoin);
+        assertTrue(((Operator) join).getChildren()[0] instanceof BTreeScan);
+        assertTrue(((Operator) join).getChildren()[1] instanceof BTreeScan);
+        assertEquals(collectSorted(new Join(new JoinPredicate(0, Op.EQUALS, 0),
+                new SeqScan(tid, b1.getId(), "x"), new SeqScan(tid, b2.getId(), "y"))).size(),
+                collectSorted(plan).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb;
+
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SpillingAggregateTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+
+    /**
+     * Tuples of a group int, the same group as a string, and a value, in
+     * random order
+     */
+    private static List<Tuple> tuples(int rows, int groups, long seed) {
+        Random rand = new Random(seed);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            int g = i % groups;
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(g));
+            t.setField(1, new StringField("g" + g, Type.STRING_LEN));
+            t.setField(2, new IntField(rand.nextInt(1000)));
+            tuples.add(t);
+        }
+        Collections.shuffle(tuples, rand);
+        return tuples;
+    }
+
+    /**
+     * @return the results of op, by their group
+     */
+    private static Map<Field, Integer> results(OpIterator op) throws Exception {
+        Map<Field, Integer> res = new HashMap<>();
+        op.open();
+        while (op.hasNext()) {
+            Tuple t = op.next();
+            assertNull("a group came out twice", res.put(t.getField(0),
+                    ((IntField) t.getField(1)).getValue()));
+        }
+        op.close();
+        return res;
+    }
+
+    private static Map<Field, Integer> aggregate(List<Tuple> tuples, int afield, int gfield,
+            Aggregator.Op aop, int maxGroups) throws Exception {
+        Aggregate a = new Aggregate(new TupleIterator(TD, tuples), afield, gfield, aop);
+        a.setMaxGroups(maxGroups);
+        return results(a);
+    }
+
+    /**
+     * Fewer groups in memory than there are groups gives the same results,
+     * even when the partitions spill again
+     */
+    @Test
+    public void spillsRecursively() throws Exception {
+        List<Tuple> tuples = tuples(20000, 3000, 1);
+        for (Aggregator.Op aop : new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.AVG,
+                Aggregator.Op.MIN, Aggregator.Op.COUNT }) {
+            Map<Field, Integer> expected = aggregate(tuples, 2, 0, aop, Integer.MAX_VALUE);
+            assertEquals(3000, expected.size());
+            // 3000 groups in 16 partitions don't fit in 10 groups either
+            assertEquals(aop.toString(), expected, aggregate(tuples, 2, 0, aop, 10));
+        }
+        Map<Field, Integer> expected = aggregate(tuples, 1, 1, Aggregator.Op.COUNT, Integer.MAX_VALUE);
+        assertEquals(expected, aggregate(tuples, 1, 1, Aggregator.Op.COUNT, 10));
+    }
+
+    /**
+     * Rewinding a spilled aggregate returns its results again
+     */
+    @Test
+    public void rewindSpilled() throws Exception {
+        Aggregate a = new Aggregate(new TupleIterator(TD, tuples(5000, 500, 2)), 2, 0, Aggregator.Op.MAX);
+        a.setMaxGroups(20);
+        a.open();
+        List<Tuple> first = new ArrayList<>();
+        while (a.hasNext())
+            first.add(a.next());
+        assertEquals(500, first.size());
+        a.rewind();
+        for (Tuple t : first) {
+            assertTrue(a.hasNext());
+            assertEquals(t.toString(), a.next().toString());
+        }
+        assertFalse(a.hasNext());
+        a.close();
+    }
+
+    /**
+     * A sort aggregate over tuples sorted on the group gives the results of a
+     * hash aggregate
+     */
+    @Test
+    public void sortAggregate() throws Exception {
+        List<Tuple> tuples = tuples(10000, 700, 3);
+        OpIterator sorted = new OrderBy(0, true, new TupleIterator(TD, tuples));
+        SortAggregate s = new SortAggregate(sorted, 2, 0, Aggregator.Op.SUM);
+        assertEquals(new Aggregate(new TupleIterator(TD, tuples), 2, 0, Aggregator.Op.SUM).getTupleDesc(),
+                s.getTupleDesc());
+        assertEquals(aggregate(tuples, 2, 0, Aggregator.Op.SUM, Integer.MAX_VALUE), results(s));
+
+        SortAggregate all = new SortAggregate(new TupleIterator(TD, tuples), 2,
+                Aggregator.NO_GROUPING, Aggregator.Op.COUNT);
+        all.open();
+        assertEquals(10000, ((IntField) all.next().getField(0)).getValue());
+        assertFalse(all.hasNext());
+        all.rewind();
+        assertEquals(10000, ((IntField) all.next().getField(0)).getValue());
+        all.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SpillingAggregateTest.class);
+    }
+}
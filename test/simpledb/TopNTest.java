@@ -0,0 +1,188 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class TopNTest extends SimpleDbTestBase {
+
+    private static List<Tuple> tuples(int rows, int maxValue, long seed) {
+        Random rand = new Random(seed);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(Utility.getHeapTuple(new int[] { rand.nextInt(maxValue), rand.nextInt(maxValue), i }));
+        return tuples;
+    }
+
+    private static List<List<Integer>> drain(OpIterator it) throws Exception {
+        List<List<Integer>> res = new ArrayList<>();
+        while (it.hasNext())
+            res.add(SystemTestUtil.tupleToList(it.next()));
+        return res;
+    }
+
+    private static OpIterator child(List<Tuple> tuples) {
+        return new TupleIterator(Utility.getTupleDesc(3), tuples);
+    }
+
+    /**
+     * TopN returns what OrderBy followed by Limit does, ties included
+     */
+    @Test
+    public void sameAsOrderByLimit() throws Exception {
+        List<Tuple> tuples = tuples(3000, 30, 1);
+        int[] fields = { 0, 1 };
+        boolean[] asc = { false, true };
+        for (int n : new int[] { 0, 1, 50, 2999, 3000, 5000 }) {
+            OpIterator sorted = new Limit(n, 0, new OrderBy(fields, asc, child(tuples)));
+            sorted.open();
+            TopN top = new TopN(fields, asc, n, child(tuples));
+            top.open();
+            assertEquals(drain(sorted), drain(top));
+            top.rewind();
+            assertEquals(Math.min(n, tuples.size()), drain(top).size());
+            top.close();
+            sorted.close();
+        }
+    }
+
+    /**
+     * Limit skips offset tuples, returns at most limit, and reads no further
+     */
+    @Test
+    public void limitOffset() throws Exception {
+        List<Tuple> tuples = tuples(100, 1000, 2);
+        TupleIterator child = new TupleIterator(Utility.getTupleDesc(3), tuples) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public Tuple next() {
+                Tuple t = super.next();
+                if (SystemTestUtil.tupleToList(t).get(2) >= 20)
+                    fail("read past the limit");
+                return t;
+            }
+        };
+        Limit l = new Limit(10, 10, child);
+        l.open();
+        List<List<Integer>> res = drain(l);
+        assertEquals(10, res.size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(10 + i, (int) res.get(i).get(2));
+        l.rewind();
+        assertEquals(res, drain(l));
+        l.close();
+
+        l = new Limit(10, 95, child(tuples));
+        l.open();
+        assertEquals(5, drain(l).size());
+        l.close();
+    }
+
+    /**
+     * ORDER BY ... LIMIT is parsed into a TopN, and OFFSET into a Limit over
+     * it
+     */
+    @Test
+    public void parsedIntoTopN() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, 1000, null, rows, "c");
+        Database.getCatalog().addTable(hf, "topn");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("topn", new TableStats(hf.getId(), 1000));
+        TransactionId tid = new TransactionId();
+        rows.sort(Comparator.<List<Integer>>comparingInt(r -> r.get(0)).reversed());
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT t.c0 FROM topn t ORDER BY t.c0 DESC LIMIT 5;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+        plan.open();
+        List<List<Integer>> res = drain(plan);
+        assertEquals(5, res.size());
+        for (int i = 0; i < 5; i++)
+            assertEquals(rows.get(i).get(0), res.get(i).get(0));
+        plan.close();
+
+        lp = new Parser().generateLogicalPlan(tid,
+                "SELECT t.c0 FROM topn t ORDER BY t.c0 DESC LIMIT 5 OFFSET 3;");
+        plan = lp.physicalPlan(tid, stats, false);
+        OpIterator limit = ((Operator) plan).getChildren()[0];
+        assertTrue(limit instanceof Limit);
+        assertTrue(((Operator) limit).getChildren()[0] instanceof TopN);
+        plan.open();
+        res = drain(plan);
+        for (int i = 0; i < 5; i++)
+            assertEquals(rows.get(3 + i).get(0), res.get(i).get(0));
+        plan.close();
+
+        lp = new Parser().generateLogicalPlan(tid, "SELECT t.c0 FROM topn t LIMIT 2, 7;");
+        plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        assertEquals(7, drain(plan).size());
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A LIMIT after a subquery limits the outer query, not the subquery
+     */
+    @Test
+    public void limitOfOuterQuery() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 300, 3, null, new ArrayList<>(), "c");
+        Database.getCatalog().addTable(hf, "sub");
+        TransactionId tid = new TransactionId();
+        // the subquery is planned with the global statistics
+        TableStats.setTableStats("sub", new TableStats(hf.getId(), 1000));
+        Map<String, TableStats> stats = TableStats.getStatsMap();
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT t.c0 FROM sub t WHERE t.c0 = (SELECT s.c0 FROM sub s WHERE s.c0 = 1) LIMIT 5;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        assertEquals(5, drain(plan).size());
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A DELETE with a LIMIT is rejected, rather than deleting every row
+     */
+    @Test
+    public void noLimitOnDelete() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, 1000, null, rows, "c");
+        Database.getCatalog().addTable(hf, "del");
+        TableStats.setTableStats("del", new TableStats(hf.getId(), 1000));
+        new Parser().processNextStatement("DELETE FROM del WHERE del.c0 >= 0 LIMIT 5;");
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId());
+        scan.open();
+        assertEquals(rows.size(), drain(scan).size());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopNTest.class);
+    }
+}
@@ -2,12 +2,16 @@ package simpledb;
 
 import org.junit.Before;
 import org.junit.Test;
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
 import simpledb.storage.*;
+import simpledb.transaction.OptimisticConcurrencyControl;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.util.Iterator;
@@ -118,6 +122,141 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  private static boolean containsValue(HeapPage p, int value) {
+    Iterator<Tuple> it = p.iterator();
+    while (it.hasNext()) {
+      if (((IntField) it.next().getField(0)).getValue() == value)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Unit test for tuple-level locking in BufferPool.transactionComplete().
+   * Two transactions change different tuples of the same page at the same
+   * time; committing one and aborting the other must keep exactly the
+   * committed change.
+   */
+  @Test public void tupleLevelChangesOnSharedPage() throws Exception {
+    Iterator<Tuple> it = ((HeapPage) bp.getPageForTuples(tid1, p0, Permissions.READ_ONLY)).iterator();
+    Tuple t0 = it.next();
+    Tuple t1 = it.next();
+    int v0 = ((IntField) t0.getField(0)).getValue();
+    int v1 = ((IntField) t1.getField(0)).getValue();
+
+    // neither of these may block
+    bp.deleteTuple(tid1, t0);
+    bp.deleteTuple(tid2, t1);
+    bp.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(new int[] { 5000, 830 }));
+
+    bp.transactionComplete(tid1, true);
+    bp.transactionComplete(tid2, false);
+
+    HeapPage p = (HeapPage) bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertFalse(containsValue(p, v0));
+    assertTrue(containsValue(p, v1));
+    assertFalse(containsValue(p, 5000));
+    bp.transactionComplete(tid1);
+
+    // and the same on disk
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    TransactionId tid3 = new TransactionId();
+    p = (HeapPage) bp.getPage(tid3, p0, Permissions.READ_ONLY);
+    assertFalse(containsValue(p, v0));
+    assertTrue(containsValue(p, v1));
+    assertFalse(containsValue(p, 5000));
+  }
+
+  /**
+   * Unit test for BufferPool.commitTransaction() under optimistic
+   * concurrency control. Writes stay private until commit; of two
+   * transactions that read and wrote the same page, the second one to
+   * commit fails validation and its change is thrown away.
+   */
+  @Test public void optimisticCommitValidates() throws Exception {
+    bp.setConcurrencyControl(new OptimisticConcurrencyControl());
+    Iterator<Tuple> it = ((HeapPage) bp.getPageForTuples(tid1, p0, Permissions.READ_ONLY)).iterator();
+    Tuple t0 = it.next();
+    Tuple t1 = it.next();
+    int v0 = ((IntField) t0.getField(0)).getValue();
+    int v1 = ((IntField) t1.getField(0)).getValue();
+
+    bp.deleteTuple(tid1, t0);
+    bp.getPageForTuples(tid2, p0, Permissions.READ_ONLY);
+    bp.deleteTuple(tid2, t1);
+
+    HeapPage p = (HeapPage) bp.getPage(new TransactionId(), p0, Permissions.READ_ONLY);
+    assertTrue(containsValue(p, v0));
+    assertTrue(containsValue(p, v1));
+
+    bp.commitTransaction(tid1);
+    assertFalse(containsValue(p, v0));
+    try {
+      bp.commitTransaction(tid2);
+      fail("expected validation to fail");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertTrue(containsValue(p, v1));
+
+    // and the same on disk
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    p = (HeapPage) bp.getPage(new TransactionId(), p0, Permissions.READ_ONLY);
+    assertFalse(containsValue(p, v0));
+    assertTrue(containsValue(p, v1));
+  }
+
+  /**
+   * Unit test for BufferPool.commitTransaction() under optimistic
+   * concurrency control on a B+ tree. Commits don't force pages to disk, so
+   * the private copy of a page the second transaction writes must hold the
+   * first one's change.
+   */
+  @Test public void optimisticCommitsOnCachedPages() throws Exception {
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 0);
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    bp.setConcurrencyControl(new OptimisticConcurrencyControl());
+
+    bp.insertTuple(tid1, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { 5000, 1 }));
+    bp.commitTransaction(tid1);
+    bp.insertTuple(tid2, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { 5001, 2 }));
+    bp.commitTransaction(tid2);
+
+    TransactionId tid3 = new TransactionId();
+    DbFileIterator it = bf.iterator(tid3);
+    it.open();
+    int count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    it.close();
+    assertEquals(12, count);
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for BufferPool.transactionComplete() assuming a commit that
+   * fails validation: the abort reaches the caller.
+   */
+  @Test public void failedCommitThrows() throws Exception {
+    bp.setConcurrencyControl(new OptimisticConcurrencyControl());
+    Iterator<Tuple> it = ((HeapPage) bp.getPageForTuples(tid1, p0, Permissions.READ_ONLY)).iterator();
+    Tuple t0 = it.next();
+    Tuple t1 = it.next();
+    bp.deleteTuple(tid1, t0);
+    bp.getPageForTuples(tid2, p0, Permissions.READ_ONLY);
+    bp.deleteTuple(tid2, t1);
+
+    bp.transactionComplete(tid1, true);
+    try {
+      bp.transactionComplete(tid2, true);
+      fail("expected validation to fail");
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof TransactionAbortedException);
+    }
+  }
+
   /**
    * JUnit suite target
    */
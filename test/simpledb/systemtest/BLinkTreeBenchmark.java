@@ -0,0 +1,178 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.index.BTreeUtility.BTreeReader;
+import simpledb.index.BTreeUtility.BTreeWriter;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Stress test of concurrent inserts and searches on a B+ tree with latch
+ * coupling (BTreeFile) and on a B-link tree (BLinkTreeFile). Writers insert
+ * random keys, one per transaction, and search for what they inserted; readers
+ * search for random keys, one per transaction. Small pages make splits, and
+ * splits of internal pages, frequent. Each run checks that the tree ends up
+ * with every committed tuple.
+ * <p>
+ * Usage: java simpledb.systemtest.BLinkTreeBenchmark [writers] [readers] [seconds]
+ */
+public class BLinkTreeBenchmark {
+
+    private static final int PAGE_SIZE = 1024;
+    private static final int PRELOAD = 20000;
+    private static final int PRELOAD_PER_TRANSACTION = 1000;
+
+    private interface TreeFactory {
+        BTreeFile create(String path) throws Exception;
+    }
+
+    /** Inserts a key in its own transaction, and commits it if it succeeded */
+    private static class Inserter extends BTreeWriter {
+        Inserter(BTreeFile bf, int item) {
+            super(new TransactionId(), bf, item, 1);
+        }
+
+        @Override
+        public void run() {
+            // inserts and searches for the key, and aborts on failure
+            super.run();
+            if (succeeded()) {
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        }
+    }
+
+    /** Searches for a key once, in its own transaction */
+    private static class Searcher extends BTreeReader {
+        private boolean aborted = false;
+
+        Searcher(BTreeFile bf, int key) {
+            super(new TransactionId(), bf, new IntField(key), 1);
+        }
+
+        @Override
+        public void run() {
+            try {
+                DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, f));
+                it.open();
+                while (it.hasNext()) {
+                    it.next();
+                }
+                it.close();
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+                Database.getBufferPool().transactionComplete(tid, false);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        BufferPool.setPageSize(PAGE_SIZE);
+        run("B+ tree", path -> BTreeUtility.createEmptyBTreeFile(path, 2, 0), writers, readers, seconds);
+        run("B-link tree", path -> BTreeUtility.createEmptyBLinkTreeFile(path, 2, 0), writers, readers, seconds);
+    }
+
+    private static void run(String name, TreeFactory factory, int writers, int readers,
+                            int seconds) throws Exception {
+        Database.reset();
+        Database.resetBufferPool(1000);
+        File f = File.createTempFile("blink", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = factory.create(f.getAbsolutePath());
+
+        Random random = new Random(0);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < PRELOAD; i++) {
+            int key = random.nextInt(BTreeUtility.MAX_RAND_VALUE);
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+            if ((i + 1) % PRELOAD_PER_TRANSACTION == 0) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicInteger inserts = new AtomicInteger();
+        AtomicInteger searches = new AtomicInteger();
+        AtomicInteger aborts = new AtomicInteger();
+        Exception[] failure = new Exception[1];
+        Thread[] workers = new Thread[writers + readers];
+        for (int i = 0; i < workers.length; i++) {
+            Random r = new Random(i + 1);
+            boolean writer = i < writers;
+            workers[i] = new Thread(() -> {
+                while (!stop.get() && failure[0] == null) {
+                    int key = r.nextInt(BTreeUtility.MAX_RAND_VALUE);
+                    if (writer) {
+                        Inserter w = new Inserter(bf, key);
+                        w.run();
+                        if (w.succeeded()) {
+                            inserts.incrementAndGet();
+                        } else if (w.getError() instanceof TransactionAbortedException) {
+                            aborts.incrementAndGet();
+                        } else {
+                            failure[0] = w.getError();
+                        }
+                    } else {
+                        Searcher s = new Searcher(bf, key);
+                        s.run();
+                        if (s.aborted) {
+                            aborts.incrementAndGet();
+                        } else {
+                            searches.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread w : workers) {
+            w.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread w : workers) {
+            w.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (failure[0] != null)
+            throw failure[0];
+
+        int total = 0;
+        tid = new TransactionId();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            total++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        if (total != PRELOAD + inserts.get())
+            throw new IllegalStateException(name + " lost inserts: " + total + " != " + (PRELOAD + inserts.get()));
+
+        System.out.printf("%s: %7.0f inserts/s, %7.0f searches/s, %5d aborts%n", name,
+                inserts.get() / elapsed, searches.get() / elapsed, aborts.get());
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Compares a B+ tree with fixed-width string keys (BTreeFile) to one with
+ * compressed keys in its internal pages (CompressedBTreeFile): the fanout and
+ * height of the tree, the number of internal pages, and the latency of point
+ * lookups through a buffer pool too small for the whole tree.
+ * <p>
+ * Usage: java simpledb.systemtest.CompressedBTreeBenchmark [rows] [lookups] [bufferpool pages]
+ */
+public class CompressedBTreeBenchmark {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+    private static final int ROWS_PER_TRANSACTION = 5000;
+
+    private interface TreeFactory {
+        BTreeFile create(File f);
+    }
+
+    private static String key(int n) {
+        return String.format("customer-%010d", n);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int pages = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        run("fixed-width keys", f -> new BTreeFile(f, 0, TD), rows, lookups, pages);
+        run("compressed keys", f -> new CompressedBTreeFile(f, 0, TD), rows, lookups, pages);
+    }
+
+    private static void run(String name, TreeFactory factory, int rows, int lookups, int pages)
+            throws Exception {
+        Database.reset();
+        Database.resetBufferPool(Math.max(pages, 1000));
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = factory.create(f);
+        Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+
+        Random random = new Random(0);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new StringField(key(random.nextInt(Integer.MAX_VALUE)), Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+            if ((i + 1) % ROWS_PER_TRANSACTION == 0) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+
+        // walk the tree level by level
+        tid = new TransactionId();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        List<BTreePageId> level = Collections.singletonList(rootPtr.getRootId());
+        int height = 1;
+        int internalPages = 0;
+        long entries = 0;
+        while (level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+            List<BTreePageId> next = new ArrayList<>();
+            for (BTreePageId pid : level) {
+                BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid,
+                        Permissions.READ_ONLY);
+                internalPages++;
+                entries += page.getNumEntries();
+                Iterator<BTreeEntry> it = page.iterator();
+                next.add(it.next().getLeftChild());
+                next.add(page.reverseIterator().next().getRightChild());
+                it = page.iterator();
+                while (it.hasNext()) {
+                    BTreeEntry e = it.next();
+                    if (!next.contains(e.getRightChild()))
+                        next.add(e.getRightChild());
+                }
+            }
+            level = next;
+            height++;
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        // look up random keys, cold, through a small buffer pool
+        Database.resetBufferPool(pages);
+        random = new Random(0);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            keys.add(key(random.nextInt(Integer.MAX_VALUE)));
+        }
+        Random pick = new Random(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            String key = keys.get(pick.nextInt(rows));
+            tid = new TransactionId();
+            DbFileIterator it = bf.indexIterator(tid,
+                    new IndexPredicate(Op.EQUALS, new StringField(key, Type.STRING_LEN)));
+            it.open();
+            if (!it.hasNext())
+                throw new IllegalStateException(name + " lost key " + key);
+            it.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / lookups;
+
+        System.out.printf("%s: height %d, %d internal pages, fanout %.1f, %d leaves, %.1f us/lookup%n",
+                name, height, internalPages, (double) (entries + internalPages) / internalPages,
+                level.size(), micros);
+    }
+}
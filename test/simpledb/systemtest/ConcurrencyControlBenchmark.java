@@ -0,0 +1,128 @@
+package simpledb.systemtest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import simpledb.common.Database;
+import simpledb.execution.SeqScan;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.ConcurrencyControl;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.OptimisticConcurrencyControl;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Compares two-phase locking with optimistic concurrency control on short
+ * read-modify-write transactions. Each transaction increments a counter kept
+ * as the single row of its own table, and is retried until it commits.
+ * Under low contention the transactions pick from many counters, under high
+ * contention from only two.
+ * <p>
+ * Usage: java simpledb.systemtest.ConcurrencyControlBenchmark [threads] [transactions per thread]
+ */
+public class ConcurrencyControlBenchmark {
+
+    private static final int LOW_CONTENTION_COUNTERS = 32;
+    private static final int HIGH_CONTENTION_COUNTERS = 2;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        for (int counters : new int[] {LOW_CONTENTION_COUNTERS, HIGH_CONTENTION_COUNTERS}) {
+            run("2PL", LockManager::new, counters, threads, perThread);
+            run("OCC", OptimisticConcurrencyControl::new, counters, threads, perThread);
+        }
+    }
+
+    private static void run(String name, Supplier<ConcurrencyControl> scheme, int counters,
+                            int threads, int perThread) throws Exception {
+        Database.reset();
+        Database.getBufferPool().setConcurrencyControl(scheme.get());
+        Map<Integer, Integer> zero = new HashMap<>();
+        zero.put(0, 0);
+        int[] tables = new int[counters];
+        for (int i = 0; i < counters; i++) {
+            tables[i] = SystemTestUtil.createRandomHeapFile(1, 1, zero, null).getId();
+        }
+
+        AtomicInteger aborts = new AtomicInteger();
+        Exception[] failure = new Exception[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            Random random = new Random(i);
+            workers[i] = new Thread(() -> {
+                try {
+                    for (int n = 0; n < perThread; n++) {
+                        int table = tables[random.nextInt(counters)];
+                        while (!increment(table)) {
+                            aborts.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread w : workers) {
+            w.start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (failure[0] != null)
+            throw failure[0];
+
+        int total = 0;
+        Transaction t = new Transaction();
+        t.start();
+        for (int table : tables) {
+            total += read(t, table).getValue();
+        }
+        t.commit();
+        if (total != threads * perThread)
+            throw new IllegalStateException(name + " lost updates: " + total + " != " + threads * perThread);
+
+        System.out.printf("%s, %2d counters: %7.0f commits/s, %5d aborts%n", name, counters,
+                threads * perThread / (elapsed / 1e9), aborts.get());
+    }
+
+    private static IntField read(Transaction t, int tableId) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), tableId, "");
+        scan.open();
+        IntField value = (IntField) scan.next().getField(0);
+        scan.close();
+        return value;
+    }
+
+    /** @return true if the transaction committed */
+    private static boolean increment(int tableId) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            SeqScan scan = new SeqScan(t.getId(), tableId, "");
+            scan.open();
+            Tuple old = scan.next();
+            scan.close();
+
+            Tuple updated = new Tuple(SystemTestUtil.SINGLE_INT_DESCRIPTOR);
+            updated.setField(0, new IntField(((IntField) old.getField(0)).getValue() + 1));
+            Database.getBufferPool().deleteTuple(t.getId(), old);
+            Database.getBufferPool().insertTuple(t.getId(), tableId, updated);
+            t.commit();
+            return true;
+        } catch (TransactionAbortedException e) {
+            // a failed commit has already aborted the transaction
+            t.abort();
+            return false;
+        }
+    }
+}
@@ -435,6 +435,33 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestCommitNoForceCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().flushAllPages();
+
+        // *** Test:
+        // commit only forces the log, not the page
+        // crash: redo puts the committed insert on disk
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        HeapPage before = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        insertRow(hf1, t1, 30);
+        t1.commit();
+        HeapPage after = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        assertEquals(before.getNumEmptySlots(), after.getNumEmptySlots());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 30, true);
+        t.commit();
+    }
+
 
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
@@ -0,0 +1,67 @@
+package simpledb.systemtest;
+
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+
+/**
+ * Times a HashEquiJoin and a ParallelHashJoin on 1, 2, 4, ... threads, up to
+ * twice the number of processors, joining a build side small enough for the
+ * planner to pick the parallel join to a larger probe side. Each join is run
+ * a few times, and the fastest run is reported, with its speedup over the
+ * HashEquiJoin.
+ * <p>
+ * Usage: java simpledb.systemtest.ParallelHashJoinBenchmark [build rows] [probe rows] [runs]
+ */
+public class ParallelHashJoinBenchmark {
+
+    private static final JoinPredicate EQ = new JoinPredicate(0, Op.EQUALS, 0);
+
+    private interface JoinFactory {
+        Operator create(OpIterator child1, OpIterator child2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int buildRows = args.length > 0 ? Integer.parseInt(args[0]) : HashEquiJoin.MAP_SIZE;
+        int probeRows = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int processors = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d build rows, %d probe rows, %d processors%n", buildRows, probeRows, processors);
+
+        OpIterator build = SystemTestUtil.randomRelation("a", buildRows, buildRows, 1);
+        OpIterator probe = SystemTestUtil.randomRelation("b", probeRows, buildRows, 2);
+        double base = run("HashEquiJoin", (c1, c2) -> new HashEquiJoin(EQ, c1, c2), build, probe, runs);
+        for (int threads = 1; threads <= 2 * processors; threads *= 2) {
+            int parallelism = threads;
+            double millis = run("ParallelHashJoin, " + threads + " threads", (c1, c2) -> {
+                ParallelHashJoin j = new ParallelHashJoin(EQ, c1, c2);
+                j.setParallelism(parallelism);
+                return j;
+            }, build, probe, runs);
+            System.out.printf("    speedup %.2f%n", base / millis);
+        }
+    }
+
+    /**
+     * @return the milliseconds of the fastest of runs joins of build and
+     *         probe
+     */
+    private static double run(String name, JoinFactory factory, OpIterator build, OpIterator probe,
+                              int runs) throws Exception {
+        double best = Double.MAX_VALUE;
+        long rows = 0;
+        for (int i = 0; i < runs; i++) {
+            Operator j = factory.create(build, probe);
+            long start = System.nanoTime();
+            j.open();
+            rows = 0;
+            while (j.hasNext()) {
+                j.next();
+                rows++;
+            }
+            j.close();
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        }
+        System.out.printf("%s: %d rows, %.1f ms%n", name, rows, best);
+        return best;
+    }
+}
@@ -0,0 +1,124 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Delete;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+public class SnapshotTest extends SimpleDbTestBase {
+
+    private static int countTuples(HeapFile f, Transaction t)
+            throws DbException, TransactionAbortedException {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int count = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            count++;
+        }
+        ss.close();
+        return count;
+    }
+
+    private static Transaction begin(boolean readOnly) {
+        Transaction t = new Transaction(readOnly);
+        t.start();
+        return t;
+    }
+
+    private static void waitForVacuum() throws InterruptedException {
+        for (int i = 0; i < 100 && Database.getBufferPool().numVersions() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, Database.getBufferPool().numVersions());
+    }
+
+    /**
+     * A snapshot doesn't see changes that are uncommitted, or committed after
+     * it was taken, and reading it doesn't block on the writer's locks.
+     */
+    @Test public void snapshotIgnoresLaterInserts() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        Transaction reader = begin(true);
+
+        Transaction writer = begin(false);
+        AbortEvictionTest.insertRow(f, writer);
+        assertFalse(AbortEvictionTest.findMagicTuple(f, reader));
+        writer.commit();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, reader));
+
+        Transaction later = begin(true);
+        assertTrue(AbortEvictionTest.findMagicTuple(f, later));
+        later.commit();
+
+        // the reader still needs the old versions
+        assertTrue(Database.getBufferPool().numVersions() > 0);
+        reader.commit();
+        waitForVacuum();
+    }
+
+    /**
+     * Tuples deleted after a snapshot was taken are still visible to it.
+     */
+    @Test public void snapshotSeesDeletedTuples() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        Transaction reader = begin(true);
+        assertEquals(1000, countTuples(f, reader));
+
+        Transaction writer = begin(false);
+        Delete delete = new Delete(writer.getId(), new SeqScan(writer.getId(), f.getId(), ""));
+        delete.open();
+        while (delete.hasNext()) {
+            delete.next();
+        }
+        delete.close();
+        assertEquals(1000, countTuples(f, reader));
+        writer.commit();
+
+        assertEquals(1000, countTuples(f, reader));
+        Transaction later = begin(true);
+        assertEquals(0, countTuples(f, later));
+        later.commit();
+        reader.commit();
+        waitForVacuum();
+    }
+
+    /**
+     * Without snapshots, no old versions are kept once writers commit.
+     */
+    @Test public void noVersionsWithoutSnapshots() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        Transaction writer = begin(false);
+        AbortEvictionTest.insertRow(f, writer);
+        assertTrue(Database.getBufferPool().numVersions() > 0);
+        writer.commit();
+        assertEquals(0, Database.getBufferPool().numVersions());
+    }
+
+    /**
+     * A read-only transaction can't modify the database.
+     */
+    @Test(expected = DbException.class)
+    public void readOnlyCannotInsert() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Transaction reader = begin(true);
+        try {
+            Database.getBufferPool().insertTuple(reader.getId(), f.getId(), Utility.getHeapTuple(1, 2));
+        } finally {
+            reader.commit();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -11,6 +12,8 @@ import java.util.UUID;
 import org.junit.Assert;
 
 import simpledb.common.*;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
 import simpledb.execution.OpIterator;
 import simpledb.execution.SeqScan;
 import simpledb.storage.*;
@@ -99,6 +102,63 @@ public class SystemTestUtil {
         return list;
     }
 
+    /**
+     * @return rows tuples of two int fields: a value drawn from [0, maxValue)
+     *         with seed, and the number of the tuple
+     */
+    public static List<Tuple> randomTuples(int rows, int maxValue, long seed) {
+        Random rand = new Random(seed);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(Utility.getHeapTuple(new int[] { rand.nextInt(maxValue), i }));
+        return tuples;
+    }
+
+    /**
+     * @return an iterator over {@link #randomTuples}, whose field names start
+     *         with prefix
+     */
+    public static OpIterator randomRelation(String prefix, int rows, int maxValue, long seed) {
+        return new TupleIterator(Utility.getTupleDesc(2, prefix), randomTuples(rows, maxValue, seed));
+    }
+
+    /**
+     * @return the tuples left in an open iterator, sorted, to compare the
+     *         results of operators that return them in different orders
+     */
+    public static List<List<Integer>> drainSorted(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> res = new ArrayList<>();
+        while (it.hasNext())
+            res.add(tupleToList(it.next()));
+        res.sort(Comparator.comparing(Object::toString));
+        return res;
+    }
+
+    /**
+     * @return the tuples of it, sorted
+     * @see #drainSorted
+     */
+    public static List<List<Integer>> collectSorted(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        it.open();
+        List<List<Integer>> res = drainSorted(it);
+        it.close();
+        return res;
+    }
+
+    /**
+     * Checks that join returns some tuples, and the same as a nested loops
+     * {@link Join} of p over child1 and child2, which hold the same tuples as
+     * the children of join.
+     */
+    public static void assertJoinsLikeNestedLoops(OpIterator join, JoinPredicate p, OpIterator child1,
+            OpIterator child2) throws DbException, TransactionAbortedException {
+        List<List<Integer>> expected = collectSorted(new Join(p, child1, child2));
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(expected, collectSorted(join));
+    }
+
     public static void matchTuples(DbFile f, List<List<Integer>> tuples)
             throws DbException, TransactionAbortedException {
         TransactionId tid = new TransactionId();
@@ -19,6 +19,7 @@ import simpledb.execution.Insert;
 import simpledb.execution.Query;
 import simpledb.execution.SeqScan;
 import simpledb.storage.*;
+import simpledb.transaction.OptimisticConcurrencyControl;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -234,7 +235,19 @@ public class TransactionTest extends SimpleDbTestBase {
         validateTransactions(10);
     }
 
-    @Test public void testAllDirtyFails()
+    @Test public void testFiveThreadsOptimistic()
+            throws IOException, DbException, TransactionAbortedException {
+        Database.getBufferPool().setConcurrencyControl(new OptimisticConcurrencyControl());
+        validateTransactions(5);
+    }
+
+    @Test public void testTenThreadsOptimistic()
+            throws IOException, DbException, TransactionAbortedException {
+        Database.getBufferPool().setConcurrencyControl(new OptimisticConcurrencyControl());
+        validateTransactions(10);
+    }
+
+    @Test public void testAllDirtySteals()
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data
         HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
@@ -247,12 +260,16 @@ public class TransactionTest extends SimpleDbTestBase {
         // Insert a new row
         AbortEvictionTest.insertRow(f, t);
 
-        // Scanning the table must fail because it can't evict the dirty page
-        try {
-            AbortEvictionTest.findMagicTuple(f, t);
-            fail("Expected scan to run out of available buffer pages");
-        } catch (DbException ignored) {}
-        t.commit();
+        // Scanning the table evicts the dirty page, which is written (stolen)
+        // and read back with the new row
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.abort();
+
+        // the abort undid the stolen change
+        Transaction t2 = new Transaction();
+        t2.start();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, t2));
+        t2.commit();
     }
 
     /** Make test compatible with older version of ant. */